@@ -13,6 +13,7 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.context.annotation.Configuration;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -80,6 +81,7 @@ public class AppProperties {
 	private List<Bundle.BundleType> allowed_bundle_types = null;
 	private Boolean narrative_enabled = true;
 	private Boolean ig_runtime_upload_enabled = false;
+	private Long ig_runtime_upload_max_bytes = 100L * 1024 * 1024;
 	private Validation validation = new Validation();
 	private Map<String, Tester> fire_arrow_server = null;
 	private Logger logger = new Logger();
@@ -88,6 +90,28 @@ public class AppProperties {
 	private Partitioning partitioning = null;
 	private Boolean validate_resource_status_for_package_upload = true;
 	private Boolean install_transitive_ig_dependencies = true;
+	private Integer ig_install_parallelism = 4;
+	private Boolean ig_install_force = false;
+	private Integer ig_additional_resources_chunk_size = 500;
+	private Integer ig_additional_resources_parallelism = 4;
+	private Boolean batch2_metrics_enabled = false;
+	private Boolean interaction_metrics_enabled = false;
+	private Boolean resource_cache_enabled = false;
+	private Long resource_cache_max_bytes = 64L * 1024 * 1024;
+	private Long resource_cache_ttl_millis = 600000L;
+	private List<String> resource_cache_resource_types = new ArrayList<>();
+	private Boolean search_cache_enabled = false;
+	private Long search_cache_max_bytes = 64L * 1024 * 1024;
+	private Boolean ndjson_search_enabled = false;
+	private Integer ndjson_search_batch_size = 500;
+	private Boolean keyset_paging_enabled = false;
+	private Boolean metadata_cache_enabled = false;
+	private Boolean admission_control_enabled = false;
+	private Integer admission_control_permits = 0;
+	private Long admission_control_max_wait_millis = 30000L;
+	private RateLimit rate_limit = new RateLimit();
+	private RequestDeadline request_deadline = new RequestDeadline();
+	private SqlCapture sql_capture = new SqlCapture();
 
 	private List<String> install_additional_resources_from_ig_folders = new ArrayList<>();
 	private Map<String, ExtendedPackageInstallationSpec> implementationGuides = null;
@@ -608,6 +632,206 @@ public class AppProperties {
 		this.install_transitive_ig_dependencies = install_transitive_ig_dependencies;
 	}
 
+	public Integer getIg_install_parallelism() {
+		return ig_install_parallelism;
+	}
+
+	public void setIg_install_parallelism(Integer ig_install_parallelism) {
+		this.ig_install_parallelism = ig_install_parallelism;
+	}
+
+	/**
+	 * If enabled, configured implementation guides are installed on startup even if they were installed before with
+	 * the same contents and options
+	 */
+	public Boolean getIg_install_force() {
+		return ig_install_force;
+	}
+
+	public void setIg_install_force(Boolean ig_install_force) {
+		this.ig_install_force = ig_install_force;
+	}
+
+	/**
+	 * Maximum number of resources from the additional resource folders of an implementation guide stored in one
+	 * transaction
+	 */
+	public Integer getIg_additional_resources_chunk_size() {
+		return ig_additional_resources_chunk_size;
+	}
+
+	public void setIg_additional_resources_chunk_size(Integer ig_additional_resources_chunk_size) {
+		this.ig_additional_resources_chunk_size = ig_additional_resources_chunk_size;
+	}
+
+	public Integer getIg_additional_resources_parallelism() {
+		return ig_additional_resources_parallelism;
+	}
+
+	public void setIg_additional_resources_parallelism(Integer ig_additional_resources_parallelism) {
+		this.ig_additional_resources_parallelism = ig_additional_resources_parallelism;
+	}
+
+	/**
+	 * If enabled, batch2 work chunk processing times, records, retries, errors and queue depth are published to
+	 * the metrics registry
+	 */
+	public Boolean getBatch2_metrics_enabled() {
+		return batch2_metrics_enabled;
+	}
+
+	public void setBatch2_metrics_enabled(Boolean batch2_metrics_enabled) {
+		this.batch2_metrics_enabled = batch2_metrics_enabled;
+	}
+
+	public Boolean getInteraction_metrics_enabled() {
+		return interaction_metrics_enabled;
+	}
+
+	public void setInteraction_metrics_enabled(Boolean interaction_metrics_enabled) {
+		this.interaction_metrics_enabled = interaction_metrics_enabled;
+	}
+
+	public Boolean getResource_cache_enabled() {
+		return resource_cache_enabled;
+	}
+
+	public void setResource_cache_enabled(Boolean resource_cache_enabled) {
+		this.resource_cache_enabled = resource_cache_enabled;
+	}
+
+	public Long getResource_cache_max_bytes() {
+		return resource_cache_max_bytes;
+	}
+
+	public void setResource_cache_max_bytes(Long resource_cache_max_bytes) {
+		this.resource_cache_max_bytes = resource_cache_max_bytes;
+	}
+
+	public Long getResource_cache_ttl_millis() {
+		return resource_cache_ttl_millis;
+	}
+
+	public void setResource_cache_ttl_millis(Long resource_cache_ttl_millis) {
+		this.resource_cache_ttl_millis = resource_cache_ttl_millis;
+	}
+
+	public List<String> getResource_cache_resource_types() {
+		return resource_cache_resource_types;
+	}
+
+	public void setResource_cache_resource_types(List<String> resource_cache_resource_types) {
+		this.resource_cache_resource_types = resource_cache_resource_types;
+	}
+
+	public Boolean getSearch_cache_enabled() {
+		return search_cache_enabled;
+	}
+
+	public void setSearch_cache_enabled(Boolean search_cache_enabled) {
+		this.search_cache_enabled = search_cache_enabled;
+	}
+
+	public Long getSearch_cache_max_bytes() {
+		return search_cache_max_bytes;
+	}
+
+	public void setSearch_cache_max_bytes(Long search_cache_max_bytes) {
+		this.search_cache_max_bytes = search_cache_max_bytes;
+	}
+
+	/**
+	 * Stream searches requested as NDJSON from a database cursor instead of returning them in pages
+	 */
+	public Boolean getNdjson_search_enabled() {
+		return ndjson_search_enabled;
+	}
+
+	public void setNdjson_search_enabled(Boolean ndjson_search_enabled) {
+		this.ndjson_search_enabled = ndjson_search_enabled;
+	}
+
+	public Integer getNdjson_search_batch_size() {
+		return ndjson_search_batch_size;
+	}
+
+	public void setNdjson_search_batch_size(Integer ndjson_search_batch_size) {
+		this.ndjson_search_batch_size = ndjson_search_batch_size;
+	}
+
+	/**
+	 * Page searches sorted by _lastUpdated by keyset instead of storing their results for offset paging
+	 */
+	public Boolean getKeyset_paging_enabled() {
+		return keyset_paging_enabled;
+	}
+
+	public void setKeyset_paging_enabled(Boolean keyset_paging_enabled) {
+		this.keyset_paging_enabled = keyset_paging_enabled;
+	}
+
+	/**
+	 * Serve /metadata from the encoded CapabilityStatement, rebuilt only when what it describes changes
+	 */
+	public Boolean getMetadata_cache_enabled() {
+		return metadata_cache_enabled;
+	}
+
+	public void setMetadata_cache_enabled(Boolean metadata_cache_enabled) {
+		this.metadata_cache_enabled = metadata_cache_enabled;
+	}
+
+	public Boolean getAdmission_control_enabled() {
+		return admission_control_enabled;
+	}
+
+	public void setAdmission_control_enabled(Boolean admission_control_enabled) {
+		this.admission_control_enabled = admission_control_enabled;
+	}
+
+	/**
+	 * Number of FHIR requests running at the same time, 0 to use the size of the database connection pool
+	 */
+	public Integer getAdmission_control_permits() {
+		return admission_control_permits;
+	}
+
+	public void setAdmission_control_permits(Integer admission_control_permits) {
+		this.admission_control_permits = admission_control_permits;
+	}
+
+	public Long getAdmission_control_max_wait_millis() {
+		return admission_control_max_wait_millis;
+	}
+
+	public void setAdmission_control_max_wait_millis(Long admission_control_max_wait_millis) {
+		this.admission_control_max_wait_millis = admission_control_max_wait_millis;
+	}
+
+	public RateLimit getRate_limit() {
+		return rate_limit;
+	}
+
+	public void setRate_limit(RateLimit rate_limit) {
+		this.rate_limit = rate_limit;
+	}
+
+	public RequestDeadline getRequest_deadline() {
+		return request_deadline;
+	}
+
+	public void setRequest_deadline(RequestDeadline request_deadline) {
+		this.request_deadline = request_deadline;
+	}
+
+	public SqlCapture getSql_capture() {
+		return sql_capture;
+	}
+
+	public void setSql_capture(SqlCapture sql_capture) {
+		this.sql_capture = sql_capture;
+	}
+
 	public Boolean getValidate_resource_status_for_package_upload() {
 		return validate_resource_status_for_package_upload;
 	}
@@ -648,6 +872,17 @@ public class AppProperties {
 		this.ig_runtime_upload_enabled = ig_runtime_upload_enabled;
 	}
 
+	/**
+	 * The maximum size of a package uploaded to <code>$install-package</code>, or 0 for no limit
+	 */
+	public Long getIg_runtime_upload_max_bytes() {
+		return ig_runtime_upload_max_bytes;
+	}
+
+	public void setIg_runtime_upload_max_bytes(Long ig_runtime_upload_max_bytes) {
+		this.ig_runtime_upload_max_bytes = ig_runtime_upload_max_bytes;
+	}
+
 	public String getCustom_content_path() {
 		return custom_content_path;
 	}
@@ -823,6 +1058,9 @@ public class AppProperties {
 		private String format =
 				"Path[${servletPath}] Source[${requestHeader.x-forwarded-for}] Operation[${operationType} ${operationName} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] ResponseEncoding[${responseEncodingNoDefault}] Operation[${operationType} ${operationName} ${idOrResourceName}] UA[${requestHeader.user-agent}] Params[${requestParameters}] ResponseEncoding[${responseEncodingNoDefault}]";
 		private Boolean log_exceptions = true;
+		private Boolean async_enabled = false;
+		private Integer async_buffer_size = 8192;
+		private Double sample_rate = 1.0;
 
 		public String getName() {
 			return name;
@@ -855,6 +1093,266 @@ public class AppProperties {
 		public void setLog_exceptions(Boolean log_exceptions) {
 			this.log_exceptions = log_exceptions;
 		}
+
+		/**
+		 * Write JSON access log lines from a background thread instead of formatting them on the request thread
+		 */
+		public Boolean getAsync_enabled() {
+			return async_enabled;
+		}
+
+		public void setAsync_enabled(Boolean async_enabled) {
+			this.async_enabled = async_enabled;
+		}
+
+		/**
+		 * Number of access log records buffered for the background writer, records are dropped when it is full
+		 */
+		public Integer getAsync_buffer_size() {
+			return async_buffer_size;
+		}
+
+		public void setAsync_buffer_size(Integer async_buffer_size) {
+			this.async_buffer_size = async_buffer_size;
+		}
+
+		/**
+		 * Fraction of successful requests written to the asynchronous access log, failed requests are always written
+		 */
+		public Double getSample_rate() {
+			return sample_rate;
+		}
+
+		public void setSample_rate(Double sample_rate) {
+			this.sample_rate = sample_rate;
+		}
+	}
+
+	public static class RateLimit {
+
+		private Boolean enabled = false;
+		private String client_header = null;
+		private List<String> trusted_proxies = new ArrayList<>();
+		private Boolean token_subject_enabled = false;
+		private List<String> batch_clients = new ArrayList<>();
+		private List<String> batch_operations = new ArrayList<>(List.of("$export", "$import", "$reindex", "$expunge"));
+		private Double interactive_requests_per_second = 50.0;
+		private Integer interactive_burst = 100;
+		private Double batch_requests_per_second = 10.0;
+		private Integer batch_burst = 20;
+
+		public Boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(Boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		/**
+		 * Header identifying the client, e.g. an API key header set by a gateway, or X-Forwarded-For behind one of
+		 * the trusted proxies
+		 */
+		public String getClient_header() {
+			return client_header;
+		}
+
+		public void setClient_header(String client_header) {
+			this.client_header = client_header;
+		}
+
+		/**
+		 * Addresses of the proxies whose X-Forwarded-For header is trusted
+		 */
+		public List<String> getTrusted_proxies() {
+			return trusted_proxies;
+		}
+
+		public void setTrusted_proxies(List<String> trusted_proxies) {
+			this.trusted_proxies = trusted_proxies;
+		}
+
+		/**
+		 * Identify clients by the subject of their bearer JWT if the client header is missing. The token is not
+		 * verified, so only enable this when a gateway verifies tokens before passing requests on.
+		 */
+		public Boolean getToken_subject_enabled() {
+			return token_subject_enabled;
+		}
+
+		public void setToken_subject_enabled(Boolean token_subject_enabled) {
+			this.token_subject_enabled = token_subject_enabled;
+		}
+
+		/**
+		 * Clients all of whose requests are batch traffic
+		 */
+		public List<String> getBatch_clients() {
+			return batch_clients;
+		}
+
+		public void setBatch_clients(List<String> batch_clients) {
+			this.batch_clients = batch_clients;
+		}
+
+		/**
+		 * Operations whose requests are batch traffic
+		 */
+		public List<String> getBatch_operations() {
+			return batch_operations;
+		}
+
+		public void setBatch_operations(List<String> batch_operations) {
+			this.batch_operations = batch_operations;
+		}
+
+		/**
+		 * Sustained rate of interactive requests per client, 0 for no limit
+		 */
+		public Double getInteractive_requests_per_second() {
+			return interactive_requests_per_second;
+		}
+
+		public void setInteractive_requests_per_second(Double interactive_requests_per_second) {
+			this.interactive_requests_per_second = interactive_requests_per_second;
+		}
+
+		public Integer getInteractive_burst() {
+			return interactive_burst;
+		}
+
+		public void setInteractive_burst(Integer interactive_burst) {
+			this.interactive_burst = interactive_burst;
+		}
+
+		/**
+		 * Sustained rate of batch requests per client, 0 for no limit
+		 */
+		public Double getBatch_requests_per_second() {
+			return batch_requests_per_second;
+		}
+
+		public void setBatch_requests_per_second(Double batch_requests_per_second) {
+			this.batch_requests_per_second = batch_requests_per_second;
+		}
+
+		public Integer getBatch_burst() {
+			return batch_burst;
+		}
+
+		public void setBatch_burst(Integer batch_burst) {
+			this.batch_burst = batch_burst;
+		}
+	}
+
+	public static class RequestDeadline {
+
+		private Boolean enabled = false;
+		private String header = "X-Request-Timeout";
+		private Long default_millis = 30000L;
+		private Long max_millis = 300000L;
+		private Map<String, Long> interaction_millis = new HashMap<>();
+
+		public Boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(Boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		/**
+		 * Header in which clients send their own timeout, in seconds
+		 */
+		public String getHeader() {
+			return header;
+		}
+
+		public void setHeader(String header) {
+			this.header = header;
+		}
+
+		/**
+		 * Timeout of requests without a header or interaction timeout, 0 for none
+		 */
+		public Long getDefault_millis() {
+			return default_millis;
+		}
+
+		public void setDefault_millis(Long default_millis) {
+			this.default_millis = default_millis;
+		}
+
+		/**
+		 * Longest timeout a client can ask for in the header, 0 for no limit
+		 */
+		public Long getMax_millis() {
+			return max_millis;
+		}
+
+		public void setMax_millis(Long max_millis) {
+			this.max_millis = max_millis;
+		}
+
+		/**
+		 * Timeouts by interaction, e.g. search-type or transaction
+		 */
+		public Map<String, Long> getInteraction_millis() {
+			return interaction_millis;
+		}
+
+		public void setInteraction_millis(Map<String, Long> interaction_millis) {
+			this.interaction_millis = interaction_millis;
+		}
+	}
+
+	public static class SqlCapture {
+
+		private Boolean enabled = false;
+		private Long slow_threshold_millis = 500L;
+		private Integer max_entries = 100;
+		private Boolean explain_enabled = false;
+
+		public Boolean getEnabled() {
+			return enabled;
+		}
+
+		public void setEnabled(Boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		/**
+		 * Statements taking at least this long are logged and kept
+		 */
+		public Long getSlow_threshold_millis() {
+			return slow_threshold_millis;
+		}
+
+		public void setSlow_threshold_millis(Long slow_threshold_millis) {
+			this.slow_threshold_millis = slow_threshold_millis;
+		}
+
+		/**
+		 * Number of slow statements and of requests kept for the control/sql endpoints
+		 */
+		public Integer getMax_entries() {
+			return max_entries;
+		}
+
+		public void setMax_entries(Integer max_entries) {
+			this.max_entries = max_entries;
+		}
+
+		/**
+		 * Capture the plan of slow queries with EXPLAIN, on PostgreSQL only
+		 */
+		public Boolean getExplain_enabled() {
+			return explain_enabled;
+		}
+
+		public void setExplain_enabled(Boolean explain_enabled) {
+			this.explain_enabled = explain_enabled;
+		}
 	}
 
 	public static class Tester {
@@ -901,6 +1399,18 @@ public class AppProperties {
 
 		private Boolean requests_enabled = false;
 		private Boolean responses_enabled = false;
+		private Boolean result_cache_enabled = false;
+		private Long result_cache_max_bytes = 64L * 1024 * 1024;
+		private Long result_cache_ttl_millis = 600000L;
+		private Boolean bundle_parallel_enabled = false;
+		private Integer bundle_parallel_threads = 0;
+		private Integer bundle_parallel_min_entries = 100;
+		private Boolean responses_async = false;
+		private Double responses_sample_rate = 0.01;
+		private Integer responses_async_queue_size = 100;
+		private Integer responses_report_window_minutes = 60;
+		private Boolean snapshot_pregeneration_enabled = false;
+		private Boolean snapshot_persist_existing = false;
 
 		public Boolean getRequests_enabled() {
 			return requests_enabled;
@@ -917,6 +1427,117 @@ public class AppProperties {
 		public void setResponses_enabled(Boolean responses_enabled) {
 			this.responses_enabled = responses_enabled;
 		}
+
+		public Boolean getResult_cache_enabled() {
+			return result_cache_enabled;
+		}
+
+		public void setResult_cache_enabled(Boolean result_cache_enabled) {
+			this.result_cache_enabled = result_cache_enabled;
+		}
+
+		public Long getResult_cache_max_bytes() {
+			return result_cache_max_bytes;
+		}
+
+		public void setResult_cache_max_bytes(Long result_cache_max_bytes) {
+			this.result_cache_max_bytes = result_cache_max_bytes;
+		}
+
+		public Long getResult_cache_ttl_millis() {
+			return result_cache_ttl_millis;
+		}
+
+		public void setResult_cache_ttl_millis(Long result_cache_ttl_millis) {
+			this.result_cache_ttl_millis = result_cache_ttl_millis;
+		}
+
+		public Boolean getBundle_parallel_enabled() {
+			return bundle_parallel_enabled;
+		}
+
+		public void setBundle_parallel_enabled(Boolean bundle_parallel_enabled) {
+			this.bundle_parallel_enabled = bundle_parallel_enabled;
+		}
+
+		/**
+		 * Number of threads used to validate Bundle entries, <code>0</code> means one per available processor
+		 */
+		public Integer getBundle_parallel_threads() {
+			return bundle_parallel_threads;
+		}
+
+		public void setBundle_parallel_threads(Integer bundle_parallel_threads) {
+			this.bundle_parallel_threads = bundle_parallel_threads;
+		}
+
+		public Integer getBundle_parallel_min_entries() {
+			return bundle_parallel_min_entries;
+		}
+
+		public void setBundle_parallel_min_entries(Integer bundle_parallel_min_entries) {
+			this.bundle_parallel_min_entries = bundle_parallel_min_entries;
+		}
+
+		/**
+		 * If enabled, responses are validated on a background thread for a sample of requests instead of
+		 * on the request thread for every request
+		 */
+		public Boolean getResponses_async() {
+			return responses_async;
+		}
+
+		public void setResponses_async(Boolean responses_async) {
+			this.responses_async = responses_async;
+		}
+
+		public Double getResponses_sample_rate() {
+			return responses_sample_rate;
+		}
+
+		public void setResponses_sample_rate(Double responses_sample_rate) {
+			this.responses_sample_rate = responses_sample_rate;
+		}
+
+		public Integer getResponses_async_queue_size() {
+			return responses_async_queue_size;
+		}
+
+		public void setResponses_async_queue_size(Integer responses_async_queue_size) {
+			this.responses_async_queue_size = responses_async_queue_size;
+		}
+
+		public Integer getResponses_report_window_minutes() {
+			return responses_report_window_minutes;
+		}
+
+		public void setResponses_report_window_minutes(Integer responses_report_window_minutes) {
+			this.responses_report_window_minutes = responses_report_window_minutes;
+		}
+
+		/**
+		 * If enabled, snapshots of differential-only StructureDefinitions are generated when they are stored and
+		 * persisted with them, and all stored StructureDefinitions are loaded into the validation caches at startup
+		 */
+		public Boolean getSnapshot_pregeneration_enabled() {
+			return snapshot_pregeneration_enabled;
+		}
+
+		public void setSnapshot_pregeneration_enabled(Boolean snapshot_pregeneration_enabled) {
+			this.snapshot_pregeneration_enabled = snapshot_pregeneration_enabled;
+		}
+
+		/**
+		 * If enabled along with snapshot pre-generation, the snapshots generated at startup for StructureDefinitions
+		 * stored without one are stored with them, as a new version, so they are generated only once
+		 */
+		public Boolean getSnapshot_persist_existing() {
+			return snapshot_persist_existing;
+		}
+
+		public void setSnapshot_persist_existing(Boolean snapshot_persist_existing) {
+			this.snapshot_persist_existing = snapshot_persist_existing;
+		}
 	}
 
 	public static class Partitioning {
@@ -994,6 +1615,17 @@ public class AppProperties {
 	public static class RemoteSystem {
 		private String system;
 		private String url;
+		private Integer connect_timeout_millis = 5000;
+		private Integer read_timeout_millis = 10000;
+		private Integer max_concurrent_requests = 20;
+		private Integer max_wait_millis = 500;
+		private Integer circuit_breaker_failure_threshold = 5;
+		private Long circuit_breaker_open_millis = 30000L;
+		private FallbackPolicy fallback = FallbackPolicy.UNKNOWN;
+		private Integer stale_cache_size = 10000;
+		private List<String> snapshot_value_sets = new ArrayList<>();
+		private Long snapshot_refresh_millis = 3600000L;
+		private String snapshot_directory = null;
 
 		public String getSystem() {
 			return system;
@@ -1010,6 +1642,107 @@ public class AppProperties {
 		public void setUrl(String url) {
 			this.url = url;
 		}
+
+		public Integer getConnect_timeout_millis() {
+			return connect_timeout_millis;
+		}
+
+		public void setConnect_timeout_millis(Integer connect_timeout_millis) {
+			this.connect_timeout_millis = connect_timeout_millis;
+		}
+
+		public Integer getRead_timeout_millis() {
+			return read_timeout_millis;
+		}
+
+		public void setRead_timeout_millis(Integer read_timeout_millis) {
+			this.read_timeout_millis = read_timeout_millis;
+		}
+
+		public Integer getMax_concurrent_requests() {
+			return max_concurrent_requests;
+		}
+
+		public void setMax_concurrent_requests(Integer max_concurrent_requests) {
+			this.max_concurrent_requests = max_concurrent_requests;
+		}
+
+		public Integer getMax_wait_millis() {
+			return max_wait_millis;
+		}
+
+		public void setMax_wait_millis(Integer max_wait_millis) {
+			this.max_wait_millis = max_wait_millis;
+		}
+
+		public Integer getCircuit_breaker_failure_threshold() {
+			return circuit_breaker_failure_threshold;
+		}
+
+		public void setCircuit_breaker_failure_threshold(Integer circuit_breaker_failure_threshold) {
+			this.circuit_breaker_failure_threshold = circuit_breaker_failure_threshold;
+		}
+
+		public Long getCircuit_breaker_open_millis() {
+			return circuit_breaker_open_millis;
+		}
+
+		public void setCircuit_breaker_open_millis(Long circuit_breaker_open_millis) {
+			this.circuit_breaker_open_millis = circuit_breaker_open_millis;
+		}
+
+		public FallbackPolicy getFallback() {
+			return fallback;
+		}
+
+		public void setFallback(FallbackPolicy fallback) {
+			this.fallback = fallback;
+		}
+
+		public Integer getStale_cache_size() {
+			return stale_cache_size;
+		}
+
+		public void setStale_cache_size(Integer stale_cache_size) {
+			this.stale_cache_size = stale_cache_size;
+		}
+
+		public List<String> getSnapshot_value_sets() {
+			return snapshot_value_sets;
+		}
+
+		public void setSnapshot_value_sets(List<String> snapshot_value_sets) {
+			this.snapshot_value_sets = snapshot_value_sets;
+		}
+
+		public Long getSnapshot_refresh_millis() {
+			return snapshot_refresh_millis;
+		}
+
+		public void setSnapshot_refresh_millis(Long snapshot_refresh_millis) {
+			this.snapshot_refresh_millis = snapshot_refresh_millis;
+		}
+
+		public String getSnapshot_directory() {
+			return snapshot_directory;
+		}
+
+		public void setSnapshot_directory(String snapshot_directory) {
+			this.snapshot_directory = snapshot_directory;
+		}
+
+		/**
+		 * What to answer when the remote terminology server cannot be reached, is too busy or its
+		 * circuit breaker is open.
+		 */
+		public enum FallbackPolicy {
+			/** Report the code as not validated (warning) and let the write proceed */
+			UNKNOWN,
+			/** Answer with the last successful result for the same code, falling back to UNKNOWN */
+			STALE_CACHE,
+			/** Report the code as invalid (error) so the write is rejected */
+			FAIL
+		}
 	}
 
 	public static class Subscription {
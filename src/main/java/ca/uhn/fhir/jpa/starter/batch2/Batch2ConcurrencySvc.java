@@ -0,0 +1,321 @@
+package ca.uhn.fhir.jpa.starter.batch2;
+
+import ca.uhn.fhir.batch2.model.JobWorkNotification;
+import ca.uhn.fhir.broker.api.IChannelConsumer;
+import ca.uhn.fhir.broker.jms.SpringMessagingReceiverAdapter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Adjusts the concurrency of batch2 work chunk processing while the server is running.
+ * <p>
+ * The number of workers is the size of the thread pool consuming the local batch2 work channel. Growing the pool
+ * starts new workers straight away, shrinking it lets the surplus workers finish their current chunk before they
+ * stop. With an external message broker the number of workers is fixed by the broker consumer configuration.
+ * <p>
+ * A throttle limits how many chunks of one job definition are processed at the same time. A chunk over the limit does
+ * not hold a worker: its work notification is set aside as soon as a worker picks it up, and delivered to the work
+ * channel again when a chunk of the same job definition finishes, so the other job definitions keep all workers to
+ * themselves. Chunks already being processed are never interrupted. A notification that cannot be delivered again is
+ * retried after a second. Throttles need the local work channel as well; set aside notifications are lost on shutdown
+ * like the notifications still queued in the channel.
+ * <p>
+ * Every change is counted in <code>fhir.batch2.concurrency.changes</code>, and the current limits are published as
+ * <code>fhir.batch2.concurrency.workers</code> and <code>fhir.batch2.concurrency.throttle</code>. The number of
+ * chunks waiting for their throttle is published as <code>fhir.batch2.concurrency.deferred</code>.
+ */
+public class Batch2ConcurrencySvc {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(Batch2ConcurrencySvc.class);
+	public static final String METRIC_CHANGES = "fhir.batch2.concurrency.changes";
+	public static final String METRIC_WORKERS = "fhir.batch2.concurrency.workers";
+	public static final String METRIC_THROTTLE = "fhir.batch2.concurrency.throttle";
+	public static final String METRIC_DEFERRED = "fhir.batch2.concurrency.deferred";
+
+	/**
+	 * The throttle whose permit the current worker holds
+	 */
+	private static final ThreadLocal<Throttle> ourAcquired = new ThreadLocal<>();
+
+	private static final long RETRY_MILLIS = 1000;
+
+	private final ExecutorSubscribableChannel myWorkChannel;
+	private final ThreadPoolTaskExecutor myWorkerPool;
+	private final MeterRegistry myMeterRegistry;
+	private final Map<String, Throttle> myThrottles = new ConcurrentHashMap<>();
+	/**
+	 * Delivers deferred notifications again whose delivery failed, which no finishing chunk may ever do
+	 */
+	private final ScheduledThreadPoolExecutor myRetries;
+
+	public Batch2ConcurrencySvc(IChannelConsumer<?> theWorkChannelConsumer, MeterRegistry theMeterRegistry) {
+		this(findWorkChannel(theWorkChannelConsumer), theMeterRegistry);
+	}
+
+	/**
+	 * @param theWorkChannel the local channel delivering work notifications to the workers, or <code>null</code> if
+	 *                       they are delivered by an external message broker
+	 */
+	public Batch2ConcurrencySvc(ExecutorSubscribableChannel theWorkChannel, MeterRegistry theMeterRegistry) {
+		myWorkChannel = theWorkChannel;
+		myWorkerPool = theWorkChannel != null && theWorkChannel.getExecutor() instanceof ThreadPoolTaskExecutor pool
+				? pool
+				: null;
+		myMeterRegistry = theMeterRegistry;
+		myRetries = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread retVal = new Thread(runnable, "batch2-throttle-retry");
+			retVal.setDaemon(true);
+			return retVal;
+		});
+		if (myWorkChannel != null) {
+			myWorkChannel.addInterceptor(new ThrottlingInterceptor());
+		}
+		if (myWorkerPool != null) {
+			Gauge.builder(METRIC_WORKERS, myWorkerPool, ThreadPoolTaskExecutor::getMaxPoolSize)
+					.description("Maximum number of batch2 work chunks processed concurrently")
+					.register(theMeterRegistry);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		myRetries.shutdownNow();
+	}
+
+	private static ExecutorSubscribableChannel findWorkChannel(IChannelConsumer<?> theConsumer) {
+		if (theConsumer instanceof SpringMessagingReceiverAdapter<?> adapter
+				&& adapter.getSpringMessagingChannelReceiver() instanceof ExecutorSubscribableChannel channel) {
+			return channel;
+		}
+		ourLog.info("The batch2 work channel is consumed through a message broker, its workers cannot be resized "
+				+ "or throttled");
+		return null;
+	}
+
+	public boolean isWorkerPoolAdjustable() {
+		return myWorkerPool != null;
+	}
+
+	public boolean isThrottlingSupported() {
+		return myWorkChannel != null;
+	}
+
+	/**
+	 * @return the number of workers, or <code>null</code> if it cannot be determined
+	 */
+	public Integer getWorkers() {
+		return myWorkerPool != null ? myWorkerPool.getMaxPoolSize() : null;
+	}
+
+	/**
+	 * @return the number of workers currently processing a chunk, or <code>null</code> if it cannot be determined
+	 */
+	public Integer getActiveWorkers() {
+		return myWorkerPool != null ? myWorkerPool.getActiveCount() : null;
+	}
+
+	public synchronized void setWorkers(int theWorkers) {
+		if (myWorkerPool == null) {
+			throw new IllegalStateException("The batch2 workers are not managed by this server");
+		}
+		if (theWorkers < 1) {
+			throw new IllegalArgumentException("At least one batch2 worker is required");
+		}
+		int previous = myWorkerPool.getMaxPoolSize();
+		// The core size may never exceed the maximum size, so the order depends on the direction of the change
+		if (theWorkers > previous) {
+			myWorkerPool.setMaxPoolSize(theWorkers);
+			myWorkerPool.setCorePoolSize(theWorkers);
+		} else {
+			myWorkerPool.setCorePoolSize(theWorkers);
+			myWorkerPool.setMaxPoolSize(theWorkers);
+		}
+		ourLog.info("Changed batch2 workers from {} to {}", previous, theWorkers);
+		countChange("workers", "*");
+	}
+
+	/**
+	 * @return the throttles by job definition ID
+	 */
+	public Map<String, Integer> getThrottles() {
+		Map<String, Integer> retVal = new TreeMap<>();
+		myThrottles.forEach((key, value) -> {
+			if (value.getLimit() > 0) {
+				retVal.put(key, value.getLimit());
+			}
+		});
+		return retVal;
+	}
+
+	/**
+	 * @param theLimit the maximum number of concurrently processed chunks, or 0 to remove the throttle
+	 */
+	public void setThrottle(String theJobDefinitionId, int theLimit) {
+		if (myWorkChannel == null) {
+			throw new IllegalStateException("The batch2 work chunks are delivered by the message broker");
+		}
+		if (theLimit < 0) {
+			throw new IllegalArgumentException("A throttle cannot be negative");
+		}
+		Throttle throttle = myThrottles.computeIfAbsent(theJobDefinitionId, id -> {
+			Throttle retVal = new Throttle();
+			Gauge.builder(METRIC_THROTTLE, retVal, Throttle::getLimit)
+					.description("Maximum number of concurrently processed chunks of a job definition")
+					.tag("job_definition", id)
+					.register(myMeterRegistry);
+			Gauge.builder(METRIC_DEFERRED, retVal, Throttle::getDeferred)
+					.description("Chunks of a job definition waiting for its throttle")
+					.tag("job_definition", id)
+					.register(myMeterRegistry);
+			return retVal;
+		});
+		redeliver(throttle, throttle.setLimit(theLimit));
+		ourLog.info("Set batch2 throttle of {} to {}", theJobDefinitionId, theLimit > 0 ? theLimit : "unlimited");
+		countChange("throttle", theJobDefinitionId);
+	}
+
+	private void countChange(String theSetting, String theJobDefinitionId) {
+		Counter.builder(METRIC_CHANGES)
+				.description("Changes of the batch2 concurrency settings")
+				.tag("setting", theSetting)
+				.tag("job_definition", theJobDefinitionId)
+				.register(myMeterRegistry)
+				.increment();
+	}
+
+	private Throttle throttleOf(Message<?> theMessage) {
+		if (theMessage.getPayload() instanceof JobWorkNotification notification) {
+			return myThrottles.get(notification.getJobDefinitionId());
+		}
+		return null;
+	}
+
+	private void redeliver(Throttle theThrottle, List<Message<?>> theMessages) {
+		boolean failed = false;
+		for (Message<?> next : theMessages) {
+			try {
+				myWorkChannel.send(next);
+			} catch (RuntimeException e) {
+				ourLog.warn("Could not deliver a deferred batch2 work chunk again, retrying in {}ms", RETRY_MILLIS, e);
+				theThrottle.defer(next);
+				failed = true;
+			}
+		}
+		if (failed && !myRetries.isShutdown()) {
+			myRetries.schedule(() -> redeliver(theThrottle, theThrottle.takeDeliverable()), RETRY_MILLIS, MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sets aside the work notifications of throttled job definitions before a worker processes them
+	 */
+	private class ThrottlingInterceptor implements ExecutorChannelInterceptor {
+
+		@Override
+		public Message<?> beforeHandle(Message<?> theMessage, MessageChannel theChannel, MessageHandler theHandler) {
+			Throttle throttle = throttleOf(theMessage);
+			if (throttle == null) {
+				return theMessage;
+			}
+			if (!throttle.tryAcquire(theMessage)) {
+				// The worker is free for the next notification, this one is delivered again by afterMessageHandled
+				return null;
+			}
+			ourAcquired.set(throttle);
+			return theMessage;
+		}
+
+		@Override
+		public void afterMessageHandled(
+				Message<?> theMessage, MessageChannel theChannel, MessageHandler theHandler, Exception theException) {
+			Throttle throttle = ourAcquired.get();
+			if (throttle != null) {
+				ourAcquired.remove();
+				redeliver(throttle, throttle.release());
+			}
+		}
+	}
+
+	/**
+	 * A semaphore whose number of permits can change while permits are held, and which keeps the work notifications
+	 * that found no permit
+	 */
+	static class Throttle {
+		private final Deque<Message<?>> myDeferred = new ArrayDeque<>();
+		private int myLimit;
+		private int myInUse;
+
+		synchronized int getLimit() {
+			return myLimit;
+		}
+
+		synchronized int getDeferred() {
+			return myDeferred.size();
+		}
+
+		/**
+		 * @return the deferred notifications that fit within the new limit
+		 */
+		synchronized List<Message<?>> setLimit(int theLimit) {
+			myLimit = theLimit;
+			return takeDeliverable();
+		}
+
+		/**
+		 * @return whether a permit was acquired, otherwise the notification is deferred
+		 */
+		synchronized boolean tryAcquire(Message<?> theMessage) {
+			if (myLimit > 0 && myInUse >= myLimit) {
+				myDeferred.addLast(theMessage);
+				return false;
+			}
+			myInUse++;
+			return true;
+		}
+
+		synchronized void defer(Message<?> theMessage) {
+			myDeferred.addFirst(theMessage);
+		}
+
+		/**
+		 * @return the deferred notifications that may be delivered again now that a permit was released
+		 */
+		synchronized List<Message<?>> release() {
+			myInUse--;
+			return takeDeliverable();
+		}
+
+		/**
+		 * @return the deferred notifications that fit within the limit
+		 */
+		synchronized List<Message<?>> takeDeliverable() {
+			int free = myLimit > 0 ? myLimit - myInUse : myDeferred.size();
+			List<Message<?>> retVal = new ArrayList<>();
+			while (free-- > 0 && !myDeferred.isEmpty()) {
+				retVal.add(myDeferred.pollFirst());
+			}
+			return retVal;
+		}
+	}
+}
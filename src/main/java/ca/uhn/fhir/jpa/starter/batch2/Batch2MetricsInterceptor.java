@@ -0,0 +1,194 @@
+package ca.uhn.fhir.jpa.starter.batch2;
+
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.WorkChunk;
+import ca.uhn.fhir.batch2.model.WorkChunkStatusEnum;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IBaseInterceptorBroadcaster.IInterceptorFilterHook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes batch2 work chunk throughput to the Micrometer registry, tagged by job definition and step:
+ * <ul>
+ *    <li><code>fhir.batch2.chunk.duration</code> - processing time per chunk, as a histogram, tagged with the
+ *    outcome (<code>completed</code>, <code>errored</code>, <code>failed</code> or <code>exception</code>). Its
+ *    count rate gives the chunks processed per second.</li>
+ *    <li><code>fhir.batch2.chunk.records</code> - records processed per completed chunk</li>
+ *    <li><code>fhir.batch2.chunk.retries</code> - chunks processed again after an error</li>
+ *    <li><code>fhir.batch2.chunk.errors</code> - chunk processing attempts that did not complete</li>
+ *    <li><code>fhir.batch2.chunk.queue</code> - chunks waiting or in progress, per status, refreshed periodically</li>
+ * </ul>
+ * <p>
+ * This class must be registered with the JPA interceptor service.
+ */
+@Interceptor
+public class Batch2MetricsInterceptor {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(Batch2MetricsInterceptor.class);
+	public static final String METRIC_CHUNK_DURATION = "fhir.batch2.chunk.duration";
+	public static final String METRIC_CHUNK_RECORDS = "fhir.batch2.chunk.records";
+	public static final String METRIC_CHUNK_RETRIES = "fhir.batch2.chunk.retries";
+	public static final String METRIC_CHUNK_ERRORS = "fhir.batch2.chunk.errors";
+	public static final String METRIC_CHUNK_QUEUE = "fhir.batch2.chunk.queue";
+	private static final long QUEUE_REFRESH_SECONDS = 15;
+	private static final Set<WorkChunkStatusEnum> QUEUED_STATUSES = EnumSet.of(
+			WorkChunkStatusEnum.READY,
+			WorkChunkStatusEnum.QUEUED,
+			WorkChunkStatusEnum.POLL_WAITING,
+			WorkChunkStatusEnum.GATE_WAITING,
+			WorkChunkStatusEnum.IN_PROGRESS,
+			WorkChunkStatusEnum.ERRORED);
+
+	private final MeterRegistry myMeterRegistry;
+	private final MultiGauge myQueueGauge;
+	private final Map<Tags, AtomicLong> myQueueDepths = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "batch2-metrics");
+		t.setDaemon(true);
+		return t;
+	});
+
+	@PersistenceContext
+	private EntityManager myEntityManager;
+
+	public Batch2MetricsInterceptor(MeterRegistry theMeterRegistry) {
+		myMeterRegistry = theMeterRegistry;
+		myQueueGauge = MultiGauge.builder(METRIC_CHUNK_QUEUE)
+				.description("Batch2 work chunks waiting or in progress")
+				.register(theMeterRegistry);
+	}
+
+	@PostConstruct
+	public void start() {
+		myExecutor.scheduleWithFixedDelay(
+				this::refreshQueueDepth, QUEUE_REFRESH_SECONDS, QUEUE_REFRESH_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@Hook(Pointcut.BATCH2_CHUNK_PROCESS_FILTER)
+	public IInterceptorFilterHook chunkProcessing(JobInstance theJobInstance, WorkChunk theWorkChunk) {
+		return theContinuation -> {
+			Tags tags = Tags.of("job_definition", theWorkChunk.getJobDefinitionId(), "step", stepOf(theWorkChunk));
+			if (theWorkChunk.getErrorCount() > 0) {
+				Counter.builder(METRIC_CHUNK_RETRIES)
+						.description("Batch2 work chunks processed again after an error")
+						.tags(tags)
+						.register(myMeterRegistry)
+						.increment();
+			}
+
+			long start = System.nanoTime();
+			String outcome = "exception";
+			try {
+				theContinuation.run();
+				outcome = recordOutcome(theWorkChunk.getId(), tags);
+			} finally {
+				Timer.builder(METRIC_CHUNK_DURATION)
+						.description("Processing time of batch2 work chunks")
+						.tags(tags)
+						.tag("outcome", outcome)
+						.publishPercentileHistogram()
+						.register(myMeterRegistry)
+						.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+				if (!"completed".equals(outcome)) {
+					Counter.builder(METRIC_CHUNK_ERRORS)
+							.description("Batch2 work chunk processing attempts that did not complete")
+							.tags(tags)
+							.register(myMeterRegistry)
+							.increment();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads the status and record count the chunk was left with
+	 */
+	private String recordOutcome(String theChunkId, Tags theTags) {
+		List<Object[]> rows = myEntityManager
+				.createQuery(
+						"SELECT c.myStatus, c.myRecordsProcessed FROM Batch2WorkChunkEntity c WHERE c.myId = :id",
+						Object[].class)
+				.setParameter("id", theChunkId)
+				.getResultList();
+		if (rows.isEmpty()) {
+			// Chunks of finished jobs may already be purged
+			return "completed";
+		}
+		WorkChunkStatusEnum status = (WorkChunkStatusEnum) rows.get(0)[0];
+		Integer records = (Integer) rows.get(0)[1];
+		if (status == WorkChunkStatusEnum.ERRORED || status == WorkChunkStatusEnum.FAILED) {
+			return status.name().toLowerCase();
+		}
+		if (records != null) {
+			DistributionSummary.builder(METRIC_CHUNK_RECORDS)
+					.description("Records processed per batch2 work chunk")
+					.tags(theTags)
+					.register(myMeterRegistry)
+					.record(records);
+		}
+		return "completed";
+	}
+
+	void refreshQueueDepth() {
+		try {
+			List<Object[]> rows = myEntityManager
+					.createQuery(
+							"SELECT c.myJobDefinitionId, c.myTargetStepId, c.myStatus, COUNT(c)"
+									+ " FROM Batch2WorkChunkEntity c WHERE c.myStatus IN (:statuses)"
+									+ " GROUP BY c.myJobDefinitionId, c.myTargetStepId, c.myStatus",
+							Object[].class)
+					.setParameter("statuses", QUEUED_STATUSES)
+					.getResultList();
+
+			// Series that are no longer returned drop to 0 instead of disappearing
+			myQueueDepths.values().forEach(depth -> depth.set(0));
+			for (Object[] row : rows) {
+				Tags tags = Tags.of(
+						"job_definition", String.valueOf(row[0]),
+						"step", String.valueOf(row[1]),
+						"status", String.valueOf(row[2]));
+				myQueueDepths
+						.computeIfAbsent(tags, t -> new AtomicLong())
+						.set(((Number) row[3]).longValue());
+			}
+			List<MultiGauge.Row<?>> gaugeRows = new ArrayList<>();
+			myQueueDepths.forEach((tags, depth) -> gaugeRows.add(MultiGauge.Row.of(tags, depth, AtomicLong::get)));
+			myQueueGauge.register(gaugeRows, true);
+		} catch (Exception e) {
+			ourLog.warn("Failed to refresh the batch2 queue depth: {}", e.toString());
+		}
+	}
+
+	private static String stepOf(WorkChunk theWorkChunk) {
+		return theWorkChunk.getTargetStepId() != null ? theWorkChunk.getTargetStepId() : "unknown";
+	}
+
+	@PreDestroy
+	public void stop() {
+		myExecutor.shutdownNow();
+	}
+}
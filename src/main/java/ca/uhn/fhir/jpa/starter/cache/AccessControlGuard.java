@@ -0,0 +1,86 @@
+package ca.uhn.fhir.jpa.starter.cache;
+
+import ca.uhn.fhir.interceptor.api.IBaseInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.common.InteractionMetricsInterceptor;
+import ca.uhn.fhir.jpa.starter.common.validation.SampledResponseValidatingInterceptor;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a response cache off while hooks are registered that may decide per request what a client sees. Cached
+ * responses are served before the resources are loaded, so the {@link Pointcut#STORAGE_PREACCESS_RESOURCES},
+ * {@link Pointcut#STORAGE_PRESHOW_RESOURCES} and {@link Pointcut#SERVER_OUTGOING_RESPONSE} hooks never see them, and
+ * a response filtered or masked for one client would be handed to another.
+ * <p>
+ * Both the interceptors of the RestfulServer and those of the JPA interceptor service are checked, on every request,
+ * so interceptors registered at runtime are taken into account. Only the hooks of the response caches themselves and
+ * of interceptors known to merely observe responses are ignored.
+ */
+class AccessControlGuard {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(AccessControlGuard.class);
+	private static final List<Pointcut> GUARDED_POINTCUTS = List.of(
+			Pointcut.STORAGE_PREACCESS_RESOURCES,
+			Pointcut.STORAGE_PRESHOW_RESOURCES,
+			Pointcut.SERVER_OUTGOING_RESPONSE);
+
+	/**
+	 * Interceptors whose hooks on the guarded pointcuts never change a response. The highlighter only renders
+	 * responses for browsers, which are not cached.
+	 */
+	private static final List<Class<?>> OBSERVING_INTERCEPTORS = List.of(
+			EncodedResourceCache.class,
+			EncodedSearchCache.class,
+			EncodedCapabilityStatementCache.class,
+			InteractionMetricsInterceptor.class,
+			SampledResponseValidatingInterceptor.class,
+			ResponseHighlighterInterceptor.class);
+
+	private final String myCacheName;
+	private final IInterceptorService myJpaInterceptorService;
+	private volatile List<String> myReportedHooks = List.of();
+
+	AccessControlGuard(String theCacheName, IInterceptorService theJpaInterceptorService) {
+		myCacheName = theCacheName;
+		myJpaInterceptorService = theJpaInterceptorService;
+	}
+
+	/**
+	 * @return whether the cache may serve requests of the server that <code>theRequestDetails</code> belongs to
+	 */
+	boolean isPermitted(RequestDetails theRequestDetails) {
+		List<String> found = new ArrayList<>();
+		collectHooks(theRequestDetails.getServer().getInterceptorService(), found);
+		collectHooks(myJpaInterceptorService, found);
+		if (found.isEmpty()) {
+			return true;
+		}
+		if (!found.equals(myReportedHooks)) {
+			myReportedHooks = found;
+			ourLog.error(
+					"The {} is disabled, as cached responses would bypass the hooks {}", myCacheName, found);
+		}
+		return false;
+	}
+
+	private static void collectHooks(IBaseInterceptorBroadcaster<Pointcut> theBroadcaster, List<String> theFound) {
+		for (Pointcut next : GUARDED_POINTCUTS) {
+			if (!theBroadcaster.hasHooks(next)) {
+				continue;
+			}
+			for (IBaseInterceptorBroadcaster.IInvoker invoker : theBroadcaster.getInvokersForPointcut(next)) {
+				Object interceptor = invoker.getInterceptor();
+				if (OBSERVING_INTERCEPTORS.stream().noneMatch(type -> type.isInstance(interceptor))) {
+					theFound.add(next + ":" + interceptor.getClass().getName());
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package ca.uhn.fhir.jpa.starter.cache;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Passes a response through to the client while keeping a copy of it, up to a maximum number of characters
+ */
+class CapturingWriter extends FilterWriter {
+
+	private final int myMaxChars;
+	private StringBuilder myCaptured = new StringBuilder();
+
+	CapturingWriter(Writer theDelegate, int theMaxChars) {
+		super(theDelegate);
+		myMaxChars = theMaxChars;
+	}
+
+	@Override
+	public void write(int theChar) throws IOException {
+		out.write(theChar);
+		if (capture(1)) {
+			myCaptured.append((char) theChar);
+		}
+	}
+
+	@Override
+	public void write(char[] theChars, int theOffset, int theLength) throws IOException {
+		out.write(theChars, theOffset, theLength);
+		if (capture(theLength)) {
+			myCaptured.append(theChars, theOffset, theLength);
+		}
+	}
+
+	@Override
+	public void write(String theString, int theOffset, int theLength) throws IOException {
+		out.write(theString, theOffset, theLength);
+		if (capture(theLength)) {
+			myCaptured.append(theString, theOffset, theOffset + theLength);
+		}
+	}
+
+	private boolean capture(int theLength) {
+		if (myCaptured != null && myCaptured.length() + theLength > myMaxChars) {
+			// Too large to keep, the response is still passed through
+			myCaptured = null;
+		}
+		return myCaptured != null;
+	}
+
+	boolean isOverflowed() {
+		return myCaptured == null;
+	}
+
+	String getCaptured() {
+		return myCaptured.toString();
+	}
+}
@@ -0,0 +1,318 @@
+package ca.uhn.fhir.jpa.starter.cache;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.method.ConformanceMethodBinding;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves <code>/metadata</code> from the encoded CapabilityStatement kept in memory per variant of the response
+ * (server base, tenant, encoding, pretty printing and summary mode), instead of assembling it from the search
+ * parameter registry and the registered providers on every request. Responses carry an ETag derived from their
+ * content, and a request whose <code>If-None-Match</code> matches it is answered with <code>304 Not Modified</code>.
+ * The response that builds a cache entry is held back until it is complete, so that it carries the ETag as well.
+ * <p>
+ * The cached responses are dropped when a SearchParameter is created, updated or deleted, and when the supported
+ * resource types or the providers registered with the server change. Requests with other parameters than
+ * <code>_format</code>, <code>_pretty</code> and <code>_summary</code>, and requests from browsers, are always
+ * answered by the capability statement provider. Hits, misses and <code>304</code> responses are counted as
+ * <code>fhir.metadata.cache.requests</code>.
+ * <p>
+ * This class must be registered with the RestfulServer.
+ */
+@Interceptor
+public class EncodedCapabilityStatementCache implements IResourceChangeListener {
+
+	public static final String METRIC_REQUESTS = "fhir.metadata.cache.requests";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(EncodedCapabilityStatementCache.class);
+	private static final String USER_DATA_CAPTURE = EncodedCapabilityStatementCache.class.getName() + "_CAPTURE";
+	private static final Set<String> CACHEABLE_PARAMETERS =
+			Set.of(Constants.PARAM_FORMAT, Constants.PARAM_PRETTY, Constants.PARAM_SUMMARY);
+	private static final List<String> CACHED_HEADERS = List.of(Constants.HEADER_CONTENT_TYPE, Constants.HEADER_ETAG);
+	private static final int MAX_ENTRY_CHARS = 16 * 1024 * 1024;
+	private static final long REFRESH_INTERVAL_MILLIS = 10000;
+
+	private final ISearchParamRegistry mySearchParamRegistry;
+	private final DaoRegistry myDaoRegistry;
+	private final IResourceChangeListenerRegistry myResourceChangeListenerRegistry;
+	private final Counter myHits;
+	private final Counter myMisses;
+	private final Counter myNotModified;
+	private volatile Generation myGeneration = new Generation(0);
+
+	public EncodedCapabilityStatementCache(
+			ISearchParamRegistry theSearchParamRegistry,
+			DaoRegistry theDaoRegistry,
+			IResourceChangeListenerRegistry theResourceChangeListenerRegistry,
+			MeterRegistry theMeterRegistry) {
+		mySearchParamRegistry = theSearchParamRegistry;
+		myDaoRegistry = theDaoRegistry;
+		myResourceChangeListenerRegistry = theResourceChangeListenerRegistry;
+		myHits = requestCounter(theMeterRegistry, "hit");
+		myMisses = requestCounter(theMeterRegistry, "miss");
+		myNotModified = requestCounter(theMeterRegistry, "not_modified");
+	}
+
+	private static Counter requestCounter(MeterRegistry theMeterRegistry, String theResult) {
+		return Counter.builder(METRIC_REQUESTS)
+				.description("Cacheable metadata requests by result")
+				.tag("result", theResult)
+				.register(theMeterRegistry);
+	}
+
+	@PostConstruct
+	public void registerResourceChangeListener() {
+		myResourceChangeListenerRegistry.registerResourceResourceChangeListener(
+				"SearchParameter", SearchParameterMap.newSynchronous(), this, REFRESH_INTERVAL_MILLIS);
+	}
+
+	@PreDestroy
+	public void unregisterResourceChangeListener() {
+		myResourceChangeListenerRegistry.unregisterResourceResourceChangeListener(this);
+	}
+
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MAX_VALUE)
+	public boolean serveFromCache(
+			RequestDetails theRequestDetails,
+			HttpServletRequest theServletRequest,
+			HttpServletResponse theServletResponse)
+			throws IOException {
+		if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.METADATA
+				|| theRequestDetails.getRequestType() != RequestTypeEnum.GET
+				|| !isCacheable(theRequestDetails)) {
+			return true;
+		}
+		RestfulServer server = (RestfulServer) theRequestDetails.getServer();
+		Generation generation = currentGeneration(server);
+		String variant = EncodedResponse.variantOf(theRequestDetails);
+
+		EncodedResponse entry = generation.myEntries.get(variant);
+		if (entry == null) {
+			myMisses.increment();
+			theRequestDetails.getUserData().put(USER_DATA_CAPTURE, new Capture(generation, variant));
+			return true;
+		}
+
+		String ifNoneMatch = theServletRequest.getHeader(Constants.HEADER_IF_NONE_MATCH);
+		if (EncodedResponse.matches(ifNoneMatch, entry.getHeader(Constants.HEADER_ETAG))) {
+			myNotModified.increment();
+			entry.writeHeaders(theServletResponse);
+			theServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			theServletResponse.setContentLength(0);
+			return false;
+		}
+		myHits.increment();
+		entry.writeTo(theServletResponse);
+		return false;
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_WRITER_CREATED)
+	public Writer captureResponse(Writer theWriter, RequestDetails theRequestDetails) {
+		Capture capture = (Capture) theRequestDetails.getUserData().get(USER_DATA_CAPTURE);
+		if (capture == null) {
+			// The first writer returned by any hook is used, so leave the writer to the other response caches
+			return null;
+		}
+		HttpServletResponse response = ((ServletRequestDetails) theRequestDetails).getServletResponse();
+		capture.myWriter = new ETagWriter(theWriter, response);
+		return capture.myWriter;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+	public void storeResponse(ServletRequestDetails theRequestDetails) {
+		Capture capture = (Capture) theRequestDetails.getUserData().get(USER_DATA_CAPTURE);
+		if (capture == null) {
+			return;
+		}
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		String body = capture.myWriter != null ? capture.myWriter.getBody() : null;
+		if (body == null || response.getStatus() != HttpServletResponse.SC_OK) {
+			return;
+		}
+		// A response built while the cache was dropped may predate the change, and is only stored if it was built
+		// after it
+		if (capture.myGeneration == myGeneration) {
+			capture.myGeneration.myEntries.put(capture.myVariant, EncodedResponse.of(body, response, CACHED_HEADERS));
+		}
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		// Nothing is cached before the first request
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		// The registry may notice the change after this listener, so it is brought up to date before the
+		// CapabilityStatement is built again
+		mySearchParamRegistry.forceRefresh();
+		invalidate();
+	}
+
+	void invalidate() {
+		synchronized (this) {
+			myGeneration = new Generation(myGeneration.myFingerprint);
+		}
+		ourLog.info("SearchParameters changed, the CapabilityStatement will be built again");
+	}
+
+	private Generation currentGeneration(RestfulServer theServer) {
+		long fingerprint = fingerprintOf(theServer);
+		Generation retVal = myGeneration;
+		if (retVal.myFingerprint != fingerprint) {
+			synchronized (this) {
+				retVal = myGeneration;
+				if (retVal.myFingerprint != fingerprint) {
+					if (retVal.myFingerprint != 0) {
+						ourLog.info("Resource types or providers changed, the CapabilityStatement will be built again");
+					}
+					disableCapabilityStatementCache(theServer);
+					retVal = new Generation(fingerprint);
+					myGeneration = retVal;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * The server keeps the last CapabilityStatement built for a while itself, which would be stored again after the
+	 * cached responses were dropped
+	 */
+	private static void disableCapabilityStatementCache(RestfulServer theServer) {
+		ConformanceMethodBinding binding = theServer.getServerConformanceMethod();
+		if (binding != null) {
+			binding.setCacheMillis(0);
+		}
+	}
+
+	/**
+	 * @return a value that changes when the supported resource types or the registered providers change
+	 */
+	private long fingerprintOf(RestfulServer theServer) {
+		long retVal = myDaoRegistry.getRegisteredDaoTypes().hashCode();
+		for (Object next : theServer.getResourceProviders()) {
+			retVal = 31 * retVal + System.identityHashCode(next);
+		}
+		for (Object next : theServer.getPlainProviders()) {
+			retVal = 31 * retVal + System.identityHashCode(next);
+		}
+		// 0 is the fingerprint of the initial, empty generation
+		return retVal != 0 ? retVal : 1;
+	}
+
+	private static boolean isCacheable(RequestDetails theRequestDetails) {
+		for (String next : theRequestDetails.getParameters().keySet()) {
+			if (!CACHEABLE_PARAMETERS.contains(next)) {
+				return false;
+			}
+		}
+		return !EncodedResponse.isBrowserRequest(theRequestDetails);
+	}
+
+	/**
+	 * The cached responses for one state of the search parameters, resource types and providers
+	 */
+	private static class Generation {
+		private final long myFingerprint;
+		private final Map<String, EncodedResponse> myEntries = new ConcurrentHashMap<>();
+
+		private Generation(long theFingerprint) {
+			myFingerprint = theFingerprint;
+		}
+	}
+
+	/**
+	 * Holds a response back until it is complete, and then sends it with the ETag derived from its content. Responses
+	 * too large to be cached are passed through without one.
+	 */
+	private static class ETagWriter extends Writer {
+		private final Writer myDelegate;
+		private final HttpServletResponse myResponse;
+		private StringBuilder myBuffer = new StringBuilder();
+		private String myBody;
+
+		private ETagWriter(Writer theDelegate, HttpServletResponse theResponse) {
+			myDelegate = theDelegate;
+			myResponse = theResponse;
+		}
+
+		@Override
+		public void write(char[] theChars, int theOffset, int theLength) throws IOException {
+			if (myBuffer != null) {
+				if (myBuffer.length() + theLength <= MAX_ENTRY_CHARS) {
+					myBuffer.append(theChars, theOffset, theLength);
+					return;
+				}
+				myDelegate.write(myBuffer.toString());
+				myBuffer = null;
+			}
+			myDelegate.write(theChars, theOffset, theLength);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (myBuffer == null) {
+				myDelegate.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (myBuffer != null && myBody == null) {
+				myBody = myBuffer.toString();
+				myResponse.setHeader(Constants.HEADER_ETAG, EncodedResponse.etagOf(myBody));
+				myDelegate.write(myBody);
+			}
+			myDelegate.close();
+		}
+
+		/**
+		 * @return the complete response, or <code>null</code> if it was passed through
+		 */
+		private String getBody() {
+			return myBody;
+		}
+	}
+
+	private static class Capture {
+		private final Generation myGeneration;
+		private final String myVariant;
+		private ETagWriter myWriter;
+
+		private Capture(Generation theGeneration, String theVariant) {
+			myGeneration = theGeneration;
+			myVariant = theVariant;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package ca.uhn.fhir.jpa.starter.cache;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Serves repeated <code>read</code> and <code>vread</code> interactions from encoded response bytes kept in memory,
+ * without loading, parsing or encoding the resource again. Entries are keyed by resource ID and version, and by the
+ * tenant, encoding, pretty printing and summary mode of the response. A request whose <code>If-None-Match</code>
+ * matches the cached version is answered with <code>304 Not Modified</code>.
+ * <p>
+ * The cache is bounded by the size of the cached responses, and all entries of a resource are dropped when the
+ * resource is written. Requests with other parameters than <code>_format</code>, <code>_pretty</code> and
+ * <code>_summary</code>, and requests from browsers, always go to the database.
+ * <p>
+ * Cached responses are written before the request reaches the resource providers, so interceptors that act on the
+ * read itself do not see them. The cache stays off while hooks are registered that may filter or mask what a client
+ * sees, see {@link AccessControlGuard}. With several server instances, writes through another instance are
+ * only seen once entries expire.
+ * <p>
+ * This class must be registered with the RestfulServer, and its {@link #getInvalidator() invalidator} with the JPA
+ * interceptor service.
+ */
+@Interceptor
+public class EncodedResourceCache {
+
+	private static final String METRIC_PREFIX = "fhir.resource.cache";
+	public static final String METRIC_REQUESTS = "fhir.resource.cache.requests";
+	private static final String USER_DATA_CAPTURE = EncodedResourceCache.class.getName() + "_CAPTURE";
+	private static final Set<String> CACHEABLE_PARAMETERS =
+			Set.of(Constants.PARAM_FORMAT, Constants.PARAM_PRETTY, Constants.PARAM_SUMMARY);
+	private static final List<String> CACHED_HEADERS = List.of(
+			Constants.HEADER_CONTENT_TYPE,
+			Constants.HEADER_ETAG,
+			Constants.HEADER_LAST_MODIFIED,
+			Constants.HEADER_CONTENT_LOCATION,
+			Constants.HEADER_LOCATION);
+	private static final int GENERATION_STRIPES = 1024;
+
+	private final Cache<String, Map<String, EncodedResponse>> myCache;
+	private final Set<String> myResourceTypes;
+	private final int myMaxEntryBytes;
+	private final AtomicLongArray myGenerations = new AtomicLongArray(GENERATION_STRIPES);
+	private final Invalidator myInvalidator = new Invalidator();
+	private final AccessControlGuard myAccessControlGuard;
+	private final Counter myHits;
+	private final Counter myMisses;
+	private final Counter myNotModified;
+
+	/**
+	 * @param theResourceTypes the resource types to cache, or an empty set for all resource types
+	 * @param theJpaInterceptorService the JPA interceptor service, see {@link AccessControlGuard}
+	 */
+	public EncodedResourceCache(
+			long theMaxBytes,
+			long theTtlMillis,
+			Set<String> theResourceTypes,
+			MeterRegistry theMeterRegistry,
+			IInterceptorService theJpaInterceptorService) {
+		myCache = Caffeine.newBuilder()
+				.maximumWeight(theMaxBytes)
+				.weigher(EncodedResourceCache::estimateBytes)
+				.expireAfterWrite(Duration.ofMillis(theTtlMillis))
+				.build();
+		myResourceTypes = theResourceTypes;
+		myAccessControlGuard = new AccessControlGuard("resource cache", theJpaInterceptorService);
+		// A single resource may not push most of the other resources out of the cache
+		myMaxEntryBytes = (int) Math.min(Integer.MAX_VALUE, Math.max(1024, theMaxBytes / 16));
+		// Entries hold all variants of a resource, so hits are counted per variant rather than by the cache itself
+		CaffeineCacheMetrics.monitor(theMeterRegistry, myCache, METRIC_PREFIX);
+		myHits = requestCounter(theMeterRegistry, "hit");
+		myMisses = requestCounter(theMeterRegistry, "miss");
+		myNotModified = requestCounter(theMeterRegistry, "not_modified");
+	}
+
+	private static Counter requestCounter(MeterRegistry theMeterRegistry, String theResult) {
+		return Counter.builder(METRIC_REQUESTS)
+				.description("Cacheable read and vread requests by result")
+				.tag("result", theResult)
+				.register(theMeterRegistry);
+	}
+
+	/**
+	 * @return the interceptor that drops cached responses when resources are written
+	 */
+	public Invalidator getInvalidator() {
+		return myInvalidator;
+	}
+
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MAX_VALUE)
+	public boolean serveFromCache(
+			RequestDetails theRequestDetails,
+			HttpServletRequest theServletRequest,
+			HttpServletResponse theServletResponse)
+			throws IOException {
+		RestOperationTypeEnum type = theRequestDetails.getRestOperationType();
+		if (type != RestOperationTypeEnum.READ && type != RestOperationTypeEnum.VREAD) {
+			return true;
+		}
+		IIdType id = theRequestDetails.getId();
+		if (id == null
+				|| !id.hasIdPart()
+				|| !isCacheable(theRequestDetails)
+				|| !myAccessControlGuard.isPermitted(theRequestDetails)) {
+			return true;
+		}
+		String resourceKey = theRequestDetails.getResourceName() + "/" + id.getIdPart();
+		String version = type == RestOperationTypeEnum.VREAD ? id.getVersionIdPart() : null;
+		String variant = version + "|" + EncodedResponse.variantOf(theRequestDetails);
+
+		Map<String, EncodedResponse> entries = myCache.getIfPresent(resourceKey);
+		EncodedResponse entry = entries != null ? entries.get(variant) : null;
+		if (entry == null) {
+			myMisses.increment();
+			theRequestDetails
+					.getUserData()
+					.put(USER_DATA_CAPTURE, new Capture(resourceKey, variant, getGeneration(resourceKey)));
+			return true;
+		}
+
+		String etag = entry.getHeader(Constants.HEADER_ETAG);
+		String ifNoneMatch = theServletRequest.getHeader(Constants.HEADER_IF_NONE_MATCH);
+		if (etag != null && EncodedResponse.matches(ifNoneMatch, etag)) {
+			myNotModified.increment();
+			entry.writeHeaders(theServletResponse);
+			theServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			theServletResponse.setContentLength(0);
+			return false;
+		}
+		myHits.increment();
+		entry.writeTo(theServletResponse);
+		return false;
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_WRITER_CREATED)
+	public Writer captureResponse(Writer theWriter, RequestDetails theRequestDetails) {
+		Capture capture = (Capture) theRequestDetails.getUserData().get(USER_DATA_CAPTURE);
+		if (capture == null) {
+			// The first writer returned by any hook is used, so leave the writer to the other response caches
+			return null;
+		}
+		capture.myWriter = new CapturingWriter(theWriter, myMaxEntryBytes);
+		return capture.myWriter;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+	public void storeResponse(ServletRequestDetails theRequestDetails) {
+		Capture capture = (Capture) theRequestDetails.getUserData().get(USER_DATA_CAPTURE);
+		if (capture == null) {
+			return;
+		}
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		EncodedResponse entry = EncodedResponse.capture(capture.myWriter, response, CACHED_HEADERS);
+		if (entry == null || response.getStatus() != HttpServletResponse.SC_OK) {
+			return;
+		}
+
+		// A write that happened while the resource was being read may not be visible to that read, so its
+		// response is only stored if no write happened since
+		if (getGeneration(capture.myResourceKey) != capture.myGeneration) {
+			return;
+		}
+		myCache.asMap().compute(capture.myResourceKey, (key, existing) -> {
+			Map<String, EncodedResponse> retVal = existing != null ? new HashMap<>(existing) : new HashMap<>();
+			retVal.put(capture.myVariant, entry);
+			return Map.copyOf(retVal);
+		});
+	}
+
+	private boolean isCacheable(RequestDetails theRequestDetails) {
+		if (!myResourceTypes.isEmpty() && !myResourceTypes.contains(theRequestDetails.getResourceName())) {
+			return false;
+		}
+		for (String next : theRequestDetails.getParameters().keySet()) {
+			if (!CACHEABLE_PARAMETERS.contains(next)) {
+				return false;
+			}
+		}
+		return !EncodedResponse.isBrowserRequest(theRequestDetails);
+	}
+
+	private long getGeneration(String theResourceKey) {
+		return myGenerations.get(stripeOf(theResourceKey));
+	}
+
+	void invalidate(String theResourceKey) {
+		myGenerations.incrementAndGet(stripeOf(theResourceKey));
+		myCache.invalidate(theResourceKey);
+	}
+
+	private static int stripeOf(String theResourceKey) {
+		return Math.floorMod(theResourceKey.hashCode(), GENERATION_STRIPES);
+	}
+
+	private static int estimateBytes(String theKey, Map<String, EncodedResponse> theEntries) {
+		long retVal = 64 + 2L * theKey.length();
+		for (EncodedResponse next : theEntries.values()) {
+			retVal += next.estimateBytes();
+		}
+		return (int) Math.min(retVal, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Drops the cached responses of resources written through the JPA storage layer, whether the write came from a
+	 * FHIR request, a batch job or a subscription.
+	 */
+	@Interceptor
+	public class Invalidator {
+
+		@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+		public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+			resourceChanged(theNewResource);
+		}
+
+		@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+		public void resourceDeleted(IBaseResource theResource) {
+			resourceChanged(theResource);
+		}
+
+		@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+		public void resourceCreated(IBaseResource theResource) {
+			// A resource created with a client assigned ID may replace a deleted one
+			resourceChanged(theResource);
+		}
+
+		private void resourceChanged(IBaseResource theResource) {
+			if (theResource == null || !theResource.getIdElement().hasIdPart()) {
+				return;
+			}
+			String resourceKey = theResource.fhirType() + "/" + theResource.getIdElement().getIdPart();
+			invalidate(resourceKey);
+
+			// Reads running concurrently with the transaction still see the old version, so drop whatever they
+			// cached once the change is visible
+			if (TransactionSynchronizationManager.isSynchronizationActive()) {
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+					@Override
+					public void afterCompletion(int theStatus) {
+						invalidate(resourceKey);
+					}
+				});
+			}
+		}
+	}
+
+	private static class Capture {
+		private final String myResourceKey;
+		private final String myVariant;
+		private final long myGeneration;
+		private CapturingWriter myWriter;
+
+		private Capture(String theResourceKey, String theVariant, long theGeneration) {
+			myResourceKey = theResourceKey;
+			myVariant = theVariant;
+			myGeneration = theGeneration;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package ca.uhn.fhir.jpa.starter.cache;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response body as it was written to the client, with the headers needed to write it again
+ */
+class EncodedResponse {
+
+	private final byte[] myBody;
+	private final Map<String, String> myHeaders;
+
+	private EncodedResponse(byte[] theBody, Map<String, String> theHeaders) {
+		myBody = theBody;
+		myHeaders = theHeaders;
+	}
+
+	/**
+	 * @return the response captured by <code>theWriter</code>, or <code>null</code> if it was too large
+	 */
+	static EncodedResponse capture(
+			CapturingWriter theWriter, HttpServletResponse theResponse, List<String> theHeaderNames) {
+		if (theWriter == null || theWriter.isOverflowed()) {
+			return null;
+		}
+		return of(theWriter.getCaptured(), theResponse, theHeaderNames);
+	}
+
+	/**
+	 * @return a response with <code>theBody</code> and the named headers as they are set on <code>theResponse</code>
+	 */
+	static EncodedResponse of(String theBody, HttpServletResponse theResponse, List<String> theHeaderNames) {
+		Map<String, String> headers = new HashMap<>();
+		for (String next : theHeaderNames) {
+			String value = theResponse.getHeader(next);
+			if (value != null) {
+				headers.put(next, value);
+			}
+		}
+		return new EncodedResponse(theBody.getBytes(StandardCharsets.UTF_8), Map.copyOf(headers));
+	}
+
+	/**
+	 * @return a strong ETag derived from the content of <code>theBody</code>, which changes whenever it does
+	 */
+	static String etagOf(String theBody) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(theBody.getBytes(StandardCharsets.UTF_8));
+			return "\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	String getHeader(String theName) {
+		return myHeaders.get(theName);
+	}
+
+	void writeHeaders(HttpServletResponse theResponse) {
+		myHeaders.forEach(theResponse::setHeader);
+	}
+
+	void writeTo(HttpServletResponse theResponse) throws IOException {
+		writeHeaders(theResponse);
+		theResponse.setStatus(HttpServletResponse.SC_OK);
+		theResponse.setContentLength(myBody.length);
+		theResponse.getOutputStream().write(myBody);
+		theResponse.getOutputStream().flush();
+	}
+
+	int estimateBytes() {
+		long retVal = 128 + myBody.length;
+		for (Map.Entry<String, String> next : myHeaders.entrySet()) {
+			retVal += 2L * (next.getKey().length() + next.getValue().length());
+		}
+		return (int) Math.min(retVal, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return whether an <code>If-None-Match</code> header matches the ETag of a response
+	 */
+	static boolean matches(String theIfNoneMatch, String theEtag) {
+		if (theIfNoneMatch == null) {
+			return false;
+		}
+		String etag = normalizeEtag(theEtag);
+		for (String next : theIfNoneMatch.split(",")) {
+			String candidate = normalizeEtag(next);
+			if (candidate.equals("*") || candidate.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String normalizeEtag(String theEtag) {
+		String retVal = theEtag.trim();
+		if (retVal.startsWith("W/")) {
+			retVal = retVal.substring(2);
+		}
+		return retVal.replace("\"", "");
+	}
+
+	/**
+	 * Browsers get a rendered page from the ResponseHighlighterInterceptor, which is not cached
+	 */
+	static boolean isBrowserRequest(RequestDetails theRequestDetails) {
+		String accept = theRequestDetails.getHeader(Constants.HEADER_ACCEPT);
+		String[] format = theRequestDetails.getParameters().get(Constants.PARAM_FORMAT);
+		return (accept != null && accept.contains(Constants.CT_HTML))
+				|| (format != null && format.length > 0 && format[0].contains("html"));
+	}
+
+	/**
+	 * @return the properties of a request, other than what is requested, that change the encoded response
+	 */
+	static String variantOf(RequestDetails theRequestDetails) {
+		RestfulServerUtils.ResponseEncoding encoding =
+				RestfulServerUtils.determineResponseEncodingWithDefault(theRequestDetails);
+		return theRequestDetails.getFhirServerBase()
+				+ "|" + theRequestDetails.getTenantId()
+				+ "|" + (encoding != null ? encoding.getResourceContentType() : null)
+				+ "|" + RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails)
+				+ "|" + RestfulServerUtils.determineSummaryMode(theRequestDetails);
+	}
+}
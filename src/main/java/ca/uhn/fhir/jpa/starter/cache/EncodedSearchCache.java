@@ -0,0 +1,364 @@
+package ca.uhn.fhir.jpa.starter.cache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.UrlUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves repeated identical searches from fully encoded result pages kept in memory, so that a reused search does
+ * not load and encode every resource on the page again. Pages are keyed by the normalized search URL, including the
+ * page offset and size, and by the partition, encoding and pretty printing of the response. Pages fetched through the
+ * paging links of a cached search are cached as well.
+ * <p>
+ * A page is dropped when a resource of a type it involves is written: the searched type, the types of the resources
+ * on the page and the types named by <code>_revinclude</code>. Searches with <code>_list</code> also involve List,
+ * and searches with terminology modifiers such as <code>:in</code> or <code>:below</code> involve ValueSet and
+ * CodeSystem. Searches with chained parameters, <code>_has</code> or <code>_filter</code> involve every type. Any
+ * change of a SearchParameter drops all pages. Pages expire after the
+ * same time as the reuse of cached search results by the JPA server, and requests with
+ * <code>Cache-Control: no-cache</code> or <code>no-store</code> always go to the database.
+ * <p>
+ * Like the {@link EncodedResourceCache}, cached pages are written before the request reaches the resource providers,
+ * so the cache stays off while hooks are registered that may narrow, filter or mask search results per client, see
+ * {@link AccessControlGuard}.
+ * <p>
+ * This class must be registered with the RestfulServer, and its {@link #getInvalidator() invalidator} with the JPA
+ * interceptor service.
+ */
+@Interceptor
+public class EncodedSearchCache {
+
+	private static final String METRIC_PREFIX = "fhir.search.cache";
+	public static final String METRIC_REQUESTS = "fhir.search.cache.requests";
+	private static final String USER_DATA_CAPTURE = EncodedSearchCache.class.getName() + "_CAPTURE";
+	private static final List<String> CACHED_HEADERS = List.of(Constants.HEADER_CONTENT_TYPE);
+	private static final String ALL_TYPES = "*";
+	private static final String SEARCH_PARAMETER = "SearchParameter";
+	private static final int MAX_PAGING_SEARCHES = 10000;
+	private static final List<String> TERMINOLOGY_QUALIFIERS = List.of(
+			Constants.PARAMQUALIFIER_TOKEN_IN,
+			Constants.PARAMQUALIFIER_TOKEN_NOT_IN,
+			Constants.PARAMQUALIFIER_TOKEN_ABOVE,
+			Constants.PARAMQUALIFIER_TOKEN_BELOW);
+
+	private final Cache<String, Entry> myCache;
+	private final Cache<String, Set<String>> myPagingSearchTypes;
+	private final int myMaxEntryBytes;
+	private final AtomicLong myWriteSequence = new AtomicLong();
+	private final Map<String, Long> myLastWrites = new ConcurrentHashMap<>();
+	private final Invalidator myInvalidator = new Invalidator();
+	private final AccessControlGuard myAccessControlGuard;
+	private final Counter myHits;
+	private final Counter myMisses;
+
+	/**
+	 * @param theJpaInterceptorService the JPA interceptor service, see {@link AccessControlGuard}
+	 */
+	public EncodedSearchCache(
+			long theMaxBytes,
+			long theTtlMillis,
+			MeterRegistry theMeterRegistry,
+			IInterceptorService theJpaInterceptorService) {
+		myCache = Caffeine.newBuilder()
+				.maximumWeight(theMaxBytes)
+				.weigher((String key, Entry entry) -> 2 * key.length() + entry.myResponse.estimateBytes())
+				.expireAfterWrite(Duration.ofMillis(theTtlMillis))
+				.build();
+		myPagingSearchTypes = Caffeine.newBuilder()
+				.maximumSize(MAX_PAGING_SEARCHES)
+				.expireAfterWrite(Duration.ofMillis(theTtlMillis))
+				.build();
+		myAccessControlGuard = new AccessControlGuard("search cache", theJpaInterceptorService);
+		// A single page may not push most of the other pages out of the cache
+		myMaxEntryBytes = (int) Math.min(Integer.MAX_VALUE, Math.max(1024, theMaxBytes / 16));
+		CaffeineCacheMetrics.monitor(theMeterRegistry, myCache, METRIC_PREFIX);
+		myHits = requestCounter(theMeterRegistry, "hit");
+		myMisses = requestCounter(theMeterRegistry, "miss");
+	}
+
+	private static Counter requestCounter(MeterRegistry theMeterRegistry, String theResult) {
+		return Counter.builder(METRIC_REQUESTS)
+				.description("Cacheable search requests by result")
+				.tag("result", theResult)
+				.register(theMeterRegistry);
+	}
+
+	/**
+	 * @return the interceptor that drops cached pages when resources are written
+	 */
+	public Invalidator getInvalidator() {
+		return myInvalidator;
+	}
+
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MAX_VALUE)
+	public boolean serveFromCache(RequestDetails theRequestDetails, HttpServletResponse theServletResponse)
+			throws IOException {
+		Set<String> pagingSearchTypes = null;
+		RestOperationTypeEnum type = theRequestDetails.getRestOperationType();
+		if (type == RestOperationTypeEnum.GET_PAGE) {
+			// Only the pages of searches whose first page went through this cache have known types
+			String pagingSearch = firstValue(theRequestDetails, Constants.PARAM_PAGINGACTION);
+			pagingSearchTypes = pagingSearch != null ? myPagingSearchTypes.getIfPresent(pagingSearch) : null;
+			if (pagingSearchTypes == null) {
+				return true;
+			}
+		} else if (type != RestOperationTypeEnum.SEARCH_TYPE) {
+			return true;
+		}
+		if (theRequestDetails.getRequestType() != RequestTypeEnum.GET
+				|| EncodedResponse.isBrowserRequest(theRequestDetails)
+				|| isNoCache(theRequestDetails)
+				|| !myAccessControlGuard.isPermitted(theRequestDetails)) {
+			return true;
+		}
+
+		String key = keyOf(theRequestDetails);
+		Entry entry = myCache.getIfPresent(key);
+		if (entry != null && isCurrent(entry.myTypes, entry.mySequence)) {
+			myHits.increment();
+			entry.myResponse.writeTo(theServletResponse);
+			return false;
+		}
+		if (entry != null) {
+			myCache.invalidate(key);
+		}
+
+		myMisses.increment();
+		Capture capture = new Capture(key, myWriteSequence.get());
+		if (pagingSearchTypes != null) {
+			capture.myTypes.addAll(pagingSearchTypes);
+		} else {
+			capture.myTypes.addAll(typesOf(theRequestDetails));
+		}
+		theRequestDetails.getUserData().put(USER_DATA_CAPTURE, capture);
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public boolean inspectResponse(RequestDetails theRequestDetails, IBaseResource theResponseObject) {
+		Capture capture = (Capture) theRequestDetails.getUserData().get(USER_DATA_CAPTURE);
+		if (capture == null || !(theResponseObject instanceof IBaseBundle bundle)) {
+			return true;
+		}
+		FhirContext ctx = theRequestDetails.getFhirContext();
+		for (IBaseResource next : BundleUtil.toListOfResources(ctx, bundle)) {
+			capture.myTypes.add(next.fhirType());
+		}
+
+		// The next page is fetched with the ID of the search stored by the JPA server
+		String nextLink = BundleUtil.getLinkUrlOfType(ctx, bundle, Constants.LINK_NEXT);
+		if (nextLink != null && nextLink.indexOf('?') >= 0) {
+			String query = nextLink.substring(nextLink.indexOf('?') + 1);
+			String[] pagingSearch = UrlUtil.parseQueryString(query).get(Constants.PARAM_PAGINGACTION);
+			if (pagingSearch != null && pagingSearch.length > 0) {
+				myPagingSearchTypes.put(pagingSearch[0], Set.copyOf(capture.myTypes));
+			}
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_WRITER_CREATED)
+	public Writer captureResponse(Writer theWriter, RequestDetails theRequestDetails) {
+		Capture capture = (Capture) theRequestDetails.getUserData().get(USER_DATA_CAPTURE);
+		if (capture == null) {
+			// The first writer returned by any hook is used, so leave the writer to the other response caches
+			return null;
+		}
+		capture.myWriter = new CapturingWriter(theWriter, myMaxEntryBytes);
+		return capture.myWriter;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+	public void storeResponse(ServletRequestDetails theRequestDetails) {
+		Capture capture = (Capture) theRequestDetails.getUserData().get(USER_DATA_CAPTURE);
+		if (capture == null) {
+			return;
+		}
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+		EncodedResponse encoded = EncodedResponse.capture(capture.myWriter, response, CACHED_HEADERS);
+		if (encoded == null || response.getStatus() != HttpServletResponse.SC_OK) {
+			return;
+		}
+
+		// A write that happened while the search was running may not be visible to it, so the page is only stored
+		// if none of its types was written since
+		Set<String> types = Set.copyOf(capture.myTypes);
+		if (isCurrent(types, capture.mySequence)) {
+			myCache.put(capture.myKey, new Entry(encoded, types, capture.mySequence));
+		}
+	}
+
+	private boolean isCurrent(Set<String> theTypes, long theSequence) {
+		if (myLastWrites.getOrDefault(SEARCH_PARAMETER, 0L) > theSequence) {
+			return false;
+		}
+		if (theTypes.contains(ALL_TYPES)) {
+			return myLastWrites.getOrDefault(ALL_TYPES, 0L) <= theSequence;
+		}
+		for (String next : theTypes) {
+			if (myLastWrites.getOrDefault(next, 0L) > theSequence) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void resourceTypeChanged(String theResourceType) {
+		long sequence = myWriteSequence.incrementAndGet();
+		myLastWrites.put(theResourceType, sequence);
+		myLastWrites.put(ALL_TYPES, sequence);
+	}
+
+	/**
+	 * @return the types that the results of the search depend on, as far as they are known from the request
+	 */
+	private static Set<String> typesOf(RequestDetails theRequestDetails) {
+		Set<String> retVal = new HashSet<>();
+		retVal.add(theRequestDetails.getResourceName());
+		for (Map.Entry<String, String[]> next : theRequestDetails.getParameters().entrySet()) {
+			String name = next.getKey();
+			if (name.startsWith(Constants.PARAM_HAS) || name.contains(".") || name.equals(Constants.PARAM_FILTER)) {
+				retVal.add(ALL_TYPES);
+			} else if (name.equals(Constants.PARAM_LIST)) {
+				retVal.add("List");
+			} else if (TERMINOLOGY_QUALIFIERS.stream().anyMatch(name::endsWith)) {
+				// Codes are matched against the expansion or hierarchy stored with the terminology
+				retVal.add("ValueSet");
+				retVal.add("CodeSystem");
+			} else if (name.startsWith(Constants.PARAM_REVINCLUDE)) {
+				// Resources that start referencing the results appear on the page without a change of the results
+				for (String value : next.getValue()) {
+					int separator = value.indexOf(':');
+					retVal.add(separator > 0 ? value.substring(0, separator) : ALL_TYPES);
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private static String keyOf(RequestDetails theRequestDetails) {
+		StringBuilder retVal = new StringBuilder(EncodedResponse.variantOf(theRequestDetails))
+				.append('|')
+				.append(theRequestDetails.getResourceName())
+				.append('?');
+		// The order of the parameters and of repeated values does not change the results
+		Map<String, String[]> parameters = new TreeMap<>(theRequestDetails.getParameters());
+		for (Map.Entry<String, String[]> next : parameters.entrySet()) {
+			String[] values = next.getValue().clone();
+			Arrays.sort(values);
+			for (String value : values) {
+				retVal.append(next.getKey()).append('=').append(value).append('&');
+			}
+		}
+		return retVal.toString();
+	}
+
+	private static boolean isNoCache(RequestDetails theRequestDetails) {
+		String cacheControl = theRequestDetails.getHeader(Constants.HEADER_CACHE_CONTROL);
+		return cacheControl != null
+				&& (cacheControl.contains(Constants.CACHE_CONTROL_NO_CACHE)
+						|| cacheControl.contains(Constants.CACHE_CONTROL_NO_STORE));
+	}
+
+	private static String firstValue(RequestDetails theRequestDetails, String theName) {
+		String[] values = theRequestDetails.getParameters().get(theName);
+		return values != null && values.length > 0 ? values[0] : null;
+	}
+
+	/**
+	 * Drops the cached pages involving resources written through the JPA storage layer, whether the write came from
+	 * a FHIR request, a batch job or a subscription.
+	 */
+	@Interceptor
+	public class Invalidator {
+
+		@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+		public void resourceCreated(IBaseResource theResource) {
+			resourceChanged(theResource);
+		}
+
+		@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+		public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+			resourceChanged(theNewResource);
+		}
+
+		@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+		public void resourceDeleted(IBaseResource theResource) {
+			resourceChanged(theResource);
+		}
+
+		private void resourceChanged(IBaseResource theResource) {
+			if (theResource == null) {
+				return;
+			}
+			String resourceType = theResource.fhirType();
+			resourceTypeChanged(resourceType);
+
+			// Searches running concurrently with the transaction still see the old state, so drop whatever they
+			// cached once the change is visible
+			if (TransactionSynchronizationManager.isSynchronizationActive()) {
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+					@Override
+					public void afterCompletion(int theStatus) {
+						resourceTypeChanged(resourceType);
+					}
+				});
+			}
+		}
+	}
+
+	private static class Entry {
+		private final EncodedResponse myResponse;
+		private final Set<String> myTypes;
+		private final long mySequence;
+
+		private Entry(EncodedResponse theResponse, Set<String> theTypes, long theSequence) {
+			myResponse = theResponse;
+			myTypes = theTypes;
+			mySequence = theSequence;
+		}
+	}
+
+	private static class Capture {
+		private final String myKey;
+		private final long mySequence;
+		private final Set<String> myTypes = new HashSet<>();
+		private CapturingWriter myWriter;
+
+		private Capture(String theKey, long theSequence) {
+			myKey = theKey;
+			mySequence = theSequence;
+		}
+	}
+}
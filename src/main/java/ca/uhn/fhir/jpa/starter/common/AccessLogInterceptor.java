@@ -0,0 +1,265 @@
+package ca.uhn.fhir.jpa.starter.common;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes one JSON line per request to the access log, without formatting anything on the request thread.
+ * <p>
+ * The request thread only copies references to the request fields into a preallocated {@link AccessLogRecord} slot
+ * of a lock-free ring buffer. A single background writer turns the records into JSON lines and hands them to the
+ * access logger. When the buffer is full, records are dropped rather than slowing requests down, and the number of
+ * dropped records is logged by the writer.
+ * <p>
+ * Successful requests are logged with the configured sample rate, failed requests are always logged.
+ * <p>
+ * This class must be registered with the RestfulServer.
+ */
+@Interceptor
+public class AccessLogInterceptor {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(AccessLogInterceptor.class);
+	private static final String USER_DATA_EXCEPTION = AccessLogInterceptor.class.getName() + "_EXCEPTION";
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final Logger myAccessLog;
+	private final double mySampleRate;
+	private final boolean myLogExceptions;
+	private final AccessLogRecord[] mySlots;
+	private final int myMask;
+	private final AtomicLong myTail = new AtomicLong();
+	private final AtomicLong myDropped = new AtomicLong();
+	private final Thread myWriter;
+	private final JsonFactory myJsonFactory = new JsonFactory();
+	private final StringWriter myLine = new StringWriter();
+	private long myHead;
+	private volatile boolean myRunning = true;
+
+	/**
+	 * @param theBufferSize the number of records the buffer holds, rounded up to a power of two
+	 * @param theSampleRate the fraction of successful requests to log, between 0 and 1
+	 */
+	public AccessLogInterceptor(
+			String theLoggerName, int theBufferSize, double theSampleRate, boolean theLogExceptions) {
+		myAccessLog = LoggerFactory.getLogger(theLoggerName);
+		mySampleRate = theSampleRate;
+		myLogExceptions = theLogExceptions;
+
+		int capacity = Integer.highestOneBit(Math.max(2, theBufferSize) - 1) << 1;
+		mySlots = new AccessLogRecord[capacity];
+		for (int i = 0; i < capacity; i++) {
+			mySlots[i] = new AccessLogRecord(i);
+		}
+		myMask = capacity - 1;
+
+		myWriter = new Thread(this::write, "access-log-writer");
+		myWriter.setDaemon(true);
+		myWriter.start();
+	}
+
+	@Hook(Pointcut.SERVER_HANDLE_EXCEPTION)
+	public boolean exceptionThrown(RequestDetails theRequestDetails, BaseServerResponseException theException) {
+		theRequestDetails.getUserData().put(USER_DATA_EXCEPTION, theException);
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void requestCompleted(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+		BaseServerResponseException exception =
+				(BaseServerResponseException) theRequestDetails.getUserData().get(USER_DATA_EXCEPTION);
+		int status = exception != null
+				? exception.getStatusCode()
+				: theServletRequestDetails != null
+						? theServletRequestDetails.getServletResponse().getStatus()
+						: 200;
+		if (status < 400 && mySampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= mySampleRate) {
+			return;
+		}
+		offer(theRequestDetails, theServletRequestDetails, status, exception);
+	}
+
+	private void offer(
+			RequestDetails theRequestDetails,
+			ServletRequestDetails theServletRequestDetails,
+			int theStatus,
+			BaseServerResponseException theException) {
+		long position = myTail.get();
+		AccessLogRecord slot;
+		while (true) {
+			slot = mySlots[(int) (position & myMask)];
+			long available = slot.mySequence - position;
+			if (available == 0) {
+				if (myTail.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = myTail.get();
+			} else if (available < 0) {
+				// The writer has not caught up with this slot yet
+				myDropped.incrementAndGet();
+				return;
+			} else {
+				position = myTail.get();
+			}
+		}
+
+		slot.myTimestamp = System.currentTimeMillis();
+		slot.myDurationMillis = theRequestDetails.getRequestStopwatch().getMillis();
+		slot.myMethod = theRequestDetails.getRequestType() != null
+				? theRequestDetails.getRequestType().name()
+				: null;
+		slot.myPath = theRequestDetails.getRequestPath();
+		slot.myInteraction = theRequestDetails.getRestOperationType();
+		slot.myResourceType = theRequestDetails.getResourceName();
+		slot.myOperation = theRequestDetails.getOperation();
+		slot.myTenant = theRequestDetails.getTenantId();
+		slot.myStatus = theStatus;
+		slot.myForwardedFor = theRequestDetails.getHeader("x-forwarded-for");
+		slot.myUserAgent = theRequestDetails.getHeader("user-agent");
+		if (theServletRequestDetails != null) {
+			slot.myQuery = theServletRequestDetails.getServletRequest().getQueryString();
+			slot.myRemoteAddress = theServletRequestDetails.getServletRequest().getRemoteAddr();
+		}
+		slot.myException = theException;
+		// Publishing the sequence hands the slot over to the writer
+		slot.mySequence = position + 1;
+	}
+
+	/**
+	 * @return the number of records dropped because the buffer was full
+	 */
+	public long getDropped() {
+		return myDropped.get();
+	}
+
+	private void write() {
+		long reportedDropped = 0;
+		while (myRunning || hasNext()) {
+			if (!hasNext()) {
+				long dropped = myDropped.get();
+				if (dropped != reportedDropped) {
+					ourLog.warn("Dropped {} access log records because the buffer was full", dropped - reportedDropped);
+					reportedDropped = dropped;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+			AccessLogRecord slot = mySlots[(int) (myHead & myMask)];
+			try {
+				writeLine(slot);
+			} catch (Exception e) {
+				ourLog.warn("Failed to write access log record: {}", e.toString());
+			}
+			slot.clear();
+			slot.mySequence = myHead + mySlots.length;
+			myHead++;
+		}
+	}
+
+	private boolean hasNext() {
+		return mySlots[(int) (myHead & myMask)].mySequence == myHead + 1;
+	}
+
+	private void writeLine(AccessLogRecord theRecord) throws IOException {
+		myLine.getBuffer().setLength(0);
+		try (JsonGenerator json = myJsonFactory.createGenerator(myLine)) {
+			json.writeStartObject();
+			json.writeStringField("time", Instant.ofEpochMilli(theRecord.myTimestamp).toString());
+			writeField(json, "method", theRecord.myMethod);
+			writeField(json, "path", theRecord.myPath);
+			writeField(json, "query", theRecord.myQuery);
+			writeField(
+					json, "interaction", theRecord.myInteraction != null ? theRecord.myInteraction.getCode() : null);
+			writeField(json, "resourceType", theRecord.myResourceType);
+			writeField(json, "operation", theRecord.myOperation);
+			writeField(json, "tenant", theRecord.myTenant);
+			json.writeNumberField("status", theRecord.myStatus);
+			json.writeNumberField("durationMs", theRecord.myDurationMillis);
+			writeField(
+					json,
+					"client",
+					theRecord.myForwardedFor != null ? theRecord.myForwardedFor : theRecord.myRemoteAddress);
+			writeField(json, "userAgent", theRecord.myUserAgent);
+			if (theRecord.myException != null) {
+				writeField(json, "error", theRecord.myException.getMessage());
+			}
+			json.writeEndObject();
+		}
+
+		if (theRecord.myException != null && myLogExceptions && theRecord.myStatus >= 500) {
+			myAccessLog.error(myLine.toString(), theRecord.myException);
+		} else {
+			myAccessLog.info(myLine.toString());
+		}
+	}
+
+	private static void writeField(JsonGenerator theJson, String theName, String theValue) throws IOException {
+		if (theValue != null) {
+			theJson.writeStringField(theName, theValue);
+		}
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		// The writer drains the records still in the buffer before it stops
+		myRunning = false;
+		myWriter.join(TimeUnit.SECONDS.toMillis(5));
+	}
+
+	/**
+	 * A slot of the ring buffer, reused for every request that passes through it. Its sequence tells whether the
+	 * slot is free for the request at a given position or holds a record for the writer.
+	 */
+	private static class AccessLogRecord {
+		private volatile long mySequence;
+		private long myTimestamp;
+		private long myDurationMillis;
+		private String myMethod;
+		private String myPath;
+		private String myQuery;
+		private RestOperationTypeEnum myInteraction;
+		private String myResourceType;
+		private String myOperation;
+		private String myTenant;
+		private int myStatus;
+		private String myForwardedFor;
+		private String myRemoteAddress;
+		private String myUserAgent;
+		private BaseServerResponseException myException;
+
+		private AccessLogRecord(long theSequence) {
+			mySequence = theSequence;
+		}
+
+		private void clear() {
+			myMethod = null;
+			myPath = null;
+			myQuery = null;
+			myInteraction = null;
+			myResourceType = null;
+			myOperation = null;
+			myTenant = null;
+			myForwardedFor = null;
+			myRemoteAddress = null;
+			myUserAgent = null;
+			myException = null;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package ca.uhn.fhir.jpa.starter.common;
+
+import ca.uhn.fhir.jpa.starter.common.TrafficClassifier.TrafficClass;
+import ca.uhn.fhir.rest.api.Constants;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queues FHIR requests in front of the resource providers so that no more requests run than the database connection
+ * pool can serve. Requests wait for a permit and are rejected with <code>503 Service Unavailable</code> if none
+ * becomes available in time. Requests for the CapabilityStatement are always admitted, see
+ * {@link TrafficClassifier#isMetadataRequest(HttpServletRequest)}.
+ * <p>
+ * Interactive requests take precedence over batch requests, as told apart by the {@link TrafficClassifier}: a freed
+ * permit goes to a waiting batch request only if no interactive request is waiting.
+ * <p>
+ * The time spent waiting is published as <code>fhir.server.admission.wait</code>, requests waiting per traffic class
+ * as <code>fhir.server.admission.queued</code>, requests admitted as <code>fhir.server.admission.active</code> and
+ * rejected requests as <code>fhir.server.admission.rejected</code>.
+ */
+public class AdmissionControlFilter implements Filter {
+
+	public static final String METRIC_WAIT = "fhir.server.admission.wait";
+	public static final String METRIC_QUEUED = "fhir.server.admission.queued";
+	public static final String METRIC_ACTIVE = "fhir.server.admission.active";
+	public static final String METRIC_REJECTED = "fhir.server.admission.rejected";
+
+	private final int myPermitCount;
+	private final long myMaxWaitMillis;
+	private final TrafficClassifier myClassifier;
+	private final ReentrantLock myLock = new ReentrantLock();
+	private final Condition myInteractiveTurn = myLock.newCondition();
+	private final Condition myBatchTurn = myLock.newCondition();
+	private final int[] myWaiting = new int[TrafficClass.values().length];
+	private volatile int myAvailable;
+	private final Timer myWaitTimer;
+	private final Counter myRejected;
+
+	/**
+	 * @param theClassifier tells interactive and batch requests apart, or <code>null</code> to treat all requests alike
+	 */
+	public AdmissionControlFilter(
+			int thePermits, long theMaxWaitMillis, TrafficClassifier theClassifier, MeterRegistry theMeterRegistry) {
+		myPermitCount = thePermits;
+		myAvailable = thePermits;
+		myMaxWaitMillis = theMaxWaitMillis;
+		myClassifier = theClassifier;
+		myWaitTimer = Timer.builder(METRIC_WAIT)
+				.description("Time FHIR requests waited to be admitted")
+				.publishPercentileHistogram()
+				.register(theMeterRegistry);
+		myRejected = Counter.builder(METRIC_REJECTED)
+				.description("FHIR requests rejected because they could not be admitted in time")
+				.register(theMeterRegistry);
+		for (TrafficClass next : TrafficClass.values()) {
+			Gauge.builder(METRIC_QUEUED, this, filter -> filter.getWaiting(next))
+					.description("FHIR requests waiting to be admitted")
+					.tag("traffic_class", next.getTag())
+					.register(theMeterRegistry);
+		}
+		Gauge.builder(METRIC_ACTIVE, this, filter -> filter.myPermitCount - filter.myAvailable)
+				.description("FHIR requests admitted and running")
+				.register(theMeterRegistry);
+	}
+
+	@Override
+	public void doFilter(ServletRequest theRequest, ServletResponse theResponse, FilterChain theChain)
+			throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) theRequest;
+		HttpServletResponse response = (HttpServletResponse) theResponse;
+		if (TrafficClassifier.isMetadataRequest(request)) {
+			theChain.doFilter(theRequest, theResponse);
+			return;
+		}
+
+		TrafficClass trafficClass = myClassifier != null
+				? myClassifier.classify(request).getTrafficClass()
+				: TrafficClass.INTERACTIVE;
+		long start = System.nanoTime();
+		boolean admitted;
+		try {
+			admitted = acquire(trafficClass, TimeUnit.MILLISECONDS.toNanos(myMaxWaitMillis));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			admitted = false;
+		}
+		myWaitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		if (!admitted) {
+			myRejected.increment();
+			response.setHeader(Constants.HEADER_RETRY_AFTER, "1");
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The server is busy");
+			return;
+		}
+
+		try {
+			theChain.doFilter(theRequest, theResponse);
+		} finally {
+			release();
+		}
+	}
+
+	private boolean acquire(TrafficClass theTrafficClass, long theTimeoutNanos) throws InterruptedException {
+		boolean batch = theTrafficClass == TrafficClass.BATCH;
+		Condition turn = batch ? myBatchTurn : myInteractiveTurn;
+		long remaining = theTimeoutNanos;
+		myLock.lock();
+		try {
+			myWaiting[theTrafficClass.ordinal()]++;
+			try {
+				while (myAvailable == 0 || (batch && myWaiting[TrafficClass.INTERACTIVE.ordinal()] > 0)) {
+					if (remaining <= 0) {
+						return false;
+					}
+					remaining = turn.awaitNanos(remaining);
+				}
+				myAvailable--;
+				return true;
+			} finally {
+				myWaiting[theTrafficClass.ordinal()]--;
+				// Pass on a permit this request did not take, or that is still left for the next one
+				signalNext();
+			}
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	private void release() {
+		myLock.lock();
+		try {
+			myAvailable++;
+			signalNext();
+		} finally {
+			myLock.unlock();
+		}
+	}
+
+	private void signalNext() {
+		if (myAvailable == 0) {
+			return;
+		}
+		if (myWaiting[TrafficClass.INTERACTIVE.ordinal()] > 0) {
+			myInteractiveTurn.signal();
+		} else if (myWaiting[TrafficClass.BATCH.ordinal()] > 0) {
+			myBatchTurn.signal();
+		}
+	}
+
+	private int getWaiting(TrafficClass theTrafficClass) {
+		myLock.lock();
+		try {
+			return myWaiting[theTrafficClass.ordinal()];
+		} finally {
+			myLock.unlock();
+		}
+	}
+}
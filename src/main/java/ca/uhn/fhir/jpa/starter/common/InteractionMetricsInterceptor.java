@@ -0,0 +1,178 @@
+package ca.uhn.fhir.jpa.starter.common;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every FHIR interaction handled by the server and publishes it to the Micrometer registry:
+ * <ul>
+ *    <li><code>fhir.server.interaction</code> - total time from receiving the request until the response was
+ *    written</li>
+ *    <li><code>fhir.server.interaction.phase</code> - the same time split in the <code>parse</code> phase (reading
+ *    the URL and request body), the <code>handle</code> phase (storage or search) and the <code>encode</code> phase
+ *    (serializing the response)</li>
+ * </ul>
+ * Both are percentile histograms tagged with the interaction, resource type, operation name, status class
+ * (<code>2xx</code>, <code>4xx</code>, ...) and partition, so latency can be broken down per endpoint.
+ * <p>
+ * The operation and partition are taken from the request URL, so they are only used as tags once the server accepted
+ * them, to keep clients from creating any number of series: the operation once the request reached its handler, the
+ * partition once the request succeeded. Otherwise they are tagged <code>unknown</code>. Partitions beyond the first
+ * {@value #MAX_PARTITIONS} are tagged <code>other</code>.
+ * <p>
+ * This class must be registered with the RestfulServer.
+ */
+@Interceptor
+public class InteractionMetricsInterceptor {
+
+	public static final String METRIC_INTERACTION = "fhir.server.interaction";
+	public static final String METRIC_INTERACTION_PHASE = "fhir.server.interaction.phase";
+	public static final int MAX_PARTITIONS = 100;
+	private static final String NONE = "none";
+	private static final String UNKNOWN = "unknown";
+	private static final String OTHER = "other";
+	private static final String USER_DATA_TIMINGS = InteractionMetricsInterceptor.class.getName() + "_TIMINGS";
+
+	private final MeterRegistry myMeterRegistry;
+	private final Set<String> myPartitions = ConcurrentHashMap.newKeySet();
+
+	public InteractionMetricsInterceptor(MeterRegistry theMeterRegistry) {
+		myMeterRegistry = theMeterRegistry;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean requestReceived(RequestDetails theRequestDetails) {
+		theRequestDetails.getUserData().put(USER_DATA_TIMINGS, new Timings());
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+	public void requestParsed(RequestDetails theRequestDetails) {
+		Timings timings = getTimings(theRequestDetails);
+		if (timings != null && timings.myParsed == 0) {
+			timings.myParsed = System.nanoTime();
+		}
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public boolean responseReady(RequestDetails theRequestDetails) {
+		Timings timings = getTimings(theRequestDetails);
+		if (timings != null && timings.myHandled == 0) {
+			timings.myHandled = System.nanoTime();
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_HANDLE_EXCEPTION)
+	public boolean exceptionThrown(RequestDetails theRequestDetails, BaseServerResponseException theException) {
+		Timings timings = getTimings(theRequestDetails);
+		if (timings != null) {
+			if (timings.myHandled == 0) {
+				timings.myHandled = System.nanoTime();
+			}
+			timings.myStatusCode = theException.getStatusCode();
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void requestCompleted(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+		long now = System.nanoTime();
+		Timings timings = getTimings(theRequestDetails);
+		if (timings == null) {
+			// The request was rejected before it was routed, e.g. an unknown resource type
+			return;
+		}
+
+		int statusCode = timings.myStatusCode;
+		if (statusCode == 0 && theServletRequestDetails != null) {
+			statusCode = theServletRequestDetails.getServletResponse().getStatus();
+		}
+		String operation = timings.myParsed != 0 ? valueOrNone(theRequestDetails.getOperation()) : UNKNOWN;
+		Tags tags = Tags.of(
+				"interaction", interactionOf(theRequestDetails),
+				"resource_type", valueOrNone(theRequestDetails.getResourceName()),
+				"operation", operation,
+				"status", statusCode / 100 + "xx",
+				"partition", partitionOf(theRequestDetails, statusCode));
+
+		Timer.builder(METRIC_INTERACTION)
+				.description("Time to process FHIR interactions")
+				.tags(tags)
+				.publishPercentileHistogram()
+				.register(myMeterRegistry)
+				.record(now - timings.myReceived, TimeUnit.NANOSECONDS);
+
+		// Phases that were never reached, e.g. because parsing failed, are not recorded
+		long parsed = timings.myParsed;
+		long handled = timings.myHandled;
+		if (parsed != 0) {
+			recordPhase(tags, "parse", parsed - timings.myReceived);
+		}
+		if (parsed != 0 && handled != 0) {
+			recordPhase(tags, "handle", handled - parsed);
+			recordPhase(tags, "encode", now - handled);
+		} else if (parsed != 0) {
+			// Operations writing their own response have no separate encode phase
+			recordPhase(tags, "handle", now - parsed);
+		}
+	}
+
+	private void recordPhase(Tags theTags, String thePhase, long theNanos) {
+		Timer.builder(METRIC_INTERACTION_PHASE)
+				.description("Time spent in each phase of processing FHIR interactions")
+				.tags(theTags)
+				.tag("phase", thePhase)
+				.publishPercentileHistogram()
+				.register(myMeterRegistry)
+				.record(theNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private String partitionOf(RequestDetails theRequestDetails, int theStatusCode) {
+		String tenantId = theRequestDetails.getTenantId();
+		if (tenantId == null || tenantId.isEmpty()) {
+			return NONE;
+		}
+		if (theStatusCode >= 400) {
+			// The partition may not exist
+			return UNKNOWN;
+		}
+		if (myPartitions.contains(tenantId)
+				|| (myPartitions.size() < MAX_PARTITIONS && myPartitions.add(tenantId))) {
+			return tenantId;
+		}
+		return OTHER;
+	}
+
+	private static Timings getTimings(RequestDetails theRequestDetails) {
+		return (Timings) theRequestDetails.getUserData().get(USER_DATA_TIMINGS);
+	}
+
+	private static String interactionOf(RequestDetails theRequestDetails) {
+		RestOperationTypeEnum type = theRequestDetails.getRestOperationType();
+		return type != null ? type.getCode() : UNKNOWN;
+	}
+
+	private static String valueOrNone(String theValue) {
+		return theValue != null && !theValue.isEmpty() ? theValue : NONE;
+	}
+
+	private static class Timings {
+		private final long myReceived = System.nanoTime();
+		private long myParsed;
+		private long myHandled;
+		private int myStatusCode;
+	}
+}
@@ -0,0 +1,133 @@
+package ca.uhn.fhir.jpa.starter.common;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.common.TrafficClassifier.Classification;
+import ca.uhn.fhir.jpa.starter.common.TrafficClassifier.TrafficClass;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the request rate of each client with a token bucket per client and traffic class, so that a client flooding
+ * the server with requests is slowed down before it degrades the latency of other clients. Requests exceeding the
+ * limit are rejected with <code>429 Too Many Requests</code> and a <code>Retry-After</code> header.
+ * <p>
+ * Clients and traffic classes are determined by the {@link TrafficClassifier}. Each traffic class has its own rate
+ * and burst size, so that e.g. bulk clients can be held to a lower rate than interactive clients. Rejected requests
+ * are counted as <code>fhir.server.rate_limit.rejected</code>, tagged with the traffic class.
+ * <p>
+ * This class must be registered with the RestfulServer.
+ */
+@Interceptor
+public class RateLimitInterceptor {
+
+	public static final String METRIC_REJECTED = "fhir.server.rate_limit.rejected";
+	private static final long MAX_CLIENTS = 100_000;
+	private static final Duration IDLE_CLIENT_EXPIRY = Duration.ofMinutes(10);
+
+	private final TrafficClassifier myClassifier;
+	private final Map<TrafficClass, Limit> myLimits = new EnumMap<>(TrafficClass.class);
+	private final Map<TrafficClass, Counter> myRejected = new EnumMap<>(TrafficClass.class);
+	// Buckets of clients that went idle are full again, so they can simply be dropped
+	private final Cache<String, TokenBucket> myBuckets = Caffeine.newBuilder()
+			.maximumSize(MAX_CLIENTS)
+			.expireAfterAccess(IDLE_CLIENT_EXPIRY)
+			.build();
+
+	public RateLimitInterceptor(
+			TrafficClassifier theClassifier,
+			double theInteractiveRequestsPerSecond,
+			int theInteractiveBurst,
+			double theBatchRequestsPerSecond,
+			int theBatchBurst,
+			MeterRegistry theMeterRegistry) {
+		myClassifier = theClassifier;
+		myLimits.put(TrafficClass.INTERACTIVE, new Limit(theInteractiveRequestsPerSecond, theInteractiveBurst));
+		myLimits.put(TrafficClass.BATCH, new Limit(theBatchRequestsPerSecond, theBatchBurst));
+		for (TrafficClass next : TrafficClass.values()) {
+			myRejected.put(
+					next,
+					Counter.builder(METRIC_REJECTED)
+							.description("FHIR requests rejected because the client exceeded its rate limit")
+							.tag("traffic_class", next.getTag())
+							.register(theMeterRegistry));
+		}
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean limitRequest(HttpServletRequest theServletRequest) {
+		if (TrafficClassifier.isMetadataRequest(theServletRequest)) {
+			return true;
+		}
+		Classification classification = myClassifier.classify(theServletRequest);
+		TrafficClass trafficClass = classification.getTrafficClass();
+		Limit limit = myLimits.get(trafficClass);
+		if (limit.myRequestsPerSecond <= 0) {
+			return true;
+		}
+
+		TokenBucket bucket = myBuckets.get(
+				trafficClass.name() + "|" + classification.getClientId(), key -> new TokenBucket(limit));
+		long waitNanos = bucket.tryConsume();
+		if (waitNanos == 0) {
+			return true;
+		}
+		myRejected.get(trafficClass).increment();
+		long retryAfterSeconds =
+				Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+		throw new UnclassifiedServerFailureException(
+						429, "Rate limit exceeded, retry after " + retryAfterSeconds + " seconds")
+				.addResponseHeader(Constants.HEADER_RETRY_AFTER, Long.toString(retryAfterSeconds));
+	}
+
+	private static class Limit {
+		private final double myRequestsPerSecond;
+		private final int myBurst;
+
+		private Limit(double theRequestsPerSecond, int theBurst) {
+			myRequestsPerSecond = theRequestsPerSecond;
+			myBurst = Math.max(1, theBurst);
+		}
+	}
+
+	/**
+	 * Holds up to the burst size in tokens and is refilled with the configured rate. Each request takes one token.
+	 */
+	private static class TokenBucket {
+		private final double myTokensPerNano;
+		private final int myCapacity;
+		private double myTokens;
+		private long myRefilled = System.nanoTime();
+
+		private TokenBucket(Limit theLimit) {
+			myTokensPerNano = theLimit.myRequestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+			myCapacity = theLimit.myBurst;
+			myTokens = myCapacity;
+		}
+
+		/**
+		 * @return 0 if a token was taken, otherwise the nanoseconds until the next token is available
+		 */
+		private synchronized long tryConsume() {
+			long now = System.nanoTime();
+			myTokens = Math.min(myCapacity, myTokens + (now - myRefilled) * myTokensPerNano);
+			myRefilled = now;
+			if (myTokens >= 1) {
+				myTokens--;
+				return 0;
+			}
+			return Math.max(1, (long) Math.ceil((1 - myTokens) / myTokensPerNano));
+		}
+	}
+}
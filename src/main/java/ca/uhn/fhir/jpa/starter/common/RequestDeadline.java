@@ -0,0 +1,225 @@
+package ca.uhn.fhir.jpa.starter.common;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import javax.sql.DataSource;
+
+/**
+ * The point in time by which a FHIR request must be done, and the database statements running on its behalf.
+ * <p>
+ * While a request is processed, its deadline is bound to the processing thread. The data source returned by
+ * {@link #wrap(DataSource)} gives every statement created on that thread a query timeout of the time left, and
+ * refuses to create statements once the deadline has passed or the request was cancelled, which also ends loops
+ * loading resources batch by batch. {@link #cancel(Cause)} cancels the statements in flight, e.g. when the deadline
+ * passes in the middle of a query or when the client went away.
+ * <p>
+ * With SQL capture enabled, this data source wraps the one timing the statements (see
+ * {@link ca.uhn.fhir.jpa.starter.sql.SqlCaptureInterceptor}), so a cancelled statement is attributed to its request
+ * with the time it ran until it was cancelled. The <code>EXPLAIN</code> of a slow statement runs on the connection
+ * below this data source, and is not bounded by the deadline.
+ */
+public class RequestDeadline {
+
+	/**
+	 * The servlet request attribute holding the deadline of the request
+	 */
+	public static final String ATTRIBUTE_DEADLINE = RequestDeadline.class.getName() + "_DEADLINE";
+
+	private static final ThreadLocal<RequestDeadline> ourCurrent = new ThreadLocal<>();
+
+	public enum Cause {
+		DEADLINE,
+		DISCONNECT;
+
+		public String getTag() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private final long myDeadlineNanos;
+	private final long myTimeoutMillis;
+	private final Consumer<Cause> myOnCancel;
+	private final Set<Statement> myStatements = ConcurrentHashMap.newKeySet();
+	private final AtomicReference<Cause> myCancelled = new AtomicReference<>();
+
+	/**
+	 * @param theOnCancel invoked once, with the cause of the first cancellation
+	 */
+	public RequestDeadline(long theDeadlineNanos, long theTimeoutMillis, Consumer<Cause> theOnCancel) {
+		myDeadlineNanos = theDeadlineNanos;
+		myTimeoutMillis = theTimeoutMillis;
+		myOnCancel = theOnCancel;
+	}
+
+	/**
+	 * @return the deadline of the request processed by the current thread, or <code>null</code>
+	 */
+	public static RequestDeadline current() {
+		return ourCurrent.get();
+	}
+
+	/**
+	 * Binds the deadline to the current thread, or unbinds it with <code>null</code>
+	 */
+	public static void setCurrent(RequestDeadline theDeadline) {
+		if (theDeadline != null) {
+			ourCurrent.set(theDeadline);
+		} else {
+			ourCurrent.remove();
+		}
+	}
+
+	/**
+	 * Fails if the request processed by the current thread is past its deadline or was cancelled, for work that does
+	 * not go through the database on every step
+	 */
+	public static void checkCurrent() throws RequestDeadlineExceededException {
+		RequestDeadline deadline = current();
+		if (deadline != null) {
+			deadline.check();
+		}
+	}
+
+	public long getTimeoutMillis() {
+		return myTimeoutMillis;
+	}
+
+	public long getRemainingNanos() {
+		return myDeadlineNanos - System.nanoTime();
+	}
+
+	/**
+	 * @return the cause of the cancellation, or <code>null</code> if the request was not cancelled
+	 */
+	public Cause getCancelled() {
+		return myCancelled.get();
+	}
+
+	public void check() throws RequestDeadlineExceededException {
+		if (myCancelled.get() == null && getRemainingNanos() <= 0) {
+			cancel(Cause.DEADLINE);
+		}
+		if (myCancelled.get() != null) {
+			throw new RequestDeadlineExceededException(getCancellationMessage());
+		}
+	}
+
+	public String getCancellationMessage() {
+		return myCancelled.get() == Cause.DISCONNECT
+				? "Request cancelled because the client disconnected"
+				: "Request deadline of " + myTimeoutMillis + " ms exceeded";
+	}
+
+	/**
+	 * Cancels the statements in flight, and fails all further statements of the request
+	 */
+	public void cancel(Cause theCause) {
+		if (!myCancelled.compareAndSet(null, theCause)) {
+			return;
+		}
+		myOnCancel.accept(theCause);
+		for (Statement next : myStatements) {
+			try {
+				next.cancel();
+			} catch (SQLException e) {
+				// Already done or closed
+			}
+		}
+	}
+
+	/**
+	 * Cancels the request if any of its statements are running, so that a request that is past its deadline but no
+	 * longer uses the database is left to finish
+	 */
+	public void cancelInFlight(Cause theCause) {
+		if (!myStatements.isEmpty()) {
+			cancel(theCause);
+		}
+	}
+
+	private Statement track(Statement theStatement) throws SQLException {
+		long remainingMillis = TimeUnit.NANOSECONDS.toMillis(getRemainingNanos());
+		// Rounded up, as 0 means no timeout at all
+		theStatement.setQueryTimeout((int) Math.max(1, (remainingMillis + 999) / 1000));
+		myStatements.add(theStatement);
+
+		Class<?> type = theStatement instanceof CallableStatement
+				? CallableStatement.class
+				: theStatement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+		return (Statement) Proxy.newProxyInstance(
+				RequestDeadline.class.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+					if (method.getName().equals("close")) {
+						myStatements.remove(theStatement);
+					}
+					return invoke(theStatement, method, args);
+				});
+	}
+
+	/**
+	 * Wraps the data source of the persistence unit, so that the statements of requests with a deadline are bounded
+	 * by it
+	 */
+	public static DataSource wrap(DataSource theDataSource) {
+		return new DelegatingDataSource(theDataSource) {
+			@Override
+			public Connection getConnection() throws SQLException {
+				return wrap(super.getConnection());
+			}
+
+			@Override
+			public Connection getConnection(String theUsername, String thePassword) throws SQLException {
+				return wrap(super.getConnection(theUsername, thePassword));
+			}
+		};
+	}
+
+	private static Connection wrap(Connection theConnection) {
+		InvocationHandler handler = (proxy, method, args) -> {
+			String name = method.getName();
+			boolean createsStatement =
+					name.equals("createStatement") || name.equals("prepareStatement") || name.equals("prepareCall");
+			RequestDeadline deadline = createsStatement ? current() : null;
+			if (deadline == null) {
+				return invoke(theConnection, method, args);
+			}
+			try {
+				deadline.check();
+			} catch (RequestDeadlineExceededException e) {
+				throw new SQLTimeoutException(e.getMessage(), e);
+			}
+			return deadline.track((Statement) invoke(theConnection, method, args));
+		};
+		return (Connection) Proxy.newProxyInstance(
+				RequestDeadline.class.getClassLoader(), new Class<?>[] {Connection.class}, handler);
+	}
+
+	private static Object invoke(Object theTarget, Method theMethod, Object[] theArgs) throws Throwable {
+		try {
+			return theMethod.invoke(theTarget, theArgs);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	public static class RequestDeadlineExceededException extends RuntimeException {
+		public RequestDeadlineExceededException(String theMessage) {
+			super(theMessage);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package ca.uhn.fhir.jpa.starter.common;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.common.RequestDeadline.Cause;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Gives each FHIR request a deadline, after which the server stops working on it. The deadline is taken from a
+ * request header (e.g. <code>X-Request-Timeout: 30</code>, in seconds, capped at the configured maximum), from the
+ * timeout configured for the interaction (e.g. <code>search-type</code> or <code>transaction</code>), or from the
+ * default timeout, and counts from the moment the server started processing the request.
+ * <p>
+ * The database statements of the request are bounded by the deadline, see {@link RequestDeadline}. When it passes,
+ * the statements still running are cancelled, no further statements are run, and the request fails with
+ * <code>504 Gateway Timeout</code>. Requests whose client disconnected are cancelled the same way, as far as the
+ * disconnect is noticed while writing the response (see {@link ca.uhn.fhir.jpa.starter.search.NdjsonSearchStreamer}).
+ * Cancelled requests are counted as <code>fhir.server.request_deadline.cancelled</code>, tagged with the cause
+ * (<code>deadline</code> or <code>disconnect</code>).
+ * <p>
+ * Only work done on the thread processing the request is bounded. This class must be registered with the
+ * RestfulServer.
+ */
+@Interceptor
+public class RequestDeadlineInterceptor {
+
+	public static final String METRIC_CANCELLED = "fhir.server.request_deadline.cancelled";
+	private static final String USER_DATA_WATCHDOG = RequestDeadlineInterceptor.class.getName() + "_WATCHDOG";
+	/**
+	 * Plain decimal seconds only: an exponent, e.g. <code>1e2000000</code>, would have the value expanded digit by
+	 * digit
+	 */
+	private static final Pattern HEADER_VALUE = Pattern.compile("\\d{1,12}(?:\\.\\d{1,9})?");
+
+	private final String myHeader;
+	private final long myDefaultMillis;
+	private final long myMaxMillis;
+	private final Map<String, Long> myInteractionMillis = new HashMap<>();
+	private final Map<Cause, Counter> myCancelled = new EnumMap<>(Cause.class);
+	private final ScheduledThreadPoolExecutor myWatchdog;
+
+	/**
+	 * @param theDefaultMillis     the deadline of requests without a header or interaction timeout, 0 for none
+	 * @param theMaxMillis         the longest deadline a client can ask for with the header, 0 for no limit
+	 * @param theInteractionMillis timeouts keyed by interaction code, e.g. <code>search-type</code>
+	 */
+	public RequestDeadlineInterceptor(
+			String theHeader,
+			long theDefaultMillis,
+			long theMaxMillis,
+			Map<String, Long> theInteractionMillis,
+			MeterRegistry theMeterRegistry) {
+		myHeader = StringUtils.trimToNull(theHeader);
+		myDefaultMillis = theDefaultMillis;
+		myMaxMillis = theMaxMillis;
+		theInteractionMillis.forEach((key, value) -> myInteractionMillis.put(key.toLowerCase(Locale.ROOT), value));
+		for (Cause next : Cause.values()) {
+			myCancelled.put(
+					next,
+					Counter.builder(METRIC_CANCELLED)
+							.description("FHIR requests whose database work was cancelled")
+							.tag("cause", next.getTag())
+							.register(theMeterRegistry));
+		}
+		myWatchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread retVal = new Thread(runnable, "request-deadline-watchdog");
+			retVal.setDaemon(true);
+			return retVal;
+		});
+		myWatchdog.setRemoveOnCancelPolicy(true);
+	}
+
+	@PreDestroy
+	public void stop() {
+		myWatchdog.shutdownNow();
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean startDeadline(RequestDetails theRequestDetails, HttpServletRequest theServletRequest) {
+		long timeoutMillis = timeoutMillisOf(theRequestDetails);
+		if (timeoutMillis <= 0) {
+			return true;
+		}
+		long elapsedNanos = TimeUnit.MILLISECONDS.toNanos(
+				theRequestDetails.getRequestStopwatch().getMillis());
+		long deadlineNanos = System.nanoTime() - elapsedNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		RequestDeadline deadline = new RequestDeadline(
+				deadlineNanos, timeoutMillis, cause -> myCancelled.get(cause).increment());
+
+		ScheduledFuture<?> watchdog = myWatchdog.schedule(
+				() -> deadline.cancelInFlight(Cause.DEADLINE), deadline.getRemainingNanos(), TimeUnit.NANOSECONDS);
+		theRequestDetails.getUserData().put(USER_DATA_WATCHDOG, watchdog);
+		theServletRequest.setAttribute(RequestDeadline.ATTRIBUTE_DEADLINE, deadline);
+		RequestDeadline.setCurrent(deadline);
+		return true;
+	}
+
+	/**
+	 * Reports requests that failed because of their deadline as such, instead of as the database error it caused
+	 */
+	@Hook(Pointcut.SERVER_PRE_PROCESS_OUTGOING_EXCEPTION)
+	public BaseServerResponseException deadlineExceeded(RequestDetails theRequestDetails, Throwable theException) {
+		RequestDeadline deadline = RequestDeadline.current();
+		if (deadline == null) {
+			return null;
+		}
+		if (deadline.getCancelled() == null) {
+			if (deadline.getRemainingNanos() > 0) {
+				return null;
+			}
+			// The driver timed the statement out before the watchdog cancelled it
+			deadline.cancel(Cause.DEADLINE);
+		}
+		return new UnclassifiedServerFailureException(504, deadline.getCancellationMessage());
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void endDeadline(RequestDetails theRequestDetails, ServletRequestDetails theServletRequestDetails) {
+		ScheduledFuture<?> watchdog =
+				(ScheduledFuture<?>) theRequestDetails.getUserData().remove(USER_DATA_WATCHDOG);
+		if (watchdog != null) {
+			watchdog.cancel(false);
+		}
+		RequestDeadline.setCurrent(null);
+	}
+
+	private long timeoutMillisOf(RequestDetails theRequestDetails) {
+		long retVal = myDefaultMillis;
+		RestOperationTypeEnum interaction = theRequestDetails.getRestOperationType();
+		if (interaction != null) {
+			retVal = myInteractionMillis.getOrDefault(interaction.getCode(), retVal);
+		}
+
+		String header = myHeader != null ? StringUtils.trimToNull(theRequestDetails.getHeader(myHeader)) : null;
+		if (header != null) {
+			if (!HEADER_VALUE.matcher(header).matches()) {
+				throw new InvalidRequestException("Invalid " + myHeader + " header value: " + header);
+			}
+			long requestedMillis;
+			try {
+				requestedMillis = new BigDecimal(header)
+						.movePointRight(3)
+						.setScale(0, RoundingMode.DOWN)
+						.longValueExact();
+			} catch (ArithmeticException e) {
+				throw new InvalidRequestException("Invalid " + myHeader + " header value: " + header);
+			}
+			if (requestedMillis <= 0) {
+				throw new InvalidRequestException("Invalid " + myHeader + " header value: " + header);
+			}
+			retVal = myMaxMillis > 0 ? Math.min(requestedMillis, myMaxMillis) : requestedMillis;
+		}
+		return retVal;
+	}
+}
@@ -4,12 +4,13 @@ import ca.uhn.fhir.batch2.config.Batch2JobRegisterer;
 import ca.uhn.fhir.batch2.jobs.export.BulkDataExportProvider;
 import ca.uhn.fhir.batch2.jobs.imprt.BulkDataImportProvider;
 import ca.uhn.fhir.batch2.jobs.reindex.ReindexProvider;
+import ca.uhn.fhir.broker.api.IChannelConsumer;
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
-import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.IDaoRegistry;
 import ca.uhn.fhir.jpa.api.config.JpaStorageSettings;
 import ca.uhn.fhir.jpa.api.config.ThreadPoolFactoryConfig;
@@ -17,21 +18,25 @@ import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.binary.interceptor.BinaryStorageInterceptor;
 import ca.uhn.fhir.jpa.binary.provider.BinaryAccessProvider;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.config.util.HapiEntityManagerFactoryUtil;
 import ca.uhn.fhir.jpa.config.util.ResourceCountCacheUtil;
 import ca.uhn.fhir.jpa.dao.FulltextSearchSvcImpl;
 import ca.uhn.fhir.jpa.dao.IFulltextSearchSvc;
+import ca.uhn.fhir.jpa.dao.SearchBuilderFactory;
 import ca.uhn.fhir.jpa.dao.TransactionProcessor;
 import ca.uhn.fhir.jpa.dao.search.HSearchSortHelperImpl;
 import ca.uhn.fhir.jpa.dao.search.IHSearchSortHelper;
+import ca.uhn.fhir.jpa.dao.tx.IHapiTransactionService;
 import ca.uhn.fhir.jpa.delete.ThreadSafeResourceDeleterSvc;
 import ca.uhn.fhir.jpa.graphql.GraphQLProvider;
 import ca.uhn.fhir.jpa.interceptor.CascadingDeleteInterceptor;
 import ca.uhn.fhir.jpa.interceptor.UserRequestRetryVersionConflictsInterceptor;
 import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
 import ca.uhn.fhir.jpa.ips.provider.IpsOperationProvider;
+import ca.uhn.fhir.jpa.model.config.PartitionSettings;
 import ca.uhn.fhir.jpa.model.config.SubscriptionSettings;
-import ca.uhn.fhir.jpa.packages.AdditionalResourcesParser;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
 import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
 import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
 import ca.uhn.fhir.jpa.provider.DaoRegistryResourceSupportedSvc;
@@ -46,12 +51,30 @@ import ca.uhn.fhir.jpa.provider.dstu3.JpaConformanceProviderDstu3;
 import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
 import ca.uhn.fhir.jpa.search.IStaleSearchDeletingSvc;
 import ca.uhn.fhir.jpa.search.StaleSearchDeletingSvcImpl;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
 import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.annotations.OnCorsPresent;
 import ca.uhn.fhir.jpa.starter.annotations.OnImplementationGuidesPresent;
+import ca.uhn.fhir.jpa.starter.batch2.Batch2ConcurrencySvc;
+import ca.uhn.fhir.jpa.starter.batch2.Batch2MetricsInterceptor;
+import ca.uhn.fhir.jpa.starter.cache.EncodedCapabilityStatementCache;
+import ca.uhn.fhir.jpa.starter.cache.EncodedResourceCache;
+import ca.uhn.fhir.jpa.starter.cache.EncodedSearchCache;
 import ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory;
+import ca.uhn.fhir.jpa.starter.common.validation.ParallelBundleValidator;
+import ca.uhn.fhir.jpa.starter.common.validation.SampledResponseValidatingInterceptor;
+import ca.uhn.fhir.jpa.starter.common.validation.StructureDefinitionSnapshotSvc;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidationResultCache;
+import ca.uhn.fhir.jpa.starter.ig.AdditionalResourceLoader;
 import ca.uhn.fhir.jpa.starter.ig.ExtendedPackageInstallationSpec;
 import ca.uhn.fhir.jpa.starter.ig.IImplementationGuideOperationProvider;
+import ca.uhn.fhir.jpa.starter.ig.ImplementationGuideInstallLedger;
+import ca.uhn.fhir.jpa.starter.ig.ImplementationGuideInstaller;
+import ca.uhn.fhir.jpa.starter.search.DirectSearchSvc;
+import ca.uhn.fhir.jpa.starter.search.KeysetPagingInterceptor;
+import ca.uhn.fhir.jpa.starter.search.NdjsonSearchStreamer;
+import ca.uhn.fhir.jpa.starter.sql.SqlCaptureInterceptor;
+import ca.uhn.fhir.jpa.starter.terminology.RemoteValueSetSnapshotSvc;
 import ca.uhn.fhir.jpa.starter.util.EnvironmentHelper;
 import ca.uhn.fhir.jpa.subscription.util.SubscriptionDebugLogInterceptor;
 import ca.uhn.fhir.jpa.util.ResourceCountCache;
@@ -59,7 +82,6 @@ import ca.uhn.fhir.mdm.provider.MdmProviderLoader;
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.narrative2.NullNarrativeGenerator;
 import ca.uhn.fhir.rest.api.IResourceSupportedSvc;
-import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
 import ca.uhn.fhir.rest.openapi.OpenApiInterceptor;
 import ca.uhn.fhir.rest.server.ApacheProxyAddressStrategy;
 import ca.uhn.fhir.rest.server.ETagSupportEnum;
@@ -78,14 +100,19 @@ import ca.uhn.fhir.rest.server.util.ISearchParamRegistry;
 import ca.uhn.fhir.validation.IValidatorModule;
 import ca.uhn.fhir.validation.ResultSeverityEnum;
 import com.google.common.base.Strings;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.persistence.EntityManagerFactory;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -93,13 +120,16 @@ import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.context.annotation.Primary;
+import org.springframework.core.Ordered;
 import org.springframework.core.env.ConfigurableEnvironment;
 import org.springframework.http.HttpHeaders;
 import org.springframework.orm.jpa.JpaTransactionManager;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.web.cors.CorsConfiguration;
 
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.*;
 import javax.sql.DataSource;
 
@@ -154,13 +184,29 @@ public class StarterJpaConfig {
 			DataSource myDataSource,
 			ConfigurableListableBeanFactory myConfigurableListableBeanFactory,
 			FhirContext theFhirContext,
-			JpaStorageSettings theStorageSettings) {
+			JpaStorageSettings theStorageSettings,
+			AppProperties appProperties,
+			Optional<SqlCaptureInterceptor> sqlCaptureInterceptor) {
 		LocalContainerEntityManagerFactoryBean retVal = HapiEntityManagerFactoryUtil.newEntityManagerFactory(
 				myConfigurableListableBeanFactory, theFhirContext, theStorageSettings);
 		retVal.setPersistenceUnitName("HAPI_PU");
+		// The packages scanned by HAPI, and the entities of the starter itself
+		retVal.setPackagesToScan(
+				"ca.uhn.fhir.jpa.model.entity",
+				"ca.uhn.fhir.jpa.entity",
+				ImplementationGuideInstallLedger.ENTITY_PACKAGE);
 
 		try {
-			retVal.setDataSource(myDataSource);
+			DataSource dataSource = myDataSource;
+			if (sqlCaptureInterceptor.isPresent()) {
+				dataSource = sqlCaptureInterceptor.get().wrap(dataSource);
+			}
+			// The deadline wraps the timing data source, so statements refused by the deadline are not timed, and
+			// statements it cancels are timed (and may be captured as slow) up to their cancellation
+			if (appProperties.getRequest_deadline().getEnabled()) {
+				dataSource = RequestDeadline.wrap(dataSource);
+			}
+			retVal.setDataSource(dataSource);
 		} catch (Exception e) {
 			throw new ConfigurationException("Could not set the data source due to a configuration issue", e);
 		}
@@ -190,6 +236,244 @@ public class StarterJpaConfig {
 	}
 
 	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "validation.result_cache_enabled", havingValue = "true")
+	public ValidationResultCache validationResultCache(
+			AppProperties appProperties,
+			MeterRegistry meterRegistry,
+			IInterceptorService interceptorService,
+			Optional<RemoteValueSetSnapshotSvc> remoteValueSetSnapshotSvc) {
+		ValidationResultCache retVal = new ValidationResultCache(appProperties.getValidation(), meterRegistry);
+		interceptorService.registerInterceptor(retVal);
+		remoteValueSetSnapshotSvc.ifPresent(
+				svc -> svc.addChangeListener(() -> retVal.invalidateAll("ValueSetSnapshot")));
+		return retVal;
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "validation.bundle_parallel_enabled", havingValue = "true")
+	public ParallelBundleValidator parallelBundleValidator(AppProperties appProperties) {
+		return new ParallelBundleValidator(
+				appProperties.getValidation().getBundle_parallel_threads(),
+				appProperties.getValidation().getBundle_parallel_min_entries());
+	}
+
+	@Bean
+	@ConditionalOnProperty(
+			prefix = "hapi.fhir",
+			name = "validation.snapshot_pregeneration_enabled",
+			havingValue = "true")
+	public StructureDefinitionSnapshotSvc structureDefinitionSnapshotSvc(
+			FhirContext fhirContext,
+			IValidationSupport validationSupport,
+			DaoRegistry daoRegistry,
+			IInterceptorService interceptorService,
+			ValidationSupportChain validationSupportChain,
+			AppProperties appProperties) {
+		StructureDefinitionSnapshotSvc retVal = new StructureDefinitionSnapshotSvc(
+				fhirContext,
+				validationSupport,
+				daoRegistry,
+				appProperties.getValidation().getSnapshot_persist_existing());
+		interceptorService.registerInterceptor(retVal);
+		validationSupportChain.addValidationSupport(0, retVal.getValidationSupport());
+		return retVal;
+	}
+
+	@Bean
+	@ConditionalOnExpression(
+			"${hapi.fhir.validation.responses_enabled:false} && ${hapi.fhir.validation.responses_async:false}")
+	public SampledResponseValidatingInterceptor sampledResponseValidatingInterceptor(
+			FhirContext fhirContext,
+			IValidatorModule validatorModule,
+			IValidationSupport validationSupport,
+			Optional<ValidationResultCache> validationResultCache,
+			AppProperties appProperties,
+			MeterRegistry meterRegistry) {
+		IValidatorModule module =
+				validationResultCache.map(cache -> cache.wrap(validatorModule)).orElse(validatorModule);
+		return new SampledResponseValidatingInterceptor(
+				fhirContext, module, validationSupport, appProperties.getValidation(), meterRegistry);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "batch2_metrics_enabled", havingValue = "true")
+	public Batch2MetricsInterceptor batch2MetricsInterceptor(
+			MeterRegistry meterRegistry, IInterceptorService interceptorService) {
+		Batch2MetricsInterceptor retVal = new Batch2MetricsInterceptor(meterRegistry);
+		interceptorService.registerInterceptor(retVal);
+		return retVal;
+	}
+
+	@Bean
+	public Batch2ConcurrencySvc batch2ConcurrencySvc(
+			@Qualifier("batch2ProcessingChannelConsumer") IChannelConsumer<?> batch2ProcessingChannelConsumer,
+			MeterRegistry meterRegistry) {
+		return new Batch2ConcurrencySvc(batch2ProcessingChannelConsumer, meterRegistry);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "interaction_metrics_enabled", havingValue = "true")
+	public InteractionMetricsInterceptor interactionMetricsInterceptor(MeterRegistry meterRegistry) {
+		return new InteractionMetricsInterceptor(meterRegistry);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "resource_cache_enabled", havingValue = "true")
+	public EncodedResourceCache encodedResourceCache(
+			AppProperties appProperties, MeterRegistry meterRegistry, IInterceptorService interceptorService) {
+		EncodedResourceCache retVal = new EncodedResourceCache(
+				appProperties.getResource_cache_max_bytes(),
+				appProperties.getResource_cache_ttl_millis(),
+				Set.copyOf(appProperties.getResource_cache_resource_types()),
+				meterRegistry,
+				interceptorService);
+		interceptorService.registerInterceptor(retVal.getInvalidator());
+		return retVal;
+	}
+
+	@Bean
+	@ConditionalOnExpression(
+			"${hapi.fhir.search_cache_enabled:false} && ${hapi.fhir.reuse_cached_search_results_millis:60000} > 0")
+	public EncodedSearchCache encodedSearchCache(
+			AppProperties appProperties, MeterRegistry meterRegistry, IInterceptorService interceptorService) {
+		EncodedSearchCache retVal = new EncodedSearchCache(
+				appProperties.getSearch_cache_max_bytes(),
+				appProperties.getReuse_cached_search_results_millis(),
+				meterRegistry,
+				interceptorService);
+		interceptorService.registerInterceptor(retVal.getInvalidator());
+		return retVal;
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "metadata_cache_enabled", havingValue = "true")
+	public EncodedCapabilityStatementCache encodedCapabilityStatementCache(
+			ISearchParamRegistry searchParamRegistry,
+			DaoRegistry daoRegistry,
+			IResourceChangeListenerRegistry resourceChangeListenerRegistry,
+			MeterRegistry meterRegistry) {
+		return new EncodedCapabilityStatementCache(
+				searchParamRegistry, daoRegistry, resourceChangeListenerRegistry, meterRegistry);
+	}
+
+	@Bean
+	@ConditionalOnExpression(
+			"${hapi.fhir.ndjson_search_enabled:false} || ${hapi.fhir.keyset_paging_enabled:false}")
+	public DirectSearchSvc directSearchSvc(
+			FhirContext fhirContext,
+			DaoRegistry daoRegistry,
+			MatchUrlService matchUrlService,
+			SearchBuilderFactory<JpaPid> searchBuilderFactory,
+			IHapiTransactionService transactionService,
+			IInterceptorService interceptorService) {
+		return new DirectSearchSvc(
+				fhirContext,
+				daoRegistry,
+				matchUrlService,
+				searchBuilderFactory,
+				transactionService,
+				interceptorService);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "ndjson_search_enabled", havingValue = "true")
+	public NdjsonSearchStreamer ndjsonSearchStreamer(
+			AppProperties appProperties, FhirContext fhirContext, DirectSearchSvc directSearchSvc) {
+		return new NdjsonSearchStreamer(fhirContext, directSearchSvc, appProperties.getNdjson_search_batch_size());
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "keyset_paging_enabled", havingValue = "true")
+	public KeysetPagingInterceptor keysetPagingInterceptor(
+			AppProperties appProperties, FhirContext fhirContext, DirectSearchSvc directSearchSvc) {
+		return new KeysetPagingInterceptor(
+				fhirContext,
+				directSearchSvc,
+				appProperties.getDefault_page_size(),
+				appProperties.getMax_page_size());
+	}
+
+	@Bean
+	public TrafficClassifier trafficClassifier(AppProperties appProperties) {
+		AppProperties.RateLimit rateLimit = appProperties.getRate_limit();
+		return new TrafficClassifier(
+				rateLimit.getClient_header(),
+				rateLimit.getTrusted_proxies(),
+				rateLimit.getToken_subject_enabled(),
+				rateLimit.getBatch_clients(),
+				rateLimit.getBatch_operations());
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.rate_limit", name = "enabled", havingValue = "true")
+	public RateLimitInterceptor rateLimitInterceptor(
+			AppProperties appProperties, TrafficClassifier trafficClassifier, MeterRegistry meterRegistry) {
+		AppProperties.RateLimit rateLimit = appProperties.getRate_limit();
+		return new RateLimitInterceptor(
+				trafficClassifier,
+				rateLimit.getInteractive_requests_per_second(),
+				rateLimit.getInteractive_burst(),
+				rateLimit.getBatch_requests_per_second(),
+				rateLimit.getBatch_burst(),
+				meterRegistry);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.sql_capture", name = "enabled", havingValue = "true")
+	public SqlCaptureInterceptor sqlCaptureInterceptor(AppProperties appProperties, MeterRegistry meterRegistry) {
+		AppProperties.SqlCapture sqlCapture = appProperties.getSql_capture();
+		return new SqlCaptureInterceptor(
+				sqlCapture.getSlow_threshold_millis(),
+				sqlCapture.getMax_entries(),
+				sqlCapture.getExplain_enabled(),
+				meterRegistry);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.request_deadline", name = "enabled", havingValue = "true")
+	public RequestDeadlineInterceptor requestDeadlineInterceptor(
+			AppProperties appProperties, MeterRegistry meterRegistry) {
+		AppProperties.RequestDeadline requestDeadline = appProperties.getRequest_deadline();
+		return new RequestDeadlineInterceptor(
+				requestDeadline.getHeader(),
+				requestDeadline.getDefault_millis(),
+				requestDeadline.getMax_millis(),
+				requestDeadline.getInteraction_millis(),
+				meterRegistry);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir", name = "admission_control_enabled", havingValue = "true")
+	public FilterRegistrationBean<AdmissionControlFilter> admissionControlFilter(
+			AppProperties appProperties,
+			DataSource dataSource,
+			TrafficClassifier trafficClassifier,
+			MeterRegistry meterRegistry)
+			throws SQLException {
+		int permits = appProperties.getAdmission_control_permits();
+		if (permits <= 0) {
+			permits = dataSource.isWrapperFor(HikariDataSource.class)
+					? dataSource.unwrap(HikariDataSource.class).getMaximumPoolSize()
+					: 10;
+		}
+		ourLog.info("Admitting {} concurrent FHIR requests", permits);
+
+		AdmissionControlFilter filter = new AdmissionControlFilter(
+				permits, appProperties.getAdmission_control_max_wait_millis(), trafficClassifier, meterRegistry);
+		FilterRegistrationBean<AdmissionControlFilter> retVal = new FilterRegistrationBean<>(filter);
+		retVal.addUrlPatterns("/fhir/*");
+		retVal.setAsyncSupported(true);
+		// Runs right before the FHIR servlet, after the filters that set up the request
+		retVal.setOrder(Ordered.LOWEST_PRECEDENCE);
+		return retVal;
+	}
+
+	@Bean
+	@ConditionalOnProperty(
+			prefix = "hapi.fhir.logger",
+			name = "async_enabled",
+			havingValue = "false",
+			matchIfMissing = true)
 	public LoggingInterceptor loggingInterceptor(AppProperties appProperties) {
 
 		/*
@@ -204,6 +488,14 @@ public class StarterJpaConfig {
 		return loggingInterceptor;
 	}
 
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.logger", name = "async_enabled", havingValue = "true")
+	public AccessLogInterceptor accessLogInterceptor(AppProperties appProperties) {
+		AppProperties.Logger logger = appProperties.getLogger();
+		return new AccessLogInterceptor(
+				logger.getName(), logger.getAsync_buffer_size(), logger.getSample_rate(), logger.getLog_exceptions());
+	}
+
 	@Bean("packageInstaller")
 	@Primary
 	@Conditional(OnImplementationGuidesPresent.class)
@@ -213,15 +505,17 @@ public class StarterJpaConfig {
 			Batch2JobRegisterer batch2JobRegisterer,
 			FhirContext fhirContext,
 			TransactionProcessor transactionProcessor,
-			IHapiPackageCacheManager iHapiPackageCacheManager)
+			PartitionSettings partitionSettings,
+			IHapiPackageCacheManager iHapiPackageCacheManager,
+			EntityManagerFactory entityManagerFactory,
+			PlatformTransactionManager transactionManager)
 			throws IOException {
 
 		batch2JobRegisterer.start();
 
 		if (appProperties.getImplementationGuides() != null) {
 			Map<String, ExtendedPackageInstallationSpec> guides = appProperties.getImplementationGuides();
-			for (Map.Entry<String, ExtendedPackageInstallationSpec> guidesEntry : guides.entrySet()) {
-				ExtendedPackageInstallationSpec packageInstallationSpec = guidesEntry.getValue();
+			for (ExtendedPackageInstallationSpec packageInstallationSpec : guides.values()) {
 				if (appProperties.getInstall_transitive_ig_dependencies()) {
 
 					packageInstallationSpec
@@ -230,23 +524,22 @@ public class StarterJpaConfig {
 							.addDependencyExclude("hl7.fhir.r4.core")
 							.addDependencyExclude("hl7.fhir.r5.core");
 				}
-
-				packageInstallerSvc.install(packageInstallationSpec);
-
-				Set<String> extraResources = packageInstallationSpec.getAdditionalResourceFolders();
-				packageInstallationSpec.setPackageContents(iHapiPackageCacheManager
-						.loadPackageContents(packageInstallationSpec.getName(), packageInstallationSpec.getVersion())
-						.getBytes());
-
-				if (extraResources != null && !extraResources.isEmpty()) {
-					IBaseBundle transaction = AdditionalResourcesParser.bundleAdditionalResources(
-							extraResources, packageInstallationSpec, fhirContext);
-					transactionProcessor.transaction(
-							new SystemRequestDetails().setRequestPartitionId(RequestPartitionId.defaultPartition()),
-							transaction,
-							false);
-				}
 			}
+
+			// Blocks until every guide is installed, so the server does not report ready with a partial set of IGs
+			new ImplementationGuideInstaller(
+							packageInstallerSvc,
+							iHapiPackageCacheManager,
+							new AdditionalResourceLoader(
+									fhirContext,
+									transactionProcessor,
+									partitionSettings,
+									appProperties.getIg_additional_resources_chunk_size(),
+									appProperties.getIg_additional_resources_parallelism()),
+							appProperties.getIg_install_parallelism(),
+							new ImplementationGuideInstallLedger(entityManagerFactory, transactionManager),
+							appProperties.getIg_install_force())
+					.installAll(guides);
 		}
 		return packageInstallerSvc;
 	}
@@ -294,7 +587,17 @@ public class StarterJpaConfig {
 			ISearchParamRegistry searchParamRegistry,
 			IValidationSupport theValidationSupport,
 			DatabaseBackedPagingProvider databaseBackedPagingProvider,
-			LoggingInterceptor loggingInterceptor,
+			Optional<LoggingInterceptor> loggingInterceptor,
+			Optional<AccessLogInterceptor> accessLogInterceptor,
+			Optional<InteractionMetricsInterceptor> interactionMetricsInterceptor,
+			Optional<RateLimitInterceptor> rateLimitInterceptor,
+			Optional<RequestDeadlineInterceptor> requestDeadlineInterceptor,
+			Optional<SqlCaptureInterceptor> sqlCaptureInterceptor,
+			Optional<EncodedResourceCache> encodedResourceCache,
+			Optional<EncodedSearchCache> encodedSearchCache,
+			Optional<EncodedCapabilityStatementCache> encodedCapabilityStatementCache,
+			Optional<NdjsonSearchStreamer> ndjsonSearchStreamer,
+			Optional<KeysetPagingInterceptor> keysetPagingInterceptor,
 			Optional<TerminologyUploaderProvider> terminologyUploaderProvider,
 			Optional<SubscriptionTriggeringProvider> subscriptionTriggeringProvider,
 			Optional<CorsInterceptor> corsInterceptor,
@@ -302,6 +605,9 @@ public class StarterJpaConfig {
 			Optional<BinaryAccessProvider> binaryAccessProvider,
 			BinaryStorageInterceptor binaryStorageInterceptor,
 			IValidatorModule validatorModule,
+			Optional<ValidationResultCache> validationResultCache,
+			Optional<ParallelBundleValidator> parallelBundleValidator,
+			Optional<SampledResponseValidatingInterceptor> sampledResponseValidatingInterceptor,
 			Optional<GraphQLProvider> graphQLProvider,
 			BulkDataExportProvider bulkDataExportProvider,
 			BulkDataImportProvider bulkDataImportProvider,
@@ -374,7 +680,17 @@ public class StarterJpaConfig {
 			fhirServer.registerInterceptor(new FhirPathFilterInterceptor());
 		}
 
-		fhirServer.registerInterceptor(loggingInterceptor);
+		loggingInterceptor.ifPresent(fhirServer::registerInterceptor);
+		accessLogInterceptor.ifPresent(fhirServer::registerInterceptor);
+		interactionMetricsInterceptor.ifPresent(fhirServer::registerInterceptor);
+		rateLimitInterceptor.ifPresent(fhirServer::registerInterceptor);
+		requestDeadlineInterceptor.ifPresent(fhirServer::registerInterceptor);
+		sqlCaptureInterceptor.ifPresent(fhirServer::registerInterceptor);
+		encodedResourceCache.ifPresent(fhirServer::registerInterceptor);
+		encodedSearchCache.ifPresent(fhirServer::registerInterceptor);
+		encodedCapabilityStatementCache.ifPresent(fhirServer::registerInterceptor);
+		ndjsonSearchStreamer.ifPresent(fhirServer::registerInterceptor);
+		keysetPagingInterceptor.ifPresent(fhirServer::registerInterceptor);
 
 		implementationGuideOperationProvider.ifPresent(fhirServer::registerProvider);
 
@@ -438,13 +754,21 @@ public class StarterJpaConfig {
 		// Validation
 
 		if (validatorModule != null) {
+			if (validationResultCache.isPresent()) {
+				validatorModule = validationResultCache.get().wrap(validatorModule);
+			}
+			if (parallelBundleValidator.isPresent()) {
+				validatorModule = parallelBundleValidator.get().wrap(validatorModule);
+			}
 			if (appProperties.getValidation().getRequests_enabled()) {
 				RequestValidatingInterceptor interceptor = new RequestValidatingInterceptor();
 				interceptor.setFailOnSeverity(ResultSeverityEnum.ERROR);
 				interceptor.setValidatorModules(Collections.singletonList(validatorModule));
 				fhirServer.registerInterceptor(interceptor);
 			}
-			if (appProperties.getValidation().getResponses_enabled()) {
+			if (sampledResponseValidatingInterceptor.isPresent()) {
+				fhirServer.registerInterceptor(sampledResponseValidatingInterceptor.get());
+			} else if (appProperties.getValidation().getResponses_enabled()) {
 				ResponseValidatingInterceptor interceptor = new ResponseValidatingInterceptor();
 				interceptor.setFailOnSeverity(ResultSeverityEnum.ERROR);
 				interceptor.setValidatorModules(Collections.singletonList(validatorModule));
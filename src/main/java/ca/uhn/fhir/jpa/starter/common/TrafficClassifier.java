@@ -0,0 +1,205 @@
+package ca.uhn.fhir.jpa.starter.common;
+
+import ca.uhn.fhir.rest.api.Constants;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Strings;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Identifies the client behind a FHIR request and whether the request is interactive or batch traffic. The
+ * classification is shared by {@link RateLimitInterceptor} and {@link AdmissionControlFilter}.
+ * <p>
+ * The client is identified, in this order, by the configured client header, by the <code>sub</code> claim of a
+ * bearer JWT if enabled, and by the remote address. Clients must not be able to choose their identity freely, or they
+ * escape their limits by sending each request under a new one:
+ * <ul>
+ * <li><code>X-Forwarded-For</code> is only honoured on requests from one of the trusted proxies, and the right-most
+ * address that is not a trusted proxy is used, as the addresses left of it are supplied by the client.</li>
+ * <li>Any other client header (e.g. an API key header) is used as is, so it must be set by a gateway in front of the
+ * server that replaces the value sent by the client.</li>
+ * <li>The token is not verified here, so the subject may only be used when the gateway verifies tokens before passing
+ * requests on.</li>
+ * </ul>
+ * <p>
+ * Requests are batch traffic when they come from one of the configured batch clients, invoke one of the configured
+ * batch operations (e.g. <code>$export</code>), or ask to be processed asynchronously with
+ * <code>Prefer: respond-async</code>. All other requests are interactive. The <code>Prefer</code> header only lets
+ * clients move their requests to the batch class, so clients that must be held to the batch limits have to be
+ * configured as batch clients.
+ */
+public class TrafficClassifier {
+
+	private static final String ATTRIBUTE_CLASSIFICATION = TrafficClassifier.class.getName() + "_CLASSIFICATION";
+	private static final String BEARER_PREFIX = "bearer ";
+
+	public enum TrafficClass {
+		INTERACTIVE,
+		BATCH;
+
+		public String getTag() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private final ObjectMapper myObjectMapper = new ObjectMapper();
+	private final String myClientHeader;
+	private final boolean myForwardedFor;
+	private final Set<String> myTrustedProxies;
+	private final boolean myTokenSubjectEnabled;
+	private final Set<String> myBatchClients;
+	private final Set<String> myBatchOperations;
+
+	/**
+	 * @param theClientHeader    the header identifying the client, or <code>null</code>
+	 * @param theTrustedProxies  addresses of the proxies whose <code>X-Forwarded-For</code> header is trusted
+	 * @param theBatchOperations operation names, with or without the leading <code>$</code>
+	 */
+	public TrafficClassifier(
+			String theClientHeader,
+			Collection<String> theTrustedProxies,
+			boolean theTokenSubjectEnabled,
+			Collection<String> theBatchClients,
+			Collection<String> theBatchOperations) {
+		myClientHeader = StringUtils.trimToNull(theClientHeader);
+		myForwardedFor = Constants.HEADER_X_FORWARDED_FOR.equalsIgnoreCase(myClientHeader);
+		myTrustedProxies = Set.copyOf(theTrustedProxies);
+		myTokenSubjectEnabled = theTokenSubjectEnabled;
+		myBatchClients = Set.copyOf(theBatchClients);
+		myBatchOperations = Set.copyOf(theBatchOperations.stream()
+				.map(next -> next.startsWith("$") ? next : "$" + next)
+				.toList());
+	}
+
+	/**
+	 * Classifies the request, or returns the classification already made for it
+	 */
+	public Classification classify(HttpServletRequest theRequest) {
+		Classification retVal = (Classification) theRequest.getAttribute(ATTRIBUTE_CLASSIFICATION);
+		if (retVal == null) {
+			String clientId = clientIdOf(theRequest);
+			retVal = new Classification(clientId, trafficClassOf(theRequest, clientId));
+			theRequest.setAttribute(ATTRIBUTE_CLASSIFICATION, retVal);
+		}
+		return retVal;
+	}
+
+	private String clientIdOf(HttpServletRequest theRequest) {
+		if (myForwardedFor) {
+			return forwardedForOf(theRequest);
+		}
+		if (myClientHeader != null) {
+			String value = StringUtils.trimToNull(theRequest.getHeader(myClientHeader));
+			if (value != null) {
+				return value;
+			}
+		}
+		if (myTokenSubjectEnabled) {
+			String subject = tokenSubjectOf(theRequest.getHeader(Constants.HEADER_AUTHORIZATION));
+			if (subject != null) {
+				return subject;
+			}
+		}
+		return theRequest.getRemoteAddr();
+	}
+
+	/**
+	 * @return the right-most address of the <code>X-Forwarded-For</code> chain that is not a trusted proxy, or the
+	 * remote address if the request did not come through a trusted proxy
+	 */
+	private String forwardedForOf(HttpServletRequest theRequest) {
+		String retVal = theRequest.getRemoteAddr();
+		if (!myTrustedProxies.contains(retVal)) {
+			return retVal;
+		}
+		Enumeration<String> headers = theRequest.getHeaders(Constants.HEADER_X_FORWARDED_FOR);
+		List<String> chain = new ArrayList<>();
+		while (headers != null && headers.hasMoreElements()) {
+			for (String next : headers.nextElement().split(",")) {
+				if (StringUtils.isNotBlank(next)) {
+					chain.add(next.trim());
+				}
+			}
+		}
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			retVal = chain.get(i);
+			if (!myTrustedProxies.contains(retVal)) {
+				break;
+			}
+		}
+		return retVal;
+	}
+
+	private String tokenSubjectOf(String theAuthorization) {
+		if (theAuthorization == null
+				|| !theAuthorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+			return null;
+		}
+		String[] parts = theAuthorization.substring(BEARER_PREFIX.length()).trim().split("\\.");
+		if (parts.length != 3) {
+			// Not a JWT, e.g. an opaque access token
+			return null;
+		}
+		try {
+			JsonNode claims = myObjectMapper.readTree(
+					new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8));
+			JsonNode subject = claims.get("sub");
+			return subject != null && subject.isTextual() ? subject.asText() : null;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether the request reads the CapabilityStatement, at <code>/metadata</code> or, with URL based tenants,
+	 * at <code>/{tenant}/metadata</code>. These requests are cheap and are never limited or queued.
+	 */
+	public static boolean isMetadataRequest(HttpServletRequest theRequest) {
+		String path = Strings.CS.removeEnd(StringUtils.defaultString(theRequest.getPathInfo()), "/");
+		return path.endsWith("/metadata") && StringUtils.countMatches(path, '/') <= 2;
+	}
+
+	private TrafficClass trafficClassOf(HttpServletRequest theRequest, String theClientId) {
+		if (myBatchClients.contains(theClientId)) {
+			return TrafficClass.BATCH;
+		}
+		String prefer = theRequest.getHeader(Constants.HEADER_PREFER);
+		if (prefer != null && prefer.contains(Constants.HEADER_PREFER_RESPOND_ASYNC)) {
+			return TrafficClass.BATCH;
+		}
+		String operation =
+				StringUtils.substringAfterLast("/" + StringUtils.defaultString(theRequest.getPathInfo()), "/");
+		if (operation.startsWith("$") && myBatchOperations.contains(operation)) {
+			return TrafficClass.BATCH;
+		}
+		return TrafficClass.INTERACTIVE;
+	}
+
+	public static class Classification {
+		private final String myClientId;
+		private final TrafficClass myTrafficClass;
+
+		private Classification(String theClientId, TrafficClass theTrafficClass) {
+			myClientId = theClientId;
+			myTrafficClass = theTrafficClass;
+		}
+
+		public String getClientId() {
+			return myClientId;
+		}
+
+		public TrafficClass getTrafficClass() {
+			return myTrafficClass;
+		}
+	}
+}
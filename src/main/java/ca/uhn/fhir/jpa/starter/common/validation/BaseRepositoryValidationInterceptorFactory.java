@@ -0,0 +1,145 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingRuleBuilder;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.FhirTerser;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Builds a {@link RepositoryValidatingInterceptor} requiring every stored resource to conform to one of the
+ * <code>kind=resource</code> StructureDefinitions stored on this server.
+ * <p>
+ * StructureDefinitions are read page by page and only their type and canonical URL are kept, so that memory
+ * use does not grow with the size of the installed IGs. The rules are rebuilt whenever a StructureDefinition
+ * changes and swapped into the running interceptor, so new profiles apply without a restart.
+ */
+public abstract class BaseRepositoryValidationInterceptorFactory
+		implements IRepositoryValidationInterceptorFactory, IResourceChangeListener {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(BaseRepositoryValidationInterceptorFactory.class);
+	private static final int PAGE_SIZE = 200;
+	private static final long REFRESH_INTERVAL_MILLIS = 10000;
+
+	protected final FhirContext fhirContext;
+	private final ObjectProvider<RepositoryValidatingRuleBuilder> repositoryValidatingRuleBuilderProvider;
+	private final IFhirResourceDao<?> structureDefinitionResourceProvider;
+	private final IResourceChangeListenerRegistry resourceChangeListenerRegistry;
+	private ReloadableRepositoryValidatingInterceptor storedStructureDefinitionInterceptor;
+
+	protected BaseRepositoryValidationInterceptorFactory(
+			ObjectProvider<RepositoryValidatingRuleBuilder> repositoryValidatingRuleBuilderProvider,
+			DaoRegistry daoRegistry,
+			IResourceChangeListenerRegistry resourceChangeListenerRegistry) {
+		this.repositoryValidatingRuleBuilderProvider = repositoryValidatingRuleBuilderProvider;
+		this.fhirContext = daoRegistry.getSystemDao().getContext();
+		this.structureDefinitionResourceProvider = daoRegistry.getResourceDao("StructureDefinition");
+		this.resourceChangeListenerRegistry = resourceChangeListenerRegistry;
+	}
+
+	/**
+	 * Rule builders accumulate rules, so every build needs a fresh one
+	 */
+	protected RepositoryValidatingRuleBuilder newRuleBuilder() {
+		return repositoryValidatingRuleBuilderProvider.getObject();
+	}
+
+	@Override
+	public synchronized RepositoryValidatingInterceptor buildUsingStoredStructureDefinitions() {
+		if (storedStructureDefinitionInterceptor == null) {
+			storedStructureDefinitionInterceptor =
+					new ReloadableRepositoryValidatingInterceptor(fhirContext, buildStoredStructureDefinitionRules());
+			resourceChangeListenerRegistry.registerResourceResourceChangeListener(
+					"StructureDefinition", newStructureDefinitionSearch(), this, REFRESH_INTERVAL_MILLIS);
+		}
+		return storedStructureDefinitionInterceptor;
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		// The initial rules were built synchronously when the interceptor was created
+	}
+
+	@Override
+	public synchronized void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		if (storedStructureDefinitionInterceptor != null) {
+			storedStructureDefinitionInterceptor.setRules(buildStoredStructureDefinitionRules());
+		}
+	}
+
+	@PreDestroy
+	public void unregisterResourceChangeListener() {
+		resourceChangeListenerRegistry.unregisterResourceResourceChangeListener(this);
+	}
+
+	private List<IRepositoryValidatingRule> buildStoredStructureDefinitionRules() {
+		long start = System.currentTimeMillis();
+		Map<String, Set<String>> profileUrlsByType = new TreeMap<>();
+		FhirTerser terser = fhirContext.newTerser();
+
+		// A persisted search is paged through, so only one page of StructureDefinitions is loaded at a time. It must
+		// not reuse the cached results of an earlier build, which would miss the change being handled.
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.addHeader(Constants.HEADER_CACHE_CONTROL, Constants.CACHE_CONTROL_NO_CACHE);
+		SearchParameterMap map = newStructureDefinitionSearch();
+		map.setLoadSynchronous(false);
+		map.setSort(new SortSpec("_id"));
+		IBundleProvider results = structureDefinitionResourceProvider.search(map, requestDetails);
+		for (int offset = 0; ; offset += PAGE_SIZE) {
+			List<IBaseResource> page = results.getResources(offset, offset + PAGE_SIZE);
+			for (IBaseResource structureDefinition : page) {
+				String type = terser.getSinglePrimitiveValueOrNull(structureDefinition, "type");
+				String url = terser.getSinglePrimitiveValueOrNull(structureDefinition, "url");
+				if (type != null && url != null) {
+					profileUrlsByType.computeIfAbsent(type, t -> new TreeSet<>()).add(url);
+				}
+			}
+			if (page.size() < PAGE_SIZE) {
+				break;
+			}
+		}
+
+		RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder = newRuleBuilder();
+		profileUrlsByType.forEach((key, value) -> repositoryValidatingRuleBuilder
+				.forResourcesOfType(key)
+				.requireAtLeastOneProfileOf(value.toArray(String[]::new))
+				.and()
+				.requireValidationToDeclaredProfiles());
+
+		List<IRepositoryValidatingRule> rules = repositoryValidatingRuleBuilder.build();
+		ourLog.info(
+				"Built {} repository validation rules for {} resource types in {}ms",
+				rules.size(),
+				profileUrlsByType.size(),
+				System.currentTimeMillis() - start);
+		return rules;
+	}
+
+	private static SearchParameterMap newStructureDefinitionSearch() {
+		return SearchParameterMap.newSynchronous().add("kind", new TokenParam("resource"));
+	}
+}
@@ -0,0 +1,95 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.jpa.starter.terminology.GuardedRemoteTerminologyServiceValidationSupport;
+import ca.uhn.fhir.validation.IValidationContext;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * An {@link IValidatorModule} which answers from a {@link ValidationResultCache} when the exact same content
+ * has already been validated against the same profiles, and delegates otherwise.
+ * <p>
+ * Results that a remote terminology server could not take part in, as it was unavailable and answered with its
+ * fallback, are not cached, so they do not outlive the outage.
+ */
+public class CachingValidatorModule implements IValidatorModule {
+
+	private final IValidatorModule myDelegate;
+	private final ValidationResultCache myCache;
+	private final String myDelegateId;
+
+	CachingValidatorModule(IValidatorModule theDelegate, ValidationResultCache theCache) {
+		myDelegate = theDelegate;
+		myCache = theCache;
+		myDelegateId = theDelegate.getClass().getName() + '@' + System.identityHashCode(theDelegate);
+	}
+
+	@Override
+	public void validateResource(IValidationContext<IBaseResource> theCtx) {
+		String content = theCtx.getResourceAsString();
+		if (content == null) {
+			myDelegate.validateResource(theCtx);
+			return;
+		}
+
+		String key = key(theCtx, content);
+		List<SingleValidationMessage> cached = myCache.get(key);
+		if (cached != null) {
+			cached.forEach(next -> theCtx.addValidationMessage(copy(next)));
+			return;
+		}
+
+		long generation = myCache.getGeneration();
+		// Counts the fallbacks of every request, so concurrent fallbacks keep this result out of the cache as well
+		long fallbacks = GuardedRemoteTerminologyServiceValidationSupport.getFallbackCount();
+		int before = theCtx.getMessages().size();
+		myDelegate.validateResource(theCtx);
+		List<SingleValidationMessage> produced = theCtx.getMessages();
+		List<SingleValidationMessage> messages = new ArrayList<>(produced.size() - before);
+		boolean fallback = GuardedRemoteTerminologyServiceValidationSupport.getFallbackCount() != fallbacks;
+		for (int i = before; i < produced.size(); i++) {
+			SingleValidationMessage next = produced.get(i);
+			fallback |= GuardedRemoteTerminologyServiceValidationSupport.isFallbackMessage(next.getMessage());
+			messages.add(copy(next));
+		}
+		if (!fallback) {
+			myCache.put(key, List.copyOf(messages), generation);
+		}
+	}
+
+	private String key(IValidationContext<IBaseResource> theCtx, String theContent) {
+		StringBuilder b = new StringBuilder();
+		b.append(myDelegateId).append('\n');
+		b.append(theCtx.getFhirContext().getVersion().getVersion()).append('\n');
+		b.append(theCtx.getResourceAsStringEncoding()).append('\n');
+		if (theCtx.getOptions() != null) {
+			new TreeSet<>(theCtx.getOptions().getProfiles())
+					.forEach(p -> b.append(p).append(' '));
+		}
+		b.append('\n').append(theContent);
+		return DigestUtils.sha256Hex(b.toString());
+	}
+
+	/**
+	 * Messages are mutable, so neither the cached instances nor the ones handed to the caller are shared
+	 */
+	private static SingleValidationMessage copy(SingleValidationMessage theMessage) {
+		SingleValidationMessage retVal = new SingleValidationMessage();
+		retVal.setSeverity(theMessage.getSeverity());
+		retVal.setMessage(theMessage.getMessage());
+		retVal.setMessageId(theMessage.getMessageId());
+		retVal.setLocationString(theMessage.getLocationString());
+		retVal.setLocationLine(theMessage.getLocationLine());
+		retVal.setLocationCol(theMessage.getLocationCol());
+		if (theMessage.getSliceMessages() != null) {
+			retVal.setSliceMessages(new ArrayList<>(theMessage.getSliceMessages()));
+		}
+		return retVal;
+	}
+}
@@ -0,0 +1,80 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.validation.IValidatorModule;
+import jakarta.annotation.PreDestroy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the bounded pool on which {@link ParallelBundleValidatorModule} validates Bundle entries. The pool is shared
+ * by every module returned from {@link #wrap(IValidatorModule)} and is shut down with the application context.
+ */
+public class ParallelBundleValidator implements AutoCloseable {
+
+	/**
+	 * Number of work items each thread gets per Bundle, small enough to amortize task overhead while still
+	 * balancing entries of uneven size
+	 */
+	static final int CHUNKS_PER_THREAD = 4;
+
+	private final int myThreads;
+	private final int myMinEntries;
+	private final ThreadPoolExecutor myExecutor;
+
+	public ParallelBundleValidator(int theThreads, int theMinEntries) {
+		myThreads = theThreads > 0 ? theThreads : Runtime.getRuntime().availableProcessors();
+		myMinEntries = theMinEntries;
+
+		AtomicInteger counter = new AtomicInteger();
+		// When the queue is full the submitting request thread validates the chunk itself, which bounds memory
+		// and naturally throttles concurrent large Bundles. Unlike CallerRunsPolicy this also runs chunks rejected
+		// after shutdown, whose futures would otherwise never complete.
+		myExecutor = new ThreadPoolExecutor(
+				myThreads,
+				myThreads,
+				60,
+				TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(myThreads * CHUNKS_PER_THREAD * 4),
+				r -> {
+					Thread t = new Thread(r, "bundle-validation-" + counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				},
+				(r, executor) -> r.run());
+		myExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns a validator module that validates the entries of large transaction and batch Bundles on this pool,
+	 * and passes everything else to <code>theDelegate</code>
+	 */
+	public IValidatorModule wrap(IValidatorModule theDelegate) {
+		return new ParallelBundleValidatorModule(theDelegate, this);
+	}
+
+	int getThreads() {
+		return myThreads;
+	}
+
+	int getMinEntries() {
+		return myMinEntries;
+	}
+
+	ExecutorService getExecutor() {
+		return myExecutor;
+	}
+
+	/**
+	 * Stops the pool once the chunks already queued are validated. Chunks submitted afterwards are validated on the
+	 * calling thread.
+	 */
+	@PreDestroy
+	@Override
+	public void close() {
+		myExecutor.shutdown();
+	}
+}
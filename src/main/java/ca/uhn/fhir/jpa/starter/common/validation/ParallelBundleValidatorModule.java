@@ -0,0 +1,172 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.validation.IValidationContext;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationContext;
+import ca.uhn.fhir.validation.ValidationOptions;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * An {@link IValidatorModule} which validates the entries of large transaction and batch Bundles concurrently.
+ * <p>
+ * The Bundle itself is validated with every entry resource replaced by an empty placeholder of the same type and
+ * id, so that the Bundle level rules about entry resources still hold, and messages located inside the placeholders
+ * are dropped. Every entry resource is validated on its own on the pool of a {@link ParallelBundleValidator}.
+ * Messages are merged in entry order with their locations rewritten to <code>Bundle.entry[n].resource</code>. All
+ * other resources, and Bundles with fewer than the configured number of entries, are passed to the delegate
+ * unchanged.
+ * <p>
+ * Entries validated on their own cannot resolve references to sibling entries, so this mode trades
+ * intra-Bundle reference checks for wall time.
+ */
+public class ParallelBundleValidatorModule implements IValidatorModule {
+
+	/**
+	 * Locations inside an entry resource of the Bundle shell, which refer to a placeholder rather than the entry
+	 */
+	private static final Pattern ENTRY_RESOURCE_LOCATION = Pattern.compile("^Bundle\\.entry\\[\\d+]\\.resource");
+
+	private final IValidatorModule myDelegate;
+	private final ParallelBundleValidator myPool;
+
+	ParallelBundleValidatorModule(IValidatorModule theDelegate, ParallelBundleValidator thePool) {
+		myDelegate = theDelegate;
+		myPool = thePool;
+	}
+
+	@Override
+	public void validateResource(IValidationContext<IBaseResource> theCtx) {
+		FhirContext fhirContext = theCtx.getFhirContext();
+		IBaseResource resource = theCtx.getResource();
+		if (!(resource instanceof IBaseBundle) || !isTransactionOrBatch(fhirContext, (IBaseBundle) resource)) {
+			myDelegate.validateResource(theCtx);
+			return;
+		}
+
+		IBaseBundle bundle = (IBaseBundle) resource;
+		RuntimeResourceDefinition bundleDef = fhirContext.getResourceDefinition(bundle);
+		BaseRuntimeChildDefinition entryChild = bundleDef.getChildByName("entry");
+		BaseRuntimeElementCompositeDefinition<?> entryDef =
+				(BaseRuntimeElementCompositeDefinition<?>) entryChild.getChildByName("entry");
+		BaseRuntimeChildDefinition resourceChild = entryDef.getChildByName("resource");
+		List<IBase> entries = entryChild.getAccessor().getValues(bundle);
+		if (entries.size() < myPool.getMinEntries()) {
+			myDelegate.validateResource(theCtx);
+			return;
+		}
+
+		List<IBaseResource> entryResources = new ArrayList<>(entries.size());
+		for (IBase entry : entries) {
+			entryResources.add((IBaseResource)
+					resourceChild.getAccessor().getFirstValueOrNull(entry).orElse(null));
+		}
+
+		int chunks = myPool.getThreads() * ParallelBundleValidator.CHUNKS_PER_THREAD;
+		int chunkSize = Math.max(1, (entries.size() + chunks - 1) / chunks);
+		List<Future<List<SingleValidationMessage>>> futures = new ArrayList<>();
+		for (int from = 0; from < entryResources.size(); from += chunkSize) {
+			int start = from;
+			int end = Math.min(from + chunkSize, entryResources.size());
+			futures.add(myPool.getExecutor().submit(() -> validateEntries(fhirContext, entryResources, start, end)));
+		}
+
+		// The Bundle level rules are checked on the request thread while the entries are being validated
+		validateShell(theCtx, bundle, entryChild, resourceChild);
+
+		for (Future<List<SingleValidationMessage>> next : futures) {
+			await(next).forEach(theCtx::addValidationMessage);
+		}
+	}
+
+	private void validateShell(
+			IValidationContext<IBaseResource> theCtx,
+			IBaseBundle theBundle,
+			BaseRuntimeChildDefinition theEntryChild,
+			BaseRuntimeChildDefinition theResourceChild) {
+		FhirContext fhirContext = theCtx.getFhirContext();
+		IBaseBundle shell = fhirContext.newTerser().clone(theBundle);
+		for (IBase entry : theEntryChild.getAccessor().getValues(shell)) {
+			theResourceChild.getAccessor().getFirstValueOrNull(entry).ifPresent(next -> {
+				IBaseResource resource = (IBaseResource) next;
+				IBaseResource placeholder = fhirContext.getResourceDefinition(resource).newInstance();
+				placeholder.setId(resource.getIdElement());
+				theResourceChild.getMutator().setValue(entry, placeholder);
+			});
+		}
+		IValidationContext<IBaseResource> shellCtx =
+				ValidationContext.forResource(fhirContext, shell, theCtx.getOptions());
+		myDelegate.validateResource(shellCtx);
+		for (SingleValidationMessage next : shellCtx.getMessages()) {
+			String location = next.getLocationString();
+			if (location == null || !ENTRY_RESOURCE_LOCATION.matcher(location).find()) {
+				theCtx.addValidationMessage(next);
+			}
+		}
+	}
+
+	private List<SingleValidationMessage> validateEntries(
+			FhirContext theFhirContext, List<IBaseResource> theResources, int theFrom, int theTo) {
+		List<SingleValidationMessage> retVal = new ArrayList<>();
+		for (int i = theFrom; i < theTo; i++) {
+			IBaseResource entryResource = theResources.get(i);
+			if (entryResource == null) {
+				continue;
+			}
+			IValidationContext<IBaseResource> entryCtx =
+					ValidationContext.forResource(theFhirContext, entryResource, ValidationOptions.empty());
+			myDelegate.validateResource(entryCtx);
+			for (SingleValidationMessage next : entryCtx.getMessages()) {
+				next.setLocationString(entryPath(i, entryResource.fhirType(), next.getLocationString()));
+				// Line and column refer to the standalone encoding of the entry, not to the submitted Bundle
+				next.setLocationLine(null);
+				next.setLocationCol(null);
+				retVal.add(next);
+			}
+		}
+		return retVal;
+	}
+
+	static String entryPath(int theIndex, String theResourceType, String theLocation) {
+		String prefix = "Bundle.entry[" + theIndex + "].resource";
+		if (theLocation == null) {
+			return prefix;
+		}
+		if (theLocation.startsWith(theResourceType)) {
+			return prefix + theLocation.substring(theResourceType.length());
+		}
+		return prefix + "." + theLocation;
+	}
+
+	private static boolean isTransactionOrBatch(FhirContext theFhirContext, IBaseBundle theBundle) {
+		String type = BundleUtil.getBundleType(theFhirContext, theBundle);
+		return "transaction".equals(type) || "batch".equals(type);
+	}
+
+	private static <T> T await(Future<T> theFuture) {
+		try {
+			return theFuture.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while validating Bundle entries", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
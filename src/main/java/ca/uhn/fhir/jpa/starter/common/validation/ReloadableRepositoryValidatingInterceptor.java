@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.util.ExtensionUtil;
+import ca.uhn.fhir.util.HapiExtensions;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link RepositoryValidatingInterceptor} whose rules can be replaced while requests are being processed.
+ * <p>
+ * The base class clears and refills its rules in place, so a concurrent write could be checked against an
+ * incomplete rule set. Here the rules are held in an immutable map that is swapped in a single assignment;
+ * the inherited hooks always see an empty rule set and the hooks of this class do the evaluation.
+ */
+@Interceptor
+public class ReloadableRepositoryValidatingInterceptor extends RepositoryValidatingInterceptor {
+
+	private volatile ListMultimap<String, IRepositoryValidatingRule> myRulesByType;
+
+	public ReloadableRepositoryValidatingInterceptor(
+			FhirContext theFhirContext, List<IRepositoryValidatingRule> theRules) {
+		super();
+		setFhirContext(theFhirContext);
+		setRules(theRules);
+	}
+
+	@Override
+	public void setRules(List<IRepositoryValidatingRule> theRules) {
+		myRulesByType = theRules.stream()
+				.collect(ImmutableListMultimap.toImmutableListMultimap(
+						IRepositoryValidatingRule::getResourceType, rule -> rule));
+	}
+
+	@Override
+	public String describeRules() {
+		return " * " + myRulesByType.values().stream().map(Object::toString).collect(Collectors.joining("\n * "));
+	}
+
+	public int getRuleCount() {
+		return myRulesByType.size();
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
+	public void resourceCreated(RequestDetails theRequestDetails, IBaseResource theResource) {
+		handle(theRequestDetails, theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+	public void resourceUpdated(
+			RequestDetails theRequestDetails, IBaseResource theOldResource, IBaseResource theNewResource) {
+		handle(theRequestDetails, theNewResource);
+	}
+
+	private void handle(RequestDetails theRequestDetails, IBaseResource theResource) {
+		// Placeholder resources created for unresolved references carry no content worth validating
+		if (ExtensionUtil.hasExtension(theResource, HapiExtensions.EXT_RESOURCE_PLACEHOLDER)) {
+			return;
+		}
+		ListMultimap<String, IRepositoryValidatingRule> rules = myRulesByType;
+		for (IRepositoryValidatingRule next : rules.get(theResource.fhirType())) {
+			IRepositoryValidatingRule.RuleEvaluation outcome = next.evaluate(theRequestDetails, theResource);
+			if (!outcome.isPasses()) {
+				handleFailure(outcome);
+			}
+		}
+	}
+}
@@ -1,23 +1,17 @@
 package ca.uhn.fhir.jpa.starter.common.validation;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
-import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
 import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
 import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingRuleBuilder;
-import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.jpa.starter.annotations.OnR4BCondition;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
-import ca.uhn.fhir.rest.param.TokenParam;
-import org.hl7.fhir.r4b.model.StructureDefinition;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 import static ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory.ENABLE_REPOSITORY_VALIDATING_INTERCEPTOR;
 
@@ -31,44 +25,18 @@ import static ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInt
 @ConditionalOnProperty(prefix = "hapi.fhir", name = ENABLE_REPOSITORY_VALIDATING_INTERCEPTOR, havingValue = "true")
 @Configuration
 @Conditional(OnR4BCondition.class)
-public class RepositoryValidationInterceptorFactoryR4B implements IRepositoryValidationInterceptorFactory {
-
-	private final FhirContext fhirContext;
-	private final RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder;
-	private final IFhirResourceDao structureDefinitionResourceProvider;
+public class RepositoryValidationInterceptorFactoryR4B extends BaseRepositoryValidationInterceptorFactory {
 
 	public RepositoryValidationInterceptorFactoryR4B(
-			RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder, DaoRegistry daoRegistry) {
-		this.repositoryValidatingRuleBuilder = repositoryValidatingRuleBuilder;
-		this.fhirContext = daoRegistry.getSystemDao().getContext();
-		structureDefinitionResourceProvider = daoRegistry.getResourceDao("StructureDefinition");
-	}
-
-	@Override
-	public RepositoryValidatingInterceptor buildUsingStoredStructureDefinitions() {
-
-		IBundleProvider results = structureDefinitionResourceProvider.search(new SearchParameterMap()
-				.setLoadSynchronous(true)
-				.add(StructureDefinition.SP_KIND, new TokenParam("resource")));
-		Map<String, List<StructureDefinition>> structureDefinitions = results.getResources(0, results.size()).stream()
-				.map(StructureDefinition.class::cast)
-				.collect(Collectors.groupingBy(StructureDefinition::getType));
-
-		structureDefinitions.forEach((key, value) -> {
-			String[] urls = value.stream().map(StructureDefinition::getUrl).toArray(String[]::new);
-			repositoryValidatingRuleBuilder
-					.forResourcesOfType(key)
-					.requireAtLeastOneProfileOf(urls)
-					.and()
-					.requireValidationToDeclaredProfiles();
-		});
-
-		List<IRepositoryValidatingRule> rules = repositoryValidatingRuleBuilder.build();
-		return new RepositoryValidatingInterceptor(fhirContext, rules);
+			ObjectProvider<RepositoryValidatingRuleBuilder> repositoryValidatingRuleBuilderProvider,
+			DaoRegistry daoRegistry,
+			IResourceChangeListenerRegistry resourceChangeListenerRegistry) {
+		super(repositoryValidatingRuleBuilderProvider, daoRegistry, resourceChangeListenerRegistry);
 	}
 
 	@Override
 	public RepositoryValidatingInterceptor build() {
+		RepositoryValidatingRuleBuilder repositoryValidatingRuleBuilder = newRuleBuilder();
 
 		// Customize the ruleBuilder here to have the rules you want! We will give a simple example
 		// of enabling validation for all Patient resources
@@ -0,0 +1,154 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rolling summary of sampled response validations, grouped by resource type and profile. Results are kept
+ * in one minute buckets and buckets older than the configured window are dropped.
+ */
+public class ResponseValidationReport {
+
+	private static final int RECENT_MESSAGES = 5;
+
+	private final long myWindowMinutes;
+	private final Map<Long, Map<String, Stats>> myBuckets = new ConcurrentHashMap<>();
+
+	public ResponseValidationReport(int theWindowMinutes) {
+		myWindowMinutes = Math.max(1, theWindowMinutes);
+	}
+
+	void record(String theResourceType, String theProfile, List<SingleValidationMessage> theMessages) {
+		long minute = currentMinute();
+		myBuckets.keySet().removeIf(m -> m <= minute - myWindowMinutes);
+		Stats stats = myBuckets.computeIfAbsent(minute, m -> new ConcurrentHashMap<>())
+				.computeIfAbsent(theResourceType + '|' + theProfile, k -> new Stats(theResourceType, theProfile));
+		stats.myValidated.increment();
+		for (SingleValidationMessage next : theMessages) {
+			stats.count(next.getSeverity());
+			if (next.getSeverity() == ResultSeverityEnum.ERROR || next.getSeverity() == ResultSeverityEnum.FATAL) {
+				stats.myRecentErrors.addFirst(next.getLocationString() + ": " + next.getMessage());
+				while (stats.myRecentErrors.size() > RECENT_MESSAGES) {
+					stats.myRecentErrors.pollLast();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return one entry per resource type and profile seen within the window, those with the most errors first
+	 */
+	public List<Entry> getEntries() {
+		long oldest = currentMinute() - myWindowMinutes;
+		Map<String, Entry> merged = new LinkedHashMap<>();
+		myBuckets.entrySet().stream()
+				.filter(e -> e.getKey() > oldest)
+				.sorted(Map.Entry.<Long, Map<String, Stats>>comparingByKey().reversed())
+				.forEach(bucket -> bucket.getValue().forEach((key, stats) -> merged.computeIfAbsent(
+								key, k -> new Entry(stats.myResourceType, stats.myProfile))
+						.add(stats)));
+		List<Entry> retVal = new ArrayList<>(merged.values());
+		retVal.sort(Comparator.comparingLong(Entry::getErrors)
+				.thenComparingLong(Entry::getWarnings)
+				.reversed());
+		return retVal;
+	}
+
+	public long getWindowMinutes() {
+		return myWindowMinutes;
+	}
+
+	private static long currentMinute() {
+		return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+	}
+
+	private static class Stats {
+		private final String myResourceType;
+		private final String myProfile;
+		private final LongAdder myValidated = new LongAdder();
+		private final LongAdder myErrors = new LongAdder();
+		private final LongAdder myWarnings = new LongAdder();
+		private final LongAdder myInformation = new LongAdder();
+		private final Deque<String> myRecentErrors = new ConcurrentLinkedDeque<>();
+
+		private Stats(String theResourceType, String theProfile) {
+			myResourceType = theResourceType;
+			myProfile = theProfile;
+		}
+
+		private void count(ResultSeverityEnum theSeverity) {
+			switch (theSeverity) {
+				case FATAL, ERROR -> myErrors.increment();
+				case WARNING -> myWarnings.increment();
+				default -> myInformation.increment();
+			}
+		}
+	}
+
+	public static class Entry {
+		private final String myResourceType;
+		private final String myProfile;
+		private long myValidated;
+		private long myErrors;
+		private long myWarnings;
+		private long myInformation;
+		private final List<String> myRecentErrors = new ArrayList<>();
+
+		private Entry(String theResourceType, String theProfile) {
+			myResourceType = theResourceType;
+			myProfile = theProfile;
+		}
+
+		private Entry add(Stats theStats) {
+			myValidated += theStats.myValidated.sum();
+			myErrors += theStats.myErrors.sum();
+			myWarnings += theStats.myWarnings.sum();
+			myInformation += theStats.myInformation.sum();
+			for (String next : theStats.myRecentErrors) {
+				if (myRecentErrors.size() < RECENT_MESSAGES) {
+					myRecentErrors.add(next);
+				}
+			}
+			return this;
+		}
+
+		public String getResourceType() {
+			return myResourceType;
+		}
+
+		public String getProfile() {
+			return myProfile;
+		}
+
+		public long getValidated() {
+			return myValidated;
+		}
+
+		public long getErrors() {
+			return myErrors;
+		}
+
+		public long getWarnings() {
+			return myWarnings;
+		}
+
+		public long getInformation() {
+			return myInformation;
+		}
+
+		public List<String> getRecentErrors() {
+			return myRecentErrors;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates a sample of outgoing responses on a background thread, as a low overhead alternative to the
+ * {@link ca.uhn.fhir.rest.server.interceptor.ResponseValidatingInterceptor}. The client response is never
+ * delayed or altered: the only work done on the request thread is encoding the sampled resource, and
+ * samples are dropped when the validation queue is full.
+ * <p>
+ * Search result Bundles are split so that issues are attributed to the resource type and first declared
+ * profile of every returned resource. Outcomes are exported as metrics and kept in a
+ * {@link ResponseValidationReport}. Clients choose the profiles their resources declare, so the metrics are only
+ * tagged with profiles known to the validation support chain and with <code>other</code> for the rest, while the
+ * report keeps the exact profile.
+ */
+@Interceptor
+public class SampledResponseValidatingInterceptor {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(SampledResponseValidatingInterceptor.class);
+	private static final String METRIC_PREFIX = "fhir.validation.response";
+	private static final String NO_PROFILE = "none";
+	private static final String OTHER_PROFILE = "other";
+
+	private final FhirContext myFhirContext;
+	private final FhirValidator myValidator;
+	private final IValidationSupport myValidationSupport;
+	private final double mySampleRate;
+	private final ThreadPoolExecutor myExecutor;
+	private final ResponseValidationReport myReport;
+	private final MeterRegistry myMeterRegistry;
+	private final Timer myTimer;
+
+	public SampledResponseValidatingInterceptor(
+			FhirContext theFhirContext,
+			IValidatorModule theValidatorModule,
+			IValidationSupport theValidationSupport,
+			AppProperties.Validation theSettings,
+			MeterRegistry theMeterRegistry) {
+		myFhirContext = theFhirContext;
+		myValidator = theFhirContext.newValidator();
+		myValidator.registerValidatorModule(theValidatorModule);
+		myValidationSupport = theValidationSupport;
+		mySampleRate = theSettings.getResponses_sample_rate();
+		myReport = new ResponseValidationReport(theSettings.getResponses_report_window_minutes());
+		myMeterRegistry = theMeterRegistry;
+		myTimer = Timer.builder(METRIC_PREFIX + ".duration")
+				.description("Time spent validating a sampled response")
+				.register(theMeterRegistry);
+		myExecutor = new ThreadPoolExecutor(
+				1,
+				1,
+				60,
+				TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(theSettings.getResponses_async_queue_size()),
+				r -> {
+					Thread t = new Thread(r, "response-validation");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+		myExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	public ResponseValidationReport getReport() {
+		return myReport;
+	}
+
+	@PreDestroy
+	public void stop() {
+		myExecutor.shutdownNow();
+	}
+
+	@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+	public void outgoingResponse(RequestDetails theRequestDetails, ResponseDetails theResponseDetails) {
+		IBaseResource resource = theResponseDetails != null ? theResponseDetails.getResponseResource() : null;
+		if (resource == null || ThreadLocalRandom.current().nextDouble() >= mySampleRate) {
+			return;
+		}
+		if (myExecutor.getQueue().remainingCapacity() == 0) {
+			countSample("dropped");
+			return;
+		}
+
+		try {
+			// The response may still be modified by other interceptors, so hand over an immutable copy
+			String encoded = myFhirContext.newJsonParser().encodeResourceToString(resource);
+			myExecutor.execute(() -> validate(encoded));
+			countSample("queued");
+		} catch (RejectedExecutionException e) {
+			countSample("dropped");
+		} catch (Exception e) {
+			ourLog.debug("Failed to sample response for validation", e);
+			countSample("failed");
+		}
+	}
+
+	private void validate(String theEncoded) {
+		try {
+			myTimer.record(() -> {
+				IBaseResource resource = myFhirContext.newJsonParser().parseResource(theEncoded);
+				if (resource instanceof IBaseBundle
+						&& "searchset".equals(BundleUtil.getBundleType(myFhirContext, (IBaseBundle) resource))) {
+					BundleUtil.toListOfResources(myFhirContext, (IBaseBundle) resource).forEach(this::validateOne);
+				} else {
+					validateOne(resource);
+				}
+			});
+		} catch (Exception e) {
+			ourLog.warn("Failed to validate sampled response: {}", e.toString());
+			countSample("failed");
+		}
+	}
+
+	private void validateOne(IBaseResource theResource) {
+		String resourceType = theResource.fhirType();
+		List<? extends IPrimitiveType<String>> profiles = theResource.getMeta().getProfile();
+		String profile = profiles.isEmpty() || profiles.get(0).getValue() == null
+				? NO_PROFILE
+				: profiles.get(0).getValue();
+
+		List<SingleValidationMessage> messages =
+				myValidator.validateWithResult(theResource).getMessages();
+		myReport.record(resourceType, profile, messages);
+
+		String profileTag = profileTagOf(profile);
+		myMeterRegistry
+				.counter(METRIC_PREFIX + ".resources", "resource_type", resourceType, "profile", profileTag)
+				.increment();
+		for (SingleValidationMessage next : messages) {
+			myMeterRegistry
+					.counter(
+							METRIC_PREFIX + ".issues",
+							"resource_type",
+							resourceType,
+							"profile",
+							profileTag,
+							"severity",
+							next.getSeverity().getCode())
+					.increment();
+		}
+	}
+
+	private String profileTagOf(String theProfile) {
+		if (NO_PROFILE.equals(theProfile) || myValidationSupport.fetchStructureDefinition(theProfile) != null) {
+			return theProfile;
+		}
+		return OTHER_PROFILE;
+	}
+
+	private void countSample(String theOutcome) {
+		myMeterRegistry
+				.counter(METRIC_PREFIX + ".samples", "outcome", theOutcome)
+				.increment();
+	}
+}
@@ -0,0 +1,251 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes sure StructureDefinitions are stored with a snapshot, so that the validator never has to generate one
+ * while handling a request.
+ * <p>
+ * Snapshots of differential-only StructureDefinitions are generated once, when the StructureDefinition is
+ * stored (e.g. uploaded by a client), and persisted with it. Once the application has started, every stored
+ * StructureDefinition is fetched through the validation support chain so its caches are warm. This runs on
+ * {@link ApplicationReadyEvent}, before Spring Boot changes the readiness state to <code>ACCEPTING_TRAFFIC</code>,
+ * so requests routed by the readiness probe find the caches warm; requests reaching the server earlier may still
+ * have to load StructureDefinitions.
+ * <p>
+ * The snapshots of StructureDefinitions stored before this was enabled are generated at startup. If persisting them
+ * is enabled they are stored with the StructureDefinition as a new version, so they are generated only once.
+ * Otherwise nothing is written, and they are generated at every startup and served from memory by
+ * {@link #getValidationSupport()}, until the StructureDefinition is updated and stored with its own snapshot.
+ * <p>
+ * This class must be registered with the JPA interceptor service, and {@link #getValidationSupport()} must be
+ * added to the validation support chain ahead of the JPA validation support.
+ */
+@Interceptor
+public class StructureDefinitionSnapshotSvc {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(StructureDefinitionSnapshotSvc.class);
+	private static final int PAGE_SIZE = 200;
+
+	private final FhirContext myFhirContext;
+	private final IValidationSupport myValidationSupport;
+	private final IFhirResourceDao<?> myStructureDefinitionDao;
+	private final BaseRuntimeChildDefinition mySnapshotChild;
+	private final Map<String, IBaseResource> myGeneratedSnapshots = new ConcurrentHashMap<>();
+	private final IValidationSupport myGeneratedSnapshotSupport = new GeneratedSnapshotValidationSupport();
+	private final boolean myPersistExisting;
+
+	/**
+	 * @param thePersistExisting whether to store the snapshots generated at startup for StructureDefinitions
+	 *                           stored without one, instead of holding them in memory
+	 */
+	public StructureDefinitionSnapshotSvc(
+			FhirContext theFhirContext,
+			IValidationSupport theValidationSupport,
+			DaoRegistry theDaoRegistry,
+			boolean thePersistExisting) {
+		myFhirContext = theFhirContext;
+		myPersistExisting = thePersistExisting;
+		myValidationSupport = theValidationSupport;
+		myStructureDefinitionDao = theDaoRegistry.getResourceDao("StructureDefinition");
+		mySnapshotChild =
+				theFhirContext.getResourceDefinition("StructureDefinition").getChildByName("snapshot");
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		addSnapshotIfMissing(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		addSnapshotIfMissing(theNewResource);
+		forgetGeneratedSnapshot(theOldResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		forgetGeneratedSnapshot(theResource);
+	}
+
+	/**
+	 * Serves the snapshots generated by {@link #warmUp()} for StructureDefinitions that are stored without one
+	 */
+	public IValidationSupport getValidationSupport() {
+		return myGeneratedSnapshotSupport;
+	}
+
+	/**
+	 * Generates the snapshot of a differential-only StructureDefinition into the resource itself
+	 *
+	 * @return <code>true</code> if a snapshot was added
+	 */
+	boolean addSnapshotIfMissing(IBaseResource theResource) {
+		if (!"StructureDefinition".equals(theResource.fhirType()) || !needsSnapshot(theResource)) {
+			return false;
+		}
+		String url = myFhirContext.newTerser().getSinglePrimitiveValueOrNull(theResource, "url");
+		long start = System.currentTimeMillis();
+		try {
+			IBaseResource generated = myValidationSupport.generateSnapshot(
+					new ValidationSupportContext(myValidationSupport), theResource, url, null, null);
+			List<IBase> snapshot =
+					generated != null ? mySnapshotChild.getAccessor().getValues(generated) : List.of();
+			if (snapshot.isEmpty()) {
+				ourLog.warn("No snapshot could be generated for StructureDefinition {}", url);
+				return false;
+			}
+			mySnapshotChild.getMutator().setValue(theResource, snapshot.get(0));
+			ourLog.info(
+					"Generated snapshot for StructureDefinition {} in {}ms", url, System.currentTimeMillis() - start);
+			return true;
+		} catch (Exception e) {
+			// The StructureDefinition is still stored, its snapshot will be generated lazily by the validator
+			ourLog.warn("Failed to generate snapshot for StructureDefinition {}: {}", url, e.toString());
+			return false;
+		}
+	}
+
+	private boolean needsSnapshot(IBaseResource theStructureDefinition) {
+		FhirTerser terser = myFhirContext.newTerser();
+		return terser.getValues(theStructureDefinition, "snapshot.element").isEmpty()
+				&& !terser.getValues(theStructureDefinition, "differential.element")
+						.isEmpty()
+				&& terser.getSinglePrimitiveValueOrNull(theStructureDefinition, "baseDefinition") != null;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void warmUp() {
+		long start = System.currentTimeMillis();
+		int generated = 0;
+		int persisted = 0;
+		int fetched = 0;
+		FhirTerser terser = myFhirContext.newTerser();
+		List<String> urls = new ArrayList<>();
+
+		// Paged through a persisted search, so only one page of StructureDefinitions is loaded at a time
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.addHeader(Constants.HEADER_CACHE_CONTROL, Constants.CACHE_CONTROL_NO_CACHE);
+		SearchParameterMap map = new SearchParameterMap();
+		map.setSort(new SortSpec("_id"));
+		IBundleProvider results = myStructureDefinitionDao.search(map, requestDetails);
+		for (int offset = 0; ; offset += PAGE_SIZE) {
+			List<IBaseResource> page = results.getResources(offset, offset + PAGE_SIZE);
+			for (IBaseResource next : page) {
+				String url = terser.getSinglePrimitiveValueOrNull(next, "url");
+				if (url == null) {
+					continue;
+				}
+				urls.add(url);
+				if (!addSnapshotIfMissing(next)) {
+					continue;
+				}
+				generated++;
+				// The search result is a copy, so the snapshot is only stored if it is written back
+				if (myPersistExisting && persist(next, url)) {
+					persisted++;
+				} else {
+					rememberGeneratedSnapshot(url, terser.getSinglePrimitiveValueOrNull(next, "version"), next);
+				}
+			}
+			if (page.size() < PAGE_SIZE) {
+				break;
+			}
+		}
+
+		// The chain may have cached the differential-only versions while generating the snapshots
+		if (generated > 0) {
+			myValidationSupport.invalidateCaches();
+		}
+		for (String url : urls) {
+			if (myValidationSupport.fetchStructureDefinition(url) != null) {
+				fetched++;
+			}
+		}
+
+		ourLog.info(
+				"Generated {} snapshots ({} stored) and loaded {} StructureDefinitions into the validation caches in {}ms",
+				generated,
+				persisted,
+				fetched,
+				System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Stores a StructureDefinition with the snapshot generated for it as a new version
+	 *
+	 * @return <code>true</code> if it was stored
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean persist(IBaseResource theStructureDefinition, String theUrl) {
+		try {
+			((IFhirResourceDao<IBaseResource>) myStructureDefinitionDao)
+					.update(theStructureDefinition, new SystemRequestDetails());
+			return true;
+		} catch (Exception e) {
+			// Served from memory instead, and tried again on the next startup
+			ourLog.warn("Failed to store the snapshot of StructureDefinition {}: {}", theUrl, e.toString());
+			return false;
+		}
+	}
+
+	private void rememberGeneratedSnapshot(String theUrl, String theVersion, IBaseResource theStructureDefinition) {
+		myGeneratedSnapshots.put(theUrl, theStructureDefinition);
+		if (theVersion != null) {
+			myGeneratedSnapshots.put(theUrl + "|" + theVersion, theStructureDefinition);
+		}
+	}
+
+	private void forgetGeneratedSnapshot(IBaseResource theResource) {
+		if (theResource == null || !"StructureDefinition".equals(theResource.fhirType())) {
+			return;
+		}
+		String url = myFhirContext.newTerser().getSinglePrimitiveValueOrNull(theResource, "url");
+		if (url != null) {
+			myGeneratedSnapshots.keySet().removeIf(key -> key.equals(url) || key.startsWith(url + "|"));
+		}
+	}
+
+	private class GeneratedSnapshotValidationSupport implements IValidationSupport {
+
+		@Override
+		public FhirContext getFhirContext() {
+			return myFhirContext;
+		}
+
+		@Override
+		public String getName() {
+			return "GeneratedSnapshotValidationSupport";
+		}
+
+		@Override
+		public IBaseResource fetchStructureDefinition(String theUrl) {
+			return myGeneratedSnapshots.get(theUrl);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package ca.uhn.fhir.jpa.starter.common.validation;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the outcome of earlier validations keyed by a hash of the validated content, so that identical
+ * payloads (e.g. the same resource submitted by several clients, or a response that is read repeatedly)
+ * are validated once. The cache is bounded by the estimated size of the cached messages and is
+ * invalidated entirely whenever conformance or terminology resources change, since any of them may
+ * change the outcome of a validation.
+ * <p>
+ * This class must be registered with the JPA interceptor service in order to observe those changes.
+ */
+@Interceptor
+public class ValidationResultCache {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ValidationResultCache.class);
+	private static final String METRIC_PREFIX = "fhir.validation.result.cache";
+
+	/**
+	 * Resource types whose modification may change the outcome of a validation
+	 */
+	private static final Set<String> INVALIDATING_RESOURCE_TYPES = Set.of(
+			"StructureDefinition",
+			"ValueSet",
+			"CodeSystem",
+			"ConceptMap",
+			"NamingSystem",
+			"ImplementationGuide",
+			"StructureMap");
+
+	private final Cache<String, List<SingleValidationMessage>> myCache;
+	private final AtomicLong myGeneration = new AtomicLong();
+	private final MeterRegistry myMeterRegistry;
+
+	public ValidationResultCache(AppProperties.Validation theSettings, MeterRegistry theMeterRegistry) {
+		myMeterRegistry = theMeterRegistry;
+		myCache = Caffeine.newBuilder()
+				.maximumWeight(theSettings.getResult_cache_max_bytes())
+				.weigher(ValidationResultCache::estimateBytes)
+				.expireAfterWrite(Duration.ofMillis(theSettings.getResult_cache_ttl_millis()))
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(theMeterRegistry, myCache, METRIC_PREFIX);
+	}
+
+	/**
+	 * Returns a validator module that serves results of <code>theDelegate</code> from this cache
+	 */
+	public IValidatorModule wrap(IValidatorModule theDelegate) {
+		return new CachingValidatorModule(theDelegate, this);
+	}
+
+	List<SingleValidationMessage> get(String theKey) {
+		return myCache.getIfPresent(theKey);
+	}
+
+	long getGeneration() {
+		return myGeneration.get();
+	}
+
+	/**
+	 * Stores a result unless the cache was invalidated after <code>theGeneration</code> was read, in which case
+	 * the result may have been computed against outdated conformance resources.
+	 */
+	void put(String theKey, List<SingleValidationMessage> theMessages, long theGeneration) {
+		if (myGeneration.get() == theGeneration) {
+			myCache.put(theKey, theMessages);
+		}
+	}
+
+	public void invalidateAll(String theReason) {
+		myGeneration.incrementAndGet();
+		myCache.invalidateAll();
+		myMeterRegistry
+				.counter(METRIC_PREFIX + ".invalidations", "reason", theReason)
+				.increment();
+		ourLog.debug("Validation result cache invalidated: {}", theReason);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		resourceChanged(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	private void resourceChanged(IBaseResource theResource) {
+		if (theResource == null) {
+			return;
+		}
+		String resourceType = theResource.fhirType();
+		if (!INVALIDATING_RESOURCE_TYPES.contains(resourceType)) {
+			return;
+		}
+		invalidateAll(resourceType);
+
+		// Validations running concurrently with the transaction still see the old resource, so drop whatever
+		// they cached once the change is visible
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					invalidateAll(resourceType);
+				}
+			});
+		}
+	}
+
+	private static int estimateBytes(String theKey, List<SingleValidationMessage> theMessages) {
+		long retVal = 64 + 2L * theKey.length();
+		for (SingleValidationMessage next : theMessages) {
+			retVal += 64
+					+ 2L * (length(next.getMessage()) + length(next.getLocationString()) + length(next.getMessageId()));
+			if (next.getSliceMessages() != null) {
+				for (String slice : next.getSliceMessages()) {
+					retVal += 16 + 2L * length(slice);
+				}
+			}
+		}
+		return (int) Math.min(retVal, Integer.MAX_VALUE);
+	}
+
+	private static int length(String theString) {
+		return theString != null ? theString.length() : 0;
+	}
+}
@@ -0,0 +1,204 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.model.RequestPartitionId;
+import ca.uhn.fhir.jpa.dao.TransactionProcessor;
+import ca.uhn.fhir.jpa.model.config.PartitionSettings;
+import ca.uhn.fhir.jpa.packages.AdditionalResourcesParser;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.ResourceReferenceInfo;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the resources of the <code>additionalResourceFolders</code> of an implementation guide in transactions of
+ * a bounded size, several at a time.
+ * <p>
+ * Resources are grouped into levels, so that every resource is stored after the resources it references: level 0
+ * holds the resources referencing nothing else from the folders, level 1 those referencing only level 0, and so on.
+ * The chunks of one level are committed concurrently, the levels one after the other. Resources whose references
+ * form a cycle are committed together in one last transaction, where the references can be resolved within the
+ * Bundle.
+ */
+public class AdditionalResourceLoader {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(AdditionalResourceLoader.class);
+
+	private final FhirContext myFhirContext;
+	private final TransactionProcessor myTransactionProcessor;
+	private final PartitionSettings myPartitionSettings;
+	private final int myChunkSize;
+	private final int myParallelism;
+
+	public AdditionalResourceLoader(
+			FhirContext theFhirContext,
+			TransactionProcessor theTransactionProcessor,
+			PartitionSettings thePartitionSettings,
+			int theChunkSize,
+			int theParallelism) {
+		myFhirContext = theFhirContext;
+		myTransactionProcessor = theTransactionProcessor;
+		myPartitionSettings = thePartitionSettings;
+		myChunkSize = Math.max(1, theChunkSize);
+		myParallelism = Math.max(1, theParallelism);
+	}
+
+	public void load(ExtendedPackageInstallationSpec theSpec) {
+		List<IBaseResource> resources;
+		try {
+			NpmPackage npmPackage = NpmPackage.fromPackage(new ByteArrayInputStream(theSpec.getPackageContents()));
+			resources = AdditionalResourcesParser.getAdditionalResources(
+					theSpec.getAdditionalResourceFolders(), npmPackage, myFhirContext);
+		} catch (IOException e) {
+			throw new InternalErrorException(e);
+		}
+		if (!resources.isEmpty()) {
+			store(theSpec, resources);
+		}
+	}
+
+	/**
+	 * Stores the resources level by level, in chunks of the configured size
+	 */
+	void store(ExtendedPackageInstallationSpec theSpec, List<IBaseResource> theResources) {
+		Levels levels = levels(theResources);
+		long start = System.currentTimeMillis();
+		AtomicInteger stored = new AtomicInteger();
+		AtomicInteger threadCounter = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(myParallelism, r -> {
+			Thread t = new Thread(r, "ig-resources-" + threadCounter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			for (List<IBaseResource> level : levels.myLevels) {
+				List<CompletableFuture<Void>> chunks = new ArrayList<>();
+				for (List<IBaseResource> chunk : chunks(level)) {
+					chunks.add(CompletableFuture.runAsync(
+							() -> storeChunk(theSpec, chunk, stored, theResources.size()), executor));
+				}
+				CompletableFuture.allOf(chunks.toArray(CompletableFuture[]::new))
+						.join();
+			}
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+		} finally {
+			executor.shutdownNow();
+		}
+		if (!levels.myCycle.isEmpty()) {
+			ourLog.warn(
+					"{} additional resources of {} reference each other in a cycle, storing them in one transaction",
+					levels.myCycle.size(),
+					theSpec.getName());
+			storeChunk(theSpec, levels.myCycle, stored, theResources.size());
+		}
+
+		ourLog.info(
+				"Stored {} additional resources of {} in {} levels in {}ms",
+				theResources.size(),
+				theSpec.getName(),
+				levels.myLevels.size(),
+				System.currentTimeMillis() - start);
+	}
+
+	private void storeChunk(
+			ExtendedPackageInstallationSpec theSpec,
+			List<IBaseResource> theChunk,
+			AtomicInteger theStored,
+			int theTotal) {
+		BundleBuilder bundleBuilder = new BundleBuilder(myFhirContext);
+		theChunk.forEach(bundleBuilder::addTransactionUpdateEntry);
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setRequestPartitionId(RequestPartitionId.defaultPartition(myPartitionSettings));
+		myTransactionProcessor.transaction(requestDetails, bundleBuilder.getBundle(), false);
+		ourLog.info(
+				"Stored {}/{} additional resources of {}",
+				theStored.addAndGet(theChunk.size()),
+				theTotal,
+				theSpec.getName());
+	}
+
+	/**
+	 * Splits a level into the chunks committed in one transaction each
+	 */
+	List<List<IBaseResource>> chunks(List<IBaseResource> theLevel) {
+		List<List<IBaseResource>> retVal = new ArrayList<>();
+		for (int from = 0; from < theLevel.size(); from += myChunkSize) {
+			retVal.add(theLevel.subList(from, Math.min(theLevel.size(), from + myChunkSize)));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Groups the resources so that every resource comes in a later level than the resources it references
+	 */
+	Levels levels(List<IBaseResource> theResources) {
+		Set<String> ids = new HashSet<>();
+		theResources.forEach(resource -> ids.add(key(resource)));
+
+		FhirTerser terser = myFhirContext.newTerser();
+		Map<IBaseResource, Set<String>> references = new HashMap<>();
+		for (IBaseResource next : theResources) {
+			Set<String> targets = new HashSet<>();
+			for (ResourceReferenceInfo reference : terser.getAllResourceReferences(next)) {
+				IIdType target = reference.getResourceReference().getReferenceElement();
+				String targetKey = target.getResourceType() + "/" + target.getIdPart();
+				if (ids.contains(targetKey) && !targetKey.equals(key(next))) {
+					targets.add(targetKey);
+				}
+			}
+			references.put(next, targets);
+		}
+
+		Levels retVal = new Levels();
+		Set<String> placed = new HashSet<>();
+		List<IBaseResource> remaining = new ArrayList<>(theResources);
+		while (!remaining.isEmpty()) {
+			List<IBaseResource> level = new ArrayList<>();
+			List<IBaseResource> next = new ArrayList<>();
+			for (IBaseResource resource : remaining) {
+				(placed.containsAll(references.get(resource)) ? level : next).add(resource);
+			}
+			if (level.isEmpty()) {
+				retVal.myCycle.addAll(next);
+				break;
+			}
+			level.forEach(resource -> placed.add(key(resource)));
+			retVal.myLevels.add(level);
+			remaining = next;
+		}
+		return retVal;
+	}
+
+	private static String key(IBaseResource theResource) {
+		return theResource.fhirType() + "/" + theResource.getIdElement().getIdPart();
+	}
+
+	static class Levels {
+		final List<List<IBaseResource>> myLevels = new ArrayList<>();
+		/**
+		 * Resources that cannot be ordered because their references form a cycle
+		 */
+		final List<IBaseResource> myCycle = new ArrayList<>();
+	}
+}
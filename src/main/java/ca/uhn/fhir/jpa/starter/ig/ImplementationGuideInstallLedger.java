@@ -0,0 +1,114 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Records which implementation guides have been installed into this server's database, so that unchanged guides
+ * can be skipped on the next startup. The ledger is stored as {@link ImplementationGuideInstallLedgerEntity} in the
+ * same database as the installed resources and is therefore lost together with them.
+ * <p>
+ * A fingerprint combines the hash of the package contents held by the package cache with every installation
+ * option that influences what gets stored. A guide whose contents or options changed is installed again.
+ * <p>
+ * The table <code>STARTER_IG_INSTALL_LEDGER</code> is not known to the HAPI schema migrations. It is created by
+ * Hibernate with <code>hibernate.hbm2ddl.auto: update</code>, and must be created manually otherwise. While it is
+ * missing, every guide is installed and the failure to record it is logged.
+ */
+public class ImplementationGuideInstallLedger {
+
+	/**
+	 * The package holding the ledger entity, which must be scanned by the HAPI persistence unit
+	 */
+	public static final String ENTITY_PACKAGE = ImplementationGuideInstallLedgerEntity.class.getPackageName();
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ImplementationGuideInstallLedger.class);
+
+	private final EntityManager myEntityManager;
+	private final TransactionTemplate myTransactionTemplate;
+
+	public ImplementationGuideInstallLedger(
+			EntityManagerFactory theEntityManagerFactory, PlatformTransactionManager theTransactionManager) {
+		myEntityManager = SharedEntityManagerCreator.createSharedEntityManager(theEntityManagerFactory);
+		myTransactionTemplate = new TransactionTemplate(theTransactionManager);
+	}
+
+	/**
+	 * @return <code>true</code> if the guide was installed before with the same contents and options
+	 */
+	public boolean isInstalled(ExtendedPackageInstallationSpec theSpec, byte[] thePackageContents) {
+		if (thePackageContents == null) {
+			return false;
+		}
+		ImplementationGuideInstallLedgerEntity stored;
+		try {
+			stored = myTransactionTemplate.execute(status -> myEntityManager.find(
+					ImplementationGuideInstallLedgerEntity.class,
+					new ImplementationGuideInstallLedgerEntity.PackageKey(theSpec.getName(), theSpec.getVersion())));
+		} catch (RuntimeException e) {
+			ourLog.warn(
+					"Could not read the install ledger, installing {} again: {}", theSpec.getName(), e.getMessage());
+			return false;
+		}
+		return stored != null && stored.getFingerprint().equals(fingerprint(theSpec, thePackageContents));
+	}
+
+	public void recordInstalled(ExtendedPackageInstallationSpec theSpec, byte[] thePackageContents) {
+		if (thePackageContents == null) {
+			return;
+		}
+		String fingerprint = fingerprint(theSpec, thePackageContents);
+		try {
+			doRecordInstalled(theSpec, fingerprint);
+		} catch (RuntimeException e) {
+			// The guide is installed all the same, it is only installed again on the next startup
+			ourLog.warn(
+					"Could not record {} in the install ledger, see the table STARTER_IG_INSTALL_LEDGER: {}",
+					theSpec.getName(),
+					e.getMessage());
+		}
+	}
+
+	private void doRecordInstalled(ExtendedPackageInstallationSpec theSpec, String theFingerprint) {
+		myTransactionTemplate.executeWithoutResult(status -> {
+			ImplementationGuideInstallLedgerEntity entry = myEntityManager.find(
+					ImplementationGuideInstallLedgerEntity.class,
+					new ImplementationGuideInstallLedgerEntity.PackageKey(theSpec.getName(), theSpec.getVersion()));
+			boolean created = entry == null;
+			if (created) {
+				entry = new ImplementationGuideInstallLedgerEntity(theSpec.getName(), theSpec.getVersion());
+			}
+			entry.setFingerprint(theFingerprint);
+			entry.setInstalledAt(System.currentTimeMillis());
+			if (created) {
+				myEntityManager.persist(entry);
+			}
+		});
+	}
+
+	static String fingerprint(ExtendedPackageInstallationSpec theSpec, byte[] thePackageContents) {
+		StringBuilder b = new StringBuilder();
+		b.append(DigestUtils.sha256Hex(thePackageContents)).append('\n');
+		b.append(theSpec.getInstallMode()).append('\n');
+		b.append(theSpec.isFetchDependencies()).append('\n');
+		b.append(theSpec.isReloadExisting()).append('\n');
+		b.append(theSpec.getPackageUrl()).append('\n');
+		b.append(sorted(theSpec.getInstallResourceTypes())).append('\n');
+		b.append(sorted(theSpec.getDependencyExcludes())).append('\n');
+		b.append(sorted(theSpec.getAdditionalResourceFolders()));
+		return DigestUtils.sha256Hex(b.toString());
+	}
+
+	private static TreeSet<String> sorted(Collection<String> theValues) {
+		return theValues != null ? new TreeSet<>(theValues) : new TreeSet<>();
+	}
+}
@@ -0,0 +1,94 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Table;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * An implementation guide installed into this server's database, with the fingerprint of its contents and options.
+ * Part of the HAPI persistence unit, but not of the HAPI schema migrations: the table is only created by Hibernate
+ * with <code>hibernate.hbm2ddl.auto: update</code>, and must be created manually otherwise.
+ */
+@Entity
+@Table(name = "STARTER_IG_INSTALL_LEDGER")
+@IdClass(ImplementationGuideInstallLedgerEntity.PackageKey.class)
+public class ImplementationGuideInstallLedgerEntity {
+
+	@Id
+	@Column(name = "PACKAGE_NAME", length = 200, nullable = false)
+	private String myPackageName;
+
+	@Id
+	@Column(name = "PACKAGE_VERSION", length = 200, nullable = false)
+	private String myPackageVersion;
+
+	@Column(name = "FINGERPRINT", length = 64, nullable = false)
+	private String myFingerprint;
+
+	@Column(name = "INSTALLED_AT", nullable = false)
+	private long myInstalledAt;
+
+	protected ImplementationGuideInstallLedgerEntity() {
+		// For JPA
+	}
+
+	ImplementationGuideInstallLedgerEntity(String thePackageName, String thePackageVersion) {
+		myPackageName = thePackageName;
+		myPackageVersion = thePackageVersion;
+	}
+
+	public String getPackageName() {
+		return myPackageName;
+	}
+
+	public String getPackageVersion() {
+		return myPackageVersion;
+	}
+
+	public String getFingerprint() {
+		return myFingerprint;
+	}
+
+	void setFingerprint(String theFingerprint) {
+		myFingerprint = theFingerprint;
+	}
+
+	public long getInstalledAt() {
+		return myInstalledAt;
+	}
+
+	void setInstalledAt(long theInstalledAt) {
+		myInstalledAt = theInstalledAt;
+	}
+
+	public static class PackageKey implements Serializable {
+		private String myPackageName;
+		private String myPackageVersion;
+
+		public PackageKey() {
+			// For JPA
+		}
+
+		PackageKey(String thePackageName, String thePackageVersion) {
+			myPackageName = thePackageName;
+			myPackageVersion = thePackageVersion;
+		}
+
+		@Override
+		public boolean equals(Object theOther) {
+			return theOther instanceof PackageKey other
+					&& Objects.equals(myPackageName, other.myPackageName)
+					&& Objects.equals(myPackageVersion, other.myPackageVersion);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(myPackageName, myPackageVersion);
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Installs the implementation guides configured in <code>hapi.fhir.implementationguides</code>, running
+ * independent guides concurrently.
+ * <p>
+ * The dependency closure of every guide is read from the package cache first. A guide is installed only after
+ * the configured guides it depends on, and two guides whose closures share a package are never installed at the
+ * same time, since both would store the resources of that package. Guides whose closure cannot be determined are
+ * installed after all guides configured before them. {@link #installAll(Map)} returns once every guide is installed
+ * and fails with the first installation error.
+ * <p>
+ * If an {@link ImplementationGuideInstallLedger} is given, guides that were installed before with the same package
+ * contents and options are skipped, unless a reinstall is forced.
+ */
+public class ImplementationGuideInstaller {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ImplementationGuideInstaller.class);
+
+	private final IPackageInstallerSvc myPackageInstallerSvc;
+	private final IHapiPackageCacheManager myPackageCacheManager;
+	private final AdditionalResourceLoader myAdditionalResourceLoader;
+	private final int myParallelism;
+	private final ImplementationGuideInstallLedger myLedger;
+	private final boolean myForceReinstall;
+
+	public ImplementationGuideInstaller(
+			IPackageInstallerSvc thePackageInstallerSvc,
+			IHapiPackageCacheManager thePackageCacheManager,
+			AdditionalResourceLoader theAdditionalResourceLoader,
+			int theParallelism,
+			ImplementationGuideInstallLedger theLedger,
+			boolean theForceReinstall) {
+		myPackageInstallerSvc = thePackageInstallerSvc;
+		myPackageCacheManager = thePackageCacheManager;
+		myAdditionalResourceLoader = theAdditionalResourceLoader;
+		myParallelism = Math.max(1, theParallelism);
+		myLedger = theLedger;
+		myForceReinstall = theForceReinstall;
+	}
+
+	public void installAll(Map<String, ExtendedPackageInstallationSpec> theGuides) {
+		long start = System.currentTimeMillis();
+		List<String> keys = new ArrayList<>();
+		List<String> skipped = new ArrayList<>();
+		for (Map.Entry<String, ExtendedPackageInstallationSpec> next : theGuides.entrySet()) {
+			if (isUnchanged(next.getValue())) {
+				skipped.add(next.getKey());
+			} else {
+				keys.add(next.getKey());
+			}
+		}
+		if (!skipped.isEmpty()) {
+			ourLog.info("Skipping unchanged implementation guides {}", skipped);
+		}
+		if (keys.isEmpty()) {
+			return;
+		}
+		Map<String, Set<String>> closures = new LinkedHashMap<>();
+		for (String key : keys) {
+			closures.put(key, dependencyClosure(theGuides.get(key)));
+		}
+		Map<String, Set<String>> predecessors = predecessors(keys, theGuides, closures);
+
+		Map<String, Long> timings = new ConcurrentHashMap<>();
+		Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+		AtomicInteger threadCounter = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(myParallelism, keys.size()), r -> {
+			Thread t = new Thread(r, "ig-install-" + threadCounter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			for (String key : topologicalOrder(keys, predecessors)) {
+				CompletableFuture<?>[] before = predecessors.get(key).stream()
+						.map(futures::get)
+						.toArray(CompletableFuture[]::new);
+				futures.put(
+						key,
+						CompletableFuture.allOf(before)
+								.thenRunAsync(() -> timings.put(key, install(key, theGuides.get(key))), executor));
+			}
+			CompletableFuture.allOf(futures.values().toArray(CompletableFuture[]::new))
+					.join();
+		} catch (CompletionException e) {
+			throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+		} finally {
+			executor.shutdownNow();
+		}
+
+		StringBuilder report = new StringBuilder();
+		keys.forEach(key -> report.append("\n * ")
+				.append(key)
+				.append(" (")
+				.append(theGuides.get(key).getName())
+				.append('#')
+				.append(theGuides.get(key).getVersion())
+				.append("): ")
+				.append(timings.get(key))
+				.append("ms"));
+		ourLog.info(
+				"Installed {} implementation guides in {}ms:{}",
+				keys.size(),
+				System.currentTimeMillis() - start,
+				report);
+	}
+
+	private long install(String theKey, ExtendedPackageInstallationSpec theSpec) {
+		long start = System.currentTimeMillis();
+		ourLog.info("Installing implementation guide {} ({}#{})", theKey, theSpec.getName(), theSpec.getVersion());
+
+		myPackageInstallerSvc.install(theSpec);
+
+		Set<String> extraResources = theSpec.getAdditionalResourceFolders();
+		theSpec.setPackageContents(myPackageCacheManager
+				.loadPackageContents(theSpec.getName(), theSpec.getVersion())
+				.getBytes());
+
+		if (extraResources != null && !extraResources.isEmpty()) {
+			myAdditionalResourceLoader.load(theSpec);
+		}
+
+		if (myLedger != null) {
+			myLedger.recordInstalled(theSpec, theSpec.getPackageContents());
+		}
+
+		long elapsed = System.currentTimeMillis() - start;
+		ourLog.info("Installed implementation guide {} in {}ms", theKey, elapsed);
+		return elapsed;
+	}
+
+	private boolean isUnchanged(ExtendedPackageInstallationSpec theSpec) {
+		if (myLedger == null || myForceReinstall) {
+			return false;
+		}
+		try {
+			IHapiPackageCacheManager.PackageContents contents =
+					myPackageCacheManager.loadPackageContents(theSpec.getName(), theSpec.getVersion());
+			byte[] bytes = contents != null ? contents.getBytes() : null;
+			if (myLedger.isInstalled(theSpec, bytes)) {
+				theSpec.setPackageContents(bytes);
+				return true;
+			}
+		} catch (Exception e) {
+			ourLog.debug("Could not check whether {} is already installed", theSpec.getName(), e);
+		}
+		return false;
+	}
+
+	/**
+	 * @return the names of the package and of all packages it will install as dependencies, or <code>null</code>
+	 * if they cannot be determined
+	 */
+	private Set<String> dependencyClosure(ExtendedPackageInstallationSpec theSpec) {
+		Set<String> retVal = new HashSet<>();
+		retVal.add(theSpec.getName());
+		if (!theSpec.isFetchDependencies()) {
+			return retVal;
+		}
+		try {
+			Deque<NpmPackage> queue = new ArrayDeque<>();
+			queue.add(myPackageCacheManager.installPackage(theSpec));
+			while (!queue.isEmpty()) {
+				for (String dependency : queue.poll().dependencies()) {
+					int separator = dependency.indexOf('#');
+					String name = separator > 0 ? dependency.substring(0, separator) : dependency;
+					String version = separator > 0 ? dependency.substring(separator + 1) : null;
+					if (!isExcluded(theSpec, name) && retVal.add(name)) {
+						queue.add(myPackageCacheManager.loadPackage(name, version));
+					}
+				}
+			}
+			return retVal;
+		} catch (Exception e) {
+			ourLog.warn(
+					"Could not determine the dependencies of {}#{}, it will not be installed concurrently: {}",
+					theSpec.getName(),
+					theSpec.getVersion(),
+					e.toString());
+			return null;
+		}
+	}
+
+	private static boolean isExcluded(ExtendedPackageInstallationSpec theSpec, String theName) {
+		for (String exclude : theSpec.getDependencyExcludes()) {
+			try {
+				if (exclude.equals(theName) || theName.matches(exclude)) {
+					return true;
+				}
+			} catch (PatternSyntaxException e) {
+				// Not a pattern, compared literally above
+			}
+		}
+		return false;
+	}
+
+	private static Map<String, Set<String>> predecessors(
+			List<String> theKeys,
+			Map<String, ExtendedPackageInstallationSpec> theGuides,
+			Map<String, Set<String>> theClosures) {
+		Map<String, Set<String>> retVal = new LinkedHashMap<>();
+		theKeys.forEach(key -> retVal.put(key, new HashSet<>()));
+		for (int i = 0; i < theKeys.size(); i++) {
+			for (int j = i + 1; j < theKeys.size(); j++) {
+				String first = theKeys.get(i);
+				String second = theKeys.get(j);
+				Set<String> firstClosure = theClosures.get(first);
+				Set<String> secondClosure = theClosures.get(second);
+				if (firstClosure == null || secondClosure == null) {
+					retVal.get(second).add(first);
+				} else if (firstClosure.contains(theGuides.get(second).getName())) {
+					retVal.get(first).add(second);
+				} else if (secondClosure.contains(theGuides.get(first).getName())
+						|| !Collections.disjoint(firstClosure, secondClosure)) {
+					retVal.get(second).add(first);
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Orders the guides so that every guide comes after its predecessors. Should the dependencies of the packages
+	 * form a cycle, the guides involved are appended in configuration order and their ordering edges are dropped.
+	 */
+	private static List<String> topologicalOrder(List<String> theKeys, Map<String, Set<String>> thePredecessors) {
+		List<String> retVal = new ArrayList<>();
+		Set<String> done = new HashSet<>();
+		boolean progress = true;
+		while (progress) {
+			progress = false;
+			for (String key : theKeys) {
+				if (!done.contains(key) && done.containsAll(thePredecessors.get(key))) {
+					retVal.add(key);
+					done.add(key);
+					progress = true;
+				}
+			}
+		}
+		for (String key : theKeys) {
+			if (done.add(key)) {
+				ourLog.warn("Implementation guide {} is part of a dependency cycle", key);
+				thePredecessors.get(key).retainAll(new HashSet<>(retVal));
+				retVal.add(key);
+			}
+		}
+		return retVal;
+	}
+}
@@ -1,10 +1,13 @@
 package ca.uhn.fhir.jpa.starter.ig;
 
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
 import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
 import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.annotations.OnR4Condition;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
+import jakarta.servlet.http.HttpServletRequest;
 import org.hl7.fhir.r4.model.Base64BinaryType;
 import org.hl7.fhir.r4.model.Parameters;
 import org.springframework.context.annotation.Conditional;
@@ -17,9 +20,15 @@ import java.io.IOException;
 public class ImplementationGuideR4OperationProvider implements IImplementationGuideOperationProvider {
 
 	IPackageInstallerSvc packageInstallerSvc;
+	StreamingPackageInstaller streamingPackageInstaller;
 
-	public ImplementationGuideR4OperationProvider(IPackageInstallerSvc packageInstallerSvc) {
+	public ImplementationGuideR4OperationProvider(
+			IPackageInstallerSvc packageInstallerSvc,
+			IHapiPackageCacheManager packageCacheManager,
+			AppProperties appProperties) {
 		this.packageInstallerSvc = packageInstallerSvc;
+		this.streamingPackageInstaller = new StreamingPackageInstaller(
+				packageInstallerSvc, packageCacheManager, appProperties.getIg_runtime_upload_max_bytes());
 	}
 
 	@Operation(name = "$install", typeName = "ImplementationGuide")
@@ -35,6 +44,19 @@ public class ImplementationGuideR4OperationProvider implements IImplementationGu
 		return new Parameters();
 	}
 
+	/**
+	 * Installs the npm package sent as the raw request body (e.g. <code>Content-Type: application/gzip</code>)
+	 */
+	@Operation(name = "$install-package", typeName = "ImplementationGuide", manualRequest = true)
+	public Parameters installPackage(HttpServletRequest request) {
+		try {
+			streamingPackageInstaller.install(request.getInputStream(), request.getContentLengthLong());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return new Parameters();
+	}
+
 	@Operation(name = "$uninstall", typeName = "ImplementationGuide")
 	public Parameters uninstall(
 			@OperationParam(name = "name", min = 1, max = 1) String name,
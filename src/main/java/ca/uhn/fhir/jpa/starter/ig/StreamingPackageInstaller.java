@@ -0,0 +1,128 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Installs an npm package (<code>package.tgz</code>) sent as the raw request body.
+ * <p>
+ * The body is copied to a temporary file, and rejected once it exceeds the configured maximum size. Only the
+ * <code>package.json</code> entry is read from the archive to determine the name and version the package cache
+ * requires. The package is then added to the package cache from the file and installed from there. This avoids the
+ * base64 encoded and decoded copies of the package made by <code>$install</code>, but the package cache still holds
+ * the whole package in memory while storing and installing it, so the maximum size bounds the memory of an upload.
+ */
+public class StreamingPackageInstaller {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(StreamingPackageInstaller.class);
+	private static final String MANIFEST_ENTRY = "package/package.json";
+
+	private final IPackageInstallerSvc myPackageInstallerSvc;
+	private final IHapiPackageCacheManager myPackageCacheManager;
+	private final long myMaxBytes;
+
+	/**
+	 * @param theMaxBytes the maximum size of an uploaded package, or 0 for no limit
+	 */
+	public StreamingPackageInstaller(
+			IPackageInstallerSvc thePackageInstallerSvc,
+			IHapiPackageCacheManager thePackageCacheManager,
+			long theMaxBytes) {
+		myPackageInstallerSvc = thePackageInstallerSvc;
+		myPackageCacheManager = thePackageCacheManager;
+		myMaxBytes = theMaxBytes;
+	}
+
+	/**
+	 * @param theContentLength the declared length of the body, or -1 if unknown
+	 */
+	public PackageInstallationSpec install(InputStream thePackageStream, long theContentLength) throws IOException {
+		if (myMaxBytes > 0 && theContentLength > myMaxBytes) {
+			throw tooLarge();
+		}
+		Path file = Files.createTempFile("ig-upload-", ".tgz");
+		try {
+			long size = spool(thePackageStream, file);
+			JsonNode manifest = readManifest(file);
+			String name = manifest.path("name").asText(null);
+			String version = manifest.path("version").asText(null);
+			if (name == null || version == null) {
+				throw new InvalidRequestException("The package.json of the uploaded package has no name or version");
+			}
+			ourLog.info("Received package {}#{} ({} bytes)", name, version, size);
+
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+				myPackageCacheManager.addPackageToCache(name, version, in, "upload");
+			}
+			PackageInstallationSpec spec = new PackageInstallationSpec()
+					.setName(name)
+					.setVersion(version)
+					.setInstallMode(PackageInstallationSpec.InstallModeEnum.STORE_AND_INSTALL)
+					.setFetchDependencies(false);
+			myPackageInstallerSvc.install(spec);
+			return spec;
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Copies the body to the file, and stops as soon as it is larger than allowed
+	 */
+	private long spool(InputStream theInputStream, Path theFile) throws IOException {
+		byte[] buffer = new byte[8192];
+		long retVal = 0;
+		try (OutputStream out = Files.newOutputStream(theFile)) {
+			int read;
+			while ((read = theInputStream.read(buffer)) != -1) {
+				retVal += read;
+				if (myMaxBytes > 0 && retVal > myMaxBytes) {
+					throw tooLarge();
+				}
+				out.write(buffer, 0, read);
+			}
+		}
+		return retVal;
+	}
+
+	private PayloadTooLargeException tooLarge() {
+		return new PayloadTooLargeException(
+				"The uploaded package is larger than the maximum of " + myMaxBytes + " bytes");
+	}
+
+	/**
+	 * Reads the archive entry by entry until <code>package/package.json</code> is found, without unpacking the rest
+	 */
+	private static JsonNode readManifest(Path theFile) throws IOException {
+		try (TarArchiveInputStream tar = new TarArchiveInputStream(
+				new GzipCompressorInputStream(new BufferedInputStream(Files.newInputStream(theFile))))) {
+			TarArchiveEntry entry;
+			while ((entry = tar.getNextEntry()) != null) {
+				if (MANIFEST_ENTRY.equals(entry.getName())) {
+					return new ObjectMapper().readTree(CloseShieldInputStream.wrap(tar));
+				}
+			}
+		} catch (IOException e) {
+			throw new InvalidRequestException("The uploaded content is not a valid npm package: " + e.getMessage());
+		}
+		throw new InvalidRequestException("The uploaded package contains no " + MANIFEST_ENTRY);
+	}
+}
@@ -0,0 +1,194 @@
+package ca.uhn.fhir.jpa.starter.search;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.ISearchBuilder;
+import ca.uhn.fhir.jpa.dao.SearchBuilderFactory;
+import ca.uhn.fhir.jpa.dao.tx.IHapiTransactionService;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.searchparam.MatchUrlService;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.common.RequestDeadline;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.IPreResourceAccessDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SimplePreResourceAccessDetails;
+import ca.uhn.fhir.rest.server.interceptor.ServerInterceptorUtil;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.rest.server.util.CompositeInterceptorBroadcaster;
+import ca.uhn.fhir.util.UrlUtil;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Runs searches directly against the JPA search builder, bypassing the search coordinator and the stored search
+ * results behind the paging provider. The matching resource IDs are read from a database cursor, so the caller
+ * decides how many resources are loaded and when.
+ * <p>
+ * Requests handled this way never reach their handler method, so the hooks that method usually invokes are invoked
+ * from here: {@link #firePreHandled(ServletRequestDetails)} for the request, and
+ * {@link #filterForDisplay(ServletRequestDetails, List)} for the loaded resources. Together they let authorization
+ * and consent interceptors act as for any other search.
+ */
+public class DirectSearchSvc {
+
+	private final FhirContext myFhirContext;
+	private final DaoRegistry myDaoRegistry;
+	private final MatchUrlService myMatchUrlService;
+	private final SearchBuilderFactory<JpaPid> mySearchBuilderFactory;
+	private final IHapiTransactionService myTransactionService;
+	private final IInterceptorBroadcaster myInterceptorBroadcaster;
+
+	@PersistenceContext
+	private EntityManager myEntityManager;
+
+	/**
+	 * @param theInterceptorBroadcaster the JPA interceptor service
+	 */
+	public DirectSearchSvc(
+			FhirContext theFhirContext,
+			DaoRegistry theDaoRegistry,
+			MatchUrlService theMatchUrlService,
+			SearchBuilderFactory<JpaPid> theSearchBuilderFactory,
+			IHapiTransactionService theTransactionService,
+			IInterceptorBroadcaster theInterceptorBroadcaster) {
+		myFhirContext = theFhirContext;
+		myDaoRegistry = theDaoRegistry;
+		myMatchUrlService = theMatchUrlService;
+		mySearchBuilderFactory = theSearchBuilderFactory;
+		myTransactionService = theTransactionService;
+		myInterceptorBroadcaster = theInterceptorBroadcaster;
+	}
+
+	/**
+	 * Turns the search parameters of a request into a search
+	 *
+	 * @param theIgnoredParameters parameters that control the response rather than the search, e.g.
+	 *                             <code>_count</code>
+	 */
+	public SearchParameterMap translate(
+			String theResourceName, Map<String, String[]> theParameters, Set<String> theIgnoredParameters) {
+		StringBuilder query = new StringBuilder(theResourceName).append('?');
+		for (Map.Entry<String, String[]> next : theParameters.entrySet()) {
+			if (theIgnoredParameters.contains(next.getKey())) {
+				continue;
+			}
+			for (String value : next.getValue()) {
+				query.append(next.getKey()).append('=').append(UrlUtil.escapeUrlParam(value)).append('&');
+			}
+		}
+		RuntimeResourceDefinition resourceDefinition = myFhirContext.getResourceDefinition(theResourceName);
+		return myMatchUrlService.translateMatchUrl(query.toString(), resourceDefinition);
+	}
+
+	/**
+	 * Lets the interceptors checking incoming requests (e.g. authorization) check a search of the resource type
+	 */
+	public void firePreHandled(ServletRequestDetails theRequestDetails) {
+		theRequestDetails
+				.getInterceptorBroadcaster()
+				.callHooks(
+						Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED,
+						new HookParams()
+								.add(RequestDetails.class, theRequestDetails)
+								.add(ServletRequestDetails.class, theRequestDetails)
+								.add(RestOperationTypeEnum.class, RestOperationTypeEnum.SEARCH_TYPE));
+	}
+
+	/**
+	 * Runs the search in a read-only transaction and hands the IDs of the matching resources to the consumer. The
+	 * cursor is open until the consumer returns, and resources may only be loaded within it.
+	 */
+	public void search(
+			RequestDetails theRequestDetails,
+			String theResourceName,
+			SearchParameterMap theSearchParameterMap,
+			Consumer<PidCursor> theConsumer) {
+		IFhirResourceDao<?> dao = myDaoRegistry.getResourceDao(theResourceName);
+		ISearchBuilder<JpaPid> searchBuilder = mySearchBuilderFactory.newSearchBuilder(
+				theResourceName, myFhirContext.getResourceDefinition(theResourceName).getImplementingClass());
+		myTransactionService.withRequest(theRequestDetails).readOnly().execute(() -> {
+			try (Stream<JpaPid> pids = dao.searchForIdStream(theSearchParameterMap, theRequestDetails, null)) {
+				theConsumer.accept(new PidCursor(pids.iterator(), searchBuilder, theRequestDetails));
+			}
+		});
+	}
+
+	/**
+	 * Applies {@link Pointcut#STORAGE_PREACCESS_RESOURCES} and {@link Pointcut#STORAGE_PRESHOW_RESOURCES} to loaded
+	 * resources, which may remove or mask resources the client may not see
+	 */
+	public List<IBaseResource> filterForDisplay(
+			ServletRequestDetails theRequestDetails, List<IBaseResource> theResources) {
+		IInterceptorBroadcaster broadcaster =
+				CompositeInterceptorBroadcaster.newCompositeBroadcaster(myInterceptorBroadcaster, theRequestDetails);
+		if (broadcaster.hasHooks(Pointcut.STORAGE_PREACCESS_RESOURCES)) {
+			SimplePreResourceAccessDetails accessDetails = new SimplePreResourceAccessDetails(theResources);
+			broadcaster.callHooks(
+					Pointcut.STORAGE_PREACCESS_RESOURCES,
+					new HookParams()
+							.add(IPreResourceAccessDetails.class, accessDetails)
+							.add(RequestDetails.class, theRequestDetails)
+							.add(ServletRequestDetails.class, theRequestDetails));
+			accessDetails.applyFilterToList();
+		}
+		return ServerInterceptorUtil.fireStoragePreshowResource(theResources, theRequestDetails, broadcaster);
+	}
+
+	/**
+	 * The IDs of the resources matching a search, in the order of the search
+	 */
+	public class PidCursor implements Iterator<JpaPid> {
+		private final Iterator<JpaPid> myPids;
+		private final ISearchBuilder<JpaPid> mySearchBuilder;
+		private final RequestDetails myRequestDetails;
+
+		private PidCursor(
+				Iterator<JpaPid> thePids,
+				ISearchBuilder<JpaPid> theSearchBuilder,
+				RequestDetails theRequestDetails) {
+			myPids = thePids;
+			mySearchBuilder = theSearchBuilder;
+			myRequestDetails = theRequestDetails;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return myPids.hasNext();
+		}
+
+		@Override
+		public JpaPid next() {
+			return myPids.next();
+		}
+
+		/**
+		 * Loads the resources with the given IDs, in the same order, unless the request is past its deadline
+		 */
+		public List<IBaseResource> load(List<JpaPid> thePids) {
+			RequestDeadline.checkCurrent();
+			return mySearchBuilder.loadResourcesByPid(thePids, myRequestDetails);
+		}
+
+		/**
+		 * Detaches the resources loaded so far, which would otherwise pile up in the persistence context while the
+		 * cursor is open
+		 */
+		public void releaseLoaded() {
+			myEntityManager.clear();
+		}
+	}
+}
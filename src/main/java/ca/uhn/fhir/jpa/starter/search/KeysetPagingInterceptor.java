@@ -0,0 +1,415 @@
+package ca.uhn.fhir.jpa.starter.search;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.api.BundleInclusionRule;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.valueset.BundleTypeEnum;
+import ca.uhn.fhir.rest.api.BundleLinks;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.IVersionSpecificBundleFactory;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.fhir.util.UrlUtil;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Pages through searches sorted by <code>_lastUpdated</code> (ascending or descending) by keyset instead of by offset.
+ * The <code>next</code> link carries the sort key of the last resource of the page in an opaque <code>_keyset</code>
+ * parameter, and the next page is read directly from the database starting at that key. Neither the search nor its
+ * results are stored, and every page costs about the same as the first one.
+ * <p>
+ * Resources last updated at the same instant are ordered by their internal ID, so no resource is returned twice or
+ * skipped while paging. A page after a keyset is read by two queries: the resources updated at the instant of the
+ * keyset, whose IDs up to the keyset are skipped on the cursor without loading them, and then the resources updated
+ * strictly after that instant. Resources updated while a client pages through the results move to the end of an
+ * ascending search, and may show up again there. Pages have no <code>previous</code> link and the Bundle has no total.
+ * <p>
+ * Searches with <code>_include</code>, <code>_revinclude</code>, <code>_total</code>, <code>_offset</code> or
+ * <code>_summary=count</code>, and searches sorted otherwise, are left to the paging provider. Authorization and
+ * consent interceptors apply as for paged searches, see {@link DirectSearchSvc}.
+ * <p>
+ * This class must be registered with the RestfulServer.
+ */
+@Interceptor
+public class KeysetPagingInterceptor {
+
+	public static final String PARAM_KEYSET = "_keyset";
+	private static final Set<String> RESPONSE_PARAMETERS = Set.of(
+			Constants.PARAM_FORMAT,
+			Constants.PARAM_PRETTY,
+			Constants.PARAM_COUNT,
+			Constants.PARAM_SUMMARY,
+			Constants.PARAM_ELEMENTS,
+			Constants.PARAM_SORT,
+			PARAM_KEYSET);
+	private static final Set<String> UNSUPPORTED_PARAMETERS = Set.of(
+			Constants.PARAM_INCLUDE,
+			Constants.PARAM_INCLUDE_ITERATE,
+			Constants.PARAM_INCLUDE_RECURSE,
+			Constants.PARAM_REVINCLUDE,
+			Constants.PARAM_REVINCLUDE_ITERATE,
+			Constants.PARAM_REVINCLUDE_RECURSE,
+			Constants.PARAM_SEARCH_TOTAL_MODE,
+			Constants.PARAM_OFFSET);
+
+	private final FhirContext myFhirContext;
+	private final DirectSearchSvc myDirectSearchSvc;
+	private final int myDefaultPageSize;
+	private final int myMaxPageSize;
+
+	public KeysetPagingInterceptor(
+			FhirContext theFhirContext,
+			DirectSearchSvc theDirectSearchSvc,
+			int theDefaultPageSize,
+			int theMaxPageSize) {
+		myFhirContext = theFhirContext;
+		myDirectSearchSvc = theDirectSearchSvc;
+		myDefaultPageSize = theDefaultPageSize;
+		myMaxPageSize = theMaxPageSize;
+	}
+
+	/**
+	 * Runs after the interceptors narrowing or rejecting the request, and before the response caches
+	 */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MAX_VALUE - 1)
+	public boolean searchByKeyset(
+			ServletRequestDetails theRequestDetails,
+			HttpServletRequest theServletRequest,
+			HttpServletResponse theServletResponse)
+			throws IOException {
+		SortOrderEnum order = keysetOrderOf(theRequestDetails);
+		if (order == null) {
+			return true;
+		}
+		int pageSize = pageSizeOf(theRequestDetails);
+		if (pageSize == 0) {
+			return true;
+		}
+
+		String[] keysetValues = theRequestDetails.getParameters().get(PARAM_KEYSET);
+		Keyset after = keysetValues != null && keysetValues.length > 0 ? Keyset.parse(keysetValues[0]) : null;
+		SortSpec sort = new SortSpec(Constants.PARAM_LASTUPDATED, order, new SortSpec(Constants.PARAM_PID, order));
+		SearchParameterMap searchParameterMap = translate(theRequestDetails, sort);
+		SearchParameterMap ties = null;
+		boolean searchRest = true;
+		if (after != null) {
+			ties = tiesOf(translate(theRequestDetails, sort), after);
+			searchRest = startAfter(searchParameterMap, after, order);
+		}
+		myDirectSearchSvc.firePreHandled(theRequestDetails);
+
+		List<IBaseResource> page = new ArrayList<>(pageSize);
+		Keyset[] last = new Keyset[1];
+		boolean hasMore = false;
+		if (ties != null) {
+			hasMore = readPage(theRequestDetails, ties, after, order, pageSize, page, last);
+		}
+		if (!hasMore && searchRest) {
+			hasMore = readPage(theRequestDetails, searchParameterMap, null, order, pageSize, page, last);
+		}
+
+		List<IBaseResource> resources = new ArrayList<>(myDirectSearchSvc.filterForDisplay(theRequestDetails, page));
+		resources.removeIf(Objects::isNull);
+		String next = hasMore && last[0] != null ? nextLink(theRequestDetails, theServletRequest, last[0]) : null;
+		IBaseResource bundle = toBundle(theRequestDetails, resources, next);
+
+		ResponseDetails responseDetails = new ResponseDetails(bundle);
+		responseDetails.setResponseCode(HttpServletResponse.SC_OK);
+		boolean proceed = theRequestDetails
+				.getInterceptorBroadcaster()
+				.callHooks(
+						Pointcut.SERVER_OUTGOING_RESPONSE,
+						new HookParams()
+								.add(RequestDetails.class, theRequestDetails)
+								.add(ServletRequestDetails.class, theRequestDetails)
+								.add(IBaseResource.class, bundle)
+								.add(ResponseDetails.class, responseDetails)
+								.add(HttpServletRequest.class, theServletRequest)
+								.add(HttpServletResponse.class, theServletResponse));
+		if (proceed) {
+			RestfulServerUtils.streamResponseAsResource(
+					theRequestDetails.getServer(),
+					responseDetails.getResponseResource(),
+					RestfulServerUtils.determineSummaryMode(theRequestDetails),
+					responseDetails.getResponseCode(),
+					false,
+					theRequestDetails.isRespondGzip(),
+					theRequestDetails);
+		}
+		return false;
+	}
+
+	/**
+	 * @return the sort order of a search that can be paged by keyset, or <code>null</code>
+	 */
+	private static SortOrderEnum keysetOrderOf(ServletRequestDetails theRequestDetails) {
+		if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.SEARCH_TYPE
+				|| theRequestDetails.getRequestType() != RequestTypeEnum.GET) {
+			return null;
+		}
+		Map<String, String[]> parameters = theRequestDetails.getParameters();
+		String[] sort = parameters.get(Constants.PARAM_SORT);
+		if (sort == null || sort.length != 1) {
+			return null;
+		}
+		for (String next : parameters.keySet()) {
+			if (UNSUPPORTED_PARAMETERS.contains(next)) {
+				return null;
+			}
+		}
+		if (RestfulServerUtils.determineSummaryMode(theRequestDetails).contains(SummaryEnum.COUNT)) {
+			return null;
+		}
+		RestfulServerUtils.ResponseEncoding encoding =
+				RestfulServerUtils.determineResponseEncodingNoDefault(theRequestDetails, null);
+		if (encoding != null && encoding.getEncoding() == EncodingEnum.NDJSON) {
+			return null;
+		}
+
+		if (sort[0].equals(Constants.PARAM_LASTUPDATED)) {
+			return SortOrderEnum.ASC;
+		} else if (sort[0].equals("-" + Constants.PARAM_LASTUPDATED)) {
+			return SortOrderEnum.DESC;
+		}
+		return null;
+	}
+
+	private int pageSizeOf(RequestDetails theRequestDetails) {
+		String[] count = theRequestDetails.getParameters().get(Constants.PARAM_COUNT);
+		if (count == null || count.length == 0) {
+			return Math.min(myDefaultPageSize, myMaxPageSize);
+		}
+		try {
+			return Math.min(Math.max(0, Integer.parseInt(count[0])), myMaxPageSize);
+		} catch (NumberFormatException e) {
+			throw new InvalidRequestException("Invalid " + Constants.PARAM_COUNT + " value: " + count[0]);
+		}
+	}
+
+	private SearchParameterMap translate(RequestDetails theRequestDetails, SortSpec theSort) {
+		SearchParameterMap retVal = myDirectSearchSvc.translate(
+				theRequestDetails.getResourceName(), theRequestDetails.getParameters(), RESPONSE_PARAMETERS);
+		retVal.setSort(theSort);
+		return retVal;
+	}
+
+	/**
+	 * Reads resources of a search into the page until it is full
+	 *
+	 * @param theTiesAfter for a search of the resources updated at the instant of this keyset, the keyset whose ID
+	 *                     the resources must come after. These are skipped by their ID, without loading them.
+	 * @return whether the search has more results
+	 */
+	private boolean readPage(
+			RequestDetails theRequestDetails,
+			SearchParameterMap theSearchParameterMap,
+			Keyset theTiesAfter,
+			SortOrderEnum theOrder,
+			int thePageSize,
+			List<IBaseResource> thePage,
+			Keyset[] theLast) {
+		boolean[] retVal = new boolean[1];
+		String resourceName = theRequestDetails.getResourceName();
+		myDirectSearchSvc.search(theRequestDetails, resourceName, theSearchParameterMap, cursor -> {
+			JpaPid first = null;
+			if (theTiesAfter != null) {
+				while (first == null && cursor.hasNext()) {
+					JpaPid next = cursor.next();
+					Keyset keyset = new Keyset(theTiesAfter.myLastUpdated, next.getId());
+					first = keyset.isAfter(theTiesAfter, theOrder) ? next : null;
+				}
+			}
+			while (thePage.size() < thePageSize && (first != null || cursor.hasNext())) {
+				List<JpaPid> batch = new ArrayList<>();
+				if (first != null) {
+					batch.add(first);
+					first = null;
+				}
+				while (batch.size() < thePageSize - thePage.size() && cursor.hasNext()) {
+					batch.add(cursor.next());
+				}
+				List<IBaseResource> resources = cursor.load(batch);
+				for (int i = 0; i < batch.size() && i < resources.size(); i++) {
+					IBaseResource resource = resources.get(i);
+					if (resource == null) {
+						// Deleted since the search ran
+						continue;
+					}
+					// A tie that was updated since the search ran keeps its place in the order of this page
+					long lastUpdated = theTiesAfter != null ? theTiesAfter.myLastUpdated : lastUpdatedOf(resource);
+					thePage.add(resource);
+					theLast[0] = new Keyset(lastUpdated, batch.get(i).getId());
+				}
+			}
+			retVal[0] = first != null || cursor.hasNext();
+		});
+		return retVal[0];
+	}
+
+	/**
+	 * Restricts a search to the resources updated at the instant of the keyset, which come first on the next page
+	 *
+	 * @return the search, or <code>null</code> if its own <code>_lastUpdated</code> range excludes that instant
+	 */
+	private static SearchParameterMap tiesOf(SearchParameterMap theSearchParameterMap, Keyset theKeyset) {
+		Date instant = new Date(theKeyset.myLastUpdated);
+		DateRangeParam lastUpdated = theSearchParameterMap.getLastUpdated();
+		if (lastUpdated != null) {
+			Date lowerBound = lastUpdated.getLowerBoundAsInstant();
+			Date upperBound = lastUpdated.getUpperBoundAsInstant();
+			boolean excluded = (lowerBound != null && lowerBound.after(instant))
+					|| (upperBound != null && upperBound.before(instant));
+			if (excluded) {
+				return null;
+			}
+		}
+		theSearchParameterMap.setLastUpdated(
+				new DateRangeParam().setLowerBoundInclusive(instant).setUpperBoundInclusive(instant));
+		return theSearchParameterMap;
+	}
+
+	/**
+	 * Restricts the search to resources updated after (or before, when descending) the instant of the keyset, within
+	 * any <code>_lastUpdated</code> range of the search itself
+	 *
+	 * @return <code>false</code> if no resource can follow the keyset within that range
+	 */
+	private static boolean startAfter(
+			SearchParameterMap theSearchParameterMap, Keyset theKeyset, SortOrderEnum theOrder) {
+		DateRangeParam lastUpdated = theSearchParameterMap.getLastUpdated() != null
+				? theSearchParameterMap.getLastUpdated()
+				: new DateRangeParam();
+		Date instant = new Date(theKeyset.myLastUpdated);
+		Date lowerBound = lastUpdated.getLowerBoundAsInstant();
+		Date upperBound = lastUpdated.getUpperBoundAsInstant();
+		if (theOrder == SortOrderEnum.ASC) {
+			if (upperBound != null && !upperBound.after(instant)) {
+				return false;
+			}
+			if (lowerBound == null || !lowerBound.after(instant)) {
+				lastUpdated.setLowerBoundExclusive(instant);
+			}
+		} else {
+			if (lowerBound != null && !lowerBound.before(instant)) {
+				return false;
+			}
+			if (upperBound == null || !upperBound.before(instant)) {
+				lastUpdated.setUpperBoundExclusive(instant);
+			}
+		}
+		theSearchParameterMap.setLastUpdated(lastUpdated);
+		return true;
+	}
+
+	private IBaseResource toBundle(
+			ServletRequestDetails theRequestDetails, List<IBaseResource> theResources, String theNext) {
+		String serverBase = theRequestDetails.getFhirServerBase();
+		BundleLinks links = new BundleLinks(
+				serverBase,
+				Set.of(),
+				RestfulServerUtils.prettyPrintResponse(theRequestDetails.getServer(), theRequestDetails),
+				BundleTypeEnum.SEARCHSET);
+		links.setSelf(theRequestDetails.getCompleteUrl());
+		links.setNext(theNext);
+
+		IVersionSpecificBundleFactory bundleFactory = myFhirContext.newBundleFactory();
+		bundleFactory.addResourcesToBundle(
+				theResources, BundleTypeEnum.SEARCHSET, serverBase, BundleInclusionRule.BASED_ON_INCLUDES, Set.of());
+		bundleFactory.addRootPropertiesToBundle(UUID.randomUUID().toString(), links, null, null);
+		return bundleFactory.getResourceBundle();
+	}
+
+	/**
+	 * Repeats the query of the request, which may have been a keyset page itself, starting after the given keyset
+	 */
+	private static String nextLink(
+			ServletRequestDetails theRequestDetails, HttpServletRequest theServletRequest, Keyset theLast) {
+		StringBuilder retVal = new StringBuilder(theRequestDetails.getFhirServerBase())
+				.append('/')
+				.append(theRequestDetails.getResourceName())
+				.append('?');
+		String queryString = theServletRequest.getQueryString();
+		Map<String, String[]> parameters = queryString != null ? UrlUtil.parseQueryString(queryString) : Map.of();
+		for (Map.Entry<String, String[]> next : parameters.entrySet()) {
+			if (next.getKey().equals(PARAM_KEYSET)) {
+				continue;
+			}
+			for (String value : next.getValue()) {
+				retVal.append(UrlUtil.escapeUrlParam(next.getKey()))
+						.append('=')
+						.append(UrlUtil.escapeUrlParam(value))
+						.append('&');
+			}
+		}
+		return retVal.append(PARAM_KEYSET).append('=').append(theLast.format()).toString();
+	}
+
+	private static long lastUpdatedOf(IBaseResource theResource) {
+		Date lastUpdated = theResource.getMeta().getLastUpdated();
+		return lastUpdated != null ? lastUpdated.getTime() : 0;
+	}
+
+	/**
+	 * The sort key of a resource: the instant it was last updated, and its internal ID for resources updated at the
+	 * same instant
+	 */
+	private static class Keyset {
+		private final long myLastUpdated;
+		private final long myPid;
+
+		private Keyset(long theLastUpdated, long thePid) {
+			myLastUpdated = theLastUpdated;
+			myPid = thePid;
+		}
+
+		private boolean isAfter(Keyset theOther, SortOrderEnum theOrder) {
+			int comparison = myLastUpdated != theOther.myLastUpdated
+					? Long.compare(myLastUpdated, theOther.myLastUpdated)
+					: Long.compare(myPid, theOther.myPid);
+			return theOrder == SortOrderEnum.ASC ? comparison > 0 : comparison < 0;
+		}
+
+		private String format() {
+			return Base64.getUrlEncoder()
+					.withoutPadding()
+					.encodeToString((myLastUpdated + ":" + myPid).getBytes(StandardCharsets.UTF_8));
+		}
+
+		private static Keyset parse(String theValue) {
+			try {
+				String[] parts = new String(Base64.getUrlDecoder().decode(theValue), StandardCharsets.UTF_8).split(":");
+				return new Keyset(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+			} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+				throw new InvalidRequestException("Invalid " + PARAM_KEYSET + " value: " + theValue);
+			}
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package ca.uhn.fhir.jpa.starter.search;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.model.dao.JpaPid;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.common.RequestDeadline;
+import ca.uhn.fhir.jpa.starter.search.DirectSearchSvc.PidCursor;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServerUtils;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.method.ElementsParameter;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Streams the results of searches requested with <code>_format=application/fhir+ndjson</code> (or an NDJSON
+ * <code>Accept</code> header) as one resource per line, instead of returning them as pages of Bundles. The matching
+ * resource IDs are read from a database cursor, and the resources are loaded and written in batches, so that memory
+ * use does not depend on the size of the result. <code>_count</code> limits the number of resources streamed.
+ * <p>
+ * Authorization and consent interceptors apply as for paged searches, see {@link DirectSearchSvc}.
+ * <code>_include</code> and <code>_revinclude</code> are not supported. Once the first line is written, errors and
+ * client disconnects end the response early.
+ * <p>
+ * This class must be registered with the RestfulServer.
+ */
+@Interceptor
+public class NdjsonSearchStreamer {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(NdjsonSearchStreamer.class);
+	private static final Set<String> RESPONSE_PARAMETERS = Set.of(
+			Constants.PARAM_FORMAT,
+			Constants.PARAM_PRETTY,
+			Constants.PARAM_COUNT,
+			Constants.PARAM_SUMMARY,
+			Constants.PARAM_ELEMENTS);
+	private static final Set<String> UNSUPPORTED_PARAMETERS = Set.of(
+			Constants.PARAM_INCLUDE,
+			Constants.PARAM_INCLUDE_ITERATE,
+			Constants.PARAM_INCLUDE_RECURSE,
+			Constants.PARAM_REVINCLUDE,
+			Constants.PARAM_REVINCLUDE_ITERATE,
+			Constants.PARAM_REVINCLUDE_RECURSE);
+
+	private final FhirContext myFhirContext;
+	private final DirectSearchSvc myDirectSearchSvc;
+	private final int myBatchSize;
+
+	/**
+	 * @param theBatchSize the number of resources loaded and written at a time
+	 */
+	public NdjsonSearchStreamer(FhirContext theFhirContext, DirectSearchSvc theDirectSearchSvc, int theBatchSize) {
+		myFhirContext = theFhirContext;
+		myDirectSearchSvc = theDirectSearchSvc;
+		myBatchSize = Math.max(1, theBatchSize);
+	}
+
+	/**
+	 * Runs after the interceptors narrowing or rejecting the request, and before the response caches
+	 */
+	@Hook(value = Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED, order = Integer.MAX_VALUE - 1)
+	public boolean streamSearch(ServletRequestDetails theRequestDetails, HttpServletResponse theServletResponse)
+			throws IOException {
+		if (theRequestDetails.getRestOperationType() != RestOperationTypeEnum.SEARCH_TYPE
+				|| theRequestDetails.getRequestType() != RequestTypeEnum.GET
+				|| !isNdjsonRequested(theRequestDetails)) {
+			return true;
+		}
+
+		String resourceName = theRequestDetails.getResourceName();
+		for (String next : theRequestDetails.getParameters().keySet()) {
+			if (UNSUPPORTED_PARAMETERS.contains(next)) {
+				throw new InvalidRequestException(
+						"Parameter " + next + " is not supported when streaming search results as NDJSON");
+			}
+		}
+		SearchParameterMap searchParameterMap =
+				myDirectSearchSvc.translate(resourceName, theRequestDetails.getParameters(), RESPONSE_PARAMETERS);
+		String[] count = theRequestDetails.getParameters().get(Constants.PARAM_COUNT);
+		long limit = count != null && count.length > 0 ? parseCount(count[0]) : Long.MAX_VALUE;
+		myDirectSearchSvc.firePreHandled(theRequestDetails);
+
+		IParser parser = myFhirContext.newJsonParser();
+		RestfulServerUtils.configureResponseParser(theRequestDetails, parser);
+		parser.setPrettyPrint(false);
+		// Configured for the entries of a Bundle by default
+		Set<String> elements = ElementsParameter.getElementsValueOrNull(theRequestDetails, false);
+		if (elements != null) {
+			parser.setEncodeElements(
+					elements.stream().map(next -> resourceName + "." + next).collect(Collectors.toSet()));
+			parser.setEncodeElementsAppliesToChildResourcesOnly(false);
+		}
+
+		theServletResponse.setStatus(HttpServletResponse.SC_OK);
+		theServletResponse.setContentType(Constants.CT_FHIR_NDJSON);
+		theServletResponse.setCharacterEncoding(Constants.CHARSET_NAME_UTF8);
+		Writer writer = new BufferedWriter(
+				new OutputStreamWriter(theServletResponse.getOutputStream(), StandardCharsets.UTF_8));
+
+		long[] written = new long[1];
+		try {
+			myDirectSearchSvc.search(theRequestDetails, resourceName, searchParameterMap, cursor -> {
+				List<JpaPid> batch = new ArrayList<>(myBatchSize);
+				long remaining = limit;
+				while (remaining > 0 && cursor.hasNext()) {
+					batch.add(cursor.next());
+					remaining--;
+					if (batch.size() == myBatchSize || remaining == 0 || !cursor.hasNext()) {
+						written[0] += writeBatch(theRequestDetails, cursor, batch, parser, writer);
+						batch.clear();
+					}
+				}
+			});
+			writer.flush();
+		} catch (UncheckedIOException e) {
+			// Most likely the client went away, which also ends the database query
+			ourLog.info(
+					"Stopped streaming {} search results after {} resources: {}",
+					resourceName,
+					written[0],
+					e.getCause().toString());
+		} catch (RuntimeException e) {
+			if (!theServletResponse.isCommitted()) {
+				throw e;
+			}
+			ourLog.error("Failed to stream {} search results after {} resources", resourceName, written[0], e);
+		}
+		return false;
+	}
+
+	private int writeBatch(
+			ServletRequestDetails theRequestDetails,
+			PidCursor theCursor,
+			List<JpaPid> theBatch,
+			IParser theParser,
+			Writer theWriter) {
+		List<IBaseResource> resources =
+				myDirectSearchSvc.filterForDisplay(theRequestDetails, theCursor.load(theBatch));
+
+		int retVal = 0;
+		try {
+			for (IBaseResource next : resources) {
+				if (next != null) {
+					theParser.encodeResourceToWriter(next, theWriter);
+					theWriter.write('\n');
+					retVal++;
+				}
+			}
+			// Hands the batch to the client, and notices a client that went away before loading the next one
+			theWriter.flush();
+		} catch (IOException e) {
+			// Stops the query of a client that went away right away, rather than when the cursor is closed
+			RequestDeadline deadline = RequestDeadline.current();
+			if (deadline != null) {
+				deadline.cancel(RequestDeadline.Cause.DISCONNECT);
+			}
+			throw new UncheckedIOException(e);
+		}
+
+		theCursor.releaseLoaded();
+		return retVal;
+	}
+
+	private static boolean isNdjsonRequested(RequestDetails theRequestDetails) {
+		RestfulServerUtils.ResponseEncoding encoding =
+				RestfulServerUtils.determineResponseEncodingNoDefault(theRequestDetails, null);
+		return encoding != null && encoding.getEncoding() == EncodingEnum.NDJSON;
+	}
+
+	private static long parseCount(String theCount) {
+		try {
+			return Math.max(0, Long.parseLong(theCount));
+		} catch (NumberFormatException e) {
+			throw new InvalidRequestException("Invalid " + Constants.PARAM_COUNT + " value: " + theCount);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package ca.uhn.fhir.jpa.starter.sql;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * Prefixes the SQL generated by Hibernate with a comment naming the FHIR interaction it runs for, e.g.
+ * <code>/* fhir:search-type *&#47;</code>, so that statements seen in the database (slow query log,
+ * <code>pg_stat_activity</code>) can be traced back to the kind of request issuing them. Request IDs are left out of
+ * the comment, as statements differing per request would defeat the prepared statement caches of the driver and the
+ * database.
+ * <p>
+ * Configured through the <code>hibernate.session_factory.statement_inspector</code> property when
+ * <code>hapi.fhir.sql_capture.enabled</code> is set, see
+ * {@link ca.uhn.fhir.jpa.starter.util.EnvironmentHelper#getHibernateProperties}.
+ */
+public class SqlAttributionStatementInspector implements StatementInspector {
+
+	@Override
+	public String inspect(String theSql) {
+		SqlRequestContext context = SqlRequestContext.current();
+		if (context == null) {
+			return theSql;
+		}
+		return "/* fhir:" + context.getInteraction() + " */ " + theSql;
+	}
+}
@@ -0,0 +1,237 @@
+package ca.uhn.fhir.jpa.starter.sql;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import javax.sql.DataSource;
+
+/**
+ * Attributes the SQL statements run while a FHIR request is processed to that request, by its request ID,
+ * interaction and (for searches) complete URL. The data source returned by {@link #wrap(DataSource)} times every
+ * statement; statements taking longer than the threshold are logged and kept in the {@link SqlCaptureReport} with the
+ * types of their bind parameters, and on PostgreSQL optionally with their plan from <code>EXPLAIN</code>. The plan is
+ * taken with the values the statement ran with, which PostgreSQL prints as literals; these are replaced by
+ * <code>?</code> before the plan is kept, as the report must not disclose the data searched for.
+ * <p>
+ * The number of statements and the database time of each request are published as
+ * <code>fhir.server.sql.statements</code> and <code>fhir.server.sql.time</code>, tagged with the interaction, and slow
+ * statements are counted as <code>fhir.server.sql.slow</code>. Only statements run on the thread processing the
+ * request are attributed to it. This class must be registered with the RestfulServer.
+ */
+@Interceptor
+public class SqlCaptureInterceptor {
+
+	public static final String METRIC_STATEMENTS = "fhir.server.sql.statements";
+	public static final String METRIC_TIME = "fhir.server.sql.time";
+	public static final String METRIC_SLOW = "fhir.server.sql.slow";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(SqlCaptureInterceptor.class);
+	/**
+	 * String literals of a plan, e.g. <code>'Patient'::text</code>, which include arrays, e.g. <code>'{1,2}'</code>
+	 */
+	private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+	/**
+	 * Numbers compared with, e.g. <code>(res_id = 42)</code>. The estimates of a plan, e.g. <code>rows=1</code>, are
+	 * written without spaces around the <code>=</code> and are kept.
+	 */
+	private static final Pattern NUMBER_LITERAL =
+			Pattern.compile("(\\s(?:=|<>|!=|<=|>=|<|>)\\s)-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?\\b");
+
+	private static final Set<RestOperationTypeEnum> SEARCHES = Set.of(
+			RestOperationTypeEnum.SEARCH_TYPE, RestOperationTypeEnum.SEARCH_SYSTEM, RestOperationTypeEnum.GET_PAGE);
+
+	private final long mySlowThresholdNanos;
+	private final boolean myExplainEnabled;
+	private final SqlCaptureReport myReport;
+	private final MeterRegistry myMeterRegistry;
+	private final Counter mySlow;
+	private volatile Boolean myPostgres;
+
+	/**
+	 * @param theExplainEnabled whether to capture the plan of slow statements on PostgreSQL, which runs
+	 *                          <code>EXPLAIN</code> on the connection of the request that ran the statement, binding
+	 *                          the values it ran with. The literals in the plan are redacted.
+	 */
+	public SqlCaptureInterceptor(
+			long theSlowThresholdMillis, int theMaxEntries, boolean theExplainEnabled, MeterRegistry theMeterRegistry) {
+		mySlowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(theSlowThresholdMillis);
+		myExplainEnabled = theExplainEnabled;
+		myReport = new SqlCaptureReport(theMaxEntries);
+		myMeterRegistry = theMeterRegistry;
+		mySlow = Counter.builder(METRIC_SLOW)
+				.description("SQL statements slower than the capture threshold")
+				.register(theMeterRegistry);
+	}
+
+	/**
+	 * Wraps the data source of the persistence unit, so that its statements are timed and attributed
+	 */
+	public DataSource wrap(DataSource theDataSource) {
+		return new SqlTimingDataSource(theDataSource, this);
+	}
+
+	public SqlCaptureReport getReport() {
+		return myReport;
+	}
+
+	boolean isExplainEnabled() {
+		return myExplainEnabled;
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean startRequest(RequestDetails theRequestDetails) {
+		RestOperationTypeEnum interaction = theRequestDetails.getRestOperationType();
+		String url = SEARCHES.contains(interaction)
+				? theRequestDetails.getCompleteUrl()
+				: theRequestDetails.getRequestType() + " " + theRequestDetails.getRequestPath();
+		SqlRequestContext.setCurrent(new SqlRequestContext(
+				theRequestDetails.getRequestId(), interaction != null ? interaction.getCode() : "unknown", url));
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void endRequest(RequestDetails theRequestDetails) {
+		SqlRequestContext context = SqlRequestContext.current();
+		if (context == null) {
+			return;
+		}
+		SqlRequestContext.setCurrent(null);
+
+		DistributionSummary.builder(METRIC_STATEMENTS)
+				.description("SQL statements run per FHIR request")
+				.tag("interaction", context.getInteraction())
+				.register(myMeterRegistry)
+				.record(context.getStatements());
+		Timer.builder(METRIC_TIME)
+				.description("Time spent executing SQL statements per FHIR request")
+				.tag("interaction", context.getInteraction())
+				.register(myMeterRegistry)
+				.record(context.getNanos(), TimeUnit.NANOSECONDS);
+		myReport.addRequest(new SqlCaptureReport.RequestStats(System.currentTimeMillis(), context));
+	}
+
+	/**
+	 * @param theConnection the connection the statement ran on, not wrapped by this class
+	 * @param theValues     the values of the bind parameters by index, if plans are captured
+	 */
+	void statementExecuted(
+			Connection theConnection,
+			String theSql,
+			List<String> theParameters,
+			Map<Integer, Object> theValues,
+			long theNanos) {
+		SqlRequestContext context = SqlRequestContext.current();
+		if (context != null) {
+			context.recordStatement(theNanos);
+		}
+		if (theNanos < mySlowThresholdNanos) {
+			return;
+		}
+
+		mySlow.increment();
+		String plan = myExplainEnabled && theValues != null ? explain(theConnection, theSql, theValues) : null;
+		myReport.addSlowStatement(new SqlCaptureReport.SlowStatement(
+				System.currentTimeMillis(), context, theSql, theParameters, theNanos, plan));
+		ourLog.warn(
+				"Slow SQL statement ({} ms) for request {} ({}): {} {}",
+				TimeUnit.NANOSECONDS.toMillis(theNanos),
+				context != null ? context.getRequestId() : "-",
+				context != null ? context.getUrl() : "no FHIR request",
+				theSql,
+				theParameters);
+	}
+
+	/**
+	 * @return the plan of a query on PostgreSQL with its literals redacted, or <code>null</code>
+	 */
+	private String explain(Connection theConnection, String theSql, Map<Integer, Object> theValues) {
+		if (theSql == null || !isPostgres(theConnection) || !isQuery(theSql)) {
+			return null;
+		}
+		Savepoint savepoint = null;
+		try {
+			// A failed statement aborts the transaction on PostgreSQL, which must survive a failed EXPLAIN
+			if (!theConnection.getAutoCommit()) {
+				savepoint = theConnection.setSavepoint();
+			}
+			StringBuilder retVal = new StringBuilder();
+			try (PreparedStatement statement = theConnection.prepareStatement("EXPLAIN " + theSql)) {
+				for (Map.Entry<Integer, Object> next : theValues.entrySet()) {
+					statement.setObject(next.getKey(), next.getValue());
+				}
+				try (ResultSet resultSet = statement.executeQuery()) {
+					while (resultSet.next()) {
+						retVal.append(resultSet.getString(1)).append('\n');
+					}
+				}
+			}
+			if (savepoint != null) {
+				theConnection.releaseSavepoint(savepoint);
+			}
+			return redactLiterals(retVal.toString());
+		} catch (SQLException e) {
+			if (savepoint != null) {
+				try {
+					theConnection.rollback(savepoint);
+				} catch (SQLException e2) {
+					ourLog.debug("Could not roll back to the savepoint before EXPLAIN", e2);
+				}
+			}
+			// The message may quote a value, e.g. one that does not convert to the type of its column
+			ourLog.debug("EXPLAIN of a slow statement failed", e);
+			return "EXPLAIN failed with SQL state " + e.getSQLState();
+		}
+	}
+
+	private boolean isPostgres(Connection theConnection) {
+		Boolean retVal = myPostgres;
+		if (retVal == null) {
+			try {
+				retVal = "PostgreSQL"
+						.equalsIgnoreCase(theConnection.getMetaData().getDatabaseProductName());
+			} catch (SQLException e) {
+				return false;
+			}
+			myPostgres = retVal;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Replaces the values bound to a statement, which PostgreSQL prints as literals in its plan, with <code>?</code>
+	 */
+	static String redactLiterals(String thePlan) {
+		String retVal = STRING_LITERAL.matcher(thePlan).replaceAll("'?'");
+		return NUMBER_LITERAL.matcher(retVal).replaceAll("$1?");
+	}
+
+	private static boolean isQuery(String theSql) {
+		String sql = theSql.strip();
+		// Skip the comment added by SqlAttributionStatementInspector
+		if (sql.startsWith("/*") && sql.contains("*/")) {
+			sql = sql.substring(sql.indexOf("*/") + 2).strip();
+		}
+		sql = sql.toLowerCase(Locale.ROOT);
+		return sql.startsWith("select") || sql.startsWith("with");
+	}
+}
@@ -0,0 +1,150 @@
+package ca.uhn.fhir.jpa.starter.sql;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * The most recent slow SQL statements and the most recent FHIR requests with their database work, newest first
+ */
+public class SqlCaptureReport {
+
+	private final int myMaxEntries;
+	private final Deque<SlowStatement> mySlowStatements = new ConcurrentLinkedDeque<>();
+	private final Deque<RequestStats> myRequests = new ConcurrentLinkedDeque<>();
+
+	public SqlCaptureReport(int theMaxEntries) {
+		myMaxEntries = Math.max(1, theMaxEntries);
+	}
+
+	void addSlowStatement(SlowStatement theStatement) {
+		add(mySlowStatements, theStatement);
+	}
+
+	void addRequest(RequestStats theRequest) {
+		add(myRequests, theRequest);
+	}
+
+	private <T> void add(Deque<T> theEntries, T theEntry) {
+		theEntries.addFirst(theEntry);
+		while (theEntries.size() > myMaxEntries) {
+			theEntries.pollLast();
+		}
+	}
+
+	public List<SlowStatement> getSlowStatements() {
+		return new ArrayList<>(mySlowStatements);
+	}
+
+	public List<RequestStats> getRequests() {
+		return new ArrayList<>(myRequests);
+	}
+
+	public static class RequestStats {
+		private final long myTimestamp;
+		private final String myRequestId;
+		private final String myInteraction;
+		private final String myUrl;
+		private final int myStatements;
+		private final double myDbMillis;
+
+		RequestStats(long theTimestamp, SqlRequestContext theContext) {
+			myTimestamp = theTimestamp;
+			myRequestId = theContext.getRequestId();
+			myInteraction = theContext.getInteraction();
+			myUrl = theContext.getUrl();
+			myStatements = theContext.getStatements();
+			myDbMillis = theContext.getNanos() / 1e6;
+		}
+
+		public long getTimestamp() {
+			return myTimestamp;
+		}
+
+		public String getRequestId() {
+			return myRequestId;
+		}
+
+		public String getInteraction() {
+			return myInteraction;
+		}
+
+		public String getUrl() {
+			return myUrl;
+		}
+
+		public int getStatements() {
+			return myStatements;
+		}
+
+		public double getDbMillis() {
+			return myDbMillis;
+		}
+	}
+
+	public static class SlowStatement {
+		private final long myTimestamp;
+		private final String myRequestId;
+		private final String myInteraction;
+		private final String myUrl;
+		private final String mySql;
+		private final List<String> myParameters;
+		private final double myMillis;
+		private final String myPlan;
+
+		/**
+		 * @param theContext    the request the statement ran for, or <code>null</code> for background work
+		 * @param theParameters the types of the bind parameters, never their values
+		 * @param thePlan       the output of <code>EXPLAIN</code> with its literals redacted, or <code>null</code>
+		 */
+		SlowStatement(
+				long theTimestamp,
+				SqlRequestContext theContext,
+				String theSql,
+				List<String> theParameters,
+				long theNanos,
+				String thePlan) {
+			myTimestamp = theTimestamp;
+			myRequestId = theContext != null ? theContext.getRequestId() : null;
+			myInteraction = theContext != null ? theContext.getInteraction() : null;
+			myUrl = theContext != null ? theContext.getUrl() : null;
+			mySql = theSql;
+			myParameters = theParameters;
+			myMillis = theNanos / 1e6;
+			myPlan = thePlan;
+		}
+
+		public long getTimestamp() {
+			return myTimestamp;
+		}
+
+		public String getRequestId() {
+			return myRequestId;
+		}
+
+		public String getInteraction() {
+			return myInteraction;
+		}
+
+		public String getUrl() {
+			return myUrl;
+		}
+
+		public String getSql() {
+			return mySql;
+		}
+
+		public List<String> getParameters() {
+			return myParameters;
+		}
+
+		public double getMillis() {
+			return myMillis;
+		}
+
+		public String getPlan() {
+			return myPlan;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package ca.uhn.fhir.jpa.starter.sql;
+
+/**
+ * The FHIR request processed by the current thread, to which the SQL statements run on that thread are attributed,
+ * and the number and duration of those statements so far
+ */
+public class SqlRequestContext {
+
+	private static final ThreadLocal<SqlRequestContext> ourCurrent = new ThreadLocal<>();
+
+	private final String myRequestId;
+	private final String myInteraction;
+	private final String myUrl;
+	private int myStatements;
+	private long myNanos;
+
+	/**
+	 * @param theInteraction the interaction code, e.g. <code>search-type</code>
+	 * @param theUrl         the complete URL of searches, and the request path otherwise
+	 */
+	public SqlRequestContext(String theRequestId, String theInteraction, String theUrl) {
+		myRequestId = theRequestId;
+		myInteraction = theInteraction;
+		myUrl = theUrl;
+	}
+
+	/**
+	 * @return the request processed by the current thread, or <code>null</code>
+	 */
+	public static SqlRequestContext current() {
+		return ourCurrent.get();
+	}
+
+	/**
+	 * Binds the request to the current thread, or unbinds it with <code>null</code>
+	 */
+	public static void setCurrent(SqlRequestContext theContext) {
+		if (theContext != null) {
+			ourCurrent.set(theContext);
+		} else {
+			ourCurrent.remove();
+		}
+	}
+
+	void recordStatement(long theNanos) {
+		myStatements++;
+		myNanos += theNanos;
+	}
+
+	public String getRequestId() {
+		return myRequestId;
+	}
+
+	public String getInteraction() {
+		return myInteraction;
+	}
+
+	public String getUrl() {
+		return myUrl;
+	}
+
+	public int getStatements() {
+		return myStatements;
+	}
+
+	public long getNanos() {
+		return myNanos;
+	}
+}
@@ -0,0 +1,140 @@
+package ca.uhn.fhir.jpa.starter.sql;
+
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.sql.DataSource;
+
+/**
+ * Times every statement executed through the connections of a data source, and hands the statement, the types of
+ * its bind parameters and its duration to a {@link SqlCaptureInterceptor}. Only the execution is timed, not the
+ * fetching of rows from a result set afterwards.
+ */
+class SqlTimingDataSource extends DelegatingDataSource {
+
+	private final SqlCaptureInterceptor myCapture;
+
+	SqlTimingDataSource(DataSource theDataSource, SqlCaptureInterceptor theCapture) {
+		super(theDataSource);
+		myCapture = theCapture;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return wrap(super.getConnection());
+	}
+
+	@Override
+	public Connection getConnection(String theUsername, String thePassword) throws SQLException {
+		return wrap(super.getConnection(theUsername, thePassword));
+	}
+
+	private Connection wrap(Connection theConnection) {
+		InvocationHandler handler = (proxy, method, args) -> {
+			String name = method.getName();
+			Object retVal = invoke(theConnection, method, args);
+			boolean createsStatement =
+					name.equals("createStatement") || name.equals("prepareStatement") || name.equals("prepareCall");
+			if (createsStatement && retVal instanceof Statement statement) {
+				String sql = args != null && args.length > 0 && args[0] instanceof String s ? s : null;
+				return wrap(statement, theConnection, sql);
+			}
+			return retVal;
+		};
+		return (Connection) Proxy.newProxyInstance(
+				SqlTimingDataSource.class.getClassLoader(), new Class<?>[] {Connection.class}, handler);
+	}
+
+	private Statement wrap(Statement theStatement, Connection theConnection, String theSql) {
+		Class<?> type = theStatement instanceof CallableStatement
+				? CallableStatement.class
+				: theStatement instanceof PreparedStatement ? PreparedStatement.class : Statement.class;
+		return (Statement) Proxy.newProxyInstance(
+				SqlTimingDataSource.class.getClassLoader(),
+				new Class<?>[] {type},
+				new StatementHandler(theStatement, theConnection, theSql));
+	}
+
+	private static Object invoke(Object theTarget, Method theMethod, Object[] theArgs) throws Throwable {
+		try {
+			return theMethod.invoke(theTarget, theArgs);
+		} catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	/**
+	 * @return the type of a bind parameter, with the length of arrays and collections, e.g. <code>Long[12]</code>
+	 */
+	private static String shapeOf(String theSetter, Object theValue) {
+		if (theSetter.equals("setNull") || theValue == null) {
+			return "null";
+		}
+		if (theValue.getClass().isArray()) {
+			return theValue.getClass().getComponentType().getSimpleName() + "[" + Array.getLength(theValue) + "]";
+		}
+		if (theValue instanceof Collection<?> collection) {
+			return theValue.getClass().getSimpleName() + "[" + collection.size() + "]";
+		}
+		return theValue.getClass().getSimpleName();
+	}
+
+	private class StatementHandler implements InvocationHandler {
+		private final Statement myStatement;
+		private final Connection myConnection;
+		private final String mySql;
+		private final Map<Integer, String> myShapes = new TreeMap<>();
+		private final Map<Integer, Object> myValues;
+
+		private StatementHandler(Statement theStatement, Connection theConnection, String theSql) {
+			myStatement = theStatement;
+			myConnection = theConnection;
+			mySql = theSql;
+			// The values are only kept to explain the statement, and never leave this class otherwise
+			myValues = myCapture.isExplainEnabled() ? new HashMap<>() : null;
+		}
+
+		@Override
+		public Object invoke(Object theProxy, Method theMethod, Object[] theArgs) throws Throwable {
+			String name = theMethod.getName();
+			boolean setsParameter = name.startsWith("set") && theArgs != null && theArgs.length >= 2;
+			if (setsParameter && theArgs[0] instanceof Integer index) {
+				myShapes.put(index, shapeOf(name, theArgs[1]));
+				if (myValues != null) {
+					myValues.put(index, name.equals("setNull") ? null : theArgs[1]);
+				}
+			} else if (name.equals("clearParameters")) {
+				myShapes.clear();
+				if (myValues != null) {
+					myValues.clear();
+				}
+			}
+			if (!name.startsWith("execute")) {
+				return SqlTimingDataSource.invoke(myStatement, theMethod, theArgs);
+			}
+
+			String sql = theArgs != null && theArgs.length > 0 && theArgs[0] instanceof String s ? s : mySql;
+			long start = System.nanoTime();
+			try {
+				return SqlTimingDataSource.invoke(myStatement, theMethod, theArgs);
+			} finally {
+				myCapture.statementExecuted(
+						myConnection, sql, List.copyOf(myShapes.values()), myValues, System.nanoTime() - start);
+			}
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package ca.uhn.fhir.jpa.starter.terminology;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.LookupCodeRequest;
+import ca.uhn.fhir.context.support.TranslateConceptResults;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.AppProperties.RemoteSystem.FallbackPolicy;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.util.ParametersUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.common.hapi.validation.support.RemoteTerminologyServiceValidationSupport;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link RemoteTerminologyServiceValidationSupport} with its own connect/read timeouts whose calls
+ * go through a {@link RemoteTerminologyGuard}. When the remote server is unavailable, code validation
+ * is answered according to the configured {@link FallbackPolicy}; fetches, lookups and translations
+ * simply return nothing so the rest of the validation support chain can take over.
+ * <p>
+ * If <code>theSystem</code> is <code>null</code> every code system is forwarded to the remote server,
+ * otherwise only codes from that system are. Such a remote only answers with the fallback for codes of its
+ * own system, and otherwise lets the chain continue while it is unavailable.
+ */
+public class GuardedRemoteTerminologyServiceValidationSupport extends RemoteTerminologyServiceValidationSupport {
+
+	/**
+	 * Fallback answers given by any remote, so that results built from them can be kept out of caches
+	 */
+	private static final AtomicLong ourFallbackCount = new AtomicLong();
+
+	private final String myRemoteName;
+	private final String mySystem;
+	private final FallbackPolicy myFallbackPolicy;
+	private final RemoteTerminologyGuard myGuard;
+	private final Cache<String, CodeValidationResult> myStaleCache;
+	private final IRestfulClientFactory myClientFactory;
+
+	public GuardedRemoteTerminologyServiceValidationSupport(
+			FhirContext theFhirContext,
+			String theRemoteName,
+			String theSystem,
+			AppProperties.RemoteSystem theRemoteSystem,
+			MeterRegistry theMeterRegistry) {
+		this(
+				theFhirContext,
+				theRemoteName,
+				theSystem,
+				theRemoteSystem,
+				theMeterRegistry,
+				newClientFactory(theFhirContext, theRemoteSystem));
+	}
+
+	private GuardedRemoteTerminologyServiceValidationSupport(
+			FhirContext theFhirContext,
+			String theRemoteName,
+			String theSystem,
+			AppProperties.RemoteSystem theRemoteSystem,
+			MeterRegistry theMeterRegistry,
+			IRestfulClientFactory theClientFactory) {
+		super(theFhirContext, theRemoteSystem.getUrl(), theClientFactory);
+		myClientFactory = theClientFactory;
+		myRemoteName = theRemoteName;
+		mySystem = theSystem;
+		myFallbackPolicy = theRemoteSystem.getFallback();
+		myGuard = new RemoteTerminologyGuard(theRemoteName, theRemoteSystem, theMeterRegistry);
+		myStaleCache = myFallbackPolicy == FallbackPolicy.STALE_CACHE
+				? Caffeine.newBuilder()
+						.maximumSize(theRemoteSystem.getStale_cache_size())
+						.build()
+				: null;
+	}
+
+	private static ApacheRestfulClientFactory newClientFactory(
+			FhirContext theFhirContext, AppProperties.RemoteSystem theRemoteSystem) {
+		ApacheRestfulClientFactory retVal = new ApacheRestfulClientFactory(theFhirContext);
+		retVal.setConnectTimeout(theRemoteSystem.getConnect_timeout_millis());
+		retVal.setConnectionRequestTimeout(theRemoteSystem.getConnect_timeout_millis());
+		retVal.setSocketTimeout(theRemoteSystem.getRead_timeout_millis());
+		retVal.setPoolMaxPerRoute(theRemoteSystem.getMax_concurrent_requests());
+		retVal.setPoolMaxTotal(theRemoteSystem.getMax_concurrent_requests());
+		return retVal;
+	}
+
+	@Override
+	public String getName() {
+		return super.getName() + " (" + myRemoteName + ")";
+	}
+
+	public RemoteTerminologyGuard getGuard() {
+		return myGuard;
+	}
+
+	public String getRemoteName() {
+		return myRemoteName;
+	}
+
+	/**
+	 * Invokes <code>ValueSet/$expand</code> on the remote server for one page of the expansion.
+	 *
+	 * @return the expanded ValueSet, or <code>null</code> if the remote server is currently unavailable
+	 */
+	public IBaseResource fetchExpansion(String theValueSetUrl, int theOffset, int theCount) {
+		FhirContext fhirContext = getFhirContext();
+		IBaseParameters parameters = ParametersUtil.newInstance(fhirContext);
+		ParametersUtil.addParameterToParameters(fhirContext, parameters, "url", "uri", theValueSetUrl);
+		ParametersUtil.addParameterToParametersInteger(fhirContext, parameters, "offset", theOffset);
+		ParametersUtil.addParameterToParametersInteger(fhirContext, parameters, "count", theCount);
+		Class<? extends IBaseResource> valueSetType =
+				fhirContext.getResourceDefinition("ValueSet").getImplementingClass();
+		return myGuard.execute(
+				() -> myClientFactory
+						.newGenericClient(getBaseUrl())
+						.operation()
+						.onType("ValueSet")
+						.named("$expand")
+						.withParameters(parameters)
+						.returnResourceType(valueSetType)
+						.execute(),
+				() -> null);
+	}
+
+	@Override
+	public boolean isCodeSystemSupported(ValidationSupportContext theValidationSupportContext, String theSystem) {
+		if (mySystem != null) {
+			return mySystem.equalsIgnoreCase(theSystem);
+		}
+		// While the remote is unavailable claim support, so that validateCode answers with the fallback
+		return myGuard.execute(() -> super.isCodeSystemSupported(theValidationSupportContext, theSystem), () -> true);
+	}
+
+	@Override
+	public boolean isValueSetSupported(ValidationSupportContext theValidationSupportContext, String theValueSetUrl) {
+		// A remote for a single system cannot tell which value sets use its codes, so leave them to the chain
+		return myGuard.execute(
+				() -> super.isValueSetSupported(theValidationSupportContext, theValueSetUrl), () -> mySystem == null);
+	}
+
+	@Override
+	public CodeValidationResult validateCode(
+			ValidationSupportContext theValidationSupportContext,
+			ConceptValidationOptions theOptions,
+			String theCodeSystem,
+			String theCode,
+			String theDisplay,
+			String theValueSetUrl) {
+		if (mySystem != null && !mySystem.equalsIgnoreCase(theCodeSystem)) {
+			return null;
+		}
+		String key = cacheKey(theCodeSystem, theCode, theDisplay, theValueSetUrl);
+		return remember(
+				key,
+				myGuard.execute(
+						() -> super.validateCode(
+								theValidationSupportContext,
+								theOptions,
+								theCodeSystem,
+								theCode,
+								theDisplay,
+								theValueSetUrl),
+						() -> fallback(key, theCodeSystem, theCode)));
+	}
+
+	@Override
+	public CodeValidationResult validateCodeInValueSet(
+			ValidationSupportContext theValidationSupportContext,
+			ConceptValidationOptions theOptions,
+			String theCodeSystem,
+			String theCode,
+			String theDisplay,
+			IBaseResource theValueSet) {
+		if (mySystem != null && theCodeSystem != null && !mySystem.equalsIgnoreCase(theCodeSystem)) {
+			return null;
+		}
+		String valueSetUrl = theValueSet != null
+				? CommonCodeSystemsTerminologyService.getValueSetUrl(getFhirContext(), theValueSet)
+				: null;
+		String key = cacheKey(theCodeSystem, theCode, theDisplay, valueSetUrl);
+		return remember(
+				key,
+				myGuard.execute(
+						() -> super.validateCodeInValueSet(
+								theValidationSupportContext,
+								theOptions,
+								theCodeSystem,
+								theCode,
+								theDisplay,
+								theValueSet),
+						// Codes of an unknown system may not be ours to answer for
+						() -> mySystem != null && theCodeSystem == null
+								? null
+								: fallback(key, theCodeSystem, theCode)));
+	}
+
+	@Override
+	public LookupCodeResult lookupCode(
+			ValidationSupportContext theValidationSupportContext, LookupCodeRequest theLookupCodeRequest) {
+		if (mySystem != null && !mySystem.equalsIgnoreCase(theLookupCodeRequest.getSystem())) {
+			return null;
+		}
+		return myGuard.execute(() -> super.lookupCode(theValidationSupportContext, theLookupCodeRequest), () -> null);
+	}
+
+	@Override
+	public IBaseResource fetchCodeSystem(String theSystem) {
+		if (mySystem != null && !mySystem.equalsIgnoreCase(theSystem)) {
+			return null;
+		}
+		return myGuard.execute(() -> super.fetchCodeSystem(theSystem), () -> null);
+	}
+
+	@Override
+	public IBaseResource fetchValueSet(String theValueSetUrl) {
+		return myGuard.execute(() -> super.fetchValueSet(theValueSetUrl), () -> null);
+	}
+
+	@Override
+	public TranslateConceptResults translateConcept(TranslateCodeRequest theRequest) {
+		return myGuard.execute(() -> super.translateConcept(theRequest), () -> null);
+	}
+
+	private CodeValidationResult remember(String theKey, CodeValidationResult theResult) {
+		if (myStaleCache != null && theResult != null && !isFallbackResult(theResult)) {
+			myStaleCache.put(theKey, theResult);
+		}
+		return theResult;
+	}
+
+	/**
+	 * @return the number of fallback answers given so far by any remote, including those from the stale cache
+	 */
+	public static long getFallbackCount() {
+		return ourFallbackCount.get();
+	}
+
+	/**
+	 * @return whether a validation message reports a fallback answer, e.g. one served from the cache of the chain
+	 */
+	public static boolean isFallbackMessage(String theMessage) {
+		return theMessage != null
+				&& theMessage.contains(FALLBACK_MESSAGE_PREFIX)
+				&& theMessage.contains(FALLBACK_MESSAGE_INFIX);
+	}
+
+	private CodeValidationResult fallback(String theKey, String theCodeSystem, String theCode) {
+		ourFallbackCount.incrementAndGet();
+		if (myFallbackPolicy == FallbackPolicy.STALE_CACHE) {
+			CodeValidationResult cached = myStaleCache.getIfPresent(theKey);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		IssueSeverity severity = myFallbackPolicy == FallbackPolicy.FAIL ? IssueSeverity.ERROR : IssueSeverity.WARNING;
+		String message = FALLBACK_MESSAGE_PREFIX + myRemoteName + FALLBACK_MESSAGE_INFIX + theCode + "' from system '"
+				+ theCodeSystem + "' could not be validated";
+		return new CodeValidationResult()
+				.setSeverity(severity)
+				.setMessage(message)
+				.setSourceDetails(FALLBACK_SOURCE)
+				.addIssue(new CodeValidationIssue(message, severity, CodeValidationIssueCode.NOT_FOUND));
+	}
+
+	private static boolean isFallbackResult(CodeValidationResult theResult) {
+		return FALLBACK_SOURCE.equals(theResult.getSourceDetails());
+	}
+
+	private static String cacheKey(String theCodeSystem, String theCode, String theDisplay, String theValueSetUrl) {
+		return theCodeSystem + '|' + theCode + '|' + theDisplay + '|' + theValueSetUrl;
+	}
+
+	private static final String FALLBACK_SOURCE = "remote-terminology-fallback";
+	private static final String FALLBACK_MESSAGE_PREFIX = "Remote terminology server '";
+	private static final String FALLBACK_MESSAGE_INFIX = "' is unavailable, code '";
+}
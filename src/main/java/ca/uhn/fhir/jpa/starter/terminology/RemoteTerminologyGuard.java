@@ -0,0 +1,201 @@
+package ca.uhn.fhir.jpa.starter.terminology;
+
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Bulkhead and circuit breaker in front of a single remote terminology server.
+ * <p>
+ * At most <code>max_concurrent_requests</code> calls are in flight at once, callers wait at most
+ * <code>max_wait_millis</code> for a slot. After <code>circuit_breaker_failure_threshold</code>
+ * consecutive connection failures or 5xx responses the breaker opens and calls are answered by the
+ * fallback without touching the network. Once <code>circuit_breaker_open_millis</code> has elapsed a
+ * single probe call is let through (half-open): success closes the breaker, failure re-opens it.
+ */
+public class RemoteTerminologyGuard {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(RemoteTerminologyGuard.class);
+
+	public static final String METRIC_CALLS = "fhir.terminology.remote.calls";
+	public static final String METRIC_CALL_DURATION = "fhir.terminology.remote.call.duration";
+	public static final String METRIC_BREAKER_STATE = "fhir.terminology.remote.breaker.state";
+	public static final String METRIC_BREAKER_TRANSITIONS = "fhir.terminology.remote.breaker.transitions";
+
+	public enum State {
+		CLOSED,
+		HALF_OPEN,
+		OPEN
+	}
+
+	private enum Permit {
+		DENIED,
+		NORMAL,
+		PROBE
+	}
+
+	private final String myName;
+	private final Semaphore myBulkhead;
+	private final long myMaxWaitMillis;
+	private final int myFailureThreshold;
+	private final long myOpenMillis;
+	private final AtomicReference<State> myState = new AtomicReference<>(State.CLOSED);
+	private final AtomicInteger myConsecutiveFailures = new AtomicInteger();
+	private final AtomicLong myOpenedAt = new AtomicLong();
+	private final AtomicBoolean myProbeInFlight = new AtomicBoolean();
+	private final MeterRegistry myMeterRegistry;
+	private final Timer myCallTimer;
+
+	public RemoteTerminologyGuard(
+			String theName, AppProperties.RemoteSystem theRemoteSystem, MeterRegistry theMeterRegistry) {
+		myName = theName;
+		myBulkhead = new Semaphore(Math.max(1, theRemoteSystem.getMax_concurrent_requests()), true);
+		myMaxWaitMillis = Math.max(0, theRemoteSystem.getMax_wait_millis());
+		myFailureThreshold = Math.max(1, theRemoteSystem.getCircuit_breaker_failure_threshold());
+		myOpenMillis = Math.max(0, theRemoteSystem.getCircuit_breaker_open_millis());
+		myMeterRegistry = theMeterRegistry;
+		myCallTimer = Timer.builder(METRIC_CALL_DURATION)
+				.description("Latency of calls to a remote terminology server")
+				.tag("remote", myName)
+				.register(theMeterRegistry);
+		Gauge.builder(METRIC_BREAKER_STATE, myState, s -> s.get().ordinal())
+				.description("Circuit breaker state of a remote terminology server (0=closed, 1=half-open, 2=open)")
+				.tag("remote", myName)
+				.register(theMeterRegistry);
+	}
+
+	/**
+	 * Runs <code>theCall</code> if the breaker and bulkhead allow it, otherwise (or if the call fails
+	 * with a connection error or a 5xx response) returns the value of <code>theFallback</code>.
+	 * Other exceptions, e.g. a 4xx response, are passed through to the caller unchanged.
+	 */
+	public <T> T execute(Supplier<T> theCall, Supplier<T> theFallback) {
+		Permit permit = acquirePermit();
+		if (permit == Permit.DENIED) {
+			count("rejected_open");
+			return theFallback.get();
+		}
+		boolean probe = permit == Permit.PROBE;
+
+		boolean acquired;
+		try {
+			acquired = myBulkhead.tryAcquire(myMaxWaitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			acquired = false;
+		}
+		if (!acquired) {
+			if (probe) {
+				myProbeInFlight.set(false);
+			}
+			count("rejected_bulkhead");
+			return theFallback.get();
+		}
+
+		long start = System.nanoTime();
+		try {
+			T retVal = theCall.get();
+			onSuccess();
+			count("success");
+			return retVal;
+		} catch (FhirClientConnectionException e) {
+			onFailure(e);
+			count("failure");
+			return theFallback.get();
+		} catch (BaseServerResponseException e) {
+			if (e.getStatusCode() < 500) {
+				onSuccess();
+				count("client_error");
+				throw e;
+			}
+			onFailure(e);
+			count("failure");
+			return theFallback.get();
+		} finally {
+			myCallTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			myBulkhead.release();
+			if (probe) {
+				myProbeInFlight.set(false);
+			}
+		}
+	}
+
+	public State getState() {
+		return myState.get();
+	}
+
+	public String getName() {
+		return myName;
+	}
+
+	private Permit acquirePermit() {
+		State state = myState.get();
+		if (state == State.CLOSED) {
+			return Permit.NORMAL;
+		}
+		if (state == State.OPEN) {
+			if (System.currentTimeMillis() - myOpenedAt.get() < myOpenMillis) {
+				return Permit.DENIED;
+			}
+			transition(State.OPEN, State.HALF_OPEN);
+		}
+		// Half-open: only a single probe at a time
+		return myProbeInFlight.compareAndSet(false, true) ? Permit.PROBE : Permit.DENIED;
+	}
+
+	private void onSuccess() {
+		myConsecutiveFailures.set(0);
+		transition(State.HALF_OPEN, State.CLOSED);
+	}
+
+	private void onFailure(Exception theException) {
+		int failures = myConsecutiveFailures.incrementAndGet();
+		ourLog.warn(
+				"Call to remote terminology server '{}' failed ({} consecutive): {}",
+				myName,
+				failures,
+				theException.getMessage());
+		if (myState.get() == State.HALF_OPEN || failures >= myFailureThreshold) {
+			myOpenedAt.set(System.currentTimeMillis());
+			if (!transition(State.HALF_OPEN, State.OPEN)) {
+				transition(State.CLOSED, State.OPEN);
+			}
+		}
+	}
+
+	private boolean transition(State theFrom, State theTo) {
+		if (myState.compareAndSet(theFrom, theTo)) {
+			ourLog.info("Circuit breaker for remote terminology server '{}' is now {}", myName, theTo);
+			Counter.builder(METRIC_BREAKER_TRANSITIONS)
+					.tag("remote", myName)
+					.tag("state", theTo.name())
+					.register(myMeterRegistry)
+					.increment();
+			return true;
+		}
+		return false;
+	}
+
+	private void count(String theOutcome) {
+		Counter.builder(METRIC_CALLS)
+				.description("Calls to a remote terminology server by outcome")
+				.tag("remote", myName)
+				.tag("outcome", theOutcome)
+				.register(myMeterRegistry)
+				.increment();
+	}
+}
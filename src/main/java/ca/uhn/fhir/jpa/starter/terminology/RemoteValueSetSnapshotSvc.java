@@ -0,0 +1,347 @@
+package ca.uhn.fhir.jpa.starter.terminology;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.model.sched.HapiJob;
+import ca.uhn.fhir.jpa.model.sched.IHasScheduledJobs;
+import ca.uhn.fhir.jpa.model.sched.ISchedulerService;
+import ca.uhn.fhir.jpa.model.sched.ScheduledJobDefinition;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.hapi.converters.canonical.VersionCanonicalizer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.quartz.JobExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps local snapshots of the <code>$expand</code> results of frequently used ValueSets served by the
+ * remote terminology services, so that membership checks for them never leave the process.
+ * <p>
+ * The ValueSets to snapshot are configured per remote through <code>snapshot_value_sets</code>. A
+ * scheduled job refreshes every snapshot older than <code>snapshot_refresh_millis</code> in the
+ * background; a refresh that fails keeps serving the previous snapshot. If <code>snapshot_directory</code>
+ * is set, snapshots are also written to disk and reloaded on startup.
+ */
+public class RemoteValueSetSnapshotSvc implements IHasScheduledJobs {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(RemoteValueSetSnapshotSvc.class);
+	private static final int PAGE_SIZE = 1000;
+	/**
+	 * Bounds the paging of remotes that ignore <code>offset</code> and report no <code>total</code>
+	 */
+	private static final int MAX_PAGES = 1000;
+
+	public static final String METRIC_SNAPSHOTS = "fhir.terminology.snapshot.valuesets";
+	public static final String METRIC_REFRESHES = "fhir.terminology.snapshot.refreshes";
+
+	private final FhirContext myStorageContext = FhirContext.forR4Cached();
+	private final VersionCanonicalizer myVersionCanonicalizer;
+	private final MeterRegistry myMeterRegistry;
+	private final List<SnapshotSource> mySources = new CopyOnWriteArrayList<>();
+	private final Map<String, ValueSetSnapshot> mySnapshots = new ConcurrentHashMap<>();
+	private final List<Runnable> myChangeListeners = new CopyOnWriteArrayList<>();
+
+	public RemoteValueSetSnapshotSvc(FhirContext theFhirContext, MeterRegistry theMeterRegistry) {
+		myVersionCanonicalizer = new VersionCanonicalizer(theFhirContext);
+		myMeterRegistry = theMeterRegistry;
+		Gauge.builder(METRIC_SNAPSHOTS, mySnapshots, Map::size)
+				.description("Number of remote ValueSet expansions held as local snapshots")
+				.register(theMeterRegistry);
+	}
+
+	/**
+	 * Registers the ValueSets configured on <code>theRemoteSystem</code> for snapshotting and loads any
+	 * snapshots previously persisted for them.
+	 */
+	public void addRemote(
+			GuardedRemoteTerminologyServiceValidationSupport theRemote, AppProperties.RemoteSystem theRemoteSystem) {
+		List<String> valueSets = theRemoteSystem.getSnapshot_value_sets();
+		if (valueSets == null || valueSets.isEmpty()) {
+			return;
+		}
+		SnapshotSource source = new SnapshotSource(theRemote, theRemoteSystem, valueSets);
+		mySources.add(source);
+		ourLog.info(
+				"Keeping local snapshots of {} ValueSet(s) from remote terminology server '{}'",
+				valueSets.size(),
+				theRemote.getRemoteName());
+		valueSets.forEach(url -> loadPersisted(source, url));
+	}
+
+	/**
+	 * Registers a callback that is invoked whenever the content of a snapshot changes
+	 */
+	public void addChangeListener(Runnable theListener) {
+		myChangeListeners.add(theListener);
+	}
+
+	public boolean hasSources() {
+		return !mySources.isEmpty();
+	}
+
+	/**
+	 * @return the snapshot for the given canonical URL (with or without a <code>|version</code> suffix),
+	 * or <code>null</code> if there is none
+	 */
+	public ValueSetSnapshot getSnapshot(String theValueSetUrl) {
+		if (theValueSetUrl == null) {
+			return null;
+		}
+		ValueSetSnapshot retVal = mySnapshots.get(theValueSetUrl);
+		if (retVal == null && theValueSetUrl.contains("|")) {
+			String url = theValueSetUrl.substring(0, theValueSetUrl.indexOf('|'));
+			String version = theValueSetUrl.substring(theValueSetUrl.indexOf('|') + 1);
+			retVal = mySnapshots.get(url);
+			if (retVal != null
+					&& retVal.getValueSetVersion() != null
+					&& !retVal.getValueSetVersion().equals(version)) {
+				retVal = null;
+			}
+		}
+		return retVal;
+	}
+
+	public void refreshDueSnapshots() {
+		long now = System.currentTimeMillis();
+		for (SnapshotSource source : mySources) {
+			for (String url : source.valueSets) {
+				ValueSetSnapshot existing = mySnapshots.get(url);
+				if (existing == null || now - existing.getFetchedAt() >= source.refreshMillis) {
+					try {
+						refresh(source, url);
+					} catch (Exception e) {
+						countRefresh("failed");
+						ourLog.warn("Failed to refresh snapshot of ValueSet {}: {}", url, e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	private void refresh(SnapshotSource theSource, String theUrl) {
+		ValueSet merged = null;
+		int offset = 0;
+		int received = 0;
+		int total = -1;
+		String previousFirstCode = null;
+		for (int pages = 0; ; pages++) {
+			if (pages == MAX_PAGES) {
+				countRefresh("incomplete");
+				ourLog.warn(
+						"Remote expansion of ValueSet {} did not end within {} pages, not using it as a snapshot",
+						theUrl,
+						MAX_PAGES);
+				return;
+			}
+			IBaseResource page = theSource.remote.fetchExpansion(theUrl, offset, PAGE_SIZE);
+			if (page == null) {
+				countRefresh("unavailable");
+				ourLog.warn("Could not refresh snapshot of ValueSet {}, keeping the previous one", theUrl);
+				return;
+			}
+			ValueSet valueSet = myVersionCanonicalizer.valueSetToCanonical(page);
+			List<ValueSet.ValueSetExpansionContainsComponent> contains =
+					valueSet.getExpansion().getContains();
+			int pageSize = contains.size();
+			if (pageSize > 0) {
+				String firstCode =
+						contains.get(0).getSystem() + "|" + contains.get(0).getCode();
+				if (firstCode.equals(previousFirstCode)) {
+					countRefresh("incomplete");
+					ourLog.warn(
+							"Remote expansion of ValueSet {} returned the same page for offset {}, as it does not"
+									+ " support paging, not using it as a snapshot",
+							theUrl,
+							offset);
+					return;
+				}
+				previousFirstCode = firstCode;
+			}
+			if (merged == null) {
+				merged = valueSet;
+				total = valueSet.getExpansion().hasTotal()
+						? valueSet.getExpansion().getTotal()
+						: -1;
+			} else {
+				merged.getExpansion().getContains().addAll(contains);
+			}
+			// The offset pages through the top level codes, while the total counts the nested codes too
+			offset += pageSize;
+			received += countCodes(contains);
+			if (pageSize == 0 || (total >= 0 ? received >= total : pageSize < PAGE_SIZE)) {
+				break;
+			}
+		}
+
+		if (total >= 0 && received < total) {
+			countRefresh("incomplete");
+			ourLog.warn(
+					"Remote expansion of ValueSet {} returned {} of {} codes, not using it as a snapshot",
+					theUrl,
+					received,
+					total);
+			return;
+		}
+
+		Map<String, String> codes = new HashMap<>();
+		collectCodes(merged.getExpansion().getContains(), codes);
+		long now = System.currentTimeMillis();
+		ValueSetSnapshot existing = mySnapshots.get(theUrl);
+		ValueSetSnapshot snapshot;
+		if (existing != null && existing.hasSameContent(codes)) {
+			snapshot = existing.withFetchedAt(now);
+			countRefresh("unchanged");
+		} else {
+			long generation = existing != null ? existing.getGeneration() + 1 : 1;
+			snapshot = new ValueSetSnapshot(theUrl, merged.getVersion(), generation, now, codes);
+			countRefresh("updated");
+			ourLog.info(
+					"Snapshot of ValueSet {} updated to generation {} with {} codes", theUrl, generation, codes.size());
+		}
+		mySnapshots.put(theUrl, snapshot);
+		if (existing == null || snapshot.getGeneration() != existing.getGeneration()) {
+			myChangeListeners.forEach(Runnable::run);
+		}
+		persist(theSource, merged, snapshot);
+	}
+
+	private static void collectCodes(
+			List<ValueSet.ValueSetExpansionContainsComponent> theContains, Map<String, String> theCodes) {
+		for (ValueSet.ValueSetExpansionContainsComponent next : theContains) {
+			if (next.hasCode() && !next.getAbstract()) {
+				theCodes.put(next.getSystem() + "|" + next.getCode(), next.getDisplay());
+			}
+			collectCodes(next.getContains(), theCodes);
+		}
+	}
+
+	/**
+	 * Counts the codes of an expansion, nested ones included, as {@link #collectCodes} walks them. Abstract codes
+	 * are counted as well, as the <code>total</code> of the expansion includes them.
+	 */
+	private static int countCodes(List<ValueSet.ValueSetExpansionContainsComponent> theContains) {
+		int retVal = 0;
+		for (ValueSet.ValueSetExpansionContainsComponent next : theContains) {
+			if (next.hasCode()) {
+				retVal++;
+			}
+			retVal += countCodes(next.getContains());
+		}
+		return retVal;
+	}
+
+	private void persist(SnapshotSource theSource, ValueSet theExpansion, ValueSetSnapshot theSnapshot) {
+		Path file = theSource.fileFor(theSnapshot.getUrl());
+		if (file == null) {
+			return;
+		}
+		theExpansion.getMeta().setVersionId(Long.toString(theSnapshot.getGeneration()));
+		theExpansion.getMeta().setLastUpdated(new Date(theSnapshot.getFetchedAt()));
+		try {
+			Files.createDirectories(file.getParent());
+			Path temp = Files.createTempFile(file.getParent(), "snapshot", ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				myStorageContext.newJsonParser().encodeResourceToWriter(theExpansion, writer);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			ourLog.warn("Failed to persist snapshot of ValueSet {} to {}", theSnapshot.getUrl(), file, e);
+		}
+	}
+
+	private void loadPersisted(SnapshotSource theSource, String theUrl) {
+		Path file = theSource.fileFor(theUrl);
+		if (file == null || !Files.isRegularFile(file)) {
+			return;
+		}
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			ValueSet valueSet = myStorageContext.newJsonParser().parseResource(ValueSet.class, reader);
+			Map<String, String> codes = new HashMap<>();
+			collectCodes(valueSet.getExpansion().getContains(), codes);
+			long generation = valueSet.getMeta().hasVersionId()
+					? Long.parseLong(valueSet.getMeta().getVersionId())
+					: 1;
+			long fetchedAt = valueSet.getMeta().hasLastUpdated()
+					? valueSet.getMeta().getLastUpdated().getTime()
+					: 0;
+			mySnapshots.put(theUrl, new ValueSetSnapshot(theUrl, valueSet.getVersion(), generation, fetchedAt, codes));
+			ourLog.info("Loaded snapshot of ValueSet {} generation {} from {}", theUrl, generation, file);
+		} catch (Exception e) {
+			ourLog.warn("Ignoring unreadable snapshot of ValueSet {} at {}", theUrl, file, e);
+		}
+	}
+
+	private void countRefresh(String theOutcome) {
+		Counter.builder(METRIC_REFRESHES)
+				.description("Refreshes of remote ValueSet snapshots by outcome")
+				.tag("outcome", theOutcome)
+				.register(myMeterRegistry)
+				.increment();
+	}
+
+	@Override
+	public void scheduleJobs(ISchedulerService theSchedulerService) {
+		if (!hasSources()) {
+			return;
+		}
+		ScheduledJobDefinition jobDefinition = new ScheduledJobDefinition();
+		jobDefinition.setId(getClass().getName());
+		jobDefinition.setJobClass(Job.class);
+		theSchedulerService.scheduleLocalJob(DateUtils.MILLIS_PER_MINUTE, jobDefinition);
+	}
+
+	public static class Job implements HapiJob {
+		@Autowired
+		private RemoteValueSetSnapshotSvc myTarget;
+
+		@Override
+		public void execute(JobExecutionContext theContext) {
+			myTarget.refreshDueSnapshots();
+		}
+	}
+
+	private static class SnapshotSource {
+		private final GuardedRemoteTerminologyServiceValidationSupport remote;
+		private final List<String> valueSets;
+		private final long refreshMillis;
+		private final Path directory;
+
+		private SnapshotSource(
+				GuardedRemoteTerminologyServiceValidationSupport theRemote,
+				AppProperties.RemoteSystem theRemoteSystem,
+				List<String> theValueSets) {
+			remote = theRemote;
+			valueSets = new ArrayList<>(theValueSets);
+			refreshMillis = theRemoteSystem.getSnapshot_refresh_millis();
+			directory = theRemoteSystem.getSnapshot_directory() != null
+					? Paths.get(theRemoteSystem.getSnapshot_directory(), theRemote.getRemoteName())
+					: null;
+		}
+
+		private Path fileFor(String theUrl) {
+			return directory != null ? directory.resolve(DigestUtils.sha256Hex(theUrl) + ".json") : null;
+		}
+	}
+}
@@ -1,13 +1,11 @@
 package ca.uhn.fhir.jpa.starter.terminology;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.context.support.ConceptValidationOptions;
 import ca.uhn.fhir.context.support.IValidationSupport;
-import ca.uhn.fhir.context.support.ValidationSupportContext;
 import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.common.StarterJpaConfig;
 import ca.uhn.fhir.jpa.starter.common.validation.OnRemoteTerminologyPresent;
-import org.hl7.fhir.common.hapi.validation.support.RemoteTerminologyServiceValidationSupport;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
@@ -19,49 +17,40 @@ import org.springframework.context.annotation.Import;
 @Import(StarterJpaConfig.class)
 public class TerminologyConfig {
 
+	@Bean
+	public RemoteValueSetSnapshotSvc remoteValueSetSnapshotSvc(
+			FhirContext theFhirContext, MeterRegistry theMeterRegistry) {
+		return new RemoteValueSetSnapshotSvc(theFhirContext, theMeterRegistry);
+	}
+
 	@Bean(name = "myHybridRemoteValidationSupportChain")
 	public IValidationSupport addRemoteValidation(
-			ValidationSupportChain theValidationSupport, FhirContext theFhirContext, AppProperties theAppProperties) {
-		var values = theAppProperties.getRemoteTerminologyServicesMap().values();
+			ValidationSupportChain theValidationSupport,
+			FhirContext theFhirContext,
+			AppProperties theAppProperties,
+			MeterRegistry theMeterRegistry,
+			RemoteValueSetSnapshotSvc theSnapshotSvc) {
+		var remoteSystems = theAppProperties.getRemoteTerminologyServicesMap();
+		var values = remoteSystems.values();
 
 		// If the remote terminology service is "*" and is the only one then forward all requests to the remote
-		// terminology service
-		if (values.size() == 1 && "*".equalsIgnoreCase(values.iterator().next().getSystem())) {
-			var remoteSystem = values.iterator().next();
-			theValidationSupport.addValidationSupport(
-					0, new RemoteTerminologyServiceValidationSupport(theFhirContext, remoteSystem.getUrl()));
-			return theValidationSupport;
+		// terminology service, otherwise each remote only handles its own code system
+		boolean forwardAll =
+				values.size() == 1 && "*".equalsIgnoreCase(values.iterator().next().getSystem());
 
-			// If there are multiple remote terminology services, then add each one to the validation chain
-		} else {
-			values.forEach((remoteSystem) -> theValidationSupport.addValidationSupport(
-					0, new RemoteTerminologyServiceValidationSupport(theFhirContext, remoteSystem.getUrl()) {
-						@Override
-						public boolean isCodeSystemSupported(
-								ValidationSupportContext theValidationSupportContext, String theSystem) {
-							return remoteSystem.getSystem().equalsIgnoreCase(theSystem);
-						}
+		// Every remote gets its own timeouts, bulkhead and circuit breaker so that a slow or unavailable
+		// terminology server degrades validation instead of stalling writes
+		remoteSystems.forEach((name, remoteSystem) -> {
+			var remote = new GuardedRemoteTerminologyServiceValidationSupport(
+					theFhirContext, name, forwardAll ? null : remoteSystem.getSystem(), remoteSystem, theMeterRegistry);
+			theValidationSupport.addValidationSupport(0, remote);
+			theSnapshotSvc.addRemote(remote, remoteSystem);
+		});
 
-						@Override
-						public CodeValidationResult validateCode(
-								ValidationSupportContext theValidationSupportContext,
-								ConceptValidationOptions theOptions,
-								String theCodeSystem,
-								String theCode,
-								String theDisplay,
-								String theValueSetUrl) {
-							if (remoteSystem.getSystem().equalsIgnoreCase(theCodeSystem)) {
-								return super.validateCode(
-										theValidationSupportContext,
-										theOptions,
-										theCodeSystem,
-										theCode,
-										theDisplay,
-										theValueSetUrl);
-							}
-							return null;
-						}
-					}));
+		// Membership checks against snapshotted ValueSets are answered locally, ahead of the remotes
+		if (theSnapshotSvc.hasSources()) {
+			theValidationSupport.addValidationSupport(
+					0, new ValueSetSnapshotValidationSupport(theFhirContext, theSnapshotSvc));
 		}
 		return theValidationSupport;
 	}
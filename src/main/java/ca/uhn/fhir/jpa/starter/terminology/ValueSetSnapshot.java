@@ -0,0 +1,108 @@
+package ca.uhn.fhir.jpa.starter.terminology;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable, locally held copy of a remote <code>ValueSet/$expand</code> result. Codes are keyed by
+ * <code>system|code</code> and map to their display.
+ */
+public class ValueSetSnapshot {
+
+	private final String myUrl;
+	private final String myValueSetVersion;
+	private final long myGeneration;
+	private final long myFetchedAt;
+	private final int myContentHash;
+	private final Map<String, String> myCodes;
+	/**
+	 * The <code>system|code</code> key of the first code with each value, for lookups without a system
+	 */
+	private final Map<String, String> myKeysByCode;
+
+	public ValueSetSnapshot(
+			String theUrl,
+			String theValueSetVersion,
+			long theGeneration,
+			long theFetchedAt,
+			Map<String, String> theCodes) {
+		this(theUrl, theValueSetVersion, theGeneration, theFetchedAt, theCodes, indexByCode(theCodes));
+	}
+
+	private ValueSetSnapshot(
+			String theUrl,
+			String theValueSetVersion,
+			long theGeneration,
+			long theFetchedAt,
+			Map<String, String> theCodes,
+			Map<String, String> theKeysByCode) {
+		myUrl = theUrl;
+		myValueSetVersion = theValueSetVersion;
+		myGeneration = theGeneration;
+		myFetchedAt = theFetchedAt;
+		myCodes = Collections.unmodifiableMap(theCodes);
+		myContentHash = theCodes.hashCode();
+		myKeysByCode = theKeysByCode;
+	}
+
+	public String getUrl() {
+		return myUrl;
+	}
+
+	/**
+	 * The business version of the ValueSet as reported by the remote server, may be <code>null</code>
+	 */
+	public String getValueSetVersion() {
+		return myValueSetVersion;
+	}
+
+	/**
+	 * Local snapshot version, incremented every time a refresh yields different content
+	 */
+	public long getGeneration() {
+		return myGeneration;
+	}
+
+	public long getFetchedAt() {
+		return myFetchedAt;
+	}
+
+	public int size() {
+		return myCodes.size();
+	}
+
+	boolean hasSameContent(Map<String, String> theCodes) {
+		return myContentHash == theCodes.hashCode() && myCodes.equals(theCodes);
+	}
+
+	ValueSetSnapshot withFetchedAt(long theFetchedAt) {
+		return new ValueSetSnapshot(myUrl, myValueSetVersion, myGeneration, theFetchedAt, myCodes, myKeysByCode);
+	}
+
+	/**
+	 * @return the <code>system|code</code> key of the matching code or <code>null</code> if the code is not
+	 * a member. If <code>theSystem</code> is <code>null</code> the first code with a matching value is
+	 * returned.
+	 */
+	public String findCode(String theSystem, String theCode) {
+		if (theSystem != null) {
+			String key = theSystem + "|" + theCode;
+			return myCodes.containsKey(key) ? key : null;
+		}
+		return myKeysByCode.get(theCode);
+	}
+
+	public String getDisplay(String theKey) {
+		return myCodes.get(theKey);
+	}
+
+	private static Map<String, String> indexByCode(Map<String, String> theCodes) {
+		Map<String, String> retVal = new HashMap<>();
+		for (String next : theCodes.keySet()) {
+			// System URLs hold no '|', while codes may
+			retVal.putIfAbsent(next.substring(next.indexOf('|') + 1), next);
+		}
+		return retVal;
+	}
+}
@@ -0,0 +1,113 @@
+package ca.uhn.fhir.jpa.starter.terminology;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import org.hl7.fhir.common.hapi.validation.support.BaseValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Answers ValueSet membership checks from the snapshots held by {@link RemoteValueSetSnapshotSvc}, including a
+ * warning when the display given does not match the display in the snapshot. ValueSets without a snapshot are left
+ * to the rest of the validation support chain.
+ */
+public class ValueSetSnapshotValidationSupport extends BaseValidationSupport implements IValidationSupport {
+
+	private final RemoteValueSetSnapshotSvc mySnapshotSvc;
+
+	public ValueSetSnapshotValidationSupport(FhirContext theFhirContext, RemoteValueSetSnapshotSvc theSnapshotSvc) {
+		super(theFhirContext);
+		mySnapshotSvc = theSnapshotSvc;
+	}
+
+	@Override
+	public String getName() {
+		return getFhirContext().getVersion().getVersion() + " Remote ValueSet Snapshot Validation Support";
+	}
+
+	@Override
+	public boolean isValueSetSupported(ValidationSupportContext theValidationSupportContext, String theValueSetUrl) {
+		return mySnapshotSvc.getSnapshot(theValueSetUrl) != null;
+	}
+
+	@Override
+	public CodeValidationResult validateCode(
+			ValidationSupportContext theValidationSupportContext,
+			ConceptValidationOptions theOptions,
+			String theCodeSystem,
+			String theCode,
+			String theDisplay,
+			String theValueSetUrl) {
+		return validate(mySnapshotSvc.getSnapshot(theValueSetUrl), theOptions, theCodeSystem, theCode, theDisplay);
+	}
+
+	@Override
+	public CodeValidationResult validateCodeInValueSet(
+			ValidationSupportContext theValidationSupportContext,
+			ConceptValidationOptions theOptions,
+			String theCodeSystem,
+			String theCode,
+			String theDisplay,
+			IBaseResource theValueSet) {
+		if (theValueSet == null) {
+			return null;
+		}
+		String url = CommonCodeSystemsTerminologyService.getValueSetUrl(getFhirContext(), theValueSet);
+		return validate(mySnapshotSvc.getSnapshot(url), theOptions, theCodeSystem, theCode, theDisplay);
+	}
+
+	private CodeValidationResult validate(
+			ValueSetSnapshot theSnapshot,
+			ConceptValidationOptions theOptions,
+			String theCodeSystem,
+			String theCode,
+			String theDisplay) {
+		if (theSnapshot == null || theCode == null) {
+			return null;
+		}
+		if (theCodeSystem == null && (theOptions == null || !theOptions.isInferSystem())) {
+			return null;
+		}
+
+		String sourceDetails =
+				"Snapshot of ValueSet " + theSnapshot.getUrl() + " generation " + theSnapshot.getGeneration();
+		String key = theSnapshot.findCode(theCodeSystem, theCode);
+		if (key != null) {
+			// The snapshot holds the system URL of the code only, not the name of the CodeSystem
+			String display = theSnapshot.getDisplay(key);
+			CodeValidationResult retVal = new CodeValidationResult()
+					.setCode(theCode)
+					.setDisplay(display)
+					.setSourceDetails(sourceDetails);
+			if (isNotBlank(theDisplay) && isNotBlank(display) && !theDisplay.equals(display)) {
+				// Reported like the in-memory terminology service does, as a warning on a valid code
+				String message = "Concept Display \"" + theDisplay + "\" does not match expected \"" + display
+						+ "\" for '" + key.replace('|', '#') + "'";
+				retVal.setSeverity(IssueSeverity.WARNING)
+						.setMessage(message)
+						.addIssue(new CodeValidationIssue(
+								message,
+								IssueSeverity.WARNING,
+								CodeValidationIssueCode.INVALID,
+								CodeValidationIssueCoding.INVALID_DISPLAY));
+			}
+			return retVal;
+		}
+
+		String message = "Unknown code '" + (theCodeSystem != null ? theCodeSystem + "#" : "") + theCode
+				+ "' for ValueSet '" + theSnapshot.getUrl() + "'";
+		return new CodeValidationResult()
+				.setSeverity(IssueSeverity.ERROR)
+				.setMessage(message)
+				.setSourceDetails(sourceDetails)
+				.addIssue(new CodeValidationIssue(
+						message,
+						IssueSeverity.ERROR,
+						CodeValidationIssueCode.CODE_INVALID,
+						CodeValidationIssueCoding.NOT_IN_VS));
+	}
+}
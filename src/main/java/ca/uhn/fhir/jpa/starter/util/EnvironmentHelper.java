@@ -3,6 +3,7 @@ package ca.uhn.fhir.jpa.starter.util;
 import ca.uhn.fhir.jpa.config.HapiFhirLocalContainerEntityManagerFactoryBean;
 import ca.uhn.fhir.jpa.search.HapiHSearchAnalysisConfigurers;
 import ca.uhn.fhir.jpa.search.elastic.ElasticsearchHibernatePropertiesBuilder;
+import ca.uhn.fhir.jpa.starter.sql.SqlAttributionStatementInspector;
 import org.apache.lucene.util.Version;
 import org.hibernate.boot.model.naming.CamelCaseToUnderscoresNamingStrategy;
 import org.hibernate.cfg.AvailableSettings;
@@ -78,6 +79,10 @@ public class EnvironmentHelper {
 		properties.putIfAbsent(AvailableSettings.USE_SECOND_LEVEL_CACHE, false);
 		properties.putIfAbsent(AvailableSettings.USE_STRUCTURED_CACHE, false);
 		properties.putIfAbsent(AvailableSettings.USE_MINIMAL_PUTS, false);
+		if (environment.getProperty("hapi.fhir.sql_capture.enabled", Boolean.class, false)) {
+			properties.putIfAbsent(
+					AvailableSettings.STATEMENT_INSPECTOR, SqlAttributionStatementInspector.class.getName());
+		}
 
 		// Hibernate Search defaults
 		properties.putIfAbsent(HibernateOrmMapperSettings.ENABLED, false);
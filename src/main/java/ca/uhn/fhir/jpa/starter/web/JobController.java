@@ -5,20 +5,38 @@ import ca.uhn.fhir.batch2.api.JobOperationResultJson;
 import ca.uhn.fhir.batch2.model.JobInstance;
 import ca.uhn.fhir.batch2.model.StatusEnum;
 import ca.uhn.fhir.batch2.models.JobInstanceFetchRequest;
+import ca.uhn.fhir.jpa.starter.batch2.Batch2ConcurrencySvc;
+import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
 import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @RestController
 @RequestMapping("control")
 public class JobController {
 	private final IJobCoordinator theJobCoordinator;
+	private final JobSummaryRepository theJobSummaryRepository;
+	private final JobProgressBroadcaster theJobProgressBroadcaster;
+	private final Batch2ConcurrencySvc theBatch2ConcurrencySvc;
 
-	public JobController(IJobCoordinator theJobCoordinator) {
+	public JobController(
+			IJobCoordinator theJobCoordinator,
+			JobSummaryRepository theJobSummaryRepository,
+			JobProgressBroadcaster theJobProgressBroadcaster,
+			Batch2ConcurrencySvc theBatch2ConcurrencySvc) {
 		this.theJobCoordinator = theJobCoordinator;
+		this.theJobSummaryRepository = theJobSummaryRepository;
+		this.theJobProgressBroadcaster = theJobProgressBroadcaster;
+		this.theBatch2ConcurrencySvc = theBatch2ConcurrencySvc;
 	}
 
 	@RequestMapping(value = JobController.JOBS, method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
@@ -35,6 +53,33 @@ public class JobController {
 		return theJobCoordinator.fetchAllJobInstances(jobInstanceFetchRequest).getContent();
 	}
 
+	/**
+	 * Lists job summaries newest first. Pass the <code>nextCursor</code> of a page as <code>cursor</code> to fetch
+	 * the next one.
+	 */
+	@RequestMapping(
+			value = JobController.JOB_SUMMARIES,
+			method = RequestMethod.GET,
+			produces = MediaType.APPLICATION_JSON_VALUE)
+	public JobSummaryPage getJobSummaries(
+			@RequestParam(name = "cursor", required = false) String cursor,
+			@RequestParam(name = "limit", defaultValue = "50") @Min(1) @Max(MAX_LIMIT) int limit,
+			@RequestParam(name = "jobDefinitionId", required = false) String jobDefinitionId,
+			@RequestParam(name = "jobStatus", required = false) Set<StatusEnum> jobStatus) {
+		return theJobSummaryRepository.fetchPage(cursor, Math.min(limit, MAX_LIMIT), jobDefinitionId, jobStatus);
+	}
+
+	/**
+	 * Streams <code>status</code> and <code>progress</code> events for the given instances until they have ended
+	 */
+	@RequestMapping(
+			value = JobController.JOB_EVENTS,
+			method = RequestMethod.GET,
+			produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public SseEmitter streamJobProgress(@RequestParam(name = "instanceId") Set<String> instanceId) {
+		return theJobProgressBroadcaster.subscribe(instanceId);
+	}
+
 	@RequestMapping(
 			value = JobController.JOBS,
 			method = RequestMethod.DELETE,
@@ -43,6 +88,58 @@ public class JobController {
 		return theJobCoordinator.cancelInstance(instanceId);
 	}
 
+	@RequestMapping(
+			value = JobController.CONCURRENCY,
+			method = RequestMethod.GET,
+			produces = MediaType.APPLICATION_JSON_VALUE)
+	public Map<String, Object> getConcurrency() {
+		Map<String, Object> retVal = new LinkedHashMap<>();
+		retVal.put("workers", theBatch2ConcurrencySvc.getWorkers());
+		retVal.put("activeWorkers", theBatch2ConcurrencySvc.getActiveWorkers());
+		retVal.put("throttles", theBatch2ConcurrencySvc.getThrottles());
+		return retVal;
+	}
+
+	/**
+	 * Changes the number of batch2 workers. Chunks already being processed are not interrupted.
+	 */
+	@RequestMapping(
+			value = JobController.CONCURRENCY_WORKERS,
+			method = RequestMethod.PUT,
+			produces = MediaType.APPLICATION_JSON_VALUE)
+	public Map<String, Object> setWorkers(@RequestParam(name = "workers") @Min(1) int workers) {
+		if (!theBatch2ConcurrencySvc.isWorkerPoolAdjustable()) {
+			throw new ResponseStatusException(
+					HttpStatus.CONFLICT, "The batch2 workers are managed by the message broker");
+		}
+		theBatch2ConcurrencySvc.setWorkers(workers);
+		return getConcurrency();
+	}
+
+	/**
+	 * Limits how many chunks of a job definition are processed at the same time. A limit of 0 removes the throttle.
+	 */
+	@RequestMapping(
+			value = JobController.CONCURRENCY_THROTTLES,
+			method = RequestMethod.PUT,
+			produces = MediaType.APPLICATION_JSON_VALUE)
+	public Map<String, Object> setThrottle(
+			@RequestParam(name = "jobDefinitionId") String jobDefinitionId,
+			@RequestParam(name = "limit") @Min(0) int limit) {
+		if (!theBatch2ConcurrencySvc.isThrottlingSupported()) {
+			throw new ResponseStatusException(
+					HttpStatus.CONFLICT, "The batch2 work chunks are delivered by the message broker");
+		}
+		theBatch2ConcurrencySvc.setThrottle(jobDefinitionId, limit);
+		return getConcurrency();
+	}
+
 	public static final String JOBS = "jobs";
+	public static final String JOB_SUMMARIES = "jobs/summaries";
+	public static final String JOB_EVENTS = "jobs/events";
+	public static final String CONCURRENCY = "jobs/concurrency";
+	public static final String CONCURRENCY_WORKERS = "jobs/concurrency/workers";
+	public static final String CONCURRENCY_THROTTLES = "jobs/concurrency/throttles";
+	public static final int MAX_LIMIT = 500;
 	public static final String MY_CREATE_TIME = "myCreateTime";
 }
@@ -0,0 +1,146 @@
+package ca.uhn.fhir.jpa.starter.web;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes the progress of batch2 job instances to server-sent event subscribers.
+ * <p>
+ * A single poller reads the {@link JobSummary summaries} of all instances that have subscribers in one query per
+ * interval, however many clients are listening. A <code>progress</code> event is sent when an instance made progress
+ * and a <code>status</code> event when it changed status. A subscription completes once all of its instances have
+ * ended.
+ */
+@Component
+public class JobProgressBroadcaster {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(JobProgressBroadcaster.class);
+	private static final long POLL_INTERVAL_MILLIS = 2000;
+	private static final long EMITTER_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+	private final JobSummaryRepository myJobSummaryRepository;
+	private final Map<SseEmitter, Set<String>> mySubscriptions = new ConcurrentHashMap<>();
+	private final Map<String, JobSummary> myLastSent = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "job-progress-broadcaster");
+		t.setDaemon(true);
+		return t;
+	});
+	private ScheduledFuture<?> myPoller;
+
+	public JobProgressBroadcaster(JobSummaryRepository theJobSummaryRepository) {
+		myJobSummaryRepository = theJobSummaryRepository;
+	}
+
+	public synchronized SseEmitter subscribe(Set<String> theInstanceIds) {
+		SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MILLIS);
+		Set<String> remaining = new CopyOnWriteArraySet<>(theInstanceIds);
+		emitter.onCompletion(() -> unsubscribe(emitter));
+		emitter.onTimeout(() -> unsubscribe(emitter));
+		emitter.onError(e -> unsubscribe(emitter));
+
+		// New subscribers get the current state of their instances straight away
+		for (JobSummary next : myJobSummaryRepository.fetchByIds(theInstanceIds)) {
+			myLastSent.putIfAbsent(next.getInstanceId(), next);
+			send(emitter, "status", next);
+			if (next.getStatus() != null && next.getStatus().isEnded()) {
+				remaining.remove(next.getInstanceId());
+			}
+		}
+		if (remaining.isEmpty()) {
+			emitter.complete();
+			return emitter;
+		}
+		mySubscriptions.put(emitter, remaining);
+		if (myPoller == null) {
+			myPoller = myExecutor.scheduleWithFixedDelay(
+					this::poll, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		return emitter;
+	}
+
+	private synchronized void unsubscribe(SseEmitter theEmitter) {
+		mySubscriptions.remove(theEmitter);
+		if (mySubscriptions.isEmpty() && myPoller != null) {
+			myPoller.cancel(false);
+			myPoller = null;
+			myLastSent.clear();
+		}
+	}
+
+	void poll() {
+		try {
+			Set<String> instanceIds = new HashSet<>();
+			mySubscriptions.values().forEach(instanceIds::addAll);
+			List<JobSummary> summaries = myJobSummaryRepository.fetchByIds(instanceIds);
+
+			Map<String, JobSummary> changed = new HashMap<>();
+			Map<String, String> eventNames = new HashMap<>();
+			for (JobSummary next : summaries) {
+				JobSummary previous = myLastSent.put(next.getInstanceId(), next);
+				if (next.hasChangedSince(previous)) {
+					changed.put(next.getInstanceId(), next);
+					boolean statusChanged = previous == null || previous.getStatus() != next.getStatus();
+					eventNames.put(next.getInstanceId(), statusChanged ? "status" : "progress");
+				}
+			}
+			if (changed.isEmpty()) {
+				return;
+			}
+
+			for (Map.Entry<SseEmitter, Set<String>> subscription : mySubscriptions.entrySet()) {
+				SseEmitter emitter = subscription.getKey();
+				Set<String> remaining = subscription.getValue();
+				for (String instanceId : remaining) {
+					JobSummary next = changed.get(instanceId);
+					if (next == null) {
+						continue;
+					}
+					send(emitter, eventNames.get(instanceId), next);
+					if (next.getStatus() != null && next.getStatus().isEnded()) {
+						remaining.remove(instanceId);
+					}
+				}
+				if (remaining.isEmpty()) {
+					emitter.complete();
+				}
+			}
+		} catch (Exception e) {
+			ourLog.warn("Failed to poll job progress: {}", e.toString());
+		}
+	}
+
+	private static void send(SseEmitter theEmitter, String theEventName, JobSummary theSummary) {
+		try {
+			theEmitter.send(SseEmitter.event()
+					.name(theEventName)
+					.id(theSummary.getInstanceId())
+					.data(theSummary, MediaType.APPLICATION_JSON));
+		} catch (IOException | IllegalStateException e) {
+			// The client went away, the emitter callbacks remove the subscription
+			theEmitter.completeWithError(e);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		myExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,105 @@
+package ca.uhn.fhir.jpa.starter.web;
+
+import ca.uhn.fhir.batch2.model.StatusEnum;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * The fields of a batch2 job instance needed to list jobs and follow their progress, without the parameters,
+ * report and warnings of the full {@link ca.uhn.fhir.batch2.model.JobInstance}
+ */
+public class JobSummary {
+
+	private final String instanceId;
+	private final String jobDefinitionId;
+	private final StatusEnum status;
+	private final Date createTime;
+	private final Date startTime;
+	private final Date endTime;
+	private final Date updateTime;
+	private final double progress;
+	private final int errorCount;
+	private final Integer combinedRecordsProcessed;
+	private final String estimatedTimeRemaining;
+
+	public JobSummary(
+			String instanceId,
+			String jobDefinitionId,
+			StatusEnum status,
+			Date createTime,
+			Date startTime,
+			Date endTime,
+			Date updateTime,
+			double progress,
+			int errorCount,
+			Integer combinedRecordsProcessed,
+			String estimatedTimeRemaining) {
+		this.instanceId = instanceId;
+		this.jobDefinitionId = jobDefinitionId;
+		this.status = status;
+		this.createTime = createTime;
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.updateTime = updateTime;
+		this.progress = progress;
+		this.errorCount = errorCount;
+		this.combinedRecordsProcessed = combinedRecordsProcessed;
+		this.estimatedTimeRemaining = estimatedTimeRemaining;
+	}
+
+	public String getInstanceId() {
+		return instanceId;
+	}
+
+	public String getJobDefinitionId() {
+		return jobDefinitionId;
+	}
+
+	public StatusEnum getStatus() {
+		return status;
+	}
+
+	public Date getCreateTime() {
+		return createTime;
+	}
+
+	public Date getStartTime() {
+		return startTime;
+	}
+
+	public Date getEndTime() {
+		return endTime;
+	}
+
+	public Date getUpdateTime() {
+		return updateTime;
+	}
+
+	public double getProgress() {
+		return progress;
+	}
+
+	public int getErrorCount() {
+		return errorCount;
+	}
+
+	public Integer getCombinedRecordsProcessed() {
+		return combinedRecordsProcessed;
+	}
+
+	public String getEstimatedTimeRemaining() {
+		return estimatedTimeRemaining;
+	}
+
+	/**
+	 * @return <code>true</code> if the instance has made progress or changed its status since <code>theOther</code>
+	 */
+	boolean hasChangedSince(JobSummary theOther) {
+		return theOther == null
+				|| status != theOther.status
+				|| progress != theOther.progress
+				|| errorCount != theOther.errorCount
+				|| !Objects.equals(combinedRecordsProcessed, theOther.combinedRecordsProcessed);
+	}
+}
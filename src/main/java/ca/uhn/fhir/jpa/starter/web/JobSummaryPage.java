@@ -0,0 +1,28 @@
+package ca.uhn.fhir.jpa.starter.web;
+
+import java.util.List;
+
+/**
+ * A page of {@link JobSummary job summaries}, with the cursor to pass to fetch the next page
+ */
+public class JobSummaryPage {
+
+	private final List<JobSummary> jobs;
+	private final String nextCursor;
+
+	public JobSummaryPage(List<JobSummary> jobs, String nextCursor) {
+		this.jobs = jobs;
+		this.nextCursor = nextCursor;
+	}
+
+	public List<JobSummary> getJobs() {
+		return jobs;
+	}
+
+	/**
+	 * @return the cursor of the next page, or <code>null</code> if this is the last page
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+}
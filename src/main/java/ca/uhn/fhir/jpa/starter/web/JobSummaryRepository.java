@@ -0,0 +1,116 @@
+package ca.uhn.fhir.jpa.starter.web;
+
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.TypedQuery;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads {@link JobSummary} projections of the batch2 job instances straight from the job instance table.
+ * <p>
+ * Pages are addressed by a keyset cursor on the creation time and instance ID of the last instance returned, so
+ * every page costs the same however much job history has accumulated.
+ */
+@Component
+public class JobSummaryRepository {
+
+	private static final String SELECT = "SELECT new " + JobSummary.class.getName()
+			+ "(e.myId, e.myDefinitionId, e.myStatus, e.myCreateTime, e.myStartTime, e.myEndTime, e.myUpdateTime,"
+			+ " e.myProgress, e.myErrorCount, e.myCombinedRecordsProcessed, e.myEstimatedTimeRemaining)"
+			+ " FROM Batch2JobInstanceEntity e";
+
+	@PersistenceContext
+	private EntityManager myEntityManager;
+
+	/**
+	 * @param theCursor          the cursor returned with the previous page, or <code>null</code> for the first page
+	 * @param theLimit           the maximum number of instances to return
+	 * @param theJobDefinitionId if not <code>null</code>, only instances of this job definition are returned
+	 * @param theStatuses        if not empty, only instances in one of these statuses are returned
+	 */
+	public JobSummaryPage fetchPage(
+			String theCursor, int theLimit, String theJobDefinitionId, Set<StatusEnum> theStatuses) {
+		StringBuilder jpql = new StringBuilder(SELECT).append(" WHERE 1 = 1");
+		Cursor cursor = theCursor != null && !theCursor.isEmpty() ? Cursor.parse(theCursor) : null;
+		if (cursor != null) {
+			jpql.append(" AND (e.myCreateTime < :createTime OR (e.myCreateTime = :createTime AND e.myId < :id))");
+		}
+		if (theJobDefinitionId != null) {
+			jpql.append(" AND e.myDefinitionId = :definitionId");
+		}
+		if (theStatuses != null && !theStatuses.isEmpty()) {
+			jpql.append(" AND e.myStatus IN (:statuses)");
+		}
+		jpql.append(" ORDER BY e.myCreateTime DESC, e.myId DESC");
+
+		TypedQuery<JobSummary> query = myEntityManager.createQuery(jpql.toString(), JobSummary.class);
+		if (cursor != null) {
+			query.setParameter("createTime", cursor.createTime);
+			query.setParameter("id", cursor.instanceId);
+		}
+		if (theJobDefinitionId != null) {
+			query.setParameter("definitionId", theJobDefinitionId);
+		}
+		if (theStatuses != null && !theStatuses.isEmpty()) {
+			query.setParameter("statuses", theStatuses);
+		}
+		// One extra row tells whether there is a next page
+		query.setMaxResults(theLimit + 1);
+		List<JobSummary> jobs = new ArrayList<>(query.getResultList());
+
+		String nextCursor = null;
+		if (jobs.size() > theLimit) {
+			jobs = jobs.subList(0, theLimit);
+			JobSummary last = jobs.get(theLimit - 1);
+			nextCursor = new Cursor(last.getCreateTime(), last.getInstanceId()).format();
+		}
+		return new JobSummaryPage(jobs, nextCursor);
+	}
+
+	public List<JobSummary> fetchByIds(Collection<String> theInstanceIds) {
+		if (theInstanceIds.isEmpty()) {
+			return List.of();
+		}
+		return myEntityManager
+				.createQuery(SELECT + " WHERE e.myId IN (:ids)", JobSummary.class)
+				.setParameter("ids", theInstanceIds)
+				.getResultList();
+	}
+
+	private static class Cursor {
+		private final Date createTime;
+		private final String instanceId;
+
+		private Cursor(Date theCreateTime, String theInstanceId) {
+			createTime = theCreateTime;
+			instanceId = theInstanceId;
+		}
+
+		private String format() {
+			String value = createTime.getTime() + ":" + instanceId;
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		private static Cursor parse(String theCursor) {
+			try {
+				String value = new String(Base64.getUrlDecoder().decode(theCursor), StandardCharsets.UTF_8);
+				int separator = value.indexOf(':');
+				return new Cursor(
+						new Date(Long.parseLong(value.substring(0, separator))), value.substring(separator + 1));
+			} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+				throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor: " + theCursor);
+			}
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package ca.uhn.fhir.jpa.starter.web;
+
+import ca.uhn.fhir.jpa.starter.sql.SqlCaptureInterceptor;
+import ca.uhn.fhir.jpa.starter.sql.SqlCaptureReport;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Exposes the most recent slow SQL statements and the database work of the most recent FHIR requests, available
+ * when <code>hapi.fhir.sql_capture.enabled</code> is set.
+ */
+@RestController
+@RequestMapping("control")
+public class SqlCaptureController {
+	private final Optional<SqlCaptureInterceptor> theSqlCaptureInterceptor;
+
+	public SqlCaptureController(Optional<SqlCaptureInterceptor> theSqlCaptureInterceptor) {
+		this.theSqlCaptureInterceptor = theSqlCaptureInterceptor;
+	}
+
+	@RequestMapping(
+			value = SqlCaptureController.SLOW_STATEMENTS,
+			method = RequestMethod.GET,
+			produces = MediaType.APPLICATION_JSON_VALUE)
+	public List<SqlCaptureReport.SlowStatement> getSlowStatements() {
+		return getReport().getSlowStatements();
+	}
+
+	@RequestMapping(
+			value = SqlCaptureController.REQUESTS,
+			method = RequestMethod.GET,
+			produces = MediaType.APPLICATION_JSON_VALUE)
+	public List<SqlCaptureReport.RequestStats> getRequests() {
+		return getReport().getRequests();
+	}
+
+	private SqlCaptureReport getReport() {
+		return theSqlCaptureInterceptor
+				.map(SqlCaptureInterceptor::getReport)
+				.orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "SQL capture is not enabled"));
+	}
+
+	public static final String SLOW_STATEMENTS = "sql/slow";
+	public static final String REQUESTS = "sql/requests";
+}
@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.web;
+
+import ca.uhn.fhir.jpa.starter.common.validation.ResponseValidationReport;
+import ca.uhn.fhir.jpa.starter.common.validation.SampledResponseValidatingInterceptor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Exposes the rolling summary of sampled response validation, available when
+ * <code>hapi.fhir.validation.responses_async</code> is enabled.
+ */
+@RestController
+@RequestMapping("control")
+public class ValidationReportController {
+	private final Optional<SampledResponseValidatingInterceptor> theSampledResponseValidatingInterceptor;
+
+	public ValidationReportController(
+			Optional<SampledResponseValidatingInterceptor> theSampledResponseValidatingInterceptor) {
+		this.theSampledResponseValidatingInterceptor = theSampledResponseValidatingInterceptor;
+	}
+
+	@RequestMapping(
+			value = ValidationReportController.RESPONSES,
+			method = RequestMethod.GET,
+			produces = MediaType.APPLICATION_JSON_VALUE)
+	public List<ResponseValidationReport.Entry> getResponseReport() {
+		return theSampledResponseValidatingInterceptor
+				.map(interceptor -> interceptor.getReport().getEntries())
+				.orElseThrow(() -> new ResponseStatusException(
+						HttpStatus.NOT_FOUND, "Sampled response validation is not enabled"));
+	}
+
+	public static final String RESPONSES = "validation/responses";
+}
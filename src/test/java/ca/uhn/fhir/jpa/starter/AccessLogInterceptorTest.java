@@ -0,0 +1,142 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.common.AccessLogInterceptor;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AccessLogInterceptorTest {
+
+	private final String myLoggerName = "test.access." + UUID.randomUUID();
+	private final BlockingAppender myAccessLog = new BlockingAppender();
+	private final ListAppender<ILoggingEvent> myWriterLog = new ListAppender<>();
+	private AccessLogInterceptor myInterceptor;
+
+	@AfterEach
+	void after() throws InterruptedException {
+		myAccessLog.myReleased.countDown();
+		myInterceptor.stop();
+		((Logger) LoggerFactory.getLogger(AccessLogInterceptor.class)).detachAppender(myWriterLog);
+	}
+
+	@Test
+	void testRecordsAreDroppedAndCountedWhileTheBufferIsFull() throws Exception {
+		start(4, 1.0);
+
+		// The writer takes the first record and blocks on it, so the buffer holds the next three only
+		complete("Patient/0", 200);
+		assertTrue(myAccessLog.myEntered.await(5, TimeUnit.SECONDS));
+		for (int i = 1; i <= 5; i++) {
+			complete("Patient/" + i, 200);
+		}
+		assertEquals(2, myInterceptor.getDropped());
+
+		myAccessLog.myReleased.countDown();
+		await().atMost(5, TimeUnit.SECONDS).until(() -> myAccessLog.myLines.size() == 4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(myAccessLog.myLines.get(i).contains("\"path\":\"Patient/" + i + "\""));
+		}
+		await().atMost(5, TimeUnit.SECONDS).until(() -> myWriterLog.list.stream()
+				.anyMatch(next -> next.getFormattedMessage()
+						.equals("Dropped 2 access log records because the buffer was full")));
+
+		// The slots are reused once the writer caught up
+		for (int i = 6; i < 12; i++) {
+			int logged = i - 1;
+			complete("Patient/" + i, 200);
+			await().atMost(5, TimeUnit.SECONDS).until(() -> myAccessLog.myLines.size() == logged);
+		}
+		assertEquals(2, myInterceptor.getDropped());
+	}
+
+	@Test
+	void testFailedRequestsAreLoggedWhateverTheSampleRate() throws Exception {
+		start(16, 0.0);
+		myAccessLog.myReleased.countDown();
+
+		complete("Patient/1", 200);
+		ServletRequestDetails failed = request("Patient/2", 200);
+		myInterceptor.exceptionThrown(failed, new ResourceNotFoundException("Patient/2"));
+		myInterceptor.requestCompleted(failed, failed);
+		// Records still in the buffer are written before the writer stops
+		myInterceptor.stop();
+
+		assertEquals(1, myAccessLog.myLines.size());
+		String line = myAccessLog.myLines.get(0);
+		assertTrue(line.contains("\"path\":\"Patient/2\""), line);
+		assertTrue(line.contains("\"status\":404"), line);
+		assertTrue(line.contains("\"interaction\":\"read\""), line);
+		assertTrue(line.contains("\"query\":\"_pretty=true\""), line);
+	}
+
+	private void start(int theBufferSize, double theSampleRate) {
+		Logger accessLogger = (Logger) LoggerFactory.getLogger(myLoggerName);
+		accessLogger.setLevel(Level.INFO);
+		accessLogger.setAdditive(false);
+		myAccessLog.start();
+		accessLogger.addAppender(myAccessLog);
+		myWriterLog.start();
+		((Logger) LoggerFactory.getLogger(AccessLogInterceptor.class)).addAppender(myWriterLog);
+		myInterceptor = new AccessLogInterceptor(myLoggerName, theBufferSize, theSampleRate, false);
+	}
+
+	private void complete(String thePath, int theStatus) {
+		ServletRequestDetails requestDetails = request(thePath, theStatus);
+		myInterceptor.requestCompleted(requestDetails, requestDetails);
+	}
+
+	private static ServletRequestDetails request(String thePath, int theStatus) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/fhir/" + thePath);
+		request.setQueryString("_pretty=true");
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		response.setStatus(theStatus);
+		ServletRequestDetails retVal = new ServletRequestDetails();
+		retVal.setServletRequest(request);
+		retVal.setServletResponse(response);
+		retVal.setRequestType(RequestTypeEnum.GET);
+		retVal.setRequestPath(thePath);
+		retVal.setRestOperationType(RestOperationTypeEnum.READ);
+		return retVal;
+	}
+
+	/**
+	 * Holds the writer on its first line until released
+	 */
+	private static class BlockingAppender extends AppenderBase<ILoggingEvent> {
+		private final CountDownLatch myEntered = new CountDownLatch(1);
+		private final CountDownLatch myReleased = new CountDownLatch(1);
+		private final List<String> myLines = new CopyOnWriteArrayList<>();
+
+		@Override
+		protected void append(ILoggingEvent theEvent) {
+			myEntered.countDown();
+			try {
+				myReleased.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			myLines.add(theEvent.getFormattedMessage());
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.common.AdmissionControlFilter;
+import ca.uhn.fhir.jpa.starter.common.TrafficClassifier;
+import ca.uhn.fhir.rest.api.Constants;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.FilterChain;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdmissionControlFilterTest {
+
+	private static final String BATCH_CLIENT = "3.3.3.3";
+
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private final ExecutorService myClients = Executors.newCachedThreadPool();
+	private final List<String> myAdmitted = new CopyOnWriteArrayList<>();
+
+	@AfterEach
+	void tearDown() {
+		myClients.shutdownNow();
+	}
+
+	@Test
+	void testInteractiveRequestsAreAdmittedBeforeBatchRequests() throws Exception {
+		AdmissionControlFilter filter = filter(10_000);
+		CountDownLatch release = new CountDownLatch(1);
+
+		Future<MockHttpServletResponse> running = send(filter, "running", "1.1.1.1", release);
+		await().atMost(10, TimeUnit.SECONDS).until(() -> gauge(AdmissionControlFilter.METRIC_ACTIVE, null) == 1);
+		Future<MockHttpServletResponse> batch = send(filter, "batch", BATCH_CLIENT, null);
+		await().atMost(10, TimeUnit.SECONDS).until(() -> gauge(AdmissionControlFilter.METRIC_QUEUED, "batch") == 1);
+		Future<MockHttpServletResponse> interactive = send(filter, "interactive", "2.2.2.2", null);
+		await().atMost(10, TimeUnit.SECONDS)
+				.until(() -> gauge(AdmissionControlFilter.METRIC_QUEUED, "interactive") == 1);
+
+		release.countDown();
+		assertEquals(200, running.get(10, TimeUnit.SECONDS).getStatus());
+		assertEquals(200, batch.get(10, TimeUnit.SECONDS).getStatus());
+		assertEquals(200, interactive.get(10, TimeUnit.SECONDS).getStatus());
+		// The batch request waited longer, but the interactive request got the freed permit first
+		assertEquals(List.of("running", "interactive", "batch"), myAdmitted);
+	}
+
+	@Test
+	void testRequestsAreRejectedWhenNoPermitBecomesAvailable() throws Exception {
+		AdmissionControlFilter filter = filter(50);
+		CountDownLatch release = new CountDownLatch(1);
+
+		Future<MockHttpServletResponse> running = send(filter, "running", "1.1.1.1", release);
+		await().atMost(10, TimeUnit.SECONDS).until(() -> gauge(AdmissionControlFilter.METRIC_ACTIVE, null) == 1);
+		MockHttpServletResponse rejected = send(filter, "rejected", "2.2.2.2", null).get(10, TimeUnit.SECONDS);
+		release.countDown();
+
+		assertEquals(503, rejected.getStatus());
+		assertEquals("1", rejected.getHeader(Constants.HEADER_RETRY_AFTER));
+		assertEquals(200, running.get(10, TimeUnit.SECONDS).getStatus());
+		assertEquals(List.of("running"), myAdmitted);
+		assertEquals(1.0, myMeterRegistry.get(AdmissionControlFilter.METRIC_REJECTED).counter().count());
+	}
+
+	@Test
+	void testMetadataRequestsAreNeverQueued() throws Exception {
+		AdmissionControlFilter filter = filter(50);
+		CountDownLatch release = new CountDownLatch(1);
+
+		Future<MockHttpServletResponse> running = send(filter, "running", "1.1.1.1", release);
+		await().atMost(10, TimeUnit.SECONDS).until(() -> gauge(AdmissionControlFilter.METRIC_ACTIVE, null) == 1);
+		assertEquals(200, send(filter, "metadata", "/metadata").get(10, TimeUnit.SECONDS).getStatus());
+		assertEquals(200, send(filter, "tenant", "/TENANT-A/metadata").get(10, TimeUnit.SECONDS).getStatus());
+		assertEquals(503, send(filter, "read", "/Patient/1/metadata").get(10, TimeUnit.SECONDS).getStatus());
+		release.countDown();
+
+		assertEquals(200, running.get(10, TimeUnit.SECONDS).getStatus());
+		assertEquals(List.of("running", "metadata", "tenant"), myAdmitted);
+	}
+
+	private AdmissionControlFilter filter(long theMaxWaitMillis) {
+		TrafficClassifier classifier =
+				new TrafficClassifier(null, List.of(), false, List.of(BATCH_CLIENT), List.of());
+		return new AdmissionControlFilter(1, theMaxWaitMillis, classifier, myMeterRegistry);
+	}
+
+	/**
+	 * Sends a request through the filter, which records its name once admitted and then waits for the latch
+	 */
+	private Future<MockHttpServletResponse> send(
+			AdmissionControlFilter theFilter, String theName, String theRemoteAddr, CountDownLatch theLatch) {
+		return send(theFilter, theName, theRemoteAddr, "/Patient", theLatch);
+	}
+
+	private Future<MockHttpServletResponse> send(AdmissionControlFilter theFilter, String theName, String thePath) {
+		return send(theFilter, theName, "2.2.2.2", thePath, null);
+	}
+
+	private Future<MockHttpServletResponse> send(
+			AdmissionControlFilter theFilter,
+			String theName,
+			String theRemoteAddr,
+			String thePath,
+			CountDownLatch theLatch) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/fhir" + thePath);
+		request.setPathInfo(thePath);
+		request.setRemoteAddr(theRemoteAddr);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		FilterChain chain = (theRequest, theResponse) -> {
+			myAdmitted.add(theName);
+			if (theLatch != null) {
+				try {
+					theLatch.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		return myClients.submit(() -> {
+			theFilter.doFilter(request, response, chain);
+			return response;
+		});
+	}
+
+	private double gauge(String theName, String theTrafficClass) {
+		return theTrafficClass != null
+				? myMeterRegistry.get(theName).tag("traffic_class", theTrafficClass).gauge().value()
+				: myMeterRegistry.get(theName).gauge().value();
+	}
+}
@@ -0,0 +1,143 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.batch2.model.JobWorkNotification;
+import ca.uhn.fhir.batch2.model.JobWorkNotificationJsonMessage;
+import ca.uhn.fhir.jpa.starter.batch2.Batch2ConcurrencySvc;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageDeliveryException;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class Batch2ConcurrencySvcTest {
+
+	private static final String THROTTLED = "throttled-job";
+	private static final String OTHER = "other-job";
+
+	private final CountDownLatch myReleaseThrottled = new CountDownLatch(1);
+	private final AtomicInteger myThrottledInFlight = new AtomicInteger();
+	private final AtomicInteger myMaxThrottledInFlight = new AtomicInteger();
+	private final List<String> myProcessed = new CopyOnWriteArrayList<>();
+	private ThreadPoolTaskExecutor myWorkerPool;
+	private ExecutorSubscribableChannel myChannel;
+	private Batch2ConcurrencySvc mySvc;
+
+	@BeforeEach
+	void setUp() {
+		myWorkerPool = new ThreadPoolTaskExecutor();
+		myWorkerPool.setCorePoolSize(2);
+		myWorkerPool.setMaxPoolSize(2);
+		myWorkerPool.initialize();
+		myChannel = new ExecutorSubscribableChannel(myWorkerPool);
+		myChannel.subscribe(message -> {
+			JobWorkNotification notification = (JobWorkNotification) message.getPayload();
+			if (THROTTLED.equals(notification.getJobDefinitionId())) {
+				int inFlight = myThrottledInFlight.incrementAndGet();
+				myMaxThrottledInFlight.accumulateAndGet(inFlight, Math::max);
+				try {
+					myReleaseThrottled.await(30, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					myThrottledInFlight.decrementAndGet();
+				}
+			}
+			myProcessed.add(notification.getChunkId());
+		});
+		mySvc = new Batch2ConcurrencySvc(myChannel, new SimpleMeterRegistry());
+	}
+
+	@AfterEach
+	void tearDown() {
+		mySvc.stop();
+		myReleaseThrottled.countDown();
+		myWorkerPool.shutdown();
+	}
+
+	@Test
+	void otherJobDefinitionsProgressWhileOneIsThrottled() {
+		mySvc.setThrottle(THROTTLED, 1);
+
+		for (int i = 0; i < 5; i++) {
+			send(THROTTLED, "throttled-" + i);
+		}
+		for (int i = 0; i < 5; i++) {
+			send(OTHER, "other-" + i);
+		}
+
+		// One worker is held by the throttled chunk in progress, the other one gets through all other chunks
+		await().atMost(10, TimeUnit.SECONDS)
+				.until(() -> myProcessed.stream().filter(id -> id.startsWith("other-")).count() == 5);
+		assertEquals(1, myThrottledInFlight.get());
+		assertTrue(myProcessed.stream().noneMatch(id -> id.startsWith("throttled-")));
+
+		myReleaseThrottled.countDown();
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myProcessed.size() == 10);
+		assertEquals(1, myMaxThrottledInFlight.get());
+	}
+
+	@Test
+	void raisingTheLimitDeliversDeferredChunks() {
+		mySvc.setThrottle(THROTTLED, 1);
+		for (int i = 0; i < 3; i++) {
+			send(THROTTLED, "throttled-" + i);
+		}
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myThrottledInFlight.get() == 1);
+
+		mySvc.setThrottle(THROTTLED, 2);
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myThrottledInFlight.get() == 2);
+
+		myReleaseThrottled.countDown();
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myProcessed.size() == 3);
+	}
+
+	@Test
+	void deferredChunksThatFailToBeDeliveredAgainAreRetried() {
+		mySvc.setThrottle(THROTTLED, 1);
+		send(THROTTLED, "throttled-0");
+		send(THROTTLED, "throttled-1");
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myThrottledInFlight.get() == 1);
+
+		// Removing the throttle delivers the deferred chunk again, which fails once
+		AtomicBoolean failing = new AtomicBoolean(true);
+		myChannel.addInterceptor(new ChannelInterceptor() {
+			@Override
+			public Message<?> preSend(Message<?> theMessage, MessageChannel theChannel) {
+				if (failing.getAndSet(false)) {
+					throw new MessageDeliveryException(theMessage, "unavailable");
+				}
+				return theMessage;
+			}
+		});
+		mySvc.setThrottle(THROTTLED, 0);
+
+		// No chunk of the job definition finishes in the meantime, the retry delivers it
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myThrottledInFlight.get() == 2);
+		assertFalse(failing.get());
+
+		myReleaseThrottled.countDown();
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myProcessed.size() == 2);
+	}
+
+	private void send(String theJobDefinitionId, String theChunkId) {
+		myChannel.send(new JobWorkNotificationJsonMessage(
+				new JobWorkNotification(theJobDefinitionId, 1, "instance", "step", theChunkId)));
+	}
+}
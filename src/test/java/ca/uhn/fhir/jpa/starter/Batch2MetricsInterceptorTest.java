@@ -0,0 +1,154 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.batch2.model.JobInstance;
+import ca.uhn.fhir.batch2.model.WorkChunk;
+import ca.uhn.fhir.batch2.model.WorkChunkStatusEnum;
+import ca.uhn.fhir.jpa.starter.batch2.Batch2MetricsInterceptor;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class Batch2MetricsInterceptorTest {
+
+	private static final String JOB = "REINDEX";
+	private static final String STEP = "reindex";
+
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private final Batch2MetricsInterceptor myInterceptor = new Batch2MetricsInterceptor(myMeterRegistry);
+	private final List<Object[]> myRows = new ArrayList<>();
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void before() {
+		TypedQuery<Object[]> query = mock(TypedQuery.class);
+		when(query.setParameter(anyString(), any())).thenReturn(query);
+		when(query.getResultList()).thenAnswer(invocation -> new ArrayList<>(myRows));
+		EntityManager entityManager = mock(EntityManager.class);
+		when(entityManager.createQuery(anyString(), eq(Object[].class))).thenReturn(query);
+		ReflectionTestUtils.setField(myInterceptor, "myEntityManager", entityManager);
+	}
+
+	@AfterEach
+	void after() {
+		myInterceptor.stop();
+	}
+
+	@Test
+	void testCompletedChunksAreTimedWithTheirRecords() {
+		myRows.add(new Object[] {WorkChunkStatusEnum.COMPLETED, 250});
+		process(chunk(0), () -> {});
+
+		assertEquals(1, duration("completed"));
+		assertEquals(1, myMeterRegistry
+				.get(Batch2MetricsInterceptor.METRIC_CHUNK_RECORDS)
+				.tags("job_definition", JOB, "step", STEP)
+				.summary()
+				.count());
+		assertEquals(250.0, myMeterRegistry
+				.get(Batch2MetricsInterceptor.METRIC_CHUNK_RECORDS)
+				.summary()
+				.totalAmount());
+		assertNull(myMeterRegistry.find(Batch2MetricsInterceptor.METRIC_CHUNK_ERRORS).counter());
+		assertNull(myMeterRegistry.find(Batch2MetricsInterceptor.METRIC_CHUNK_RETRIES).counter());
+	}
+
+	@Test
+	void testChunksThatDidNotCompleteAreCountedAsErrors() {
+		myRows.add(new Object[] {WorkChunkStatusEnum.ERRORED, null});
+		process(chunk(0), () -> {});
+		assertEquals(1, duration("errored"));
+
+		// A retry that fails for good
+		myRows.set(0, new Object[] {WorkChunkStatusEnum.FAILED, null});
+		process(chunk(1), () -> {});
+		assertEquals(1, duration("failed"));
+
+		IllegalStateException failure = new IllegalStateException("boom");
+		assertThrows(IllegalStateException.class, () -> process(chunk(2), () -> {
+			throw failure;
+		}));
+		assertEquals(1, duration("exception"));
+
+		assertEquals(3.0, count(Batch2MetricsInterceptor.METRIC_CHUNK_ERRORS));
+		assertEquals(2.0, count(Batch2MetricsInterceptor.METRIC_CHUNK_RETRIES));
+		assertNull(myMeterRegistry.find(Batch2MetricsInterceptor.METRIC_CHUNK_RECORDS).summary());
+	}
+
+	@Test
+	void testChunksOfPurgedJobsCountAsCompleted() {
+		process(chunk(0), () -> {});
+		assertEquals(1, duration("completed"));
+	}
+
+	@Test
+	void testQueueDepthDropsToZeroForDrainedSteps() {
+		myRows.add(new Object[] {JOB, STEP, WorkChunkStatusEnum.READY, 7L});
+		myRows.add(new Object[] {JOB, STEP, WorkChunkStatusEnum.IN_PROGRESS, 2L});
+		refreshQueueDepth();
+		assertEquals(7.0, queueDepth(WorkChunkStatusEnum.READY));
+		assertEquals(2.0, queueDepth(WorkChunkStatusEnum.IN_PROGRESS));
+
+		myRows.clear();
+		myRows.add(new Object[] {JOB, STEP, WorkChunkStatusEnum.IN_PROGRESS, 1L});
+		refreshQueueDepth();
+		assertEquals(0.0, queueDepth(WorkChunkStatusEnum.READY));
+		assertEquals(1.0, queueDepth(WorkChunkStatusEnum.IN_PROGRESS));
+	}
+
+	private void process(WorkChunk theChunk, Runnable theWork) {
+		myInterceptor.chunkProcessing(new JobInstance(), theChunk).wrapCall(theWork);
+	}
+
+	private static WorkChunk chunk(int theErrorCount) {
+		return new WorkChunk()
+				.setId("chunk-" + theErrorCount)
+				.setJobDefinitionId(JOB)
+				.setTargetStepId(STEP)
+				.setErrorCount(theErrorCount);
+	}
+
+	private long duration(String theOutcome) {
+		return myMeterRegistry
+				.get(Batch2MetricsInterceptor.METRIC_CHUNK_DURATION)
+				.tags("job_definition", JOB, "step", STEP, "outcome", theOutcome)
+				.timer()
+				.count();
+	}
+
+	private double count(String theMetric) {
+		return myMeterRegistry
+				.get(theMetric)
+				.tags("job_definition", JOB, "step", STEP)
+				.counter()
+				.count();
+	}
+
+	private double queueDepth(WorkChunkStatusEnum theStatus) {
+		return myMeterRegistry
+				.get(Batch2MetricsInterceptor.METRIC_CHUNK_QUEUE)
+				.tags("job_definition", JOB, "step", STEP, "status", theStatus.name())
+				.gauge()
+				.value();
+	}
+
+	private void refreshQueueDepth() {
+		// Runs on a schedule in the interceptor
+		ReflectionTestUtils.invokeMethod(myInterceptor, "refreshQueueDepth");
+	}
+}
@@ -0,0 +1,108 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.starter.cache.EncodedCapabilityStatementCache;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.SearchParameter;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbcache",
+			"hapi.fhir.cr_enabled=false",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.resource_cache_enabled=true",
+			"hapi.fhir.search_cache_enabled=true",
+			"hapi.fhir.metadata_cache_enabled=true"
+		})
+class EncodedCapabilityStatementCacheTest {
+
+	private final HttpClient myHttpClient = HttpClient.newHttpClient();
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private DaoRegistry myDaoRegistry;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@Test
+	void testEveryResponseCarriesTheETagOfItsContent() throws Exception {
+		// _summary=count is a variant of its own, so the first request builds the cache entry
+		HttpResponse<String> built = metadata("?_summary=count", null);
+		String etag = built.headers().firstValue(Constants.HEADER_ETAG).orElse(null);
+		assertEquals(200, built.statusCode());
+		assertTrue(etag != null && etag.startsWith("\""));
+
+		double hits = requests("hit");
+		HttpResponse<String> cached = metadata("?_summary=count", null);
+		assertEquals(built.body(), cached.body());
+		assertEquals(etag, cached.headers().firstValue(Constants.HEADER_ETAG).orElse(null));
+		assertEquals(hits + 1, requests("hit"));
+
+		assertEquals(304, metadata("?_summary=count", etag).statusCode());
+	}
+
+	@Test
+	void testSearchParameterChangeProducesANewETag() throws Exception {
+		HttpResponse<String> before = metadata("", null);
+		String etag = before.headers().firstValue(Constants.HEADER_ETAG).orElseThrow();
+		assertFalse(before.body().contains("cache-test-code"));
+
+		SearchParameter searchParameter = new SearchParameter();
+		searchParameter.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		searchParameter.setCode("cache-test-code");
+		searchParameter.setName("cache-test-code");
+		searchParameter.addBase("Patient");
+		searchParameter.setType(Enumerations.SearchParamType.STRING);
+		searchParameter.setExpression("Patient.name.family");
+		searchParameter.setDescription("Registered by the CapabilityStatement cache test");
+		myDaoRegistry.getResourceDao(SearchParameter.class).create(searchParameter, new SystemRequestDetails());
+
+		// The change is picked up by the polling resource change listener
+		await().atMost(60, TimeUnit.SECONDS).pollInterval(1, TimeUnit.SECONDS).until(() -> metadata("", etag)
+				.statusCode() == 200);
+		HttpResponse<String> after = metadata("", etag);
+		assertTrue(after.body().contains("cache-test-code"));
+		assertNotEquals(etag, after.headers().firstValue(Constants.HEADER_ETAG).orElse(null));
+	}
+
+	private HttpResponse<String> metadata(String theQuery, String theIfNoneMatch) throws Exception {
+		HttpRequest.Builder request =
+				HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/metadata" + theQuery));
+		if (theIfNoneMatch != null) {
+			request.header(Constants.HEADER_IF_NONE_MATCH, theIfNoneMatch);
+		}
+		return myHttpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	private double requests(String theResult) {
+		return myMeterRegistry
+				.get(EncodedCapabilityStatementCache.METRIC_REQUESTS)
+				.tag("result", theResult)
+				.counter()
+				.count();
+	}
+}
@@ -0,0 +1,277 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.interceptor.executor.InterceptorService;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.starter.cache.EncodedResourceCache;
+import ca.uhn.fhir.jpa.starter.cache.EncodedSearchCache;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.IPreResourceAccessDetails;
+import ca.uhn.fhir.rest.api.server.IPreResourceShowDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbcache",
+			"hapi.fhir.cr_enabled=false",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.resource_cache_enabled=true",
+			"hapi.fhir.search_cache_enabled=true",
+			"hapi.fhir.metadata_cache_enabled=true"
+		})
+class EncodedResourceCacheTest {
+
+	private final HttpClient myHttpClient = HttpClient.newHttpClient();
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private DaoRegistry myDaoRegistry;
+
+	@Autowired
+	private RestfulServer myRestfulServer;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@Autowired
+	private IInterceptorService myInterceptorService;
+
+	@Test
+	void testReadsAreServedFromCacheUntilTheResourceIsWritten() throws Exception {
+		String id = createPatient("cached");
+		double misses = requests("miss");
+		double hits = requests("hit");
+
+		HttpResponse<String> first = get(id, null);
+		HttpResponse<String> second = get(id, null);
+		assertEquals(first.body(), second.body());
+		assertEquals(misses + 1, requests("miss"));
+		assertEquals(hits + 1, requests("hit"));
+
+		updatePatient(id, "updated");
+		HttpResponse<String> updated = get(id, null);
+		assertEquals(200, updated.statusCode());
+		assertTrue(updated.body().contains("updated"));
+		assertEquals("W/\"2\"", updated.headers().firstValue(Constants.HEADER_ETAG).orElse(null));
+		assertEquals(misses + 2, requests("miss"));
+
+		myDaoRegistry.getResourceDao(Patient.class).delete(new IdType(id), new SystemRequestDetails());
+		assertEquals(410, get(id, null).statusCode());
+	}
+
+	@Test
+	void testMatchingIfNoneMatchIsAnsweredWithNotModified() throws Exception {
+		String id = createPatient("etag");
+		HttpResponse<String> first = get(id, null);
+		String etag = first.headers().firstValue(Constants.HEADER_ETAG).orElseThrow();
+		double notModified = requests("not_modified");
+
+		HttpResponse<String> cached = get(id, HttpRequest.newBuilder().header(Constants.HEADER_IF_NONE_MATCH, etag));
+		assertEquals(304, cached.statusCode());
+		assertEquals("", cached.body());
+		assertEquals(etag, cached.headers().firstValue(Constants.HEADER_ETAG).orElse(null));
+		assertEquals(notModified + 1, requests("not_modified"));
+
+		HttpResponse<String> changed =
+				get(id, HttpRequest.newBuilder().header(Constants.HEADER_IF_NONE_MATCH, "W/\"0\""));
+		assertEquals(200, changed.statusCode());
+		assertEquals(first.body(), changed.body());
+	}
+
+	@Test
+	void testEncodingsAndSummaryModesAreCachedSeparately() throws Exception {
+		String id = createPatient("variants");
+		String[] variants = {"", "?_format=xml", "?_pretty=false", "?_summary=true"};
+		String[] bodies = new String[variants.length];
+		for (int i = 0; i < variants.length; i++) {
+			bodies[i] = get(id + variants[i], null).body();
+		}
+		assertEquals(variants.length, Set.of(bodies).size());
+		assertTrue(bodies[1].startsWith("<Patient"));
+
+		double hits = requests("hit");
+		for (int i = 0; i < variants.length; i++) {
+			HttpResponse<String> cached = get(id + variants[i], null);
+			assertEquals(bodies[i], cached.body());
+			assertEquals(i == 1, cached.headers().firstValue(Constants.HEADER_CONTENT_TYPE).orElse("").contains("xml"));
+		}
+		assertEquals(hits + variants.length, requests("hit"));
+	}
+
+	@Test
+	void testReadRacingAWriteIsNotCached() throws Exception {
+		String id = createPatient("before");
+		// Writes the resource after it was read, but before the response of the read is stored
+		Object racingWrite = new Object() {
+			@Hook(value = Pointcut.SERVER_OUTGOING_WRITER_CREATED, order = -1)
+			public Writer update(RequestDetails theRequestDetails) {
+				if (theRequestDetails.getHeader("X-Test-Racing-Write") != null) {
+					updatePatient(id, "after");
+				}
+				return null;
+			}
+		};
+		myRestfulServer.registerInterceptor(racingWrite);
+		try {
+			HttpResponse<String> raced = get(id, HttpRequest.newBuilder().header("X-Test-Racing-Write", "true"));
+			assertTrue(raced.body().contains("before"));
+		} finally {
+			myRestfulServer.unregisterInterceptor(racingWrite);
+		}
+
+		assertTrue(get(id, null).body().contains("after"));
+	}
+
+	@Test
+	void testCacheStaysOffWithAuthorizationInterceptors() throws Exception {
+		assertEquals(1.0, missesOfFirstRead(new RestfulServer(FhirContext.forR4Cached()), new InterceptorService()));
+
+		RestfulServer server = new RestfulServer(FhirContext.forR4Cached());
+		server.registerInterceptor(new AuthorizationInterceptor());
+		assertEquals(0.0, missesOfFirstRead(server, new InterceptorService()));
+	}
+
+	@Test
+	void testCacheStaysOffWithHooksThatMayChangeWhatAClientSees() throws Exception {
+		Object masking = new Object() {
+			@Hook(Pointcut.STORAGE_PRESHOW_RESOURCES)
+			public void preShow(IPreResourceShowDetails theDetails) {}
+		};
+		Object filtering = new Object() {
+			@Hook(Pointcut.STORAGE_PREACCESS_RESOURCES)
+			public void preAccess(IPreResourceAccessDetails theDetails) {}
+		};
+		Object responding = new Object() {
+			@Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
+			public void outgoingResponse() {}
+		};
+
+		for (Object next : List.of(masking, filtering, responding)) {
+			RestfulServer server = new RestfulServer(FhirContext.forR4Cached());
+			server.registerInterceptor(next);
+			assertEquals(0.0, missesOfFirstRead(server, new InterceptorService()));
+
+			InterceptorService jpaInterceptorService = new InterceptorService();
+			jpaInterceptorService.registerInterceptor(next);
+			assertEquals(0.0, missesOfFirstRead(new RestfulServer(FhirContext.forR4Cached()), jpaInterceptorService));
+		}
+
+		// The hooks of the response caches and of interceptors that only observe responses are ignored
+		RestfulServer server = new RestfulServer(FhirContext.forR4Cached());
+		server.registerInterceptor(new EncodedSearchCache(1_000_000, 60_000, new SimpleMeterRegistry(), null));
+		server.registerInterceptor(new ResponseHighlighterInterceptor());
+		assertEquals(1.0, missesOfFirstRead(server, new InterceptorService()));
+	}
+
+	@Test
+	void testCacheIsBypassedWhileAMaskingHookIsRegistered() throws Exception {
+		String id = createPatient("masked");
+		get(id, null);
+		Object masking = new Object() {
+			@Hook(Pointcut.STORAGE_PRESHOW_RESOURCES)
+			public void preShow(IPreResourceShowDetails theDetails) {
+				for (int i = 0; i < theDetails.size(); i++) {
+					if (theDetails.getResource(i) instanceof Patient patient) {
+						patient.getNameFirstRep().setFamily("masked-out");
+					}
+				}
+			}
+		};
+		myInterceptorService.registerInterceptor(masking);
+		try {
+			assertTrue(get(id, null).body().contains("masked-out"));
+		} finally {
+			myInterceptorService.unregisterInterceptor(masking);
+		}
+		assertTrue(get(id, null).body().contains("\"masked\""));
+	}
+
+	private double missesOfFirstRead(RestfulServer theServer, IInterceptorService theJpaInterceptorService)
+			throws Exception {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		EncodedResourceCache cache =
+				new EncodedResourceCache(1_000_000, 60_000, Set.of(), meterRegistry, theJpaInterceptorService);
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/fhir/Patient/1");
+		ServletRequestDetails requestDetails = new ServletRequestDetails();
+		requestDetails.setServer(theServer);
+		requestDetails.setServletRequest(request);
+		requestDetails.setRestOperationType(RestOperationTypeEnum.READ);
+		requestDetails.setResourceName("Patient");
+		requestDetails.setId(new IdType("Patient/1"));
+		requestDetails.setParameters(new HashMap<>());
+
+		assertTrue(cache.serveFromCache(requestDetails, request, new MockHttpServletResponse()));
+		return meterRegistry
+				.get(EncodedResourceCache.METRIC_REQUESTS)
+				.tag("result", "miss")
+				.counter()
+				.count();
+	}
+
+	private String createPatient(String theFamily) {
+		Patient patient = new Patient();
+		patient.addName().setFamily(theFamily);
+		return myDaoRegistry
+				.getResourceDao(Patient.class)
+				.create(patient, new SystemRequestDetails())
+				.getId()
+				.toUnqualifiedVersionless()
+				.getValue();
+	}
+
+	private void updatePatient(String theId, String theFamily) {
+		Patient patient = new Patient();
+		patient.setId(theId);
+		patient.addName().setFamily(theFamily);
+		myDaoRegistry.getResourceDao(Patient.class).update(patient, new SystemRequestDetails());
+	}
+
+	private HttpResponse<String> get(String thePath, HttpRequest.Builder theRequest) throws Exception {
+		HttpRequest.Builder request = theRequest != null ? theRequest : HttpRequest.newBuilder();
+		request.uri(URI.create("http://localhost:" + port + "/fhir/" + thePath));
+		return myHttpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	private double requests(String theResult) {
+		return myMeterRegistry
+				.get(EncodedResourceCache.METRIC_REQUESTS)
+				.tag("result", theResult)
+				.counter()
+				.count();
+	}
+}
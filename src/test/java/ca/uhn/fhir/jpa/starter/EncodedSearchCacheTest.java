@@ -0,0 +1,223 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.starter.cache.EncodedSearchCache;
+import ca.uhn.fhir.rest.api.server.IPreResourceShowDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbcache",
+			"hapi.fhir.cr_enabled=false",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.resource_cache_enabled=true",
+			"hapi.fhir.search_cache_enabled=true",
+			"hapi.fhir.metadata_cache_enabled=true"
+		})
+class EncodedSearchCacheTest {
+
+	private static final String HEADER_CLIENT = "X-Test-Client";
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private DaoRegistry myDaoRegistry;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@Autowired
+	private IInterceptorService myInterceptorService;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4Cached();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testPagesAreDroppedWhenTheirTypesAreWritten() {
+		String family = newFamily();
+		create(patient(family));
+		String url = "Patient?family=" + family;
+
+		double misses = requests("miss");
+		double hits = requests("hit");
+		search(url);
+		search(url);
+		assertEquals(misses + 1, requests("miss"));
+		assertEquals(hits + 1, requests("hit"));
+
+		// A write of another type leaves the page alone
+		create(new Observation().setStatus(Observation.ObservationStatus.FINAL));
+		search(url);
+		assertEquals(hits + 2, requests("hit"));
+
+		create(patient(newFamily()));
+		search(url);
+		assertEquals(misses + 2, requests("miss"));
+	}
+
+	@Test
+	void testListSearchesAreDroppedWhenAListIsWritten() {
+		String family = newFamily();
+		String patientId = create(patient(family));
+		ListResource list = new ListResource()
+				.setStatus(ListResource.ListStatus.CURRENT)
+				.setMode(ListResource.ListMode.WORKING);
+		list.addEntry().setItem(new Reference(patientId));
+		String listId = create(list);
+		String url = "Patient?_list=" + listId.substring(listId.indexOf('/') + 1);
+
+		double misses = requests("miss");
+		assertEquals(1, search(url).getEntry().size());
+		search(url);
+		assertEquals(misses + 1, requests("miss"));
+
+		// The page depends on the List, although no List is on it
+		create(new ListResource()
+				.setStatus(ListResource.ListStatus.CURRENT)
+				.setMode(ListResource.ListMode.WORKING));
+		search(url);
+		assertEquals(misses + 2, requests("miss"));
+	}
+
+	@Test
+	void testFollowUpPagesAreCachedAndDroppedWithTheirSearch() {
+		String family = newFamily();
+		for (int i = 0; i < 5; i++) {
+			create(patient(family));
+		}
+		Bundle first = search("Patient?family=" + family + "&_count=2");
+		assertNotNull(first.getLink(Bundle.LINK_NEXT));
+
+		double misses = requests("miss");
+		double hits = requests("hit");
+		Bundle second = client.loadPage().next(first).execute();
+		Bundle cached = client.loadPage().next(first).execute();
+		assertEquals(2, second.getEntry().size());
+		assertEquals(ids(second), ids(cached));
+		assertEquals(misses + 1, requests("miss"));
+		assertEquals(hits + 1, requests("hit"));
+
+		// The follow-up page involves the types of its search
+		create(patient(newFamily()));
+		client.loadPage().next(first).execute();
+		assertEquals(misses + 2, requests("miss"));
+	}
+
+	@Test
+	void testCacheIsBypassedWhileAMaskingHookIsRegistered() {
+		String family = newFamily();
+		create(patient(family));
+		String url = "Patient?family=" + family;
+		search(url);
+
+		// Masks the names for restricted clients
+		Object masking = new Object() {
+			@Hook(Pointcut.STORAGE_PRESHOW_RESOURCES)
+			public void preShow(IPreResourceShowDetails theDetails, RequestDetails theRequestDetails) {
+				if (theRequestDetails != null && theRequestDetails.getHeader(HEADER_CLIENT) != null) {
+					for (IBaseResource next : theDetails) {
+						((Patient) next).getNameFirstRep().setFamily("masked-out");
+					}
+				}
+			}
+		};
+		double hits = requests("hit");
+		myInterceptorService.registerInterceptor(masking);
+		try {
+			assertEquals(family, familyOf(search(url)));
+			Bundle restricted = client.search()
+					.byUrl(url)
+					.returnBundle(Bundle.class)
+					.withAdditionalHeader(HEADER_CLIENT, "restricted")
+					.execute();
+			assertEquals("masked-out", familyOf(restricted));
+			assertEquals(family, familyOf(search(url)));
+		} finally {
+			myInterceptorService.unregisterInterceptor(masking);
+		}
+		assertEquals(hits, requests("hit"));
+
+		// The outgoing response hook of the cache itself does not keep it off
+		search(url);
+		search(url);
+		assertTrue(requests("hit") > hits);
+	}
+
+	private static String familyOf(Bundle theBundle) {
+		assertEquals(1, theBundle.getEntry().size());
+		return ((Patient) theBundle.getEntryFirstRep().getResource()).getNameFirstRep().getFamily();
+	}
+
+	private Bundle search(String theUrl) {
+		return client.search().byUrl(theUrl).returnBundle(Bundle.class).execute();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends IBaseResource> String create(T theResource) {
+		return myDaoRegistry
+				.getResourceDao((Class<T>) theResource.getClass())
+				.create(theResource, new SystemRequestDetails())
+				.getId()
+				.toUnqualifiedVersionless()
+				.getValue();
+	}
+
+	private static Patient patient(String theFamily) {
+		Patient retVal = new Patient();
+		retVal.addName().setFamily(theFamily);
+		return retVal;
+	}
+
+	private static String newFamily() {
+		return "cache" + UUID.randomUUID().toString().replace("-", "");
+	}
+
+	private static String ids(Bundle theBundle) {
+		return theBundle.getEntry().stream()
+				.map(next -> next.getResource().getIdElement().getIdPart())
+				.toList()
+				.toString();
+	}
+
+	private double requests(String theResult) {
+		return myMeterRegistry
+				.get(EncodedSearchCache.METRIC_REQUESTS)
+				.tag("result", theResult)
+				.counter()
+				.count();
+	}
+}
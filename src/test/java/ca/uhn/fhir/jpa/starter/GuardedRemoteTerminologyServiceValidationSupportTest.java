@@ -0,0 +1,79 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.jpa.starter.terminology.GuardedRemoteTerminologyServiceValidationSupport;
+import ca.uhn.fhir.jpa.starter.terminology.RemoteTerminologyGuard;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GuardedRemoteTerminologyServiceValidationSupportTest {
+
+	private static final String SYSTEM = "http://loinc.org";
+	private static final String VALUE_SET = "http://example.org/ValueSet/test";
+
+	@Test
+	void testRemoteForAllSystemsAnswersWithTheFallbackWhileUnavailable() {
+		GuardedRemoteTerminologyServiceValidationSupport support = unavailable(null);
+		ValidationSupportContext context = new ValidationSupportContext(support);
+
+		assertTrue(support.isCodeSystemSupported(context, "http://snomed.info/sct"));
+		assertTrue(support.isValueSetSupported(context, VALUE_SET));
+		IValidationSupport.CodeValidationResult result = support.validateCodeInValueSet(
+				context, new ConceptValidationOptions(), null, "1234-5", null, valueSet());
+		assertEquals(IValidationSupport.IssueSeverity.WARNING, result.getSeverity());
+	}
+
+	@Test
+	void testRemoteForOneSystemLetsTheChainContinueWhileUnavailable() {
+		GuardedRemoteTerminologyServiceValidationSupport support = unavailable(SYSTEM);
+		ValidationSupportContext context = new ValidationSupportContext(support);
+
+		assertFalse(support.isCodeSystemSupported(context, "http://snomed.info/sct"));
+		assertFalse(support.isValueSetSupported(context, VALUE_SET));
+		assertNull(support.validateCodeInValueSet(
+				context, new ConceptValidationOptions(), null, "1234-5", null, valueSet()));
+		assertNull(support.validateCodeInValueSet(
+				context, new ConceptValidationOptions(), "http://snomed.info/sct", "1234", null, valueSet()));
+
+		// Codes of its own system are still answered with the fallback
+		assertTrue(support.isCodeSystemSupported(context, SYSTEM));
+		IValidationSupport.CodeValidationResult result = support.validateCodeInValueSet(
+				context, new ConceptValidationOptions(), SYSTEM, "1234-5", null, valueSet());
+		assertEquals(IValidationSupport.IssueSeverity.WARNING, result.getSeverity());
+	}
+
+	/**
+	 * @return a support whose circuit breaker is open, so every call is answered with the fallback
+	 */
+	private static GuardedRemoteTerminologyServiceValidationSupport unavailable(String theSystem) {
+		AppProperties.RemoteSystem remoteSystem = new AppProperties.RemoteSystem();
+		remoteSystem.setUrl("http://localhost:1/fhir");
+		remoteSystem.setConnect_timeout_millis(500);
+		remoteSystem.setCircuit_breaker_failure_threshold(1);
+		remoteSystem.setCircuit_breaker_open_millis(60_000L);
+		GuardedRemoteTerminologyServiceValidationSupport retVal = new GuardedRemoteTerminologyServiceValidationSupport(
+				FhirContext.forR4Cached(), "test", theSystem, remoteSystem, new SimpleMeterRegistry());
+
+		retVal.getGuard().execute(
+				() -> {
+					throw new FhirClientConnectionException("down");
+				},
+				() -> null);
+		assertEquals(RemoteTerminologyGuard.State.OPEN, retVal.getGuard().getState());
+		return retVal;
+	}
+
+	private static ValueSet valueSet() {
+		return new ValueSet().setUrl(VALUE_SET);
+	}
+}
@@ -0,0 +1,82 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.ig.ExtendedPackageInstallationSpec;
+import ca.uhn.fhir.jpa.starter.ig.ImplementationGuideInstallLedger;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.PersistenceException;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbledger",
+			"hapi.fhir.cr_enabled=false",
+			"hapi.fhir.fhir_version=r4"
+		})
+class ImplementationGuideInstallLedgerTest {
+
+	@Autowired
+	private EntityManagerFactory myEntityManagerFactory;
+
+	@Autowired
+	private PlatformTransactionManager myTransactionManager;
+
+	@Test
+	void testGuideIsInstalledUntilItsContentsOrOptionsChange() {
+		ImplementationGuideInstallLedger ledger =
+				new ImplementationGuideInstallLedger(myEntityManagerFactory, myTransactionManager);
+		byte[] contents = "package".getBytes(StandardCharsets.UTF_8);
+		ExtendedPackageInstallationSpec spec = spec();
+
+		assertFalse(ledger.isInstalled(spec, contents));
+		ledger.recordInstalled(spec, contents);
+		assertTrue(ledger.isInstalled(spec(), contents));
+
+		assertFalse(ledger.isInstalled(spec(), "changed".getBytes(StandardCharsets.UTF_8)));
+		ExtendedPackageInstallationSpec fetchingDependencies = spec();
+		fetchingDependencies.setFetchDependencies(true);
+		assertFalse(ledger.isInstalled(fetchingDependencies, contents));
+
+		// Recording again replaces the fingerprint
+		ledger.recordInstalled(fetchingDependencies, contents);
+		assertTrue(ledger.isInstalled(fetchingDependencies, contents));
+		assertFalse(ledger.isInstalled(spec(), contents));
+	}
+
+	@Test
+	void testAMissingTableDoesNotFailTheInstallation() {
+		EntityManager entityManager = mock(EntityManager.class);
+		when(entityManager.find(any(), any()))
+				.thenThrow(new PersistenceException("Table \"STARTER_IG_INSTALL_LEDGER\" not found"));
+		EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class);
+		when(entityManagerFactory.createEntityManager()).thenReturn(entityManager);
+		ImplementationGuideInstallLedger ledger =
+				new ImplementationGuideInstallLedger(entityManagerFactory, mock(PlatformTransactionManager.class));
+		byte[] contents = "package".getBytes(StandardCharsets.UTF_8);
+
+		// The guide is installed again, and recording it does not abort the installation
+		assertFalse(ledger.isInstalled(spec(), contents));
+		assertDoesNotThrow(() -> ledger.recordInstalled(spec(), contents));
+	}
+
+	private static ExtendedPackageInstallationSpec spec() {
+		ExtendedPackageInstallationSpec retVal = new ExtendedPackageInstallationSpec();
+		retVal.setName("example.ledger");
+		retVal.setVersion("1.0.0");
+		return retVal;
+	}
+}
@@ -0,0 +1,73 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.jpa.starter.ig.ExtendedPackageInstallationSpec;
+import ca.uhn.fhir.jpa.starter.ig.ImplementationGuideInstaller;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ImplementationGuideInstallerTest {
+
+	@Test
+	void testGuidesAreInstalledAfterTheirDependencies() throws Exception {
+		Map<String, ExtendedPackageInstallationSpec> guides = new LinkedHashMap<>();
+		guides.put("derived", spec("example.derived"));
+		guides.put("base", spec("example.base"));
+		guides.put("other", spec("example.other"));
+
+		IHapiPackageCacheManager cacheManager = mock(IHapiPackageCacheManager.class);
+		when(cacheManager.installPackage(any())).thenAnswer(invocation -> {
+			PackageInstallationSpec spec = invocation.getArgument(0);
+			return npmPackage(spec.getName().equals("example.derived") ? List.of("example.base#1.0.0") : List.of());
+		});
+		when(cacheManager.loadPackage(anyString(), anyString())).thenAnswer(invocation -> npmPackage(List.of()));
+		when(cacheManager.loadPackageContents(anyString(), anyString()))
+				.thenReturn(new IHapiPackageCacheManager.PackageContents().setBytes(new byte[0]));
+
+		List<String> events = Collections.synchronizedList(new ArrayList<>());
+		IPackageInstallerSvc installerSvc = mock(IPackageInstallerSvc.class);
+		when(installerSvc.install(any())).thenAnswer(invocation -> {
+			String name = ((PackageInstallationSpec) invocation.getArgument(0)).getName();
+			events.add("start " + name);
+			Thread.sleep(50);
+			events.add("end " + name);
+			return null;
+		});
+
+		new ImplementationGuideInstaller(installerSvc, cacheManager, null, 3, null, false).installAll(guides);
+
+		assertEquals(6, events.size());
+		assertTrue(events.indexOf("end example.base") < events.indexOf("start example.derived"), events.toString());
+		// The unrelated guide does not wait for the others
+		assertTrue(events.indexOf("start example.other") < events.indexOf("end example.base"), events.toString());
+	}
+
+	private static ExtendedPackageInstallationSpec spec(String theName) {
+		ExtendedPackageInstallationSpec retVal = new ExtendedPackageInstallationSpec();
+		retVal.setName(theName);
+		retVal.setVersion("1.0.0");
+		retVal.setFetchDependencies(true);
+		return retVal;
+	}
+
+	private static NpmPackage npmPackage(List<String> theDependencies) {
+		NpmPackage retVal = mock(NpmPackage.class);
+		when(retVal.dependencies()).thenReturn(theDependencies);
+		return retVal;
+	}
+}
@@ -0,0 +1,153 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.common.InteractionMetricsInterceptor;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InteractionMetricsInterceptorTest {
+
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private final InteractionMetricsInterceptor myInterceptor = new InteractionMetricsInterceptor(myMeterRegistry);
+
+	@Test
+	void testInteractionIsTimedPerPhase() throws Exception {
+		ServletRequestDetails requestDetails = request(RestOperationTypeEnum.EXTENDED_OPERATION_INSTANCE, 201);
+		requestDetails.setOperation("$everything");
+
+		myInterceptor.requestReceived(requestDetails);
+		Thread.sleep(20);
+		myInterceptor.requestParsed(requestDetails);
+		Thread.sleep(40);
+		myInterceptor.responseReady(requestDetails);
+		Thread.sleep(20);
+		myInterceptor.requestCompleted(requestDetails, requestDetails);
+
+		Tags tags = Tags.of(
+				"interaction", "extended-operation-instance",
+				"resource_type", "Patient",
+				"operation", "$everything",
+				"status", "2xx",
+				"partition", "none");
+		Timer total = interaction(tags);
+		assertEquals(1, total.count());
+		double parse = phase(tags, "parse").totalTime(TimeUnit.MILLISECONDS);
+		double handle = phase(tags, "handle").totalTime(TimeUnit.MILLISECONDS);
+		double encode = phase(tags, "encode").totalTime(TimeUnit.MILLISECONDS);
+		assertTrue(parse >= 20 && handle >= 40 && encode >= 20, parse + " / " + handle + " / " + encode);
+		// The phases add up to the total
+		assertEquals(total.totalTime(TimeUnit.MILLISECONDS), parse + handle + encode, 0.001);
+	}
+
+	@Test
+	void testFailedInteractionIsTaggedWithTheStatusOfTheException() {
+		ServletRequestDetails requestDetails = request(RestOperationTypeEnum.READ, 200);
+		myInterceptor.requestReceived(requestDetails);
+		myInterceptor.requestParsed(requestDetails);
+		myInterceptor.exceptionThrown(requestDetails, new ResourceNotFoundException("Patient/1"));
+		myInterceptor.requestCompleted(requestDetails, requestDetails);
+
+		Tags tags = Tags.of("interaction", "read", "status", "4xx");
+		assertEquals(1, interaction(tags).count());
+		assertEquals(1, phase(tags, "handle").count());
+		assertEquals(1, phase(tags, "encode").count());
+	}
+
+	@Test
+	void testPhasesThatWereNotReachedAreNotRecorded() {
+		// Parsing failed
+		ServletRequestDetails requestDetails = request(RestOperationTypeEnum.SEARCH_TYPE, 400);
+		myInterceptor.requestReceived(requestDetails);
+		myInterceptor.requestCompleted(requestDetails, requestDetails);
+		assertEquals(1, interaction(Tags.of("interaction", "search-type", "status", "4xx")).count());
+		assertNull(myMeterRegistry.find(InteractionMetricsInterceptor.METRIC_INTERACTION_PHASE).timer());
+
+		// The operation wrote its own response
+		requestDetails = request(RestOperationTypeEnum.EXTENDED_OPERATION_TYPE, 200);
+		myInterceptor.requestReceived(requestDetails);
+		myInterceptor.requestParsed(requestDetails);
+		myInterceptor.requestCompleted(requestDetails, requestDetails);
+		Tags tags = Tags.of("interaction", "extended-operation-type");
+		assertEquals(1, phase(tags, "parse").count());
+		assertEquals(1, phase(tags, "handle").count());
+		assertNull(phase(tags, "encode"));
+
+		// The request was rejected before it was routed
+		ServletRequestDetails unrouted = request(null, 404);
+		myInterceptor.requestCompleted(unrouted, unrouted);
+		assertNull(myMeterRegistry
+				.find(InteractionMetricsInterceptor.METRIC_INTERACTION)
+				.tag("interaction", "unknown")
+				.timer());
+	}
+
+	@Test
+	void testOperationAndPartitionAreOnlyTaggedOnceAccepted() {
+		// Failed in the handler, e.g. because the partition does not exist
+		ServletRequestDetails failed = request(RestOperationTypeEnum.EXTENDED_OPERATION_TYPE, 200);
+		failed.setOperation("$made-up");
+		failed.setTenantId("made-up");
+		myInterceptor.requestReceived(failed);
+		myInterceptor.exceptionThrown(failed, new ResourceNotFoundException("made-up"));
+		myInterceptor.requestCompleted(failed, failed);
+		assertEquals(1, interaction(Tags.of("operation", "unknown", "partition", "unknown")).count());
+
+		ServletRequestDetails handled = request(RestOperationTypeEnum.EXTENDED_OPERATION_TYPE, 200);
+		handled.setOperation("$everything");
+		handled.setTenantId("tenant-a");
+		myInterceptor.requestReceived(handled);
+		myInterceptor.requestParsed(handled);
+		myInterceptor.requestCompleted(handled, handled);
+		assertEquals(1, interaction(Tags.of("operation", "$everything", "partition", "tenant-a")).count());
+
+		// Only a bounded number of partitions get their own series
+		for (int i = 0; i < InteractionMetricsInterceptor.MAX_PARTITIONS + 10; i++) {
+			ServletRequestDetails next = request(RestOperationTypeEnum.READ, 200);
+			next.setTenantId("tenant-" + i);
+			myInterceptor.requestReceived(next);
+			myInterceptor.requestCompleted(next, next);
+		}
+		assertEquals(11, interaction(Tags.of("interaction", "read", "partition", "other")).count());
+		long partitions = myMeterRegistry.find(InteractionMetricsInterceptor.METRIC_INTERACTION).timers().stream()
+				.map(next -> next.getId().getTag("partition"))
+				.distinct()
+				.count();
+		// The known partitions, "unknown" and "other"
+		assertEquals(InteractionMetricsInterceptor.MAX_PARTITIONS + 2, partitions);
+	}
+
+	private Timer interaction(Tags theTags) {
+		return myMeterRegistry
+				.find(InteractionMetricsInterceptor.METRIC_INTERACTION)
+				.tags(theTags)
+				.timer();
+	}
+
+	private Timer phase(Tags theTags, String thePhase) {
+		return myMeterRegistry
+				.find(InteractionMetricsInterceptor.METRIC_INTERACTION_PHASE)
+				.tags(theTags.and("phase", thePhase))
+				.timer();
+	}
+
+	private static ServletRequestDetails request(RestOperationTypeEnum theInteraction, int theStatus) {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		response.setStatus(theStatus);
+		ServletRequestDetails retVal = new ServletRequestDetails();
+		retVal.setServletResponse(response);
+		retVal.setRestOperationType(theInteraction);
+		retVal.setResourceName("Patient");
+		return retVal;
+	}
+}
@@ -0,0 +1,181 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.batch2.model.StatusEnum;
+import ca.uhn.fhir.jpa.entity.Batch2JobInstanceEntity;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbledger",
+			"hapi.fhir.cr_enabled=false",
+			"hapi.fhir.fhir_version=r4"
+		})
+class JobControllerTest {
+
+	private final HttpClient myHttpClient = HttpClient.newHttpClient();
+	private final ObjectMapper myObjectMapper = new ObjectMapper();
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private PlatformTransactionManager myTransactionManager;
+
+	@Test
+	void testSummariesArePagedNewestFirstThroughTies() throws Exception {
+		String definitionId = "test-summaries-" + UUID.randomUUID();
+		long createTime = System.currentTimeMillis() - 60_000;
+		// Three instances created at the same instant are ordered by their ID
+		createInstance(definitionId, "a", createTime, StatusEnum.COMPLETED);
+		createInstance(definitionId, "b", createTime + 1000, StatusEnum.COMPLETED);
+		createInstance(definitionId, "c", createTime + 1000, StatusEnum.FAILED);
+		createInstance(definitionId, "d", createTime + 1000, StatusEnum.COMPLETED);
+		createInstance(definitionId, "e", createTime + 2000, StatusEnum.CANCELLED);
+
+		List<String> instanceIds = new ArrayList<>();
+		String cursor = null;
+		int pages = 0;
+		do {
+			String query = "jobDefinitionId=" + definitionId + "&limit=2"
+					+ (cursor != null ? "&cursor=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8) : "");
+			JsonNode page = getJson("control/jobs/summaries?" + query);
+			page.get("jobs").forEach(next -> instanceIds.add(next.get("instanceId").asText()));
+			cursor = page.get("nextCursor").isNull() ? null : page.get("nextCursor").asText();
+			pages++;
+		} while (cursor != null);
+		assertEquals(List.of(definitionId + "-e", definitionId + "-d", definitionId + "-c", definitionId + "-b",
+				definitionId + "-a"), instanceIds);
+		assertEquals(3, pages);
+
+		JsonNode completed = getJson("control/jobs/summaries?jobDefinitionId=" + definitionId
+				+ "&jobStatus=COMPLETED&jobStatus=CANCELLED");
+		List<String> completedIds = new ArrayList<>();
+		completed.get("jobs").forEach(next -> completedIds.add(next.get("instanceId").asText()));
+		assertEquals(List.of(definitionId + "-e", definitionId + "-d", definitionId + "-b", definitionId + "-a"),
+				completedIds);
+
+		assertEquals(400, get("control/jobs/summaries?cursor=not-a-cursor").statusCode());
+	}
+
+	@Test
+	void testProgressIsStreamedUntilTheInstanceEnds() throws Exception {
+		String definitionId = "test-events-" + UUID.randomUUID();
+		String instanceId = createInstance(definitionId, "a", System.currentTimeMillis(), StatusEnum.IN_PROGRESS);
+
+		BlockingQueue<String> events = new LinkedBlockingQueue<>();
+		HttpResponse<Stream<String>> response = myHttpClient.send(
+				HttpRequest.newBuilder(URI.create(url("control/jobs/events?instanceId=" + instanceId)))
+						.build(),
+				HttpResponse.BodyHandlers.ofLines());
+		assertEquals(200, response.statusCode());
+		CompletableFuture<Void> streamed = CompletableFuture.runAsync(() -> collectEvents(response.body(), events));
+
+		JsonNode initial = nextEvent(events, "status");
+		assertEquals("IN_PROGRESS", initial.get("status").asText());
+
+		updateInstance(instanceId, entity -> entity.setProgress(0.5));
+		JsonNode progress = nextEvent(events, "progress");
+		assertEquals(0.5, progress.get("progress").asDouble());
+
+		updateInstance(instanceId, entity -> {
+			entity.setProgress(1.0);
+			entity.setStatus(StatusEnum.COMPLETED);
+			entity.setEndTime(new Date());
+		});
+		JsonNode ended = nextEvent(events, "status");
+		assertEquals("COMPLETED", ended.get("status").asText());
+		// The stream completes once its instances have ended
+		streamed.get(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Adds each event to <code>theEvents</code> as its name, a line break and its data
+	 */
+	private static void collectEvents(Stream<String> theLines, BlockingQueue<String> theEvents) {
+		String[] name = new String[1];
+		theLines.forEach(line -> {
+			if (line.startsWith("event:")) {
+				name[0] = line.substring("event:".length()).trim();
+			} else if (line.startsWith("data:")) {
+				theEvents.add(name[0] + "\n" + line.substring("data:".length()).trim());
+			}
+		});
+	}
+
+	private JsonNode nextEvent(BlockingQueue<String> theEvents, String theName) throws Exception {
+		// The broadcaster polls every two seconds
+		String event = theEvents.poll(20, TimeUnit.SECONDS);
+		assertNotNull(event, "No " + theName + " event");
+		assertTrue(event.startsWith(theName + "\n"), event);
+		return myObjectMapper.readTree(event.substring(theName.length() + 1));
+	}
+
+	private String createInstance(String theDefinitionId, String theSuffix, long theCreateTime, StatusEnum theStatus) {
+		Batch2JobInstanceEntity entity = new Batch2JobInstanceEntity();
+		entity.setId(theDefinitionId + "-" + theSuffix);
+		entity.setDefinitionId(theDefinitionId);
+		entity.setDefinitionVersion(1);
+		entity.setStatus(theStatus);
+		entity.setCreateTime(new Date(theCreateTime));
+		entity.setProgress(0.1);
+		new TransactionTemplate(myTransactionManager).executeWithoutResult(status -> myEntityManager.persist(entity));
+		return entity.getId();
+	}
+
+	private void updateInstance(String theInstanceId, Consumer<Batch2JobInstanceEntity> theUpdate) {
+		new TransactionTemplate(myTransactionManager).executeWithoutResult(status -> {
+			Batch2JobInstanceEntity entity = myEntityManager.find(Batch2JobInstanceEntity.class, theInstanceId);
+			theUpdate.accept(entity);
+			entity.setUpdateTime(new Date());
+		});
+	}
+
+	private JsonNode getJson(String thePath) throws Exception {
+		HttpResponse<String> response = get(thePath);
+		assertEquals(200, response.statusCode(), response.body());
+		return myObjectMapper.readTree(response.body());
+	}
+
+	private HttpResponse<String> get(String thePath) throws Exception {
+		return myHttpClient.send(
+				HttpRequest.newBuilder(URI.create(url(thePath))).build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	private String url(String thePath) {
+		return "http://localhost:" + port + "/" + thePath;
+	}
+}
@@ -0,0 +1,136 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.search.KeysetPagingInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbkeyset",
+			"hapi.fhir.cr_enabled=false",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.keyset_paging_enabled=true"
+		})
+class KeysetPagingTest {
+
+	@LocalServerPort
+	private int port;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4Cached();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testPagesThroughTiesInBothDirections() throws InterruptedException {
+		String family = newFamily();
+		// The resources of a transaction are all updated at the same instant
+		Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < 5; i++) {
+			transaction.addEntry()
+					.setResource(new Patient().addName(new HumanName().setFamily(family)))
+					.getRequest()
+					.setMethod(Bundle.HTTPVerb.POST)
+					.setUrl("Patient");
+		}
+		client.transaction().withBundle(transaction).execute();
+		for (int i = 0; i < 3; i++) {
+			Thread.sleep(5);
+			client.create()
+					.resource(new Patient().addName(new HumanName().setFamily(family)))
+					.execute();
+		}
+
+		// Pages of two end inside the ties and right after them
+		List<Patient> ascending = searchAll(family, "_lastUpdated", 2);
+		assertEquals(8, ascending.size());
+		assertEquals(8, new HashSet<>(ids(ascending)).size());
+		for (int i = 1; i < ascending.size(); i++) {
+			assertFalse(lastUpdated(ascending.get(i)) < lastUpdated(ascending.get(i - 1)));
+		}
+		assertEquals(lastUpdated(ascending.get(0)), lastUpdated(ascending.get(4)));
+
+		List<Patient> descending = searchAll(family, "-_lastUpdated", 3);
+		List<String> reversed = new ArrayList<>(ids(ascending));
+		Collections.reverse(reversed);
+		assertEquals(reversed, ids(descending));
+	}
+
+	@Test
+	void testLastPageHasNoNextLink() {
+		String family = newFamily();
+		for (int i = 0; i < 4; i++) {
+			client.create()
+					.resource(new Patient().addName(new HumanName().setFamily(family)))
+					.execute();
+		}
+
+		Bundle all = search(family, "_lastUpdated", 4);
+		assertEquals(4, all.getEntry().size());
+		assertNull(all.getLink(Bundle.LINK_NEXT));
+
+		// The second page ends exactly with the last result, and there is no empty third page
+		Bundle first = search(family, "_lastUpdated", 2);
+		assertTrue(first.getLink(Bundle.LINK_NEXT).getUrl().contains(KeysetPagingInterceptor.PARAM_KEYSET + "="));
+		Bundle second = client.loadPage().next(first).execute();
+		assertEquals(2, second.getEntry().size());
+		assertNull(second.getLink(Bundle.LINK_NEXT));
+	}
+
+	private List<Patient> searchAll(String theFamily, String theSort, int theCount) {
+		List<Patient> retVal = new ArrayList<>();
+		Bundle page = search(theFamily, theSort, theCount);
+		while (true) {
+			assertTrue(page.getEntry().size() <= theCount);
+			page.getEntry().forEach(next -> retVal.add((Patient) next.getResource()));
+			if (page.getLink(Bundle.LINK_NEXT) == null) {
+				return retVal;
+			}
+			page = client.loadPage().next(page).execute();
+		}
+	}
+
+	private Bundle search(String theFamily, String theSort, int theCount) {
+		return client.search()
+				.byUrl("Patient?family=" + theFamily + "&_sort=" + theSort + "&_count=" + theCount)
+				.returnBundle(Bundle.class)
+				.execute();
+	}
+
+	private static String newFamily() {
+		return "keyset" + UUID.randomUUID().toString().replace("-", "");
+	}
+
+	private static List<String> ids(List<Patient> thePatients) {
+		return thePatients.stream().map(next -> next.getIdElement().getIdPart()).toList();
+	}
+
+	private static long lastUpdated(Patient thePatient) {
+		return thePatient.getMeta().getLastUpdated().getTime();
+	}
+}
@@ -0,0 +1,169 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.starter.common.RequestDeadline;
+import ca.uhn.fhir.jpa.starter.common.RequestDeadlineInterceptor;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbndjson",
+			"hapi.fhir.cr_enabled=false",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.ndjson_search_enabled=true",
+			"hapi.fhir.ndjson_search_batch_size=2",
+			"hapi.fhir.request_deadline.enabled=true"
+		})
+class NdjsonSearchStreamerTest {
+
+	private static final String NDJSON = "_format=" + Constants.CT_FHIR_NDJSON.replace("+", "%2B");
+	private static final String HEADER_SLOW = "X-Test-Slow";
+
+	private final HttpClient myHttpClient = HttpClient.newHttpClient();
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private DaoRegistry myDaoRegistry;
+
+	@Autowired
+	private RestfulServer myRestfulServer;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@Test
+	void testResultsAreStreamedOnePerLineUpToTheCount() throws Exception {
+		String family = createPatients(5);
+
+		HttpResponse<String> all = get("Patient?family=" + family + "&" + NDJSON);
+		assertEquals(200, all.statusCode());
+		String contentType = all.headers().firstValue(Constants.HEADER_CONTENT_TYPE).orElse("");
+		assertTrue(contentType.startsWith(Constants.CT_FHIR_NDJSON), contentType);
+		List<String> lines = lines(all);
+		assertEquals(5, lines.size());
+		for (String next : lines) {
+			Patient patient = FhirContext.forR4Cached().newJsonParser().parseResource(Patient.class, next);
+			assertEquals(family, patient.getNameFirstRep().getFamily());
+		}
+
+		// Across the batches of two
+		assertEquals(3, lines(get("Patient?family=" + family + "&_count=3&" + NDJSON)).size());
+		assertEquals(2, lines(get("Patient?family=" + family + "&_count=2&" + NDJSON)).size());
+		HttpResponse<String> none = get("Patient?family=" + family + "&_count=0&" + NDJSON);
+		assertEquals(200, none.statusCode());
+		assertEquals("", none.body());
+
+		assertEquals(400, get("Patient?family=" + family + "&_count=many&" + NDJSON).statusCode());
+		assertEquals(400, get("Patient?family=" + family + "&_include=Patient:organization&" + NDJSON)
+				.statusCode());
+	}
+
+	@Test
+	void testClientDisconnectStopsTheSearch() throws Exception {
+		String family = createPatients(20);
+		// Loads each batch slowly, so the client goes away while the search still runs
+		Object slow = new Object() {
+			@Hook(Pointcut.STORAGE_PRESHOW_RESOURCES)
+			public void slow(RequestDetails theRequestDetails) throws InterruptedException {
+				if (theRequestDetails != null && theRequestDetails.getHeader(HEADER_SLOW) != null) {
+					Thread.sleep(100);
+				}
+			}
+		};
+		double cancelled = disconnects();
+
+		myRestfulServer.registerInterceptor(slow);
+		try (Socket socket = new Socket("localhost", port)) {
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET /fhir/Patient?family=" + family + "&" + NDJSON + " HTTP/1.1\r\n"
+							+ "Host: localhost\r\n"
+							+ HEADER_SLOW + ": true\r\n"
+							+ "Connection: close\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			// Reads until the first resource arrived, whichever chunks it came in
+			Reader in = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
+			StringBuilder received = new StringBuilder();
+			int next;
+			while (!received.toString().contains(family) && (next = in.read()) != -1) {
+				received.append((char) next);
+			}
+			assertTrue(received.toString().contains(family), received.toString());
+
+			// Resets the connection on close
+			socket.setSoLinger(true, 0);
+		}
+
+		try {
+			await().atMost(10, TimeUnit.SECONDS).until(() -> disconnects() == cancelled + 1);
+		} finally {
+			myRestfulServer.unregisterInterceptor(slow);
+		}
+		assertEquals(20, lines(get("Patient?family=" + family + "&" + NDJSON)).size());
+	}
+
+	private String createPatients(int theCount) {
+		String retVal = "ndjson" + UUID.randomUUID().toString().replace("-", "");
+		for (int i = 0; i < theCount; i++) {
+			Patient patient = new Patient();
+			patient.addName().setFamily(retVal);
+			myDaoRegistry.getResourceDao(Patient.class).create(patient, new SystemRequestDetails());
+		}
+		return retVal;
+	}
+
+	private HttpResponse<String> get(String thePath) throws Exception {
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/fhir/" + thePath))
+				.build();
+		return myHttpClient.send(request, HttpResponse.BodyHandlers.ofString());
+	}
+
+	private static List<String> lines(HttpResponse<String> theResponse) {
+		assertEquals(200, theResponse.statusCode(), theResponse.body());
+		return Arrays.stream(theResponse.body().split("\n"))
+				.filter(next -> !next.isEmpty())
+				.toList();
+	}
+
+	private double disconnects() {
+		return myMeterRegistry
+				.get(RequestDeadlineInterceptor.METRIC_CANCELLED)
+				.tag("cause", RequestDeadline.Cause.DISCONNECT.getTag())
+				.counter()
+				.count();
+	}
+}
@@ -0,0 +1,132 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.common.validation.ParallelBundleValidator;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationResult;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ParallelBundleValidatorModuleTest {
+
+	private final FhirContext ctx = FhirContext.forR4Cached();
+
+	private final ParallelBundleValidator parallelValidator = new ParallelBundleValidator(2, 2);
+
+	/**
+	 * Reports one message per validated resource, located at the root of that resource
+	 */
+	private final IValidatorModule reportingModule = theCtx -> {
+		SingleValidationMessage message = new SingleValidationMessage();
+		message.setSeverity(ResultSeverityEnum.INFORMATION);
+		message.setLocationString(theCtx.getResource().fhirType() + ".id");
+		message.setMessage(theCtx.getResource().fhirType() + " entries: "
+				+ (theCtx.getResource() instanceof Bundle b
+						? b.getEntry().stream().filter(e -> e.getResource() != null).count()
+						: 0));
+		theCtx.addValidationMessage(message);
+	};
+
+	@AfterEach
+	void tearDown() {
+		parallelValidator.close();
+	}
+
+	@Test
+	void testEntriesAreValidatedSeparatelyWithEntryPaths() {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		bundle.addEntry().setResource(new Patient()).getRequest().setMethod(Bundle.HTTPVerb.POST);
+		bundle.addEntry().getRequest().setMethod(Bundle.HTTPVerb.DELETE).setUrl("Patient/1");
+		bundle.addEntry().setResource(new Observation()).getRequest().setMethod(Bundle.HTTPVerb.POST);
+
+		FhirValidator validator = ctx.newValidator();
+		validator.registerValidatorModule(parallelValidator.wrap(reportingModule));
+		ValidationResult result = validator.validateWithResult(bundle);
+
+		List<String> locations = result.getMessages().stream()
+				.map(SingleValidationMessage::getLocationString)
+				.collect(Collectors.toList());
+		assertEquals(List.of("Bundle.id", "Bundle.entry[0].resource.id", "Bundle.entry[2].resource.id"), locations);
+		// The Bundle level validation sees placeholders for the entry resources, and the original Bundle is untouched
+		assertEquals("Bundle entries: 2", result.getMessages().get(0).getMessage());
+		assertEquals(2, bundle.getEntry().stream().filter(e -> e.getResource() != null).count());
+	}
+
+	@Test
+	void testBundleShellHasPlaceholdersWhoseMessagesAreDropped() {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		bundle.addEntry()
+				.setResource(new Patient().setActive(true).setId("Patient/a"))
+				.getRequest()
+				.setMethod(Bundle.HTTPVerb.PUT);
+		bundle.addEntry().setResource(new Observation()).getRequest().setMethod(Bundle.HTTPVerb.POST);
+
+		// Reports what it sees of each entry of the shell, once at the Bundle and once inside the entry resource
+		IValidatorModule shellModule = theCtx -> {
+			if (!(theCtx.getResource() instanceof Bundle shell)) {
+				return;
+			}
+			for (int i = 0; i < shell.getEntry().size(); i++) {
+				Patient copy = shell.getEntry().get(i).getResource() instanceof Patient p ? p : null;
+				for (String location : List.of("Bundle.entry[" + i + "]", "Bundle.entry[" + i + "].resource.active")) {
+					SingleValidationMessage message = new SingleValidationMessage();
+					message.setSeverity(ResultSeverityEnum.ERROR);
+					message.setLocationString(location);
+					message.setMessage(shell.getEntry().get(i).getResource().fhirType()
+							+ (copy == null ? "" : " " + copy.getIdElement().getIdPart() + " " + copy.hasActive()));
+					theCtx.addValidationMessage(message);
+				}
+			}
+		};
+
+		FhirValidator validator = ctx.newValidator();
+		validator.registerValidatorModule(parallelValidator.wrap(shellModule));
+		ValidationResult result = validator.validateWithResult(bundle);
+
+		List<String> messages = result.getMessages().stream()
+				.map(next -> next.getLocationString() + ": " + next.getMessage())
+				.collect(Collectors.toList());
+		// The placeholders have the type and id of the entry resources but none of their content
+		assertEquals(List.of("Bundle.entry[0]: Patient a false", "Bundle.entry[1]: Observation"), messages);
+	}
+
+	@Test
+	void testSmallBundlesAreValidatedAsAWhole() {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		bundle.addEntry().setResource(new Patient()).getRequest().setMethod(Bundle.HTTPVerb.POST);
+
+		FhirValidator validator = ctx.newValidator();
+		ParallelBundleValidator largeBundlesOnly = new ParallelBundleValidator(2, 10);
+		validator.registerValidatorModule(largeBundlesOnly.wrap(reportingModule));
+		ValidationResult result = validator.validateWithResult(bundle);
+
+		assertEquals(1, result.getMessages().size());
+		assertEquals("Bundle entries: 1", result.getMessages().get(0).getMessage());
+		largeBundlesOnly.close();
+	}
+
+	@Test
+	void testBundlesAreStillValidatedAfterThePoolIsClosed() {
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.BATCH);
+		bundle.addEntry().setResource(new Patient()).getRequest().setMethod(Bundle.HTTPVerb.POST);
+		bundle.addEntry().setResource(new Patient()).getRequest().setMethod(Bundle.HTTPVerb.POST);
+		parallelValidator.close();
+
+		FhirValidator validator = ctx.newValidator();
+		validator.registerValidatorModule(parallelValidator.wrap(reportingModule));
+		ValidationResult result = validator.validateWithResult(bundle);
+
+		assertEquals(3, result.getMessages().size());
+	}
+}
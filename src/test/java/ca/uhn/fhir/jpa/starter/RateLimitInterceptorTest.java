@@ -0,0 +1,135 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.common.RateLimitInterceptor;
+import ca.uhn.fhir.jpa.starter.common.TrafficClassifier;
+import ca.uhn.fhir.jpa.starter.common.TrafficClassifier.TrafficClass;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimitInterceptorTest {
+
+	private static final String PROXY = "10.0.0.10";
+
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+
+	@Test
+	void testBurstIsAdmittedAndExcessRequestsAreRejected() {
+		RateLimitInterceptor interceptor = interceptor(classifier(null, false), 0.5, 3);
+
+		for (int i = 0; i < 3; i++) {
+			assertTrue(interceptor.limitRequest(request("1.1.1.1", "/Patient")));
+		}
+		BaseServerResponseException e = assertThrows(
+				BaseServerResponseException.class, () -> interceptor.limitRequest(request("1.1.1.1", "/Patient")));
+		assertEquals(429, e.getStatusCode());
+		// One token every two seconds
+		assertEquals(List.of("2"), e.getResponseHeaders().get(Constants.HEADER_RETRY_AFTER));
+		assertEquals(
+				1.0,
+				myMeterRegistry
+						.get(RateLimitInterceptor.METRIC_REJECTED)
+						.tag("traffic_class", "interactive")
+						.counter()
+						.count());
+
+		// Other clients have their own bucket, and the CapabilityStatement is never limited, also of a tenant
+		assertTrue(interceptor.limitRequest(request("2.2.2.2", "/Patient")));
+		assertTrue(interceptor.limitRequest(request("1.1.1.1", "/metadata")));
+		assertTrue(interceptor.limitRequest(request("1.1.1.1", "/TENANT-A/metadata")));
+		assertThrows(
+				BaseServerResponseException.class,
+				() -> interceptor.limitRequest(request("1.1.1.1", "/Patient/1/metadata")));
+	}
+
+	@Test
+	void testBucketIsRefilledOverTime() throws InterruptedException {
+		RateLimitInterceptor interceptor = interceptor(classifier(null, false), 10, 1);
+
+		assertTrue(interceptor.limitRequest(request("1.1.1.1", "/Patient")));
+		assertThrows(
+				BaseServerResponseException.class, () -> interceptor.limitRequest(request("1.1.1.1", "/Patient")));
+		Thread.sleep(150);
+		assertTrue(interceptor.limitRequest(request("1.1.1.1", "/Patient")));
+	}
+
+	@Test
+	void testBatchTrafficHasItsOwnLimit() {
+		RateLimitInterceptor interceptor = new RateLimitInterceptor(
+				classifier(null, false), 0.001, 5, 0.001, 1, myMeterRegistry);
+
+		assertTrue(interceptor.limitRequest(request("1.1.1.1", "/$export")));
+		assertThrows(BaseServerResponseException.class, () -> interceptor.limitRequest(request("1.1.1.1", "/$export")));
+		// The interactive bucket of the same client is untouched
+		assertTrue(interceptor.limitRequest(request("1.1.1.1", "/Patient")));
+	}
+
+	@Test
+	void testForwardedForIsOnlyTrustedFromProxies() {
+		TrafficClassifier classifier = classifier(Constants.HEADER_X_FORWARDED_FOR, false);
+
+		MockHttpServletRequest direct = request("1.1.1.1", "/Patient");
+		direct.addHeader(Constants.HEADER_X_FORWARDED_FOR, "9.9.9.9");
+		assertEquals("1.1.1.1", classifier.classify(direct).getClientId());
+
+		// The client prepends an address of its choice, the proxy appends the address the request came from
+		MockHttpServletRequest proxied = request(PROXY, "/Patient");
+		proxied.addHeader(Constants.HEADER_X_FORWARDED_FOR, "9.9.9.9, 1.1.1.1");
+		assertEquals("1.1.1.1", classifier.classify(proxied).getClientId());
+	}
+
+	@Test
+	void testTokenSubjectIsOnlyUsedWhenEnabled() {
+		String token = "Bearer e30." + Base64.getUrlEncoder()
+				.withoutPadding()
+				.encodeToString("{\"sub\":\"alice\"}".getBytes(StandardCharsets.UTF_8)) + ".sig";
+
+		MockHttpServletRequest request = request("1.1.1.1", "/Patient");
+		request.addHeader(Constants.HEADER_AUTHORIZATION, token);
+		assertEquals("1.1.1.1", classifier(null, false).classify(request).getClientId());
+
+		request = request("1.1.1.1", "/Patient");
+		request.addHeader(Constants.HEADER_AUTHORIZATION, token);
+		assertEquals("alice", classifier(null, true).classify(request).getClientId());
+	}
+
+	@Test
+	void testBatchClassification() {
+		TrafficClassifier classifier = classifier(null, false);
+
+		assertEquals(TrafficClass.BATCH, classifier.classify(request("3.3.3.3", "/Patient")).getTrafficClass());
+		assertEquals(TrafficClass.BATCH, classifier.classify(request("1.1.1.1", "/$export")).getTrafficClass());
+		MockHttpServletRequest async = request("1.1.1.1", "/Patient");
+		async.addHeader(Constants.HEADER_PREFER, Constants.HEADER_PREFER_RESPOND_ASYNC);
+		assertEquals(TrafficClass.BATCH, classifier.classify(async).getTrafficClass());
+		assertEquals(
+				TrafficClass.INTERACTIVE, classifier.classify(request("1.1.1.1", "/Patient")).getTrafficClass());
+	}
+
+	private RateLimitInterceptor interceptor(
+			TrafficClassifier theClassifier, double theRequestsPerSecond, int theBurst) {
+		return new RateLimitInterceptor(theClassifier, theRequestsPerSecond, theBurst, 0, 1, myMeterRegistry);
+	}
+
+	private static TrafficClassifier classifier(String theClientHeader, boolean theTokenSubjectEnabled) {
+		return new TrafficClassifier(
+				theClientHeader, List.of(PROXY), theTokenSubjectEnabled, List.of("3.3.3.3"), List.of("export"));
+	}
+
+	private static MockHttpServletRequest request(String theRemoteAddr, String thePathInfo) {
+		MockHttpServletRequest retVal = new MockHttpServletRequest("GET", "/fhir" + thePathInfo);
+		retVal.setRemoteAddr(theRemoteAddr);
+		retVal.setPathInfo(thePathInfo);
+		return retVal;
+	}
+}
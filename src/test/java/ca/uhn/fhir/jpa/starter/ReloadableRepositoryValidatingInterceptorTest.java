@@ -0,0 +1,104 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.interceptor.validation.IRepositoryValidatingRule;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingRuleBuilder;
+import ca.uhn.fhir.jpa.starter.common.validation.ReloadableRepositoryValidatingInterceptor;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.util.HapiExtensions;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReloadableRepositoryValidatingInterceptorTest {
+
+	private static final String PATIENT_PROFILE = "http://example.org/StructureDefinition/patient";
+	private static final String OBSERVATION_PROFILE = "http://example.org/StructureDefinition/observation";
+
+	private final FhirContext ctx = FhirContext.forR4Cached();
+
+	@Test
+	void testSetRulesReplacesTheWholeRuleSet() {
+		ReloadableRepositoryValidatingInterceptor interceptor =
+				new ReloadableRepositoryValidatingInterceptor(ctx, requireProfile("Patient", PATIENT_PROFILE));
+		assertEquals(1, interceptor.getRuleCount());
+		assertThrows(PreconditionFailedException.class, () -> create(interceptor, new Patient()));
+		create(interceptor, new Observation());
+
+		interceptor.setRules(requireProfile("Observation", OBSERVATION_PROFILE));
+		assertEquals(1, interceptor.getRuleCount());
+		assertTrue(interceptor.describeRules().contains(OBSERVATION_PROFILE));
+		assertFalse(interceptor.describeRules().contains(PATIENT_PROFILE));
+		create(interceptor, new Patient());
+		assertThrows(PreconditionFailedException.class, () -> create(interceptor, new Observation()));
+		assertThrows(
+				PreconditionFailedException.class,
+				() -> interceptor.resourceUpdated(new SystemRequestDetails(), new Observation(), new Observation()));
+
+		Observation conforming = new Observation();
+		conforming.getMeta().addProfile(OBSERVATION_PROFILE);
+		create(interceptor, conforming);
+	}
+
+	@Test
+	void testConcurrentWritesNeverSeeAnIncompleteRuleSet() throws InterruptedException {
+		List<IRepositoryValidatingRule> first = requireProfile("Patient", PATIENT_PROFILE);
+		List<IRepositoryValidatingRule> second = requireProfile("Patient", PATIENT_PROFILE);
+		ReloadableRepositoryValidatingInterceptor interceptor =
+				new ReloadableRepositoryValidatingInterceptor(ctx, first);
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread reloader = new Thread(() -> {
+			while (running.get()) {
+				interceptor.setRules(second);
+				interceptor.setRules(first);
+			}
+		});
+		reloader.start();
+		try {
+			for (int i = 0; i < 10000; i++) {
+				assertThrows(PreconditionFailedException.class, () -> create(interceptor, new Patient()));
+			}
+		} finally {
+			running.set(false);
+			reloader.join();
+		}
+	}
+
+	@Test
+	void testPlaceholderResourcesAreNotValidated() {
+		ReloadableRepositoryValidatingInterceptor interceptor =
+				new ReloadableRepositoryValidatingInterceptor(ctx, requireProfile("Patient", PATIENT_PROFILE));
+
+		Patient placeholder = new Patient();
+		placeholder.addExtension(HapiExtensions.EXT_RESOURCE_PLACEHOLDER, new BooleanType(true));
+		create(interceptor, placeholder);
+		interceptor.resourceUpdated(new SystemRequestDetails(), placeholder, placeholder);
+
+		assertThrows(PreconditionFailedException.class, () -> create(interceptor, new Patient()));
+	}
+
+	private static void create(ReloadableRepositoryValidatingInterceptor theInterceptor, Resource theResource) {
+		theInterceptor.resourceCreated(new SystemRequestDetails(), theResource);
+	}
+
+	private List<IRepositoryValidatingRule> requireProfile(String theType, String theProfile) {
+		RepositoryValidatingRuleBuilder builder = new RepositoryValidatingRuleBuilder(ctx.getValidationSupport());
+		// Normally autowired
+		ReflectionTestUtils.setField(builder, "myFhirContext", ctx);
+		builder.forResourcesOfType(theType).requireAtLeastProfile(theProfile);
+		return builder.build();
+	}
+}
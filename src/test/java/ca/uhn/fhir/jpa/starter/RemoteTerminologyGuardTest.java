@@ -0,0 +1,86 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.terminology.RemoteTerminologyGuard;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RemoteTerminologyGuardTest {
+
+	private SimpleMeterRegistry meterRegistry;
+	private AppProperties.RemoteSystem remoteSystem;
+
+	@BeforeEach
+	void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		remoteSystem = new AppProperties.RemoteSystem();
+		remoteSystem.setCircuit_breaker_failure_threshold(2);
+		remoteSystem.setCircuit_breaker_open_millis(50L);
+	}
+
+	@Test
+	void testBreakerOpensAfterConsecutiveFailuresAndSkipsRemote() {
+		RemoteTerminologyGuard guard = new RemoteTerminologyGuard("test", remoteSystem, meterRegistry);
+		AtomicInteger remoteCalls = new AtomicInteger();
+
+		for (int i = 0; i < 5; i++) {
+			String result = guard.execute(
+					() -> {
+						remoteCalls.incrementAndGet();
+						throw new FhirClientConnectionException("down");
+					},
+					() -> "fallback");
+			assertEquals("fallback", result);
+		}
+
+		assertEquals(2, remoteCalls.get());
+		assertEquals(RemoteTerminologyGuard.State.OPEN, guard.getState());
+		assertEquals(
+				2.0,
+				meterRegistry
+						.get(RemoteTerminologyGuard.METRIC_BREAKER_STATE)
+						.tag("remote", "test")
+						.gauge()
+						.value());
+	}
+
+	@Test
+	void testHalfOpenProbeClosesBreaker() throws InterruptedException {
+		RemoteTerminologyGuard guard = new RemoteTerminologyGuard("test", remoteSystem, meterRegistry);
+		for (int i = 0; i < 2; i++) {
+			guard.execute(
+					() -> {
+						throw new FhirClientConnectionException("down");
+					},
+					() -> "fallback");
+		}
+		assertEquals(RemoteTerminologyGuard.State.OPEN, guard.getState());
+
+		Thread.sleep(100);
+
+		assertEquals("remote", guard.execute(() -> "remote", () -> "fallback"));
+		assertEquals(RemoteTerminologyGuard.State.CLOSED, guard.getState());
+	}
+
+	@Test
+	void testClientErrorsArePassedThroughAndDoNotTripBreaker() {
+		RemoteTerminologyGuard guard = new RemoteTerminologyGuard("test", remoteSystem, meterRegistry);
+		for (int i = 0; i < 5; i++) {
+			assertThrows(
+					ResourceNotFoundException.class,
+					() -> guard.execute(
+							() -> {
+								throw new ResourceNotFoundException("missing");
+							},
+							() -> "fallback"));
+		}
+		assertEquals(RemoteTerminologyGuard.State.CLOSED, guard.getState());
+	}
+}
@@ -0,0 +1,251 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport.CodeValidationIssueCoding;
+import ca.uhn.fhir.context.support.IValidationSupport.CodeValidationResult;
+import ca.uhn.fhir.context.support.IValidationSupport.IssueSeverity;
+import ca.uhn.fhir.jpa.model.sched.ISchedulerService;
+import ca.uhn.fhir.jpa.model.sched.ScheduledJobDefinition;
+import ca.uhn.fhir.jpa.starter.terminology.GuardedRemoteTerminologyServiceValidationSupport;
+import ca.uhn.fhir.jpa.starter.terminology.RemoteValueSetSnapshotSvc;
+import ca.uhn.fhir.jpa.starter.terminology.ValueSetSnapshot;
+import ca.uhn.fhir.jpa.starter.terminology.ValueSetSnapshotValidationSupport;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RemoteValueSetSnapshotSvcTest {
+
+	private static final String VALUE_SET = "http://example.org/ValueSet/colors";
+	private static final String SYSTEM = "http://example.org/CodeSystem/colors";
+
+	private final FhirContext ctx = FhirContext.forR4Cached();
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private GuardedRemoteTerminologyServiceValidationSupport remote;
+	private AppProperties.RemoteSystem remoteSystem;
+
+	@BeforeEach
+	void setUp() {
+		remote = mock(GuardedRemoteTerminologyServiceValidationSupport.class);
+		when(remote.getRemoteName()).thenReturn("test");
+		remoteSystem = new AppProperties.RemoteSystem();
+		remoteSystem.setSnapshot_value_sets(List.of(VALUE_SET));
+	}
+
+	@Test
+	void testSnapshotsAreRefreshedWhenDueAndKeptWhenTheRemoteFails() {
+		remoteSystem.setSnapshot_refresh_millis(0L);
+		RemoteValueSetSnapshotSvc svc = new RemoteValueSetSnapshotSvc(ctx, meterRegistry);
+		svc.addRemote(remote, remoteSystem);
+		AtomicInteger changes = new AtomicInteger();
+		svc.addChangeListener(changes::incrementAndGet);
+
+		when(remote.fetchExpansion(eq(VALUE_SET), anyInt(), anyInt())).thenReturn(expansion("red", "green"));
+		svc.refreshDueSnapshots();
+		ValueSetSnapshot first = svc.getSnapshot(VALUE_SET);
+		assertEquals(2, first.size());
+		assertEquals(1, first.getGeneration());
+		assertEquals(1, changes.get());
+
+		// The same content keeps its generation, other content gets the next one
+		svc.refreshDueSnapshots();
+		assertEquals(1, svc.getSnapshot(VALUE_SET).getGeneration());
+		when(remote.fetchExpansion(eq(VALUE_SET), anyInt(), anyInt())).thenReturn(expansion("red", "blue"));
+		svc.refreshDueSnapshots();
+		assertEquals(2, svc.getSnapshot(VALUE_SET).getGeneration());
+		assertNotNull(svc.getSnapshot(VALUE_SET).findCode(SYSTEM, "blue"));
+		assertEquals(2, changes.get());
+
+		// An unavailable remote leaves the previous snapshot in place
+		when(remote.fetchExpansion(eq(VALUE_SET), anyInt(), anyInt())).thenReturn(null);
+		svc.refreshDueSnapshots();
+		assertEquals(2, svc.getSnapshot(VALUE_SET).getGeneration());
+		assertEquals(
+				1.0,
+				meterRegistry
+						.get(RemoteValueSetSnapshotSvc.METRIC_REFRESHES)
+						.tag("outcome", "unavailable")
+						.counter()
+						.count());
+	}
+
+	@Test
+	void testFreshSnapshotsAreNotRefetchedAndTheJobIsScheduled() {
+		RemoteValueSetSnapshotSvc svc = new RemoteValueSetSnapshotSvc(ctx, meterRegistry);
+		ISchedulerService scheduler = mock(ISchedulerService.class);
+		svc.scheduleJobs(scheduler);
+		verify(scheduler, never()).scheduleLocalJob(anyLong(), any(ScheduledJobDefinition.class));
+
+		svc.addRemote(remote, remoteSystem);
+		svc.scheduleJobs(scheduler);
+		verify(scheduler).scheduleLocalJob(anyLong(), any(ScheduledJobDefinition.class));
+
+		when(remote.fetchExpansion(eq(VALUE_SET), anyInt(), anyInt())).thenReturn(expansion("red"));
+		svc.refreshDueSnapshots();
+		svc.refreshDueSnapshots();
+		verify(remote).fetchExpansion(eq(VALUE_SET), anyInt(), anyInt());
+	}
+
+	@Test
+	void testSnapshotsArePersistedAndReloaded(@TempDir Path theDirectory) {
+		remoteSystem.setSnapshot_directory(theDirectory.toString());
+		RemoteValueSetSnapshotSvc svc = new RemoteValueSetSnapshotSvc(ctx, meterRegistry);
+		svc.addRemote(remote, remoteSystem);
+		when(remote.fetchExpansion(eq(VALUE_SET), anyInt(), anyInt())).thenReturn(expansion("red", "green"));
+		svc.refreshDueSnapshots();
+		long fetchedAt = svc.getSnapshot(VALUE_SET).getFetchedAt();
+
+		GuardedRemoteTerminologyServiceValidationSupport unreachable =
+				mock(GuardedRemoteTerminologyServiceValidationSupport.class);
+		when(unreachable.getRemoteName()).thenReturn("test");
+		RemoteValueSetSnapshotSvc restarted = new RemoteValueSetSnapshotSvc(ctx, new SimpleMeterRegistry());
+		restarted.addRemote(unreachable, remoteSystem);
+
+		ValueSetSnapshot reloaded = restarted.getSnapshot(VALUE_SET);
+		assertEquals(2, reloaded.size());
+		assertEquals(1, reloaded.getGeneration());
+		assertEquals(fetchedAt, reloaded.getFetchedAt());
+		assertEquals("Green", reloaded.getDisplay(reloaded.findCode(SYSTEM, "green")));
+		// Reloaded snapshots are not due yet
+		restarted.refreshDueSnapshots();
+		verify(unreachable, never()).fetchExpansion(any(), anyInt(), anyInt());
+	}
+
+	@Test
+	void testValidationSupportAnswersFromSnapshotsOnly() {
+		RemoteValueSetSnapshotSvc svc = new RemoteValueSetSnapshotSvc(ctx, meterRegistry);
+		svc.addRemote(remote, remoteSystem);
+		when(remote.fetchExpansion(eq(VALUE_SET), anyInt(), anyInt())).thenReturn(expansion("red"));
+		svc.refreshDueSnapshots();
+		ValueSetSnapshotValidationSupport support = new ValueSetSnapshotValidationSupport(ctx, svc);
+		ConceptValidationOptions options = new ConceptValidationOptions();
+
+		CodeValidationResult known = support.validateCode(null, options, SYSTEM, "red", null, VALUE_SET);
+		assertTrue(known.isOk());
+		assertEquals("Red", known.getDisplay());
+		assertNull(known.getCodeSystemName());
+
+		// A display differing from the snapshot is reported, while the code stays valid
+		assertNull(support.validateCode(null, options, SYSTEM, "red", "Red", VALUE_SET).getSeverity());
+		CodeValidationResult wrongDisplay = support.validateCode(null, options, SYSTEM, "red", "Blue", VALUE_SET);
+		assertTrue(wrongDisplay.isOk());
+		assertEquals("Red", wrongDisplay.getDisplay());
+		assertEquals(IssueSeverity.WARNING, wrongDisplay.getSeverity());
+		assertEquals(1, wrongDisplay.getIssues().size());
+		assertEquals(
+				CodeValidationIssueCoding.INVALID_DISPLAY,
+				wrongDisplay.getIssues().get(0).getCoding());
+		assertTrue(wrongDisplay.getMessage().contains("\"Blue\""));
+
+		CodeValidationResult unknown = support.validateCode(null, options, SYSTEM, "blue", null, VALUE_SET);
+		assertEquals(IssueSeverity.ERROR, unknown.getSeverity());
+
+		// ValueSets without a snapshot, and codes without a system, are left to the rest of the chain
+		String other = "http://example.org/ValueSet/other";
+		assertFalse(support.isValueSetSupported(null, other));
+		assertNull(support.validateCode(null, options, SYSTEM, "red", null, other));
+		assertNull(support.validateCode(null, options, null, "red", null, VALUE_SET));
+		assertTrue(support.validateCode(null, options.setInferSystem(true), null, "red", null, VALUE_SET)
+				.isOk());
+	}
+
+	@Test
+	void testRemotesThatIgnorePagingAreNotLoopedOver() {
+		RemoteValueSetSnapshotSvc svc = new RemoteValueSetSnapshotSvc(ctx, meterRegistry);
+		svc.addRemote(remote, remoteSystem);
+		// A full page without a total, whatever the offset
+		String[] codes = new String[1000];
+		for (int i = 0; i < codes.length; i++) {
+			codes[i] = "code" + i;
+		}
+		ValueSet page = expansion(codes);
+		page.getExpansion().setTotalElement(null);
+		when(remote.fetchExpansion(eq(VALUE_SET), anyInt(), anyInt())).thenReturn(page);
+
+		svc.refreshDueSnapshots();
+
+		assertNull(svc.getSnapshot(VALUE_SET));
+		verify(remote, times(2)).fetchExpansion(eq(VALUE_SET), anyInt(), anyInt());
+		assertEquals(
+				1.0,
+				meterRegistry
+						.get(RemoteValueSetSnapshotSvc.METRIC_REFRESHES)
+						.tag("outcome", "incomplete")
+						.counter()
+						.count());
+	}
+
+	@Test
+	void testHierarchicalExpansionsAreCompleteWhenAllNestedCodesArrived() {
+		RemoteValueSetSnapshotSvc svc = new RemoteValueSetSnapshotSvc(ctx, meterRegistry);
+		svc.addRemote(remote, remoteSystem);
+		ValueSet hierarchy = expansion("color");
+		hierarchy.getExpansion().getContainsFirstRep().setAbstract(true);
+		hierarchy.getExpansion().getContainsFirstRep().addContains().setSystem(SYSTEM).setCode("red");
+		hierarchy.getExpansion().getContainsFirstRep().addContains().setSystem(SYSTEM).setCode("green");
+		hierarchy.getExpansion().setTotal(3);
+		when(remote.fetchExpansion(eq(VALUE_SET), anyInt(), anyInt())).thenReturn(hierarchy);
+
+		svc.refreshDueSnapshots();
+
+		ValueSetSnapshot snapshot = svc.getSnapshot(VALUE_SET);
+		assertEquals(2, snapshot.size());
+		assertNotNull(snapshot.findCode(SYSTEM, "green"));
+		assertNull(snapshot.findCode(SYSTEM, "color"));
+	}
+
+	@Test
+	void testCodesAreFoundWithAndWithoutTheirSystem() {
+		Map<String, String> codes = new LinkedHashMap<>();
+		codes.put(SYSTEM + "|red", "Red");
+		codes.put("http://example.org/CodeSystem/other|red", "Other red");
+		codes.put(SYSTEM + "|a|b", "A or B");
+		ValueSetSnapshot snapshot = new ValueSetSnapshot(VALUE_SET, null, 1, 0, codes);
+
+		assertEquals(SYSTEM + "|red", snapshot.findCode(SYSTEM, "red"));
+		assertNull(snapshot.findCode(SYSTEM, "blue"));
+		// Without a system the first code with the value is found
+		assertEquals(SYSTEM + "|red", snapshot.findCode(null, "red"));
+		assertEquals(SYSTEM + "|a|b", snapshot.findCode(null, "a|b"));
+		assertNull(snapshot.findCode(null, "b"));
+		assertNull(snapshot.findCode(null, "blue"));
+	}
+
+	private static ValueSet expansion(String... theCodes) {
+		ValueSet retVal = new ValueSet();
+		retVal.setUrl(VALUE_SET);
+		retVal.getExpansion().setTotal(theCodes.length);
+		for (String next : theCodes) {
+			retVal.getExpansion()
+					.addContains()
+					.setSystem(SYSTEM)
+					.setCode(next)
+					.setDisplay(Character.toUpperCase(next.charAt(0)) + next.substring(1));
+		}
+		return retVal;
+	}
+}
@@ -0,0 +1,127 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.interceptor.validation.RepositoryValidatingInterceptor;
+import ca.uhn.fhir.jpa.starter.common.validation.BaseRepositoryValidationInterceptorFactory;
+import ca.uhn.fhir.jpa.starter.common.validation.IRepositoryValidationInterceptorFactory;
+import ca.uhn.fhir.jpa.starter.common.validation.ReloadableRepositoryValidatingInterceptor;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import org.hl7.fhir.r4.model.Basic;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import java.util.Set;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbrepositoryvalidation",
+			"hapi.fhir.cr_enabled=false",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.enable_repository_validating_interceptor=true"
+		})
+class RepositoryValidationInterceptorFactoryTest {
+
+	private static final String PROFILE_PREFIX = "http://example.org/StructureDefinition/";
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private DaoRegistry myDaoRegistry;
+
+	@Autowired
+	private IRepositoryValidationInterceptorFactory myFactory;
+
+	@Autowired
+	private RepositoryValidatingInterceptor myInterceptor;
+
+	private IGenericClient client;
+
+	@BeforeEach
+	void setUp() {
+		FhirContext ctx = FhirContext.forR4Cached();
+		ctx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		client = ctx.newRestfulGenericClient("http://localhost:" + port + "/fhir/");
+	}
+
+	@Test
+	void testRulesCoverStructureDefinitionsBeyondTheFirstPage() {
+		Bundle transaction = new Bundle().setType(Bundle.BundleType.TRANSACTION);
+		for (int i = 0; i < 250; i++) {
+			transaction
+					.addEntry()
+					.setResource(profile("Basic", "basic-" + i))
+					.getRequest()
+					.setMethod(Bundle.HTTPVerb.POST)
+					.setUrl("StructureDefinition");
+		}
+		myDaoRegistry.getSystemDao().transaction(new SystemRequestDetails(), transaction);
+
+		changeStructureDefinitions();
+
+		Set<String> profiles = Pattern.compile(Pattern.quote(PROFILE_PREFIX) + "basic-\\d+")
+				.matcher(myInterceptor.describeRules())
+				.results()
+				.map(MatchResult::group)
+				.collect(Collectors.toSet());
+		assertEquals(250, profiles.size());
+		assertThrows(PreconditionFailedException.class, () -> client.create()
+				.resource(new Basic())
+				.execute());
+	}
+
+	@Test
+	void testNewlyStoredProfileIsEnforcedWithoutRestart() {
+		client.create().resource(new Observation()).execute();
+
+		myDaoRegistry
+				.getResourceDao(StructureDefinition.class)
+				.create(profile("Observation", "observation"), new SystemRequestDetails());
+		changeStructureDefinitions();
+
+		assertThrows(PreconditionFailedException.class, () -> client.create()
+				.resource(new Observation())
+				.execute());
+	}
+
+	/**
+	 * Applies the change right away instead of waiting for the resource change listener to poll
+	 */
+	private void changeStructureDefinitions() {
+		int before = ((ReloadableRepositoryValidatingInterceptor) myInterceptor).getRuleCount();
+		((BaseRepositoryValidationInterceptorFactory) myFactory).handleChange(null);
+		assertEquals(before + 2, ((ReloadableRepositoryValidatingInterceptor) myInterceptor).getRuleCount());
+	}
+
+	private static StructureDefinition profile(String theType, String theName) {
+		StructureDefinition retVal = new StructureDefinition();
+		retVal.setUrl(PROFILE_PREFIX + theName);
+		retVal.setName(theName);
+		retVal.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		retVal.setKind(StructureDefinition.StructureDefinitionKind.RESOURCE);
+		retVal.setAbstract(false);
+		retVal.setType(theType);
+		retVal.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/" + theType);
+		retVal.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+		return retVal;
+	}
+}
@@ -0,0 +1,150 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.common.RequestDeadline;
+import ca.uhn.fhir.jpa.starter.common.RequestDeadlineInterceptor;
+import ca.uhn.fhir.jpa.starter.sql.SqlCaptureInterceptor;
+import ca.uhn.fhir.jpa.starter.sql.SqlCaptureReport;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbdeadline",
+			"hapi.fhir.cr_enabled=false",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.request_deadline.enabled=true",
+			"hapi.fhir.sql_capture.enabled=true",
+			"hapi.fhir.sql_capture.slow_threshold_millis=500",
+			// A single request thread, so the follow-up request runs on the thread of the cancelled one
+			"server.tomcat.threads.max=1",
+			"server.tomcat.threads.min-spare=1"
+		})
+class RequestDeadlineIT {
+
+	/**
+	 * Counts far longer than any deadline of this test, checking for cancellation on the way
+	 */
+	private static final String LONG_QUERY =
+			"SELECT COUNT(*) FROM SYSTEM_RANGE(1, 1000000) A, SYSTEM_RANGE(1, 1000000) B WHERE A.X + B.X > 0";
+
+	private static final String HEADER_LONG_QUERY = "X-Test-Long-Query";
+
+	private final HttpClient myHttpClient = HttpClient.newHttpClient();
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private RestfulServer myRestfulServer;
+
+	@Autowired
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private PlatformTransactionManager myTransactionManager;
+
+	@Autowired
+	private SqlCaptureInterceptor mySqlCaptureInterceptor;
+
+	@Autowired
+	private MeterRegistry myMeterRegistry;
+
+	@Test
+	void testLongQueryIsCancelledAndTheThreadServesTheNextRequest() throws Exception {
+		List<String> threads = new ArrayList<>();
+		List<RequestDeadline> deadlinesLeftBound = new ArrayList<>();
+		Object longQuery = new Object() {
+			@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_PROCESSED)
+			public boolean before() {
+				threads.add(Thread.currentThread().getName());
+				deadlinesLeftBound.add(RequestDeadline.current());
+				return true;
+			}
+
+			// Runs on the request thread after the deadline started, through the persistence unit
+			@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+			public void query(RequestDetails theRequestDetails) {
+				if (theRequestDetails.getHeader(HEADER_LONG_QUERY) != null) {
+					new TransactionTemplate(myTransactionManager)
+							.execute(status -> myEntityManager.createNativeQuery(LONG_QUERY).getSingleResult());
+				}
+			}
+		};
+		double cancelled = cancelled();
+		int slowStatements = slowStatements().size();
+
+		myRestfulServer.registerInterceptor(longQuery);
+		try {
+			long start = System.nanoTime();
+			HttpResponse<String> timedOut = get(HttpRequest.newBuilder()
+					.header("X-Request-Timeout", "1")
+					.header(HEADER_LONG_QUERY, "true"));
+			long tookMillis = (System.nanoTime() - start) / 1_000_000;
+			assertEquals(504, timedOut.statusCode());
+			assertTrue(timedOut.body().contains("Request deadline of 1000 ms exceeded"), timedOut.body());
+			assertTrue(tookMillis < 20_000, "took " + tookMillis + " ms");
+			assertEquals(cancelled + 1, cancelled());
+
+			HttpResponse<String> next = get(HttpRequest.newBuilder());
+			assertEquals(200, next.statusCode());
+			assertTrue(next.body().contains("\"resourceType\": \"Bundle\""), next.body());
+		} finally {
+			myRestfulServer.unregisterInterceptor(longQuery);
+		}
+
+		assertEquals(2, threads.size());
+		assertEquals(threads.get(0), threads.get(1));
+		// The deadline of the cancelled request was unbound from the thread before the next request started
+		assertNull(deadlinesLeftBound.get(1));
+
+		// The cancelled statement is attributed to its request, with the time it ran until it was cancelled
+		List<SqlCaptureReport.SlowStatement> captured = slowStatements();
+		assertTrue(captured.size() > slowStatements);
+		SqlCaptureReport.SlowStatement slow = captured.stream()
+				.filter(next -> next.getSql() != null && next.getSql().contains("SYSTEM_RANGE"))
+				.findFirst()
+				.orElseThrow();
+		assertEquals("search-type", slow.getInteraction());
+		assertTrue(slow.getMillis() >= 500 && slow.getMillis() < 20_000, "ran " + slow.getMillis() + " ms");
+	}
+
+	private HttpResponse<String> get(HttpRequest.Builder theRequest) throws Exception {
+		theRequest.uri(URI.create("http://localhost:" + port + "/fhir/Patient?_count=1"));
+		return myHttpClient.send(theRequest.build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	private List<SqlCaptureReport.SlowStatement> slowStatements() {
+		return mySqlCaptureInterceptor.getReport().getSlowStatements();
+	}
+
+	private double cancelled() {
+		return myMeterRegistry
+				.get(RequestDeadlineInterceptor.METRIC_CANCELLED)
+				.tag("cause", RequestDeadline.Cause.DEADLINE.getTag())
+				.counter()
+				.count();
+	}
+}
@@ -0,0 +1,189 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.common.RequestDeadline;
+import ca.uhn.fhir.jpa.starter.common.RequestDeadline.Cause;
+import ca.uhn.fhir.jpa.starter.common.RequestDeadline.RequestDeadlineExceededException;
+import ca.uhn.fhir.jpa.starter.common.RequestDeadlineInterceptor;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import javax.sql.DataSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RequestDeadlineInterceptorTest {
+
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private final RequestDeadlineInterceptor myInterceptor = new RequestDeadlineInterceptor(
+			"X-Request-Timeout", 30_000, 60_000, Map.of("Transaction", 120_000L), myMeterRegistry);
+	private PreparedStatement myStatement;
+	private Connection myConnection;
+
+	@BeforeEach
+	void before() throws SQLException {
+		myStatement = mock(PreparedStatement.class);
+		Connection connection = mock(Connection.class);
+		when(connection.prepareStatement(anyString())).thenReturn(myStatement);
+		DataSource dataSource = mock(DataSource.class);
+		when(dataSource.getConnection()).thenReturn(connection);
+		myConnection = RequestDeadline.wrap(dataSource).getConnection();
+	}
+
+	@AfterEach
+	void after() {
+		myInterceptor.stop();
+		RequestDeadline.setCurrent(null);
+	}
+
+	@Test
+	void testTimeoutComesFromTheHeaderCappedAtTheMaximum() {
+		assertEquals(30_000, timeoutMillisOf(RestOperationTypeEnum.SEARCH_TYPE, null));
+		assertEquals(120_000, timeoutMillisOf(RestOperationTypeEnum.TRANSACTION, null));
+		assertEquals(1_500, timeoutMillisOf(RestOperationTypeEnum.SEARCH_TYPE, "1.5"));
+		assertEquals(5_000, timeoutMillisOf(RestOperationTypeEnum.TRANSACTION, " 5 "));
+		assertEquals(60_000, timeoutMillisOf(RestOperationTypeEnum.SEARCH_TYPE, "3600"));
+		assertEquals(60_000, timeoutMillisOf(RestOperationTypeEnum.TRANSACTION, "3600"));
+
+		assertThrows(InvalidRequestException.class, () -> start(RestOperationTypeEnum.SEARCH_TYPE, "soon"));
+		assertThrows(InvalidRequestException.class, () -> start(RestOperationTypeEnum.SEARCH_TYPE, "0"));
+		assertThrows(InvalidRequestException.class, () -> start(RestOperationTypeEnum.SEARCH_TYPE, "-1"));
+		// Values the client could make expensive to parse, or that would overflow, are rejected up front
+		assertThrows(InvalidRequestException.class, () -> start(RestOperationTypeEnum.SEARCH_TYPE, "1e20000000"));
+		assertThrows(
+				InvalidRequestException.class, () -> start(RestOperationTypeEnum.SEARCH_TYPE, "99999999999999999999"));
+		assertThrows(InvalidRequestException.class, () -> start(RestOperationTypeEnum.SEARCH_TYPE, "0.0001"));
+	}
+
+	@Test
+	void testStatementsGetTheTimeLeftAsQueryTimeout() throws Exception {
+		myConnection.prepareStatement("SELECT 1").close();
+		verify(myStatement, never()).setQueryTimeout(anyInt());
+
+		ServletRequestDetails requestDetails = start(RestOperationTypeEnum.SEARCH_TYPE, "2.5");
+		myConnection.prepareStatement("SELECT 1").close();
+		// Rounded up to whole seconds
+		verify(myStatement).setQueryTimeout(3);
+
+		myInterceptor.endDeadline(requestDetails, requestDetails);
+		assertNull(RequestDeadline.current());
+	}
+
+	@Test
+	void testWatchdogCancelsStatementsInFlight() throws Exception {
+		start(RestOperationTypeEnum.SEARCH_TYPE, "0.2");
+		RequestDeadline deadline = RequestDeadline.current();
+		PreparedStatement running = myConnection.prepareStatement("SELECT 1");
+
+		verify(myStatement, timeout(5_000)).cancel();
+		assertEquals(Cause.DEADLINE, deadline.getCancelled());
+		assertEquals(1.0, cancelled(Cause.DEADLINE));
+		assertThrows(SQLTimeoutException.class, () -> myConnection.prepareStatement("SELECT 2"));
+		running.close();
+	}
+
+	@Test
+	void testWatchdogLeavesRequestsWithoutStatementsInFlight() throws Exception {
+		start(RestOperationTypeEnum.SEARCH_TYPE, "0.1");
+		RequestDeadline deadline = RequestDeadline.current();
+		myConnection.prepareStatement("SELECT 1").close();
+
+		Thread.sleep(500);
+		assertNull(deadline.getCancelled());
+		// Further work of the request fails all the same
+		assertThrows(RequestDeadlineExceededException.class, RequestDeadline::checkCurrent);
+		assertEquals(Cause.DEADLINE, deadline.getCancelled());
+	}
+
+	@Test
+	void testWatchdogIsStoppedWhenTheRequestCompletes() throws Exception {
+		ServletRequestDetails requestDetails = start(RestOperationTypeEnum.SEARCH_TYPE, "0.2");
+		RequestDeadline deadline = RequestDeadline.current();
+		myConnection.prepareStatement("SELECT 1");
+		myInterceptor.endDeadline(requestDetails, requestDetails);
+
+		Thread.sleep(500);
+		verify(myStatement, never()).cancel();
+		assertNull(deadline.getCancelled());
+		assertEquals(0.0, cancelled(Cause.DEADLINE));
+	}
+
+	@Test
+	void testFailuresOfCancelledRequestsAreReportedAsGatewayTimeout() {
+		ServletRequestDetails requestDetails = start(RestOperationTypeEnum.SEARCH_TYPE, "60");
+		SQLException failure = new SQLException("Statement was canceled");
+		assertNull(myInterceptor.deadlineExceeded(requestDetails, failure));
+
+		RequestDeadline.current().cancel(Cause.DISCONNECT);
+		BaseServerResponseException mapped = myInterceptor.deadlineExceeded(requestDetails, failure);
+		assertEquals(504, mapped.getStatusCode());
+		assertEquals("Request cancelled because the client disconnected", mapped.getMessage());
+		assertEquals(1.0, cancelled(Cause.DISCONNECT));
+
+		RequestDeadline.setCurrent(null);
+		assertNull(myInterceptor.deadlineExceeded(requestDetails, failure));
+	}
+
+	@Test
+	void testDeadlinePassedBeforeTheWatchdogIsReportedAsGatewayTimeout() throws Exception {
+		ServletRequestDetails requestDetails = start(RestOperationTypeEnum.SEARCH_TYPE, "0.05");
+		Thread.sleep(200);
+
+		// e.g. the driver timed the statement out itself
+		BaseServerResponseException mapped =
+				myInterceptor.deadlineExceeded(requestDetails, new SQLTimeoutException("Query timed out"));
+		assertEquals(504, mapped.getStatusCode());
+		assertEquals("Request deadline of 50 ms exceeded", mapped.getMessage());
+		assertEquals(1.0, cancelled(Cause.DEADLINE));
+	}
+
+	private long timeoutMillisOf(RestOperationTypeEnum theInteraction, String theHeader) {
+		ServletRequestDetails requestDetails = start(theInteraction, theHeader);
+		RequestDeadline retVal = (RequestDeadline)
+				requestDetails.getServletRequest().getAttribute(RequestDeadline.ATTRIBUTE_DEADLINE);
+		assertSame(retVal, RequestDeadline.current());
+		myInterceptor.endDeadline(requestDetails, requestDetails);
+		return retVal.getTimeoutMillis();
+	}
+
+	private ServletRequestDetails start(RestOperationTypeEnum theInteraction, String theHeader) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/fhir/Patient");
+		if (theHeader != null) {
+			request.addHeader("X-Request-Timeout", theHeader);
+		}
+		ServletRequestDetails retVal = new ServletRequestDetails();
+		retVal.setServletRequest(request);
+		retVal.setRestOperationType(theInteraction);
+		myInterceptor.startDeadline(retVal, request);
+		return retVal;
+	}
+
+	private double cancelled(Cause theCause) {
+		return myMeterRegistry
+				.get(RequestDeadlineInterceptor.METRIC_CANCELLED)
+				.tag("cause", theCause.getTag())
+				.counter()
+				.count();
+	}
+}
@@ -0,0 +1,188 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.jpa.starter.common.validation.ResponseValidationReport;
+import ca.uhn.fhir.jpa.starter.common.validation.SampledResponseValidatingInterceptor;
+import ca.uhn.fhir.rest.api.server.ResponseDetails;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SampledResponseValidatingInterceptorTest {
+
+	private static final String KNOWN_PROFILE = "http://example.org/StructureDefinition/known";
+	private static final String MADE_UP_PROFILE = "http://example.org/StructureDefinition/made-up";
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private final IValidationSupport myValidationSupport = mock(IValidationSupport.class);
+	private final AtomicInteger myValidated = new AtomicInteger();
+	private final CountDownLatch myEntered = new CountDownLatch(1);
+	private final CountDownLatch myReleased = new CountDownLatch(1);
+	private SampledResponseValidatingInterceptor myInterceptor;
+
+	/**
+	 * Reports one warning per validated resource, and changes the resource it is given
+	 */
+	private final IValidatorModule myModule = theCtx -> {
+		myEntered.countDown();
+		try {
+			myReleased.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		theCtx.getResource().setId("changed-by-validation");
+		SingleValidationMessage message = new SingleValidationMessage();
+		message.setSeverity(ResultSeverityEnum.WARNING);
+		message.setLocationString(theCtx.getResource().fhirType());
+		message.setMessage("Checked");
+		theCtx.addValidationMessage(message);
+		myValidated.incrementAndGet();
+	};
+
+	@AfterEach
+	void after() {
+		myReleased.countDown();
+		if (myInterceptor != null) {
+			myInterceptor.stop();
+		}
+	}
+
+	@Test
+	void testResponsesAreSampledAtTheConfiguredRate() {
+		myReleased.countDown();
+		start(0.0, 10);
+		for (int i = 0; i < 100; i++) {
+			respond(new Patient());
+		}
+		assertNull(myMeterRegistry.find("fhir.validation.response.samples").counter());
+
+		start(0.5, 1000);
+		for (int i = 0; i < 1000; i++) {
+			respond(new Patient());
+		}
+		double queued = samples("queued");
+		assertTrue(queued > 400 && queued < 600, String.valueOf(queued));
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myValidated.get() == (int) queued);
+
+		// Responses without a resource have nothing to validate
+		start(1.0, 10);
+		myInterceptor.outgoingResponse(null, new ResponseDetails());
+		assertEquals(0.0, samples("queued"));
+	}
+
+	@Test
+	void testSamplesAreDroppedWithoutDelayingTheResponseWhileTheQueueIsFull() throws Exception {
+		start(1.0, 2);
+		Patient first = new Patient();
+		first.setId("Patient/first");
+		respond(first);
+		// The validator holds on to the first sample, so the queue takes the next two only
+		assertTrue(myEntered.await(5, TimeUnit.SECONDS));
+		long start = System.nanoTime();
+		for (int i = 0; i < 4; i++) {
+			respond(new Patient());
+		}
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+		assertEquals(3.0, samples("queued"));
+		assertEquals(2.0, samples("dropped"));
+
+		myReleased.countDown();
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myValidated.get() == 3);
+		// The validator worked on a copy of the response
+		assertEquals("Patient/first", first.getId());
+	}
+
+	@Test
+	void testSearchResultsAreValidatedPerResourceAndTaggedWithKnownProfilesOnly() {
+		myReleased.countDown();
+		when(myValidationSupport.fetchStructureDefinition(KNOWN_PROFILE)).thenReturn(new StructureDefinition());
+		start(1.0, 10);
+
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.SEARCHSET);
+		Patient known = new Patient();
+		known.getMeta().addProfile(KNOWN_PROFILE);
+		bundle.addEntry().setResource(known);
+		Patient madeUp = new Patient();
+		madeUp.getMeta().addProfile(MADE_UP_PROFILE);
+		bundle.addEntry().setResource(madeUp);
+		bundle.addEntry().setResource(new Observation().setStatus(Observation.ObservationStatus.FINAL));
+		String encoded = myFhirContext.newJsonParser().encodeResourceToString(bundle);
+		respond(bundle);
+
+		await().atMost(10, TimeUnit.SECONDS).until(() -> myValidated.get() == 3);
+		assertEquals(encoded, myFhirContext.newJsonParser().encodeResourceToString(bundle));
+		assertEquals(1.0, resources("Patient", KNOWN_PROFILE).count());
+		assertEquals(1.0, resources("Patient", "other").count());
+		assertEquals(1.0, resources("Observation", "none").count());
+		assertEquals(1.0, myMeterRegistry
+				.get("fhir.validation.response.issues")
+				.tags("resource_type", "Patient", "profile", "other", "severity", "warning")
+				.counter()
+				.count());
+		assertNull(myMeterRegistry
+				.find("fhir.validation.response.resources")
+				.tag("profile", MADE_UP_PROFILE)
+				.counter());
+
+		// The report keeps the profile the resource declared
+		List<ResponseValidationReport.Entry> entries = myInterceptor.getReport().getEntries();
+		assertEquals(3, entries.size());
+		assertTrue(entries.stream().anyMatch(next -> next.getProfile().equals(MADE_UP_PROFILE)));
+		entries.forEach(next -> assertEquals(1, next.getWarnings()));
+	}
+
+	private void start(double theSampleRate, int theQueueSize) {
+		if (myInterceptor != null) {
+			myInterceptor.stop();
+			myMeterRegistry.clear();
+			myValidated.set(0);
+		}
+		AppProperties.Validation settings = new AppProperties.Validation();
+		settings.setResponses_sample_rate(theSampleRate);
+		settings.setResponses_async_queue_size(theQueueSize);
+		myInterceptor = new SampledResponseValidatingInterceptor(
+				myFhirContext, myModule, myValidationSupport, settings, myMeterRegistry);
+	}
+
+	private void respond(IBaseResource theResource) {
+		myInterceptor.outgoingResponse(null, new ResponseDetails(theResource));
+	}
+
+	private double samples(String theOutcome) {
+		Counter counter = myMeterRegistry
+				.find("fhir.validation.response.samples")
+				.tag("outcome", theOutcome)
+				.counter();
+		return counter != null ? counter.count() : 0;
+	}
+
+	private Counter resources(String theResourceType, String theProfile) {
+		return myMeterRegistry
+				.get("fhir.validation.response.resources")
+				.tags("resource_type", theResourceType, "profile", theProfile)
+				.counter();
+	}
+}
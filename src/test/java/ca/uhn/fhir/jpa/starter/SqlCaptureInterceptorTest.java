@@ -0,0 +1,182 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.sql.SqlAttributionStatementInspector;
+import ca.uhn.fhir.jpa.starter.sql.SqlCaptureInterceptor;
+import ca.uhn.fhir.jpa.starter.sql.SqlCaptureReport;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SqlCaptureInterceptorTest {
+
+	private static final String FAST = "select 1";
+	private static final String SLOW = "select * from HFJ_RESOURCE where RES_ID = ? and RES_TYPE = ?";
+	private static final long THRESHOLD_MILLIS = 50;
+
+	private final SimpleMeterRegistry myMeterRegistry = new SimpleMeterRegistry();
+	private final SqlAttributionStatementInspector myInspector = new SqlAttributionStatementInspector();
+	private final Connection myConnection = mock(Connection.class);
+	private SqlCaptureInterceptor myInterceptor;
+
+	@AfterEach
+	void after() {
+		// Leaves no request bound to the test thread
+		if (myInterceptor != null) {
+			myInterceptor.endRequest(null);
+		}
+	}
+
+	@Test
+	void testStatementsAreAttributedToTheirRequest() throws Exception {
+		DataSource dataSource = wrappedDataSource(false);
+		ServletRequestDetails requestDetails = request();
+
+		myInterceptor.startRequest(requestDetails);
+		execute(dataSource, FAST, 0);
+		execute(dataSource, SLOW, THRESHOLD_MILLIS * 2);
+		myInterceptor.endRequest(requestDetails);
+
+		List<SqlCaptureReport.SlowStatement> slow = myInterceptor.getReport().getSlowStatements();
+		assertEquals(1, slow.size());
+		assertEquals(SLOW, slow.get(0).getSql());
+		// The types of the bind parameters are kept, but not their values
+		assertEquals(List.of("Long", "String"), slow.get(0).getParameters());
+		assertEquals("test-request", slow.get(0).getRequestId());
+		assertEquals("search-type", slow.get(0).getInteraction());
+		assertEquals("http://localhost/fhir/Patient?family=smith", slow.get(0).getUrl());
+		assertTrue(slow.get(0).getMillis() >= THRESHOLD_MILLIS, String.valueOf(slow.get(0).getMillis()));
+		assertNull(slow.get(0).getPlan());
+
+		List<SqlCaptureReport.RequestStats> requests = myInterceptor.getReport().getRequests();
+		assertEquals(1, requests.size());
+		assertEquals("test-request", requests.get(0).getRequestId());
+		assertEquals(2, requests.get(0).getStatements());
+		assertTrue(requests.get(0).getDbMillis() >= THRESHOLD_MILLIS);
+
+		assertEquals(2.0, myMeterRegistry
+				.get(SqlCaptureInterceptor.METRIC_STATEMENTS)
+				.tag("interaction", "search-type")
+				.summary()
+				.totalAmount());
+		assertTrue(myMeterRegistry
+						.get(SqlCaptureInterceptor.METRIC_TIME)
+						.tag("interaction", "search-type")
+						.timer()
+						.totalTime(TimeUnit.MILLISECONDS)
+				>= THRESHOLD_MILLIS);
+		assertEquals(1.0, myMeterRegistry.get(SqlCaptureInterceptor.METRIC_SLOW).counter().count());
+	}
+
+	@Test
+	void testStatementsOutsideOfRequestsAreCapturedWithoutOne() throws Exception {
+		DataSource dataSource = wrappedDataSource(false);
+
+		execute(dataSource, SLOW, THRESHOLD_MILLIS * 2);
+		myInterceptor.endRequest(request());
+
+		List<SqlCaptureReport.SlowStatement> slow = myInterceptor.getReport().getSlowStatements();
+		assertEquals(1, slow.size());
+		assertNull(slow.get(0).getRequestId());
+		assertNull(slow.get(0).getInteraction());
+		assertTrue(myInterceptor.getReport().getRequests().isEmpty());
+		assertNull(myMeterRegistry.find(SqlCaptureInterceptor.METRIC_STATEMENTS).summary());
+	}
+
+	@Test
+	void testSlowQueriesAreExplainedOnPostgres() throws Exception {
+		DataSource dataSource = wrappedDataSource(true);
+		DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+		when(metaData.getDatabaseProductName()).thenReturn("PostgreSQL");
+		when(myConnection.getMetaData()).thenReturn(metaData);
+		when(myConnection.getAutoCommit()).thenReturn(true);
+		PreparedStatement explain = mock(PreparedStatement.class);
+		ResultSet plan = mock(ResultSet.class);
+		when(plan.next()).thenReturn(true, true, true, false);
+		when(plan.getString(1))
+				.thenReturn(
+						"Index Scan using hfj_resource_pkey on hfj_resource  (cost=0.29..8.31 rows=1 width=8)",
+						"  Index Cond: (res_id = 42)",
+						"  Filter: ((res_type)::text = 'Patient''s'::text)");
+		when(explain.executeQuery()).thenReturn(plan);
+		String sql = myInspector.inspect(SLOW);
+		when(myConnection.prepareStatement("EXPLAIN " + sql)).thenReturn(explain);
+
+		execute(dataSource, sql, THRESHOLD_MILLIS * 2);
+
+		SqlCaptureReport.SlowStatement slow = myInterceptor.getReport().getSlowStatements().get(0);
+		// The plan is taken with the values the statement ran with, but does not disclose them
+		verify(explain).setObject(1, 42L);
+		verify(explain).setObject(2, "Patient");
+		assertEquals(
+				"Index Scan using hfj_resource_pkey on hfj_resource  (cost=0.29..8.31 rows=1 width=8)\n"
+						+ "  Index Cond: (res_id = ?)\n"
+						+ "  Filter: ((res_type)::text = '?'::text)\n",
+				slow.getPlan());
+	}
+
+	@Test
+	void testStatementsAreCommentedWithTheirInteraction() {
+		assertEquals(SLOW, myInspector.inspect(SLOW));
+
+		myInterceptor = new SqlCaptureInterceptor(THRESHOLD_MILLIS, 10, false, myMeterRegistry);
+		ServletRequestDetails requestDetails = request();
+		myInterceptor.startRequest(requestDetails);
+		assertEquals("/* fhir:search-type */ " + SLOW, myInspector.inspect(SLOW));
+		myInterceptor.endRequest(requestDetails);
+
+		assertEquals(SLOW, myInspector.inspect(SLOW));
+	}
+
+	private DataSource wrappedDataSource(boolean theExplainEnabled) throws Exception {
+		DataSource dataSource = mock(DataSource.class);
+		when(dataSource.getConnection()).thenReturn(myConnection);
+		myInterceptor = new SqlCaptureInterceptor(THRESHOLD_MILLIS, 10, theExplainEnabled, myMeterRegistry);
+		return myInterceptor.wrap(dataSource);
+	}
+
+	/**
+	 * Runs a statement binding a Long and a String, which takes <code>theMillis</code> to execute
+	 */
+	private void execute(DataSource theDataSource, String theSql, long theMillis) throws Exception {
+		PreparedStatement statement = mock(PreparedStatement.class);
+		when(statement.execute()).thenAnswer(invocation -> {
+			Thread.sleep(theMillis);
+			return true;
+		});
+		when(myConnection.prepareStatement(theSql)).thenReturn(statement);
+
+		try (Connection connection = theDataSource.getConnection();
+				PreparedStatement wrapped = connection.prepareStatement(theSql)) {
+			wrapped.setLong(1, 42L);
+			wrapped.setString(2, "Patient");
+			wrapped.execute();
+		}
+	}
+
+	private static ServletRequestDetails request() {
+		ServletRequestDetails retVal = new ServletRequestDetails();
+		retVal.setRequestId("test-request");
+		retVal.setRequestType(RequestTypeEnum.GET);
+		retVal.setRestOperationType(RestOperationTypeEnum.SEARCH_TYPE);
+		retVal.setCompleteUrl("http://localhost/fhir/Patient?family=smith");
+		return retVal;
+	}
+}
@@ -0,0 +1,110 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ca.uhn.fhir.jpa.packages.IPackageInstallerSvc;
+import ca.uhn.fhir.jpa.packages.PackageInstallationSpec;
+import ca.uhn.fhir.jpa.starter.ig.StreamingPackageInstaller;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class StreamingPackageInstallerTest {
+
+	private final IPackageInstallerSvc myInstallerSvc = mock(IPackageInstallerSvc.class);
+	private final IHapiPackageCacheManager myCacheManager = mock(IHapiPackageCacheManager.class);
+
+	@Test
+	void testPackageIsCachedAndInstalledByItsManifest() throws IOException {
+		byte[] tgz = tgz(Map.of(
+				"package/other.json", "{}",
+				"package/package.json", "{\"name\":\"example.ig\",\"version\":\"1.2.3\"}"));
+		ByteArrayOutputStream cached = new ByteArrayOutputStream();
+		when(myCacheManager.addPackageToCache(anyString(), anyString(), any(), anyString()))
+				.thenAnswer(invocation -> {
+					((InputStream) invocation.getArgument(2)).transferTo(cached);
+					return null;
+				});
+
+		PackageInstallationSpec spec = new StreamingPackageInstaller(myInstallerSvc, myCacheManager, 0)
+				.install(new ByteArrayInputStream(tgz), -1);
+
+		assertEquals("example.ig", spec.getName());
+		assertEquals("1.2.3", spec.getVersion());
+		assertArrayEquals(tgz, cached.toByteArray());
+		ArgumentCaptor<PackageInstallationSpec> installed = ArgumentCaptor.forClass(PackageInstallationSpec.class);
+		verify(myInstallerSvc).install(installed.capture());
+		assertEquals("example.ig", installed.getValue().getName());
+		assertFalse(installed.getValue().isFetchDependencies());
+	}
+
+	@Test
+	void testDeclaredLengthOverTheLimitIsRejectedBeforeReading() throws IOException {
+		InputStream body = mock(InputStream.class);
+		StreamingPackageInstaller installer = new StreamingPackageInstaller(myInstallerSvc, myCacheManager, 100);
+
+		assertThrows(PayloadTooLargeException.class, () -> installer.install(body, 101));
+		verify(body, never()).read(any());
+	}
+
+	@Test
+	void testBodyOverTheLimitIsRejectedWhileCopying() throws IOException {
+		byte[] tgz = tgz(Map.of("package/package.json", "{\"name\":\"example.ig\",\"version\":\"1.0.0\"}"));
+		StreamingPackageInstaller installer =
+				new StreamingPackageInstaller(myInstallerSvc, myCacheManager, tgz.length - 1);
+
+		// Without a content length, e.g. with chunked transfer encoding
+		assertThrows(PayloadTooLargeException.class, () -> installer.install(new ByteArrayInputStream(tgz), -1));
+		verify(myCacheManager, never()).addPackageToCache(anyString(), anyString(), any(), anyString());
+		verify(myInstallerSvc, never()).install(any());
+	}
+
+	@Test
+	void testPackageWithoutManifestIsRejected() throws IOException {
+		byte[] tgz = tgz(Map.of("package/other.json", "{}"));
+		StreamingPackageInstaller installer = new StreamingPackageInstaller(myInstallerSvc, myCacheManager, 0);
+
+		assertThrows(InvalidRequestException.class, () -> installer.install(new ByteArrayInputStream(tgz), -1));
+		assertThrows(
+				InvalidRequestException.class,
+				() -> installer.install(new ByteArrayInputStream("not a package".getBytes()), -1));
+		verify(myCacheManager, never()).addPackageToCache(anyString(), anyString(), any(), eq("upload"));
+	}
+
+	private static byte[] tgz(Map<String, String> theEntries) throws IOException {
+		ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+		try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(retVal))) {
+			for (Map.Entry<String, String> next : theEntries.entrySet()) {
+				byte[] content = next.getValue().getBytes(StandardCharsets.UTF_8);
+				TarArchiveEntry entry = new TarArchiveEntry(next.getKey());
+				entry.setSize(content.length);
+				tar.putArchiveEntry(entry);
+				tar.write(content);
+				tar.closeArchiveEntry();
+			}
+		}
+		return retVal.toByteArray();
+	}
+}
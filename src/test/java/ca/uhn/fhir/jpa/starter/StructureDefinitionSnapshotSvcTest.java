@@ -0,0 +1,146 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.starter.common.validation.StructureDefinitionSnapshotSvc;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.ElementDefinition;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest(
+		webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		classes = {Application.class},
+		properties = {
+			"spring.datasource.url=jdbc:h2:mem:dbsnapshot",
+			"hapi.fhir.cr_enabled=false",
+			"hapi.fhir.fhir_version=r4",
+			"hapi.fhir.validation.snapshot_pregeneration_enabled=true"
+		})
+class StructureDefinitionSnapshotSvcTest {
+
+	@Autowired
+	private DaoRegistry myDaoRegistry;
+
+	@Autowired
+	private IInterceptorService myInterceptorService;
+
+	@Autowired
+	private IValidationSupport myValidationSupport;
+
+	@Autowired
+	private StructureDefinitionSnapshotSvc mySnapshotSvc;
+
+	@Test
+	void testCreatedAndUpdatedStructureDefinitionsAreStoredWithASnapshot() {
+		IFhirResourceDao<StructureDefinition> dao = myDaoRegistry.getResourceDao(StructureDefinition.class);
+
+		StructureDefinition profile = differentialOnlyProfile();
+		IIdType id = dao.create(profile, new SystemRequestDetails()).getId().toUnqualifiedVersionless();
+		StructureDefinition created = dao.read(id, new SystemRequestDetails());
+		assertFalse(created.getSnapshot().getElement().isEmpty());
+
+		// An update without the snapshot gets a fresh one
+		profile.setId(id);
+		profile.setSnapshot(null);
+		profile.getDifferential().getElementFirstRep().setShort("Changed");
+		dao.update(profile, new SystemRequestDetails());
+		StructureDefinition updated = dao.read(id, new SystemRequestDetails());
+		assertFalse(updated.getSnapshot().getElement().isEmpty());
+		assertTrue(updated.getSnapshot().getElement().stream()
+				.anyMatch(element -> "Changed".equals(element.getShort())));
+	}
+
+	@Test
+	void testWarmUpGeneratesTheSnapshotsOfStoredDifferentialOnlyStructureDefinitions() {
+		IFhirResourceDao<StructureDefinition> dao = myDaoRegistry.getResourceDao(StructureDefinition.class);
+		StructureDefinition profile = differentialOnlyProfile();
+
+		// Stored as if before pre-generation was enabled
+		myInterceptorService.unregisterInterceptor(mySnapshotSvc);
+		IIdType id;
+		try {
+			id = dao.create(profile, new SystemRequestDetails()).getId().toUnqualifiedVersionless();
+		} finally {
+			myInterceptorService.registerInterceptor(mySnapshotSvc);
+		}
+		assertTrue(dao.read(id, new SystemRequestDetails()).getSnapshot().getElement().isEmpty());
+
+		mySnapshotSvc.warmUp();
+
+		// The validator gets the snapshot from the chain, nothing is left for it to generate
+		StructureDefinition fetched =
+				(StructureDefinition) myValidationSupport.fetchStructureDefinition(profile.getUrl());
+		assertNotNull(fetched);
+		assertFalse(fetched.getSnapshot().getElement().isEmpty());
+		// The stored StructureDefinition is left untouched
+		assertTrue(dao.read(id, new SystemRequestDetails()).getSnapshot().getElement().isEmpty());
+
+		// Once updated, the stored snapshot replaces the one held in memory
+		StructureDefinition stored = dao.read(id, new SystemRequestDetails());
+		stored.getDifferential().getElementFirstRep().setShort("Updated");
+		dao.update(stored, new SystemRequestDetails());
+		myValidationSupport.invalidateCaches();
+		fetched = (StructureDefinition) myValidationSupport.fetchStructureDefinition(profile.getUrl());
+		assertTrue(fetched.getSnapshot().getElement().stream()
+				.anyMatch(element -> "Updated".equals(element.getShort())));
+	}
+
+	@Test
+	void testWarmUpStoresTheGeneratedSnapshotsWhenEnabled() {
+		IFhirResourceDao<StructureDefinition> dao = myDaoRegistry.getResourceDao(StructureDefinition.class);
+		myInterceptorService.unregisterInterceptor(mySnapshotSvc);
+		IIdType id;
+		try {
+			id = dao.create(differentialOnlyProfile(), new SystemRequestDetails())
+					.getId()
+					.toUnqualifiedVersionless();
+		} finally {
+			myInterceptorService.registerInterceptor(mySnapshotSvc);
+		}
+
+		ReflectionTestUtils.setField(mySnapshotSvc, "myPersistExisting", true);
+		try {
+			mySnapshotSvc.warmUp();
+		} finally {
+			ReflectionTestUtils.setField(mySnapshotSvc, "myPersistExisting", false);
+		}
+
+		// Stored once as a new version, so the next startup has nothing to generate
+		StructureDefinition stored = dao.read(id, new SystemRequestDetails());
+		assertEquals("2", stored.getIdElement().getVersionIdPart());
+		assertFalse(stored.getSnapshot().getElement().isEmpty());
+		mySnapshotSvc.warmUp();
+		assertEquals("2", dao.read(id, new SystemRequestDetails()).getIdElement().getVersionIdPart());
+	}
+
+	private static StructureDefinition differentialOnlyProfile() {
+		StructureDefinition retVal = new StructureDefinition();
+		retVal.setUrl("http://example.org/StructureDefinition/" + UUID.randomUUID());
+		retVal.setName("SnapshotPatient");
+		retVal.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		retVal.setKind(StructureDefinition.StructureDefinitionKind.RESOURCE);
+		retVal.setAbstract(false);
+		retVal.setType("Patient");
+		retVal.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Patient");
+		retVal.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+		ElementDefinition birthDate = retVal.getDifferential().addElement().setPath("Patient.birthDate");
+		birthDate.setId("Patient.birthDate");
+		birthDate.setMin(1);
+		return retVal;
+	}
+}
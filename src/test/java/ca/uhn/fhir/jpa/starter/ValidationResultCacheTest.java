@@ -0,0 +1,272 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.jpa.starter.common.validation.ValidationResultCache;
+import ca.uhn.fhir.jpa.starter.terminology.GuardedRemoteTerminologyServiceValidationSupport;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.IValidatorModule;
+import ca.uhn.fhir.validation.ResultSeverityEnum;
+import ca.uhn.fhir.validation.SingleValidationMessage;
+import ca.uhn.fhir.validation.ValidationOptions;
+import ca.uhn.fhir.validation.ValidationResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ValidationResultCacheTest {
+
+	private final FhirContext ctx = FhirContext.forR4Cached();
+
+	private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private final AtomicInteger validations = new AtomicInteger();
+
+	/**
+	 * Runs before the delegate reports its message, e.g. to change the conformance resources mid-validation
+	 */
+	private Consumer<ValidationResultCache> duringValidation = cache -> {};
+
+	private ValidationResultCache cache = newCache(64L * 1024 * 1024);
+
+	/**
+	 * The message the delegate reports, by default one naming the content validated
+	 */
+	private String reportedMessage;
+
+	@AfterEach
+	void tearDown() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+
+	@Test
+	void testIdenticalContentAndProfilesAreServedFromTheCache() {
+		FhirValidator validator = validator();
+		Patient patient = patient("a");
+
+		ValidationResult first = validator.validateWithResult(patient, profiles("http://a", "http://b"));
+		// The order of the profiles does not matter
+		ValidationResult second = validator.validateWithResult(patient("a"), profiles("http://b", "http://a"));
+
+		assertEquals(1, validations.get());
+		assertEquals(1, second.getMessages().size());
+		assertEquals(first.getMessages().get(0).getMessage(), second.getMessages().get(0).getMessage());
+		assertEquals(ResultSeverityEnum.WARNING, second.getMessages().get(0).getSeverity());
+		assertEquals("Patient.id", second.getMessages().get(0).getLocationString());
+	}
+
+	@Test
+	void testDifferentProfilesOrEncodingAreValidatedAgain() {
+		FhirValidator validator = validator();
+		Patient patient = patient("a");
+
+		validator.validateWithResult(patient, profiles("http://a"));
+		validator.validateWithResult(patient, profiles("http://b"));
+		validator.validateWithResult(patient, profiles("http://a", "http://b"));
+		assertEquals(3, validations.get());
+
+		validator.validateWithResult(ctx.newJsonParser().encodeResourceToString(patient));
+		validator.validateWithResult(ctx.newXmlParser().encodeResourceToString(patient));
+		assertEquals(5, validations.get());
+		validator.validateWithResult(ctx.newXmlParser().encodeResourceToString(patient));
+		assertEquals(5, validations.get());
+	}
+
+	@Test
+	void testChangedConformanceResourcesInvalidateTheCache() {
+		FhirValidator validator = validator();
+		Patient patient = patient("a");
+		validator.validateWithResult(patient);
+
+		int expected = 1;
+		for (IBaseResource next : List.of(new StructureDefinition(), new ValueSet(), new CodeSystem())) {
+			cache.resourceCreated(next);
+			validator.validateWithResult(patient);
+			assertEquals(++expected, validations.get());
+
+			cache.resourceUpdated(next, next);
+			validator.validateWithResult(patient);
+			assertEquals(++expected, validations.get());
+
+			cache.resourceDeleted(next);
+			validator.validateWithResult(patient);
+			assertEquals(++expected, validations.get());
+		}
+
+		// Other resources leave the cache alone
+		cache.resourceCreated(new Patient());
+		validator.validateWithResult(patient);
+		assertEquals(expected, validations.get());
+	}
+
+	@Test
+	void testCacheIsInvalidatedAgainOnceTheChangeIsCommitted() {
+		FhirValidator validator = validator();
+		Patient patient = patient("a");
+
+		TransactionSynchronizationManager.initSynchronization();
+		cache.resourceUpdated(new StructureDefinition(), new StructureDefinition());
+
+		// A validation running before the commit still sees the old StructureDefinition and caches its result
+		validator.validateWithResult(patient);
+		validator.validateWithResult(patient);
+		assertEquals(1, validations.get());
+
+		List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+		assertEquals(1, synchronizations.size());
+		synchronizations.forEach(TransactionSynchronization::afterCommit);
+
+		validator.validateWithResult(patient);
+		assertEquals(2, validations.get());
+	}
+
+	@Test
+	void testResultIsNotCachedWhenInvalidatedDuringValidation() {
+		FhirValidator validator = validator();
+		Patient patient = patient("a");
+
+		duringValidation = theCache -> theCache.invalidateAll("test");
+		validator.validateWithResult(patient);
+		duringValidation = theCache -> {};
+		validator.validateWithResult(patient);
+		assertEquals(2, validations.get());
+
+		// Without a concurrent change the result is cached again
+		validator.validateWithResult(patient);
+		assertEquals(2, validations.get());
+	}
+
+	@Test
+	void testResultsBuiltFromATerminologyFallbackAreNotCached() {
+		FhirValidator validator = validator();
+		Patient patient = patient("a");
+		GuardedRemoteTerminologyServiceValidationSupport remote = unavailableRemote();
+
+		// The remote answers with its fallback during validation
+		duringValidation = theCache -> remote.validateCode(
+				new ValidationSupportContext(remote),
+				new ConceptValidationOptions(),
+				"http://loinc.org",
+				"1234-5",
+				null,
+				null);
+		validator.validateWithResult(patient);
+		validator.validateWithResult(patient);
+		assertEquals(2, validations.get());
+
+		// The fallback is reported, e.g. from the cache of the validation support chain
+		duringValidation = theCache -> {};
+		reportedMessage = "Remote terminology server 'test' is unavailable, code '1234-5' from system 'http://loinc.org'"
+				+ " could not be validated";
+		validator.validateWithResult(patient);
+		validator.validateWithResult(patient);
+		assertEquals(4, validations.get());
+
+		// Once the remote answers again, results are cached
+		reportedMessage = null;
+		validator.validateWithResult(patient);
+		validator.validateWithResult(patient);
+		assertEquals(5, validations.get());
+	}
+
+	@Test
+	void testEntriesAreEvictedByWeight() {
+		// The metrics of a cache are only registered once per registry
+		meterRegistry = new SimpleMeterRegistry();
+		cache = newCache(4 * 1024);
+		FhirValidator validator = validator();
+
+		for (int i = 0; i < 50; i++) {
+			validator.validateWithResult(patient("p" + i));
+		}
+		assertEquals(50, validations.get());
+
+		await().atMost(5, TimeUnit.SECONDS)
+				.until(() -> meterRegistry
+								.get("cache.evictions")
+								.tag("cache", "fhir.validation.result.cache")
+								.functionCounter()
+								.count()
+						> 0);
+		double size = meterRegistry
+				.get("cache.size")
+				.tag("cache", "fhir.validation.result.cache")
+				.gauge()
+				.value();
+		assertTrue(size < 50, "Cache holds " + size + " entries");
+	}
+
+	private ValidationResultCache newCache(long theMaxBytes) {
+		AppProperties.Validation settings = new AppProperties.Validation();
+		settings.setResult_cache_max_bytes(theMaxBytes);
+		return new ValidationResultCache(settings, meterRegistry);
+	}
+
+	private FhirValidator validator() {
+		IValidatorModule delegate = theCtx -> {
+			validations.incrementAndGet();
+			duringValidation.accept(cache);
+			SingleValidationMessage message = new SingleValidationMessage();
+			message.setSeverity(ResultSeverityEnum.WARNING);
+			message.setLocationString("Patient.id");
+			message.setMessage(
+					reportedMessage != null ? reportedMessage : "Validated " + theCtx.getResourceAsString());
+			theCtx.addValidationMessage(message);
+		};
+		FhirValidator retVal = ctx.newValidator();
+		retVal.registerValidatorModule(cache.wrap(delegate));
+		return retVal;
+	}
+
+	/**
+	 * @return a remote whose circuit breaker is open, so every code is answered with the fallback
+	 */
+	private static GuardedRemoteTerminologyServiceValidationSupport unavailableRemote() {
+		AppProperties.RemoteSystem remoteSystem = new AppProperties.RemoteSystem();
+		remoteSystem.setUrl("http://localhost:1/fhir");
+		remoteSystem.setCircuit_breaker_failure_threshold(1);
+		remoteSystem.setCircuit_breaker_open_millis(60_000L);
+		GuardedRemoteTerminologyServiceValidationSupport retVal = new GuardedRemoteTerminologyServiceValidationSupport(
+				FhirContext.forR4Cached(), "test", null, remoteSystem, new SimpleMeterRegistry());
+		retVal.getGuard().execute(
+				() -> {
+					throw new FhirClientConnectionException("down");
+				},
+				() -> null);
+		return retVal;
+	}
+
+	private static Patient patient(String theFamily) {
+		Patient retVal = new Patient();
+		retVal.addName().setFamily(theFamily);
+		return retVal;
+	}
+
+	private static ValidationOptions profiles(String... theProfiles) {
+		ValidationOptions retVal = new ValidationOptions();
+		for (String next : theProfiles) {
+			retVal.addProfile(next);
+		}
+		return retVal;
+	}
+}
@@ -0,0 +1,136 @@
+package ca.uhn.fhir.jpa.starter.ig;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.TransactionProcessor;
+import ca.uhn.fhir.jpa.model.config.PartitionSettings;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AdditionalResourceLoaderTest {
+
+	private final FhirContext myFhirContext = FhirContext.forR4Cached();
+	private final TransactionProcessor myTransactionProcessor = mock(TransactionProcessor.class);
+	private final PartitionSettings myPartitionSettings = new PartitionSettings().setDefaultPartitionId(7);
+
+	@Test
+	void testResourcesAreLevelledAfterTheResourcesTheyReference() {
+		Organization parent = organization("parent", null);
+		Organization child = organization("child", "parent");
+		Patient patient = new Patient();
+		patient.setId("Patient/patient");
+		patient.setManagingOrganization(new Reference("Organization/child"));
+		// Neither references to themselves nor to resources outside the folders hold a resource back
+		Organization self = organization("self", "self");
+		Organization external = organization("external", "not-in-the-package");
+
+		AdditionalResourceLoader.Levels levels = loader(10).levels(List.of(patient, child, self, parent, external));
+
+		assertEquals(3, levels.myLevels.size());
+		assertEquals(List.of("self", "parent", "external"), ids(levels.myLevels.get(0)));
+		assertEquals(List.of("child"), ids(levels.myLevels.get(1)));
+		assertEquals(List.of("patient"), ids(levels.myLevels.get(2)));
+		assertTrue(levels.myCycle.isEmpty());
+	}
+
+	@Test
+	void testResourcesInACycleAreLeftForOneTransaction() {
+		Organization first = organization("first", "second");
+		Organization second = organization("second", "first");
+		// Depends on the cycle, so cannot come before it either
+		Organization dependent = organization("dependent", "first");
+		Organization independent = organization("independent", null);
+
+		AdditionalResourceLoader.Levels levels = loader(10).levels(List.of(first, dependent, independent, second));
+
+		assertEquals(1, levels.myLevels.size());
+		assertEquals(List.of("independent"), ids(levels.myLevels.get(0)));
+		assertEquals(List.of("first", "dependent", "second"), ids(levels.myCycle));
+	}
+
+	@Test
+	void testLevelsAreSplitIntoChunks() {
+		List<IBaseResource> level = new ArrayList<>();
+		for (int i = 0; i < 7; i++) {
+			level.add(organization("org" + i, null));
+		}
+
+		List<List<IBaseResource>> chunks = loader(3).chunks(level);
+
+		assertEquals(List.of(3, 3, 1), chunks.stream().map(List::size).toList());
+		assertEquals(List.of("org6"), ids(chunks.get(2)));
+		assertEquals(List.of(level), loader(7).chunks(level));
+	}
+
+	@Test
+	void testChunksAreStoredLevelByLevelInTheDefaultPartition() {
+		List<Set<String>> transactions = Collections.synchronizedList(new ArrayList<>());
+		List<SystemRequestDetails> requests = Collections.synchronizedList(new ArrayList<>());
+		when(myTransactionProcessor.transaction(any(), any(Bundle.class), anyBoolean()))
+				.thenAnswer(invocation -> {
+					requests.add(invocation.getArgument(0));
+					Bundle bundle = invocation.getArgument(1);
+					transactions.add(bundle.getEntry().stream()
+							.map(next -> next.getResource().getIdElement().getIdPart())
+							.collect(Collectors.toSet()));
+					return bundle;
+				});
+		List<IBaseResource> resources = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			resources.add(organization("org" + i, null));
+		}
+		resources.add(organization("child", "org4"));
+		resources.add(organization("first", "second"));
+		resources.add(organization("second", "first"));
+
+		ExtendedPackageInstallationSpec spec = new ExtendedPackageInstallationSpec();
+		spec.setName("test.package");
+		loader(2).store(spec, resources);
+
+		assertEquals(5, transactions.size());
+		// The chunks of the first level are stored concurrently, in any order
+		Set<Set<String>> firstLevel = Set.copyOf(transactions.subList(0, 3));
+		assertEquals(Set.of(Set.of("org0", "org1"), Set.of("org2", "org3"), Set.of("org4")), firstLevel);
+		assertEquals(Set.of("child"), transactions.get(3));
+		assertEquals(Set.of("first", "second"), transactions.get(4));
+		// Stored in the default partition configured
+		requests.forEach(next -> assertTrue(next.getRequestPartitionId().isPartition(7)));
+	}
+
+	private AdditionalResourceLoader loader(int theChunkSize) {
+		return new AdditionalResourceLoader(
+				myFhirContext, myTransactionProcessor, myPartitionSettings, theChunkSize, 2);
+	}
+
+	private static Organization organization(String theId, String thePartOf) {
+		Organization retVal = new Organization();
+		retVal.setId("Organization/" + theId);
+		if (thePartOf != null) {
+			retVal.setPartOf(new Reference("Organization/" + thePartOf));
+		}
+		return retVal;
+	}
+
+	private static List<String> ids(List<IBaseResource> theResources) {
+		return theResources.stream()
+				.map(next -> next.getIdElement().getIdPart())
+				.toList();
+	}
+}